@@ -0,0 +1,36 @@
+package org.jaxrx;
+
+import javax.ws.rs.core.StreamingOutput;
+import org.jaxrx.core.Archive;
+import org.jaxrx.core.JaxRxException;
+
+/**
+ * This interface can be implemented in addition to {@link JaxRx} by
+ * implementations that store many resources with a single request. The
+ * resources are read from an {@link Archive}; implementations may parse them
+ * in parallel.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public interface Bulk {
+	/**
+	 * Stores all documents of the specified archive. Existing resources with
+	 * the same names are replaced. If {@code atomic} is {@code true}, either
+	 * all documents or none of them are stored; otherwise, each valid document
+	 * is stored, and invalid documents are reported in the summary.
+	 *
+	 * @param archive
+	 *            documents to be stored
+	 * @param atomic
+	 *            all-or-nothing flag
+	 * @return summary, as XML
+	 * @throws JaxRxException
+	 *             thrown if the archive is malformed (status code: 400), or if
+	 *             {@code atomic} is set and a document could not be parsed
+	 *             (status code: 400)
+	 */
+	StreamingOutput bulk(final Archive archive, final boolean atomic)
+			throws JaxRxException;
+}
@@ -1,6 +1,8 @@
 package org.jaxrx;
 
 import org.jaxrx.core.JaxRxException;
+import org.jaxrx.core.MetricsFilter;
+import org.mortbay.jetty.Handler;
 import org.mortbay.jetty.Server;
 import org.mortbay.jetty.security.Constraint;
 import org.mortbay.jetty.security.ConstraintMapping;
@@ -43,6 +45,7 @@ public final class JettyServer {
         "org.jaxrx.resource");
 
     final Context context = new Context(server, "/", Context.SESSIONS);
+    context.addFilter(MetricsFilter.class, "/*", Handler.REQUEST);
     context.addServlet(servHolder, "/");
     server.start();
   }
@@ -97,6 +100,7 @@ public final class JettyServer {
         "org.jaxrx.resource");
 
     final Context context = new Context(server, "/", Context.SESSIONS);
+    context.addFilter(MetricsFilter.class, "/*", Handler.REQUEST);
     context.addServlet(servHolder, "/");
     server.start();
   }
@@ -0,0 +1,25 @@
+package org.jaxrx;
+
+import java.util.Map;
+
+/**
+ * This interface can be implemented in addition to {@link JaxRx} by
+ * implementations that keep internal statistics, such as cache hits or the
+ * number of written log records. The statistics are published by the
+ * resource layer together with the request metrics.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public interface Measurable {
+	/**
+	 * Returns the current values of all statistics. Names must consist of
+	 * lower-case letters, digits and underscores; names of counters, which
+	 * never decrease, end with {@code _total}, all other values are treated
+	 * as gauges.
+	 *
+	 * @return values, indexed by names
+	 */
+	Map<String, Long> getCounters();
+}
@@ -0,0 +1,41 @@
+package org.jaxrx;
+
+import org.jaxrx.core.JaxRxException;
+import org.jaxrx.core.ResourcePath;
+import org.w3c.dom.Document;
+
+/**
+ * This interface can be implemented in addition to {@link JaxRx} by
+ * implementations that modify parts of a resource. The modifications are
+ * specified by an {@code update} envelope (see {@code post.xsd}); each
+ * operation selects nodes with an XPath expression and inserts content next
+ * to or into them, replaces, renames or deletes them, or replaces their
+ * values. All operations of an envelope are applied atomically.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public interface Patchable {
+	/**
+	 * Applies the operations of the specified update envelope to the
+	 * resource addressed by the specified path.
+	 *
+	 * @param update
+	 *            update envelope, which has been validated against
+	 *            {@code post.xsd}
+	 * @param path
+	 *            Resource and parameter info
+	 * @return info message
+	 * @throws JaxRxException
+	 *             thrown if
+	 *             <ul>
+	 *             <li>the specified resource does not exist (status code: 404)</li>
+	 *             <li>an operation is invalid or selects no applicable nodes
+	 *             (status code: 400)</li>
+	 *             <li>an unexpected exception occurs (status code: 500)</li>
+	 *             </ul>
+	 */
+	String patch(final Document update, final ResourcePath path)
+			throws JaxRxException;
+}
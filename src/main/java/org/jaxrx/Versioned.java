@@ -0,0 +1,53 @@
+package org.jaxrx;
+
+import org.jaxrx.core.JaxRxException;
+import org.jaxrx.core.ResourcePath;
+
+/**
+ * This interface can be implemented in addition to {@link JaxRx} by
+ * implementations that assign versions to their resources. Versions are used
+ * by the resource layer to cache results and to answer conditional requests:
+ * a result is only reused as long as the version of the addressed resource is
+ * unchanged.
+ * <p>
+ * If the path of a write operation contains a
+ * {@link org.jaxrx.core.Precondition}, the implementation must check it with
+ * the current version of the resource while the resource is locked, and
+ * before the resource is modified.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public interface Versioned {
+	/**
+	 * Returns the version of the resource addressed by the specified path. The
+	 * version must change whenever the resource is modified, replaced or
+	 * deleted, and must not be reused for another state of the same resource.
+	 * If the path addresses the root, the returned version must change
+	 * whenever any resource is modified.
+	 *
+	 * @param path
+	 *            Resource and parameter info
+	 * @return version, or {@code -1} if the resource does not exist or no
+	 *         version is available
+	 * @throws JaxRxException
+	 *             thrown if the parameters are invalid (status code: 400)
+	 */
+	long getVersion(final ResourcePath path) throws JaxRxException;
+
+	/**
+	 * Returns the time when the resource addressed by the specified path was
+	 * last modified. If the path addresses the root, the time of the last
+	 * modification of any resource is returned.
+	 *
+	 * @param path
+	 *            Resource and parameter info
+	 * @return modification time in milliseconds since January 1, 1970 UTC,
+	 *         or {@code -1} if the resource does not exist or the time is
+	 *         unknown
+	 * @throws JaxRxException
+	 *             thrown if the parameters are invalid (status code: 400)
+	 */
+	long getModified(final ResourcePath path) throws JaxRxException;
+}
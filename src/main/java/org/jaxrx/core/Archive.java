@@ -0,0 +1,601 @@
+package org.jaxrx.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * This class reads the documents of a bulk request, one after another. The
+ * documents may be sent as ZIP or TAR archive (the latter optionally
+ * compressed with gzip) or as MIME multipart body. Directory names and the
+ * suffix {@code .xml} are removed from the names of the entries, so that
+ * {@code data/doc1.xml} is stored as resource {@code doc1}.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public final class Archive {
+	/**
+	 * Content type of ZIP archives.
+	 */
+	public static final String ZIP = "application/zip";
+
+	/**
+	 * Content type of TAR archives.
+	 */
+	public static final String TAR = "application/x-tar";
+
+	/**
+	 * Content type of gzip-compressed TAR archives.
+	 */
+	public static final String GTAR = "application/x-gtar";
+
+	/**
+	 * Content type of multipart bodies.
+	 */
+	public static final String MIXED = "multipart/mixed";
+
+	/**
+	 * Content type of multipart form data.
+	 */
+	public static final String FORM = "multipart/form-data";
+
+	/**
+	 * Size of TAR blocks.
+	 */
+	private static final int BLOCK = 512;
+
+	/**
+	 * Input stream.
+	 */
+	private final InputStream input;
+
+	/**
+	 * ZIP input, or {@code null}.
+	 */
+	private final ZipInputStream zip;
+
+	/**
+	 * Multipart delimiter ({@code CRLF--boundary}), or {@code null}.
+	 */
+	private final byte[] delimiter;
+
+	/**
+	 * Stream from which TAR entries are read; assigned when the first entry
+	 * is read.
+	 */
+	private InputStream tar;
+
+	/**
+	 * Input buffer for multipart bodies.
+	 */
+	private final byte[] buffer;
+
+	/**
+	 * Position in the input buffer.
+	 */
+	private int pos;
+
+	/**
+	 * Number of bytes in the input buffer.
+	 */
+	private int size;
+
+	/**
+	 * Indicates if all entries have been read.
+	 */
+	private boolean finished;
+
+	/**
+	 * Number of entries read so far.
+	 */
+	private int count;
+
+	/**
+	 * Names of the entries read so far.
+	 */
+	private final Set<String> names = new LinkedHashSet<String>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param in
+	 *            input stream
+	 * @param type
+	 *            content type of the input
+	 * @throws JaxRxException
+	 *             thrown if the content type is not supported (status code:
+	 *             415)
+	 */
+	public Archive(final InputStream in, final String type) {
+		final MediaType mt = type == null ? null : MediaType.valueOf(type);
+		final String t = mt == null ? "" : mt.getType() + '/'
+				+ mt.getSubtype();
+		if (t.equals(ZIP)) {
+			input = in;
+			zip = new ZipInputStream(in);
+			delimiter = null;
+			buffer = null;
+		} else if (t.equals(TAR) || t.equals(GTAR)) {
+			input = in;
+			zip = null;
+			delimiter = null;
+			buffer = null;
+		} else if (t.equals(MIXED) || t.equals(FORM)) {
+			final String boundary = mt.getParameters().get("boundary");
+			if (boundary == null)
+				throw new JaxRxException(400, "Multipart boundary is missing.");
+			input = in;
+			zip = null;
+			delimiter = string("\r\n--" + boundary);
+			buffer = new byte[1 << 16];
+		} else {
+			throw new JaxRxException(415, "Unsupported archive type: " + type);
+		}
+	}
+
+	/**
+	 * Returns the next document.
+	 *
+	 * @return entry, or {@code null} if all documents have been read
+	 * @throws IOException
+	 *             I/O exception
+	 * @throws JaxRxException
+	 *             thrown if the input is malformed (status code: 400)
+	 */
+	public Entry next() throws IOException {
+		if (finished)
+			return null;
+		final Entry entry = zip != null ? zip() : delimiter != null ? part()
+				: tar();
+		if (entry == null) {
+			finished = true;
+		} else {
+			names.add(entry.name);
+			count++;
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the names of all documents read so far.
+	 *
+	 * @return names
+	 */
+	public Set<String> names() {
+		return names;
+	}
+
+	/**
+	 * Returns the next document of a ZIP archive.
+	 *
+	 * @return entry, or {@code null}
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private Entry zip() throws IOException {
+		for (ZipEntry ze; (ze = zip.getNextEntry()) != null;) {
+			final String name = name(ze.getName());
+			if (ze.isDirectory() || name.length() == 0)
+				continue;
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(
+					ze.getSize() > 0 && ze.getSize() < Integer.MAX_VALUE ? (int) ze
+							.getSize() : 8192);
+			final byte[] buf = new byte[8192];
+			for (int r; (r = zip.read(buf)) != -1;)
+				out.write(buf, 0, r);
+			return new Entry(name, out.toByteArray());
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the next document of a TAR archive. Regular files are returned;
+	 * GNU long names and the path entries of PAX headers are considered, and
+	 * all other entries are skipped.
+	 *
+	 * @return entry, or {@code null}
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private Entry tar() throws IOException {
+		if (tar == null)
+			tar = gunzip();
+		final InputStream in = tar;
+		final byte[] header = new byte[BLOCK];
+		String longName = null;
+		while (true) {
+			if (!fill(in, header))
+				return null;
+			boolean empty = true;
+			for (final byte b : header)
+				empty &= b == 0;
+			if (empty)
+				return null;
+
+			final long length = octal(header, 124, 12);
+			if (length > Integer.MAX_VALUE - BLOCK)
+				throw new JaxRxException(413, "Archive entry is too large.");
+			final byte[] data = new byte[(int) length];
+			if (!fill(in, data))
+				throw new JaxRxException(400, "Archive is incomplete.");
+			skip(in, (BLOCK - length % BLOCK) % BLOCK);
+
+			String name = cstring(header, 0, 100);
+			if (cstring(header, 257, 5).equals("ustar")) {
+				final String prefix = cstring(header, 345, 155);
+				if (prefix.length() != 0)
+					name = prefix + '/' + name;
+			}
+			final byte type = header[156];
+			if (type == 'L') {
+				longName = cstring(data, 0, data.length);
+			} else if (type == 'x') {
+				final String path = pax(data);
+				if (path != null)
+					longName = path;
+			} else if (type == '0' || type == 0 || type == '7') {
+				name = name(longName != null ? longName : name);
+				longName = null;
+				if (name.length() != 0)
+					return new Entry(name, data);
+			} else {
+				longName = null;
+			}
+		}
+	}
+
+	/**
+	 * Wraps the input stream with a gzip decompressor if the input is
+	 * compressed. Called before the first TAR entry is read.
+	 *
+	 * @return input stream
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private InputStream gunzip() throws IOException {
+		final PushbackInputStream in = new PushbackInputStream(input, 2);
+		final int b1 = in.read();
+		final int b2 = b1 == -1 ? -1 : in.read();
+		if (b2 != -1)
+			in.unread(b2);
+		if (b1 != -1)
+			in.unread(b1);
+		return b1 == 0x1f && b2 == 0x8b ? new GZIPInputStream(in, 1 << 16) : in;
+	}
+
+	/**
+	 * Returns the next part of a multipart body.
+	 *
+	 * @return entry, or {@code null}
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private Entry part() throws IOException {
+		// skip preamble; the first delimiter may start without line break
+		if (count == 0 && content(2) == null)
+			throw new JaxRxException(400, "Multipart body is incomplete.");
+		// closing delimiter
+		final int b1 = read();
+		final int b2 = read();
+		if (b1 == '-' && b2 == '-')
+			return null;
+		// skip transport padding of the delimiter line
+		for (int b = b2; b != '\n'; b = read()) {
+			if (b == -1)
+				throw new JaxRxException(400, "Multipart body is incomplete.");
+		}
+		String name = null;
+		for (String line; (line = line()).length() != 0;) {
+			final int c = line.indexOf(':');
+			if (c != -1
+					&& line.substring(0, c).trim().equalsIgnoreCase(
+							"Content-Disposition")) {
+				final String value = line.substring(c + 1);
+				name = param(value, "filename");
+				if (name == null)
+					name = param(value, "name");
+			}
+		}
+		final byte[] data = content(0);
+		if (data == null)
+			throw new JaxRxException(400, "Multipart body is incomplete.");
+		if (name == null || name(name).length() == 0)
+			throw new JaxRxException(400, "Part " + (count + 1)
+					+ " has no name.");
+		return new Entry(name(name), data);
+	}
+
+	/**
+	 * Reads the content of a body part up to the next delimiter.
+	 *
+	 * @param matched
+	 *            number of delimiter bytes that have already been matched
+	 * @return content, or {@code null} if no delimiter was found
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private byte[] content(final int matched) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+		int m = matched;
+		while (true) {
+			final int b = read();
+			if (b == -1)
+				return null;
+			if (b == delimiter[m]) {
+				if (++m == delimiter.length)
+					return out.toByteArray();
+				continue;
+			}
+			if (m != 0) {
+				// the delimiter starts with the only CR it contains
+				out.write(delimiter, 0, m);
+				m = 0;
+				if (b == delimiter[0]) {
+					m = 1;
+					continue;
+				}
+			}
+			out.write(b);
+		}
+	}
+
+	/**
+	 * Reads a header line of a body part.
+	 *
+	 * @return line without line break
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private String line() throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int b; (b = read()) != '\n';) {
+			if (b == -1)
+				throw new JaxRxException(400, "Multipart body is incomplete.");
+			if (b != '\r')
+				out.write(b);
+		}
+		return out.toString("UTF-8");
+	}
+
+	/**
+	 * Reads a byte from the buffered multipart input.
+	 *
+	 * @return byte, or {@code -1}
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private int read() throws IOException {
+		if (pos == size) {
+			size = input.read(buffer);
+			pos = 0;
+			if (size <= 0) {
+				size = 0;
+				return -1;
+			}
+		}
+		return buffer[pos++] & 0xFF;
+	}
+
+	/**
+	 * Returns a parameter of a header value.
+	 *
+	 * @param value
+	 *            header value
+	 * @param key
+	 *            parameter name
+	 * @return parameter value, or {@code null}
+	 */
+	private static String param(final String value, final String key) {
+		for (final String p : value.split(";")) {
+			final int e = p.indexOf('=');
+			if (e == -1 || !p.substring(0, e).trim().equalsIgnoreCase(key))
+				continue;
+			String v = p.substring(e + 1).trim();
+			if (v.length() > 1 && v.charAt(0) == '"'
+					&& v.charAt(v.length() - 1) == '"')
+				v = v.substring(1, v.length() - 1);
+			return v;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the path of a PAX extended header, if specified.
+	 *
+	 * @param data
+	 *            header records
+	 * @return path, or {@code null}
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private static String pax(final byte[] data) throws IOException {
+		int p = 0;
+		while (p < data.length) {
+			int s = p;
+			while (s < data.length && data[s] != ' ')
+				s++;
+			final int len;
+			try {
+				len = Integer.parseInt(new String(data, p, s - p, "UTF-8"));
+			} catch (final NumberFormatException ex) {
+				return null;
+			}
+			if (len <= 0 || p + len > data.length)
+				return null;
+			final String rec = new String(data, s + 1, p + len - s - 2, "UTF-8");
+			if (rec.startsWith("path="))
+				return rec.substring(5);
+			p += len;
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the directory path and the suffix {@code .xml} from the name of
+	 * an entry.
+	 *
+	 * @param path
+	 *            path of the entry
+	 * @return name
+	 */
+	private static String name(final String path) {
+		String name = path.replace('\\', '/');
+		name = name.substring(name.lastIndexOf('/') + 1);
+		if (name.toLowerCase().endsWith(".xml"))
+			name = name.substring(0, name.length() - 4);
+		return name;
+	}
+
+	/**
+	 * Parses an octal number of a TAR header.
+	 *
+	 * @param header
+	 *            header
+	 * @param off
+	 *            offset
+	 * @param len
+	 *            length
+	 * @return number
+	 */
+	private static long octal(final byte[] header, final int off,
+			final int len) {
+		if ((header[off] & 0x80) != 0)
+			throw new JaxRxException(413, "Archive entry is too large.");
+		long v = 0;
+		for (int i = off; i < off + len; i++) {
+			final byte b = header[i];
+			if (b == 0 || b == ' ') {
+				if (v != 0)
+					break;
+				continue;
+			}
+			if (b < '0' || b > '7')
+				throw new JaxRxException(400, "Invalid archive header.");
+			v = (v << 3) + b - '0';
+		}
+		return v;
+	}
+
+	/**
+	 * Returns a null-terminated string.
+	 *
+	 * @param data
+	 *            bytes
+	 * @param off
+	 *            offset
+	 * @param len
+	 *            maximum length
+	 * @return string
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private static String cstring(final byte[] data, final int off,
+			final int len) throws IOException {
+		int l = 0;
+		while (l < len && data[off + l] != 0)
+			l++;
+		return new String(data, off, l, "UTF-8");
+	}
+
+	/**
+	 * Returns the UTF-8 representation of a string.
+	 *
+	 * @param string
+	 *            string
+	 * @return bytes
+	 */
+	private static byte[] string(final String string) {
+		try {
+			return string.getBytes("UTF-8");
+		} catch (final IOException ex) {
+			throw new JaxRxException(ex);
+		}
+	}
+
+	/**
+	 * Fills the specified array from the input.
+	 *
+	 * @param in
+	 *            input stream
+	 * @param data
+	 *            array
+	 * @return {@code false} if the input ended before the first byte
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private static boolean fill(final InputStream in, final byte[] data)
+			throws IOException {
+		int off = 0;
+		while (off < data.length) {
+			final int r = in.read(data, off, data.length - off);
+			if (r == -1) {
+				if (off == 0)
+					return false;
+				throw new JaxRxException(400, "Archive is incomplete.");
+			}
+			off += r;
+		}
+		return true;
+	}
+
+	/**
+	 * Skips the specified number of bytes.
+	 *
+	 * @param in
+	 *            input stream
+	 * @param n
+	 *            number of bytes
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private static void skip(final InputStream in, final long n)
+			throws IOException {
+		for (long s = n; s > 0;) {
+			final long k = in.skip(s);
+			if (k <= 0) {
+				if (in.read() == -1)
+					throw new JaxRxException(400, "Archive is incomplete.");
+				s--;
+			} else {
+				s -= k;
+			}
+		}
+	}
+
+	/**
+	 * Document of an archive.
+	 */
+	public static final class Entry {
+		/**
+		 * Name of the document.
+		 */
+		public final String name;
+
+		/**
+		 * Contents of the document.
+		 */
+		public final byte[] data;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param n
+		 *            name
+		 * @param d
+		 *            contents
+		 */
+		Entry(final String n, final byte[] d) {
+			name = n;
+			data = d;
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package org.jaxrx.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * This class contains the settings and helper methods for compressing
+ * responses. The compression level (0-9, with 0 disabling compression) and
+ * the minimum size of compressed responses can be specified via the system
+ * properties {@link #LEVEL} and {@link #MINSIZE}.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public final class Compression {
+	/**
+	 * System property for the compression level.
+	 */
+	public static final String LEVEL = "org.jaxrx.compression.level";
+
+	/**
+	 * System property for the minimum number of bytes to be compressed.
+	 */
+	public static final String MINSIZE = "org.jaxrx.compression.minSize";
+
+	/**
+	 * Content coding for gzip compression.
+	 */
+	public static final String GZIP = "gzip";
+
+	/**
+	 * Content coding for deflate (zlib) compression.
+	 */
+	public static final String DEFLATE = "deflate";
+
+	/**
+	 * Compression level.
+	 */
+	private static final int LVL = Math.max(0, Math.min(9, Integer.getInteger(
+			LEVEL, 6)));
+
+	/**
+	 * Minimum number of bytes to be compressed.
+	 */
+	private static final int MIN = Math.max(0, Integer.getInteger(MINSIZE,
+			1024));
+
+	/**
+	 * Private constructor.
+	 */
+	private Compression() {
+	}
+
+	/**
+	 * Indicates if compression is enabled.
+	 *
+	 * @return result of check
+	 */
+	public static boolean enabled() {
+		return LVL != 0;
+	}
+
+	/**
+	 * Returns the minimum number of bytes to be compressed. Smaller responses
+	 * are sent uncompressed.
+	 *
+	 * @return minimum size
+	 */
+	public static int minSize() {
+		return MIN;
+	}
+
+	/**
+	 * Chooses a content coding from the specified {@code Accept-Encoding}
+	 * header. gzip is preferred to deflate. A {@code *} entry applies to all
+	 * codings that are not listed explicitly, so a coding with a quality
+	 * value of {@code 0} is never chosen.
+	 *
+	 * @param accept
+	 *            value of the {@code Accept-Encoding} header (may be
+	 *            {@code null})
+	 * @return {@link #GZIP}, {@link #DEFLATE}, or {@code null} if compression
+	 *         is disabled or not accepted
+	 */
+	public static String negotiate(final String accept) {
+		if (!enabled() || accept == null)
+			return null;
+		// quality values; -1: not specified
+		double gzip = -1;
+		double deflate = -1;
+		double any = -1;
+		for (final String coding : accept.split(",")) {
+			final String[] parts = coding.split(";");
+			final String name = parts[0].trim().toLowerCase(Locale.ENGLISH);
+			double q = 1;
+			for (int p = 1; p < parts.length; p++) {
+				final String[] kv = parts[p].split("=", 2);
+				if (kv.length == 2 && kv[0].trim().equals("q")) {
+					try {
+						q = Double.parseDouble(kv[1].trim());
+					} catch (final NumberFormatException ex) {
+						q = 0;
+					}
+				}
+			}
+			if (name.equals(GZIP) || name.equals("x-gzip"))
+				gzip = Math.max(gzip, q);
+			else if (name.equals(DEFLATE))
+				deflate = Math.max(deflate, q);
+			else if (name.equals("*"))
+				any = Math.max(any, q);
+		}
+		if (gzip == -1)
+			gzip = any;
+		if (deflate == -1)
+			deflate = any;
+		return gzip > 0 ? GZIP : deflate > 0 ? DEFLATE : null;
+	}
+
+	/**
+	 * Returns the entity tag of a response that is sent with the specified
+	 * content coding. The coding is appended to the opaque value, as the
+	 * compressed representation differs from the uncompressed one.
+	 *
+	 * @param tag
+	 *            entity tag of the uncompressed response
+	 * @param coding
+	 *            {@link #GZIP} or {@link #DEFLATE}
+	 * @return entity tag
+	 */
+	public static EntityTag tag(final EntityTag tag, final String coding) {
+		return new EntityTag(tag.getValue() + '-' + coding, tag.isWeak());
+	}
+
+	/**
+	 * Removes the content coding from the opaque value of an entity tag that
+	 * has been created by {@link #tag(EntityTag, String)}.
+	 *
+	 * @param value
+	 *            opaque value
+	 * @return opaque value of the uncompressed response
+	 */
+	public static String identity(final String value) {
+		for (final String coding : new String[] { GZIP, DEFLATE }) {
+			if (value.endsWith('-' + coding))
+				return value.substring(0, value.length() - coding.length() - 1);
+		}
+		return value;
+	}
+
+	/**
+	 * Returns a stream, which compresses all data with the specified content
+	 * coding. Closing the returned stream finishes the compressed data, but
+	 * does not close the specified output stream.
+	 *
+	 * @param out
+	 *            output stream
+	 * @param coding
+	 *            {@link #GZIP} or {@link #DEFLATE}
+	 * @return compressing stream
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	public static OutputStream compress(final OutputStream out,
+			final String coding) throws IOException {
+		final OutputStream os = new FilterOutputStream(out) {
+			@Override
+			public void write(final byte[] b, final int off, final int len)
+					throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				out.flush();
+			}
+		};
+		if (coding.equals(GZIP)) {
+			return new GZIPOutputStream(os, 8192) {
+				{
+					def.setLevel(LVL);
+				}
+			};
+		}
+		final Deflater deflater = new Deflater(LVL);
+		return new DeflaterOutputStream(os, deflater, 8192) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Writes the specified output and returns it in gzip-compressed form.
+	 *
+	 * @param output
+	 *            streaming output
+	 * @return compressed bytes, or {@code null} if compression is disabled or
+	 *         the uncompressed output is smaller than {@link #minSize()}
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	public static byte[] gzip(final StreamingOutput output) throws IOException {
+		if (!enabled())
+			return null;
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final long[] size = new long[1];
+		final OutputStream os = compress(bytes, GZIP);
+		output.write(new FilterOutputStream(os) {
+			@Override
+			public void write(final int b) throws IOException {
+				os.write(b);
+				size[0]++;
+			}
+
+			@Override
+			public void write(final byte[] b, final int off, final int len)
+					throws IOException {
+				os.write(b, off, len);
+				size[0] += len;
+			}
+
+			@Override
+			public void close() {
+				// the compressing stream is closed below
+			}
+		});
+		os.close();
+		return size[0] < MIN ? null : bytes.toByteArray();
+	}
+}
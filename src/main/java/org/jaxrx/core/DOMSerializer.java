@@ -0,0 +1,494 @@
+package org.jaxrx.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * This class serializes DOM nodes as UTF-8 encoded XML. Characters are encoded
+ * directly into a byte buffer, which is taken from a pool of buffers and
+ * written to the output stream whenever it is full. In contrast to an
+ * identity {@link javax.xml.transform.Transformer}, no setup is needed per
+ * response or per node. Missing namespace declarations of namespace-aware
+ * nodes are added to the output.
+ *
+ * <p>
+ * Instances are not thread-safe. After the last node has been serialized,
+ * {@link #finish()} must be called to flush the output and to return the
+ * buffer to the pool. If serialization fails, {@link #abort()} must be called
+ * instead, which is best done in a {@code finally} block.
+ * </p>
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public final class DOMSerializer {
+	/**
+	 * Size of the output buffers.
+	 */
+	private static final int BUFFERSIZE = 1 << 16;
+
+	/**
+	 * Maximum number of pooled buffers.
+	 */
+	private static final int POOLSIZE = 64;
+
+	/**
+	 * Buffer pool.
+	 */
+	private static final Queue<byte[]> POOL = new ConcurrentLinkedQueue<byte[]>();
+
+	/**
+	 * XML declaration.
+	 */
+	private static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+
+	/**
+	 * Output stream.
+	 */
+	private final OutputStream out;
+
+	/**
+	 * Namespace declarations in scope, stored as prefix/URI pairs.
+	 */
+	private final List<String> ns = new ArrayList<String>();
+
+	/**
+	 * Output buffer.
+	 */
+	private byte[] buffer;
+
+	/**
+	 * Current position in the output buffer.
+	 */
+	private int pos;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param output
+	 *            output stream
+	 */
+	public DOMSerializer(final OutputStream output) {
+		out = output;
+		final byte[] b = POOL.poll();
+		buffer = b != null ? b : new byte[BUFFERSIZE];
+	}
+
+	/**
+	 * Serializes the XML declaration.
+	 *
+	 * @return self reference
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	public DOMSerializer declaration() throws IOException {
+		return markup(DECLARATION);
+	}
+
+	/**
+	 * Serializes the specified string without escaping it.
+	 *
+	 * @param markup
+	 *            markup string
+	 * @return self reference
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	public DOMSerializer markup(final String markup) throws IOException {
+		final int l = markup.length();
+		for (int i = 0; i < l; i++)
+			encode(markup, i, markup.charAt(i));
+		return this;
+	}
+
+	/**
+	 * Serializes the specified node and its descendants. Attribute nodes are
+	 * serialized as their escaped value.
+	 *
+	 * @param node
+	 *            node to be serialized
+	 * @return self reference
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	public DOMSerializer node(final Node node) throws IOException {
+		switch (node.getNodeType()) {
+		case Node.DOCUMENT_NODE:
+		case Node.DOCUMENT_FRAGMENT_NODE:
+		case Node.ENTITY_REFERENCE_NODE:
+			children(node);
+			break;
+		case Node.ELEMENT_NODE:
+			element(node);
+			break;
+		case Node.TEXT_NODE:
+		case Node.ATTRIBUTE_NODE:
+			escape(node.getNodeValue(), false);
+			break;
+		case Node.CDATA_SECTION_NODE:
+			cdata(node.getNodeValue());
+			break;
+		case Node.COMMENT_NODE:
+			comment(node.getNodeValue());
+			break;
+		case Node.PROCESSING_INSTRUCTION_NODE:
+			pi(node.getNodeName(), node.getNodeValue());
+			break;
+		default:
+			// document types, entities and notations are skipped
+		}
+		return this;
+	}
+
+	/**
+	 * Serializes escaped text.
+	 *
+	 * @param text
+	 *            text to be serialized
+	 * @return self reference
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	public DOMSerializer text(final String text) throws IOException {
+		escape(text, false);
+		return this;
+	}
+
+	/**
+	 * Serializes an attribute with an escaped value, preceded by a space.
+	 *
+	 * @param name
+	 *            attribute name
+	 * @param value
+	 *            attribute value
+	 * @return self reference
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	public DOMSerializer attribute(final String name, final String value)
+			throws IOException {
+		markup(" ").markup(name).markup("=\"");
+		escape(value, true);
+		return markup("\"");
+	}
+
+	/**
+	 * Serializes a CDATA section.
+	 *
+	 * @param text
+	 *            contents of the section
+	 * @return self reference
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	public DOMSerializer cdata(final String text) throws IOException {
+		markup("<![CDATA[");
+		markup(text.replace("]]>", "]]]]><![CDATA[>"));
+		return markup("]]>");
+	}
+
+	/**
+	 * Serializes a comment.
+	 *
+	 * @param text
+	 *            contents of the comment
+	 * @return self reference
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	public DOMSerializer comment(final String text) throws IOException {
+		return markup("<!--").markup(text).markup("-->");
+	}
+
+	/**
+	 * Serializes a processing instruction.
+	 *
+	 * @param target
+	 *            target
+	 * @param data
+	 *            data (may be {@code null})
+	 * @return self reference
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	public DOMSerializer pi(final String target, final String data)
+			throws IOException {
+		markup("<?").markup(target);
+		if (data != null && data.length() != 0)
+			markup(" ").markup(data);
+		return markup("?>");
+	}
+
+	/**
+	 * Writes all pending output to the output stream and returns the buffer to
+	 * the pool. The serializer must not be used anymore after this call. The
+	 * output stream will not be closed.
+	 *
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	public void finish() throws IOException {
+		if (buffer == null)
+			return;
+		try {
+			out.write(buffer, 0, pos);
+			out.flush();
+		} finally {
+			abort();
+		}
+	}
+
+	/**
+	 * Discards all pending output and returns the buffer to the pool. This
+	 * method must be called if serialization fails before
+	 * {@link #finish()}; it has no effect if the serializer has already been
+	 * finished.
+	 */
+	public void abort() {
+		if (buffer == null)
+			return;
+		if (POOL.size() < POOLSIZE)
+			POOL.offer(buffer);
+		buffer = null;
+	}
+
+	/**
+	 * Serializes an element.
+	 *
+	 * @param elem
+	 *            element node
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private void element(final Node elem) throws IOException {
+		final int scope = ns.size();
+		final String name = elem.getNodeName();
+		markup("<").markup(name);
+
+		// register explicit namespace declarations
+		final NamedNodeMap atts = elem.getAttributes();
+		final int al = atts.getLength();
+		for (int a = 0; a < al; a++) {
+			final String an = atts.item(a).getNodeName();
+			if (an.equals("xmlns")) {
+				declare("", atts.item(a).getNodeValue(), false);
+			} else if (an.startsWith("xmlns:")) {
+				declare(an.substring(6), atts.item(a).getNodeValue(), false);
+			}
+		}
+		// add missing namespace declarations
+		fixup(elem, true);
+		for (int a = 0; a < al; a++) {
+			fixup(atts.item(a), false);
+		}
+
+		for (int a = 0; a < al; a++) {
+			final Attr att = (Attr) atts.item(a);
+			attribute(att.getName(), att.getValue());
+		}
+
+		if (elem.getFirstChild() == null) {
+			markup("/>");
+		} else {
+			markup(">");
+			children(elem);
+			markup("</").markup(name).markup(">");
+		}
+		// remove namespace declarations of this element
+		while (ns.size() > scope)
+			ns.remove(ns.size() - 1);
+	}
+
+	/**
+	 * Serializes all children of a node.
+	 *
+	 * @param node
+	 *            parent node
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private void children(final Node node) throws IOException {
+		for (Node ch = node.getFirstChild(); ch != null; ch = ch
+				.getNextSibling()) {
+			node(ch);
+		}
+	}
+
+	/**
+	 * Adds a namespace declaration for the specified node if its namespace
+	 * has not been declared yet.
+	 *
+	 * @param node
+	 *            element or attribute node
+	 * @param elem
+	 *            element flag
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private void fixup(final Node node, final boolean elem) throws IOException {
+		final String uri = node.getNamespaceURI();
+		if (uri == null || uri.equals("http://www.w3.org/2000/xmlns/")
+				|| uri.equals("http://www.w3.org/XML/1998/namespace"))
+			return;
+		final String prefix = node.getPrefix() == null ? "" : node.getPrefix();
+		// attributes without prefix are in no namespace
+		if (!elem && prefix.length() == 0)
+			return;
+		if (uri.equals(lookup(prefix)))
+			return;
+		declare(prefix, uri, true);
+	}
+
+	/**
+	 * Registers a namespace declaration and optionally serializes it.
+	 *
+	 * @param prefix
+	 *            prefix (empty for the default namespace)
+	 * @param uri
+	 *            namespace URI
+	 * @param write
+	 *            serialize declaration
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private void declare(final String prefix, final String uri,
+			final boolean write) throws IOException {
+		ns.add(prefix);
+		ns.add(uri);
+		if (write) {
+			markup(prefix.length() == 0 ? " xmlns" : " xmlns:" + prefix);
+			markup("=\"");
+			escape(uri, true);
+			markup("\"");
+		}
+	}
+
+	/**
+	 * Returns the namespace URI bound to the specified prefix.
+	 *
+	 * @param prefix
+	 *            prefix
+	 * @return namespace URI, or {@code null}
+	 */
+	private String lookup(final String prefix) {
+		for (int n = ns.size() - 2; n >= 0; n -= 2) {
+			if (ns.get(n).equals(prefix))
+				return ns.get(n + 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Escapes and serializes text.
+	 *
+	 * @param text
+	 *            text to be serialized
+	 * @param att
+	 *            attribute flag; if set, quotes and whitespace characters are
+	 *            escaped as well
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private void escape(final String text, final boolean att)
+			throws IOException {
+		final int l = text.length();
+		for (int i = 0; i < l; i++) {
+			final char ch = text.charAt(i);
+			switch (ch) {
+			case '&':
+				markup("&amp;");
+				break;
+			case '<':
+				markup("&lt;");
+				break;
+			case '>':
+				markup("&gt;");
+				break;
+			case '\r':
+				markup("&#13;");
+				break;
+			case '"':
+				if (att)
+					markup("&quot;");
+				else
+					write('"');
+				break;
+			case '\n':
+				if (att)
+					markup("&#10;");
+				else
+					write('\n');
+				break;
+			case '\t':
+				if (att)
+					markup("&#9;");
+				else
+					write('\t');
+				break;
+			default:
+				encode(text, i, ch);
+			}
+		}
+	}
+
+	/**
+	 * Encodes a single character as UTF-8. Low surrogates are encoded together
+	 * with the preceding high surrogate.
+	 *
+	 * @param string
+	 *            string containing the character
+	 * @param i
+	 *            index of the character
+	 * @param ch
+	 *            character
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private void encode(final String string, final int i, final char ch)
+			throws IOException {
+		if (ch < 0x80) {
+			write(ch);
+		} else if (ch < 0x800) {
+			write(0xC0 | ch >> 6);
+			write(0x80 | ch & 0x3F);
+		} else if (Character.isHighSurrogate(ch)) {
+			// skipped; encoded with the following low surrogate
+		} else if (Character.isLowSurrogate(ch)) {
+			if (i == 0 || !Character.isHighSurrogate(string.charAt(i - 1)))
+				return;
+			final int cp = Character.toCodePoint(string.charAt(i - 1), ch);
+			write(0xF0 | cp >> 18);
+			write(0x80 | cp >> 12 & 0x3F);
+			write(0x80 | cp >> 6 & 0x3F);
+			write(0x80 | cp & 0x3F);
+		} else {
+			write(0xE0 | ch >> 12);
+			write(0x80 | ch >> 6 & 0x3F);
+			write(0x80 | ch & 0x3F);
+		}
+	}
+
+	/**
+	 * Writes a single byte to the buffer.
+	 *
+	 * @param b
+	 *            byte to be written
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private void write(final int b) throws IOException {
+		if (pos == buffer.length) {
+			out.write(buffer, 0, pos);
+			pos = 0;
+		}
+		buffer[pos++] = (byte) b;
+	}
+}
@@ -0,0 +1,151 @@
+package org.jaxrx.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records durations in a histogram with logarithmic buckets. Each
+ * power of two is divided into eight linear sub-buckets, so that the upper
+ * bound of a bucket is at most 12.5% larger than any value it contains, while
+ * the histogram covers all durations from one microsecond to about 25 days
+ * with a fixed number of counters; longer durations are assigned to an
+ * additional last bucket. Values are recorded without locking, and a
+ * histogram may be read while it is updated.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+final class Histogram {
+	/**
+	 * Number of bits for the sub-buckets of each power of two.
+	 */
+	private static final int SUB = 3;
+
+	/**
+	 * Exponent of the largest power of two with its own buckets.
+	 */
+	private static final int MAXEXP = 40;
+
+	/**
+	 * Number of buckets, including the bucket for larger values.
+	 */
+	private static final int BUCKETS = (MAXEXP - SUB + 2 << SUB) + 1;
+
+	/**
+	 * Bucket counters.
+	 */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Sum of all recorded values in microseconds.
+	 */
+	private final AtomicLong sum = new AtomicLong();
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos
+	 *            duration in nanoseconds
+	 */
+	void record(final long nanos) {
+		final long us = Math.max(0, nanos / 1000);
+		counts.incrementAndGet(bucket(us));
+		sum.addAndGet(us);
+	}
+
+	/**
+	 * Returns the number of recorded values.
+	 *
+	 * @return number of values
+	 */
+	long count() {
+		long c = 0;
+		for (int b = 0; b < BUCKETS; b++)
+			c += counts.get(b);
+		return c;
+	}
+
+	/**
+	 * Returns the sum of all recorded values.
+	 *
+	 * @return sum in microseconds
+	 */
+	long sum() {
+		return sum.get();
+	}
+
+	/**
+	 * Returns the number of recorded values that are smaller than the
+	 * specified bound. The result is exact if the bound is a power of two.
+	 *
+	 * @param us
+	 *            bound in microseconds
+	 * @return number of values
+	 */
+	long below(final long us) {
+		long c = 0;
+		for (int b = 0; b < BUCKETS && upper(b) <= us; b++)
+			c += counts.get(b);
+		return c;
+	}
+
+	/**
+	 * Returns an upper bound for the specified percentile of all recorded
+	 * values.
+	 *
+	 * @param p
+	 *            percentile, between {@code 0} and {@code 1}
+	 * @return value in microseconds, or {@code 0} if no value was recorded
+	 */
+	long percentile(final double p) {
+		final long[] c = new long[BUCKETS];
+		long total = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			c[b] = counts.get(b);
+			total += c[b];
+		}
+		final long rank = Math.max(1, (long) Math.ceil(p * total));
+		long n = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			n += c[b];
+			if (n >= rank)
+				return upper(b);
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the bucket of a value.
+	 *
+	 * @param us
+	 *            value in microseconds
+	 * @return bucket
+	 */
+	static int bucket(final long us) {
+		if (us < 1 << SUB)
+			return (int) us;
+		final int e = 63 - Long.numberOfLeadingZeros(us);
+		if (e > MAXEXP)
+			return BUCKETS - 1;
+		return (e - SUB + 1 << SUB) + (int) (us >>> e - SUB & (1 << SUB) - 1);
+	}
+
+	/**
+	 * Returns the smallest value that is not contained in the specified
+	 * bucket or any bucket before.
+	 *
+	 * @param b
+	 *            bucket
+	 * @return value in microseconds
+	 */
+	static long upper(final int b) {
+		final int n = b + 1;
+		if (n == BUCKETS)
+			return Long.MAX_VALUE;
+		if (n < 1 << SUB)
+			return n;
+		final int e = (n >>> SUB) + SUB - 1;
+		return (long) ((1 << SUB) + (n & (1 << SUB) - 1)) << e - SUB;
+	}
+}
@@ -73,6 +73,17 @@ public final class JaxRxConstants {
 	public static final String RESOURCEPATH = JAXRXPATH + "/{" + RESOURCE
 			+ ":.+}";
 
+	/**
+	 * Name of the request metrics, which is reserved and cannot be used as
+	 * system name (see {@link Systems}).
+	 */
+	public static final String METRICS = "metrics";
+
+	/**
+	 * The path of the request metrics.
+	 */
+	public static final String METRICSPATH = ROOTPATH + METRICS;
+
 	/**
 	 * Private empty constructor.
 	 */
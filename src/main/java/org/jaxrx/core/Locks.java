@@ -0,0 +1,99 @@
+package org.jaxrx.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class provides striped read/write locks for resources. Resources are
+ * mapped to a fixed number of locks via the hash value of their name, so that
+ * readers of the same resource and readers or writers of different resources
+ * can run in parallel. The number of stripes can be specified via the system
+ * property {@link #STRIPES}.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public final class Locks {
+	/**
+	 * System property for the number of lock stripes.
+	 */
+	public static final String STRIPES = "org.jaxrx.lockStripes";
+
+	/**
+	 * Lock stripes.
+	 */
+	private final ReadWriteLock[] locks;
+
+	/**
+	 * Constructor, using the number of stripes specified by the system
+	 * property {@link #STRIPES}.
+	 */
+	public Locks() {
+		this(Integer.getInteger(STRIPES, 64));
+	}
+
+	/**
+	 * Constructor. The number of stripes is rounded up to the next power of
+	 * two.
+	 *
+	 * @param stripes
+	 *            minimum number of stripes
+	 */
+	public Locks(final int stripes) {
+		int s = 1;
+		while (s < stripes)
+			s <<= 1;
+		locks = new ReadWriteLock[s];
+		for (int l = 0; l < s; l++)
+			locks[l] = new ReentrantReadWriteLock();
+	}
+
+	/**
+	 * Returns the lock for the specified resource.
+	 *
+	 * @param name
+	 *            name of the resource
+	 * @return lock
+	 */
+	public ReadWriteLock get(final String name) {
+		return locks[stripe(name)];
+	}
+
+	/**
+	 * Returns the distinct locks for the specified resources. The locks are
+	 * returned in a fixed global order, so that threads acquiring the locks
+	 * of several resources in this order cannot deadlock.
+	 *
+	 * @param names
+	 *            names of the resources
+	 * @return locks
+	 */
+	public List<ReadWriteLock> get(final Collection<String> names) {
+		final boolean[] used = new boolean[locks.length];
+		for (final String name : names)
+			used[stripe(name)] = true;
+		final List<ReadWriteLock> list = new ArrayList<ReadWriteLock>();
+		for (int l = 0; l < used.length; l++) {
+			if (used[l])
+				list.add(locks[l]);
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the stripe of the specified resource.
+	 *
+	 * @param name
+	 *            name of the resource
+	 * @return stripe
+	 */
+	private int stripe(final String name) {
+		int h = name.hashCode();
+		h ^= h >>> 16;
+		return h & locks.length - 1;
+	}
+}
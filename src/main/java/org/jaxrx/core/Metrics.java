@@ -0,0 +1,759 @@
+package org.jaxrx.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.ws.rs.core.StreamingOutput;
+import org.jaxrx.JaxRx;
+import org.jaxrx.Measurable;
+
+/**
+ * This class collects request metrics. For each combination of system, HTTP
+ * method and operation, the number of requests per status class, the number
+ * of written bytes, and histograms of the request durations and of the
+ * durations of single phases are recorded. Requests are recorded by the
+ * {@link MetricsFilter}; the resource layer assigns the system and the
+ * operation of the current request (see {@link #operation(String, String)})
+ * and measures its phases (see {@link #phase(Phase, long)}). All values are
+ * updated without locking.
+ * <p>
+ * If a request contains the query parameter {@code timing=yes}, the phase
+ * durations of the request are returned in a {@code Server-Timing} header
+ * by the {@link MetricsFilter}. Requests that take longer than a threshold
+ * are written to the {@link TraceLog}.
+ * <p>
+ * The metrics are published in the text format of Prometheus (see
+ * {@link #text()}) and via JMX (see {@link MetricsMXBean}), together with the
+ * statistics of the {@link ResultCache} and of all created implementations
+ * that are {@link Measurable}. Metrics can be disabled by setting the system
+ * property {@link #ENABLED} to {@code false}.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public final class Metrics {
+	/**
+	 * System property for disabling metrics.
+	 */
+	public static final String ENABLED = "org.jaxrx.metrics";
+
+	/**
+	 * Content type of the text format.
+	 */
+	public static final String TYPE = "text/plain; version=0.0.4";
+
+	/**
+	 * Object name of the JMX bean.
+	 */
+	public static final String NAME = "org.jaxrx:type=Metrics";
+
+	/**
+	 * Phases of a request.
+	 */
+	public enum Phase {
+		/**
+		 * Parsing of the query parameters.
+		 */
+		PARSE,
+
+		/**
+		 * Parsing and validation of posted queries and update envelopes.
+		 */
+		VALIDATE,
+
+		/**
+		 * Creation of the output by the implementation or lookup of a cached
+		 * result, and evaluation of queries by the implementation.
+		 */
+		EVALUATE,
+
+		/**
+		 * Serialization of results by the implementation.
+		 */
+		SERIALIZE,
+
+		/**
+		 * Creation of the response, including the evaluation.
+		 */
+		RESPONSE,
+
+		/**
+		 * Writing of the response body. Implementations that evaluate queries
+		 * lazily, such as the DOM implementation, evaluate and serialize them
+		 * in this phase.
+		 */
+		WRITE
+	}
+
+	/**
+	 * Indicates if metrics are recorded.
+	 */
+	private static final boolean USE = !"false".equals(System
+			.getProperty(ENABLED));
+
+	/**
+	 * Phases.
+	 */
+	private static final Phase[] PHASES = Phase.values();
+
+	/**
+	 * Bucket bounds of the published histograms, in microseconds.
+	 */
+	private static final long[] BOUNDS = { 1, 1 << 2, 1 << 4, 1 << 6,
+			1 << 8, 1 << 10, 1 << 12, 1 << 14, 1 << 16, 1 << 18, 1 << 20,
+			1 << 22, 1 << 24, 1 << 26 };
+
+	/**
+	 * Published percentiles.
+	 */
+	private static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	/**
+	 * Default operations of the HTTP methods.
+	 */
+	private static final Map<String, String> OPERATIONS = new HashMap<String, String>();
+
+	/**
+	 * Metrics, indexed by system, method and operation.
+	 */
+	private static final ConcurrentMap<String, Series> SERIES = new ConcurrentHashMap<String, Series>();
+
+	/**
+	 * Request of the current thread.
+	 */
+	private static final ThreadLocal<Sample> CURRENT = new ThreadLocal<Sample>();
+
+	static {
+		OPERATIONS.put("GET", "get");
+		OPERATIONS.put("HEAD", "get");
+		OPERATIONS.put("POST", "add");
+		OPERATIONS.put("PUT", "update");
+		OPERATIONS.put("PATCH", "update");
+		OPERATIONS.put("DELETE", "delete");
+		OPERATIONS.put("OPTIONS", "other");
+		if (USE) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(
+						new Bean(), new ObjectName(NAME));
+			} catch (final JMException ex) {
+				// metrics are still published in the text format
+			}
+		}
+	}
+
+	/**
+	 * Private constructor.
+	 */
+	private Metrics() {
+	}
+
+	/**
+	 * Indicates if metrics are recorded.
+	 *
+	 * @return result of check
+	 */
+	public static boolean enabled() {
+		return USE;
+	}
+
+	/**
+	 * Starts recording a request in the current thread.
+	 *
+	 * @param method
+	 *            HTTP method
+	 * @param uri
+	 *            request URI, including the query string
+	 * @param timing
+	 *            indicates if the phase durations are returned to the client
+	 * @return request
+	 */
+	static Sample start(final String method, final String uri,
+			final boolean timing) {
+		final Sample sample = new Sample(method, uri, timing);
+		CURRENT.set(sample);
+		return sample;
+	}
+
+	/**
+	 * Finishes recording a request.
+	 *
+	 * @param sample
+	 *            request
+	 * @param status
+	 *            status code of the response
+	 * @param bytes
+	 *            number of written bytes
+	 */
+	static void finish(final Sample sample, final int status,
+			final long bytes) {
+		final long time = System.nanoTime() - sample.start;
+		CURRENT.remove();
+		final String key = sample.system + '\0' + sample.method + '\0'
+				+ sample.operation;
+		Series series = SERIES.get(key);
+		if (series == null) {
+			final Series s = new Series(sample);
+			series = SERIES.putIfAbsent(key, s);
+			if (series == null)
+				series = s;
+		}
+		series.status.incrementAndGet(Math.max(0, Math.min(5, status / 100)));
+		series.bytes.addAndGet(bytes);
+		series.duration.record(time);
+		for (int p = 0; p < PHASES.length; p++) {
+			if (sample.phases[p] != -1)
+				series.phases[p].record(sample.phases[p]);
+		}
+		if (TraceLog.enabled() && time >= TraceLog.threshold())
+			TraceLog.write(sample, status, bytes, time);
+	}
+
+	/**
+	 * Assigns the system and the operation to the current request. The
+	 * operation is one of {@code get}, {@code query}, {@code command},
+	 * {@code run}, {@code search}, {@code add}, {@code update} and
+	 * {@code delete}; by default, it is derived from the HTTP method.
+	 *
+	 * @param system
+	 *            system name, which must be valid
+	 * @param operation
+	 *            operation
+	 */
+	public static void operation(final String system, final String operation) {
+		final Sample sample = CURRENT.get();
+		if (sample != null) {
+			sample.system = system;
+			sample.operation = operation;
+		}
+	}
+
+	/**
+	 * Indicates if the phase durations of the current request are returned
+	 * to the client. In this case, the response body should be created before
+	 * the response is committed, so that all phases are included.
+	 *
+	 * @return result of check
+	 */
+	public static boolean timing() {
+		final Sample sample = CURRENT.get();
+		return sample != null && sample.timing;
+	}
+
+	/**
+	 * Requests that the phase durations of the current request are returned
+	 * to the client.
+	 */
+	public static void requestTiming() {
+		final Sample sample = CURRENT.get();
+		if (sample != null)
+			sample.timing = true;
+	}
+
+	/**
+	 * Adds the time since the specified start to a phase of the current
+	 * request.
+	 *
+	 * @param phase
+	 *            phase
+	 * @param start
+	 *            start time, as returned by {@link System#nanoTime()}
+	 */
+	public static void phase(final Phase phase, final long start) {
+		final Sample sample = CURRENT.get();
+		if (sample != null) {
+			final long[] phases = sample.phases;
+			final int p = phase.ordinal();
+			phases[p] = Math.max(0, phases[p]) + System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Returns an output that measures the {@link Phase#WRITE} phase of the
+	 * specified output. Precompressed outputs remain precompressed.
+	 *
+	 * @param out
+	 *            output
+	 * @return measured output
+	 */
+	public static StreamingOutput measure(final StreamingOutput out) {
+		if (!USE)
+			return out;
+		if (out instanceof Precompressed) {
+			final Precompressed pre = (Precompressed) out;
+			return new Precompressed() {
+				@Override
+				public void write(final OutputStream os) throws IOException {
+					final long start = System.nanoTime();
+					try {
+						pre.write(os);
+					} finally {
+						phase(Phase.WRITE, start);
+					}
+				}
+
+				@Override
+				public byte[] gzip() throws IOException {
+					final long start = System.nanoTime();
+					try {
+						return pre.gzip();
+					} finally {
+						phase(Phase.WRITE, start);
+					}
+				}
+			};
+		}
+		return new StreamingOutput() {
+			@Override
+			public void write(final OutputStream os) throws IOException {
+				final long start = System.nanoTime();
+				try {
+					out.write(os);
+				} finally {
+					phase(Phase.WRITE, start);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns all metrics in the text format of Prometheus.
+	 *
+	 * @return metrics
+	 */
+	public static String text() {
+		final StringBuilder sb = new StringBuilder();
+		final Map<String, Series> series = new TreeMap<String, Series>(SERIES);
+
+		String name = "jaxrx_requests_total";
+		header(sb, name, "counter", "Number of requests by status class.");
+		for (final Series s : series.values()) {
+			for (int c = 1; c <= 5; c++) {
+				final long n = s.status.get(c);
+				if (n != 0)
+					line(sb, name, s.labels + ',' + label("status", c + "xx"), n);
+			}
+		}
+		name = "jaxrx_response_bytes_total";
+		header(sb, name, "counter", "Number of written response bytes.");
+		for (final Series s : series.values())
+			line(sb, name, s.labels, s.bytes.get());
+
+		name = "jaxrx_request_duration_seconds";
+		header(sb, name, "histogram",
+				"Duration of requests, including the response body.");
+		for (final Series s : series.values())
+			histogram(sb, name, s.labels, s.duration);
+
+		name = "jaxrx_phase_duration_seconds";
+		header(sb, name, "histogram", "Duration of request phases.");
+		for (final Series s : series.values()) {
+			for (final Phase p : PHASES) {
+				final Histogram h = s.phases[p.ordinal()];
+				if (h.count() != 0)
+					histogram(sb, name, s.labels + ',' + phase(p), h);
+			}
+		}
+
+		for (final Map.Entry<String, Map<String, Long>> st : statistics()
+				.entrySet()) {
+			name = st.getKey();
+			header(sb, name, name.endsWith("_total") ? "counter" : "gauge",
+					null);
+			for (final Map.Entry<String, Long> e : st.getValue().entrySet())
+				line(sb, name, e.getKey(), e.getValue());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the statistics of the result cache and of all created
+	 * implementations.
+	 *
+	 * @return values, indexed by names and labels
+	 */
+	private static Map<String, Map<String, Long>> statistics() {
+		final Map<String, Map<String, Long>> stats = new TreeMap<String, Map<String, Long>>();
+		add(stats, "jaxrx_result_cache_hits_total", "", ResultCache.hits());
+		add(stats, "jaxrx_result_cache_misses_total", "", ResultCache
+				.misses());
+		add(stats, "jaxrx_result_cache_evictions_total", "", ResultCache
+				.evictions());
+		add(stats, "jaxrx_result_cache_bytes", "", ResultCache.bytes());
+		for (final String system : Systems.getSystems().keySet()) {
+			final JaxRx impl = Systems.getCreatedInstance(system);
+			if (!(impl instanceof Measurable))
+				continue;
+			final String labels = label("system", system);
+			for (final Map.Entry<String, Long> e : ((Measurable) impl)
+					.getCounters().entrySet()) {
+				add(stats, "jaxrx_" + e.getKey().replaceAll("[^a-z0-9_]", "_"),
+						labels, e.getValue());
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Adds a statistic.
+	 *
+	 * @param stats
+	 *            statistics
+	 * @param name
+	 *            name
+	 * @param labels
+	 *            labels
+	 * @param value
+	 *            value
+	 */
+	private static void add(final Map<String, Map<String, Long>> stats,
+			final String name, final String labels, final long value) {
+		Map<String, Long> values = stats.get(name);
+		if (values == null) {
+			values = new TreeMap<String, Long>();
+			stats.put(name, values);
+		}
+		values.put(labels, value);
+	}
+
+	/**
+	 * Returns the values of all counters and gauges.
+	 *
+	 * @return values, indexed by series
+	 */
+	static Map<String, Long> counters() {
+		final Map<String, Long> map = new TreeMap<String, Long>();
+		for (final Series s : SERIES.values()) {
+			for (int c = 1; c <= 5; c++) {
+				final long n = s.status.get(c);
+				if (n != 0)
+					map.put(series("jaxrx_requests_total", s.labels + ','
+							+ label("status", c + "xx")), n);
+			}
+			map.put(series("jaxrx_response_bytes_total", s.labels), s.bytes
+					.get());
+		}
+		for (final Map.Entry<String, Map<String, Long>> st : statistics()
+				.entrySet()) {
+			for (final Map.Entry<String, Long> e : st.getValue().entrySet())
+				map.put(series(st.getKey(), e.getKey()), e.getValue());
+		}
+		return map;
+	}
+
+	/**
+	 * Returns the percentiles of all request and phase durations.
+	 *
+	 * @return durations in seconds, indexed by series
+	 */
+	static Map<String, Double> percentiles() {
+		final Map<String, Double> map = new TreeMap<String, Double>();
+		for (final Series s : SERIES.values()) {
+			percentiles(map, "jaxrx_request_duration_seconds", s.labels,
+					s.duration);
+			for (final Phase p : PHASES) {
+				percentiles(map, "jaxrx_phase_duration_seconds", s.labels + ','
+						+ phase(p), s.phases[p.ordinal()]);
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * Adds the percentiles of a histogram.
+	 *
+	 * @param map
+	 *            percentiles
+	 * @param name
+	 *            name
+	 * @param labels
+	 *            labels
+	 * @param h
+	 *            histogram
+	 */
+	private static void percentiles(final Map<String, Double> map,
+			final String name, final String labels, final Histogram h) {
+		if (h.count() == 0)
+			return;
+		for (final double p : PERCENTILES) {
+			map.put(series(name, labels + ',' + label("quantile", p)), h
+					.percentile(p) / 1e6);
+		}
+	}
+
+	/**
+	 * Appends the help and type lines of a metric.
+	 *
+	 * @param sb
+	 *            string builder
+	 * @param name
+	 *            name
+	 * @param type
+	 *            type
+	 * @param help
+	 *            description, or {@code null}
+	 */
+	private static void header(final StringBuilder sb, final String name,
+			final String type, final String help) {
+		if (help != null)
+			sb.append("# HELP ").append(name).append(' ').append(help).append(
+					'\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	/**
+	 * Appends the buckets, the sum and the count of a histogram.
+	 *
+	 * @param sb
+	 *            string builder
+	 * @param name
+	 *            name
+	 * @param labels
+	 *            labels
+	 * @param h
+	 *            histogram
+	 */
+	private static void histogram(final StringBuilder sb, final String name,
+			final String labels, final Histogram h) {
+		for (final long b : BOUNDS) {
+			line(sb, name + "_bucket", labels + ',' + label("le", seconds(b)),
+					h.below(b));
+		}
+		// buckets are read first, so that the count is never smaller
+		final long count = h.count();
+		line(sb, name + "_bucket", labels + ',' + label("le", "+Inf"), count);
+		line(sb, name + "_sum", labels, seconds(h.sum()));
+		line(sb, name + "_count", labels, count);
+	}
+
+	/**
+	 * Appends a sample.
+	 *
+	 * @param sb
+	 *            string builder
+	 * @param name
+	 *            name
+	 * @param labels
+	 *            labels
+	 * @param value
+	 *            value
+	 */
+	private static void line(final StringBuilder sb, final String name,
+			final String labels, final Object value) {
+		sb.append(series(name, labels)).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Returns the name of a series.
+	 *
+	 * @param name
+	 *            name
+	 * @param labels
+	 *            labels
+	 * @return series
+	 */
+	private static String series(final String name, final String labels) {
+		return labels.length() == 0 ? name : name + '{' + labels + '}';
+	}
+
+	/**
+	 * Returns a label.
+	 *
+	 * @param name
+	 *            name
+	 * @param value
+	 *            value
+	 * @return label
+	 */
+	private static String label(final String name, final Object value) {
+		final String v = value.toString().replace("\\", "\\\\").replace("\"",
+				"\\\"").replace("\n", "\\n");
+		return name + "=\"" + v + '"';
+	}
+
+	/**
+	 * Returns the value of the {@code Server-Timing} header for a request,
+	 * which contains the durations of all measured phases and the total
+	 * duration so far, in milliseconds.
+	 *
+	 * @param sample
+	 *            request
+	 * @return header value
+	 */
+	static String serverTiming(final Sample sample) {
+		final StringBuilder sb = new StringBuilder();
+		for (final Phase p : PHASES) {
+			final long time = sample.phases[p.ordinal()];
+			if (time != -1) {
+				sb.append(p.name().toLowerCase()).append(";dur=").append(
+						millis(time)).append(", ");
+			}
+		}
+		return sb.append("total;dur=").append(
+				millis(System.nanoTime() - sample.start)).toString();
+	}
+
+	/**
+	 * Converts nanoseconds to milliseconds.
+	 *
+	 * @param nanos
+	 *            nanoseconds
+	 * @return milliseconds, with three fraction digits
+	 */
+	static String millis(final long nanos) {
+		return BigDecimal.valueOf(nanos / 1000, 3).toPlainString();
+	}
+
+	/**
+	 * Returns the label of a phase.
+	 *
+	 * @param phase
+	 *            phase
+	 * @return label
+	 */
+	private static String phase(final Phase phase) {
+		return label("phase", phase.name().toLowerCase());
+	}
+
+	/**
+	 * Converts microseconds to seconds.
+	 *
+	 * @param us
+	 *            microseconds
+	 * @return seconds
+	 */
+	private static String seconds(final long us) {
+		return us == 0 ? "0" : BigDecimal.valueOf(us, 6).stripTrailingZeros()
+				.toPlainString();
+	}
+
+	/**
+	 * Request that is being recorded.
+	 */
+	static final class Sample {
+		/**
+		 * Start time.
+		 */
+		final long start = System.nanoTime();
+
+		/**
+		 * HTTP method.
+		 */
+		final String method;
+
+		/**
+		 * Request URI, including the query string.
+		 */
+		final String uri;
+
+		/**
+		 * Indicates if the phase durations are returned to the client.
+		 */
+		boolean timing;
+
+		/**
+		 * System name, or an empty string.
+		 */
+		String system = "";
+
+		/**
+		 * Operation.
+		 */
+		String operation;
+
+		/**
+		 * Durations of the phases in nanoseconds, or {@code -1}.
+		 */
+		final long[] phases = new long[PHASES.length];
+
+		/**
+		 * Constructor.
+		 *
+		 * @param m
+		 *            HTTP method
+		 * @param u
+		 *            request URI
+		 * @param t
+		 *            timing flag
+		 */
+		Sample(final String m, final String u, final boolean t) {
+			uri = u;
+			timing = t;
+			// unknown methods are combined to limit the number of series
+			method = OPERATIONS.containsKey(m) ? m : "OTHER";
+			operation = OPERATIONS.containsKey(m) ? OPERATIONS.get(m)
+					: "other";
+			Arrays.fill(phases, -1);
+		}
+	}
+
+	/**
+	 * Metrics of a combination of system, HTTP method and operation.
+	 */
+	private static final class Series {
+		/**
+		 * Labels.
+		 */
+		final String labels;
+
+		/**
+		 * Number of requests, indexed by status class.
+		 */
+		final AtomicLongArray status = new AtomicLongArray(6);
+
+		/**
+		 * Number of written bytes.
+		 */
+		final AtomicLong bytes = new AtomicLong();
+
+		/**
+		 * Request durations.
+		 */
+		final Histogram duration = new Histogram();
+
+		/**
+		 * Phase durations.
+		 */
+		final Histogram[] phases = new Histogram[PHASES.length];
+
+		/**
+		 * Constructor.
+		 *
+		 * @param sample
+		 *            first request
+		 */
+		Series(final Sample sample) {
+			labels = label("system", sample.system) + ','
+					+ label("method", sample.method) + ','
+					+ label("operation", sample.operation);
+			for (int p = 0; p < phases.length; p++)
+				phases[p] = new Histogram();
+		}
+	}
+
+	/**
+	 * JMX bean.
+	 */
+	private static final class Bean implements MetricsMXBean {
+		@Override
+		public Map<String, Long> getCounters() {
+			return counters();
+		}
+
+		@Override
+		public Map<String, Double> getPercentiles() {
+			return percentiles();
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package org.jaxrx.core;
+
+import java.io.IOException;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * This servlet filter records the duration, the status code and the number
+ * of written bytes of all requests in the {@link Metrics}. The duration
+ * includes writing the response body, which is streamed after the resource
+ * method has returned. Requests that fail with an exception are recorded with
+ * status code {@code 500}. If the query string contains {@code timing=yes},
+ * the durations of all phases that have been measured before the response is
+ * committed are returned in a {@code Server-Timing} header.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public final class MetricsFilter implements Filter {
+	@Override
+	public void init(final FilterConfig config) {
+	}
+
+	@Override
+	public void doFilter(final ServletRequest request,
+			final ServletResponse response, final FilterChain chain)
+			throws IOException, ServletException {
+
+		if (!Metrics.enabled() || !(request instanceof HttpServletRequest)
+				|| !(response instanceof HttpServletResponse)) {
+			chain.doFilter(request, response);
+			return;
+		}
+		final HttpServletRequest req = (HttpServletRequest) request;
+		final String query = req.getQueryString();
+		final Metrics.Sample sample = Metrics.start(req.getMethod(),
+				query == null ? req.getRequestURI() : req.getRequestURI() + '?'
+						+ query, timing(query));
+		final Measured measured = new Measured((HttpServletResponse) response,
+				sample);
+		boolean done = false;
+		try {
+			chain.doFilter(request, measured);
+			// responses without body
+			if (!measured.isCommitted())
+				measured.timing();
+			done = true;
+		} finally {
+			Metrics.finish(sample, done ? measured.status : 500,
+					measured.bytes());
+		}
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	/**
+	 * Checks if the specified query string requests phase durations.
+	 *
+	 * @param query
+	 *            query string (may be {@code null})
+	 * @return result of check
+	 */
+	private static boolean timing(final String query) {
+		if (query != null) {
+			for (final String param : query.split("&")) {
+				if (param.equalsIgnoreCase("timing=yes"))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Response that remembers its status code, counts the bytes written to
+	 * its output stream, and adds the {@code Server-Timing} header before the
+	 * response is committed.
+	 */
+	private static final class Measured extends HttpServletResponseWrapper {
+		/**
+		 * Request.
+		 */
+		private final Metrics.Sample sample;
+
+		/**
+		 * Status code.
+		 */
+		int status = SC_OK;
+
+		/**
+		 * Counting output stream, or {@code null}.
+		 */
+		private Counting out;
+
+		/**
+		 * Indicates if the timing header has been added.
+		 */
+		private boolean timed;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param response
+		 *            wrapped response
+		 * @param smp
+		 *            request
+		 */
+		Measured(final HttpServletResponse response, final Metrics.Sample smp) {
+			super(response);
+			sample = smp;
+		}
+
+		/**
+		 * Adds the timing header, if it has been requested and not been added
+		 * yet.
+		 */
+		void timing() {
+			if (sample.timing && !timed) {
+				timed = true;
+				setHeader("Server-Timing", Metrics.serverTiming(sample));
+			}
+		}
+
+		/**
+		 * Returns the number of written bytes.
+		 *
+		 * @return number of bytes
+		 */
+		long bytes() {
+			return out == null ? 0 : out.bytes;
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (out == null)
+				out = new Counting(super.getOutputStream(), this);
+			return out;
+		}
+
+		@Override
+		public void flushBuffer() throws IOException {
+			timing();
+			super.flushBuffer();
+		}
+
+		@Override
+		public void setStatus(final int sc) {
+			status = sc;
+			super.setStatus(sc);
+		}
+
+		@Override
+		@SuppressWarnings("deprecation")
+		public void setStatus(final int sc, final String msg) {
+			status = sc;
+			super.setStatus(sc, msg);
+		}
+
+		@Override
+		public void sendError(final int sc) throws IOException {
+			status = sc;
+			timing();
+			super.sendError(sc);
+		}
+
+		@Override
+		public void sendError(final int sc, final String msg)
+				throws IOException {
+			status = sc;
+			timing();
+			super.sendError(sc, msg);
+		}
+
+		@Override
+		public void sendRedirect(final String location) throws IOException {
+			status = SC_FOUND;
+			timing();
+			super.sendRedirect(location);
+		}
+	}
+
+	/**
+	 * Output stream that counts the written bytes, and adds the timing header
+	 * before the first bytes are written.
+	 */
+	private static final class Counting extends ServletOutputStream {
+		/**
+		 * Wrapped output stream.
+		 */
+		private final ServletOutputStream out;
+
+		/**
+		 * Response.
+		 */
+		private final Measured response;
+
+		/**
+		 * Number of written bytes.
+		 */
+		long bytes;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param os
+		 *            wrapped output stream
+		 * @param res
+		 *            response
+		 */
+		Counting(final ServletOutputStream os, final Measured res) {
+			out = os;
+			response = res;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			response.timing();
+			out.write(b);
+			bytes++;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len)
+				throws IOException {
+			response.timing();
+			out.write(b, off, len);
+			bytes += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			response.timing();
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			response.timing();
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package org.jaxrx.core;
+
+import java.util.Map;
+
+/**
+ * This interface publishes the request metrics via JMX, with the object
+ * name {@link Metrics#NAME}. The keys of the returned maps are formatted like
+ * the series of the text format (see {@link Metrics#text()}).
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public interface MetricsMXBean {
+	/**
+	 * Returns the values of all counters and gauges.
+	 *
+	 * @return values, indexed by series
+	 */
+	Map<String, Long> getCounters();
+
+	/**
+	 * Returns the median and upper percentiles of all request and phase
+	 * durations.
+	 *
+	 * @return durations in seconds, indexed by series
+	 */
+	Map<String, Double> getPercentiles();
+}
@@ -0,0 +1,26 @@
+package org.jaxrx.core;
+
+import java.io.IOException;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * This interface can be implemented by streaming outputs which keep a
+ * compressed representation of their content, such as stored documents. If
+ * the client accepts gzip compression, the compressed representation is sent
+ * instead of compressing the output again for each request.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public interface Precompressed extends StreamingOutput {
+	/**
+	 * Returns the gzip-compressed content.
+	 *
+	 * @return compressed content, or {@code null} if the content is not to
+	 *         be compressed
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	byte[] gzip() throws IOException;
+}
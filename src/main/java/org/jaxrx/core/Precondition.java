@@ -0,0 +1,212 @@
+package org.jaxrx.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+
+/**
+ * This class contains the preconditions ({@code If-Match},
+ * {@code If-None-Match}) of a write request. Preconditions are passed on to
+ * the implementation with the {@link ResourcePath}, which checks them while
+ * the resource is locked, so that the check and the modification are atomic.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public final class Precondition {
+	/**
+	 * Name of the {@code If-Match} header.
+	 */
+	public static final String IF_MATCH = "If-Match";
+
+	/**
+	 * Name of the {@code If-None-Match} header.
+	 */
+	public static final String IF_NONE_MATCH = "If-None-Match";
+
+	/**
+	 * Value of the {@code If-Match} header, or {@code null}.
+	 */
+	private final String match;
+
+	/**
+	 * Value of the {@code If-None-Match} header, or {@code null}.
+	 */
+	private final String noneMatch;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param m
+	 *            value of the {@code If-Match} header
+	 * @param nm
+	 *            value of the {@code If-None-Match} header
+	 */
+	public Precondition(final String m, final String nm) {
+		match = m;
+		noneMatch = nm;
+	}
+
+	/**
+	 * Returns the preconditions of the specified request headers.
+	 *
+	 * @param headers
+	 *            request headers (may be {@code null})
+	 * @return preconditions, or {@code null} if no preconditions are specified
+	 */
+	public static Precondition of(final HttpHeaders headers) {
+		if (headers == null)
+			return null;
+		final String m = header(headers, IF_MATCH);
+		final String nm = header(headers, IF_NONE_MATCH);
+		return m == null && nm == null ? null : new Precondition(m, nm);
+	}
+
+	/**
+	 * Checks if the preconditions are met by the specified version of the
+	 * resource.
+	 *
+	 * @param version
+	 *            current version of the resource, or {@code -1} if the
+	 *            resource does not exist
+	 * @throws JaxRxException
+	 *             thrown if the preconditions are not met (status code: 412)
+	 */
+	public void check(final long version) throws JaxRxException {
+		final EntityTag tag = version == -1 ? null : tag(version);
+		if (!ifMatch(tag) || !ifNoneMatch(tag))
+			throw new JaxRxException(412, "Precondition failed.");
+	}
+
+	/**
+	 * Checks if the {@code If-Match} precondition is met by the specified
+	 * entity tag.
+	 *
+	 * @param tag
+	 *            current entity tag, or {@code null} if the resource does
+	 *            not exist
+	 * @return result of check
+	 */
+	public boolean ifMatch(final EntityTag tag) {
+		return match == null || tag != null
+				&& matches(match, tag.getValue(), true);
+	}
+
+	/**
+	 * Checks if the {@code If-None-Match} precondition is met by the
+	 * specified entity tag.
+	 *
+	 * @param tag
+	 *            current entity tag, or {@code null} if the resource does
+	 *            not exist
+	 * @return result of check
+	 */
+	public boolean ifNoneMatch(final EntityTag tag) {
+		return noneMatch == null || tag == null
+				|| !matches(noneMatch, tag.getValue(), false);
+	}
+
+	/**
+	 * Returns the entity tag for the specified resource version.
+	 *
+	 * @param version
+	 *            version
+	 * @return entity tag
+	 */
+	public static EntityTag tag(final long version) {
+		return new EntityTag(Long.toHexString(version));
+	}
+
+	/**
+	 * Checks if the specified header value matches the opaque value of an
+	 * entity tag. A value of {@code *} matches all tags. Weak entity tags do
+	 * not match if a strong comparison is requested. Tags of compressed
+	 * responses match the tag of the uncompressed response (see
+	 * {@link Compression#tag(EntityTag, String)}).
+	 *
+	 * @param value
+	 *            header value
+	 * @param tag
+	 *            opaque value of the current entity tag
+	 * @param strong
+	 *            strong comparison
+	 * @return result of check
+	 */
+	static boolean matches(final String value, final String tag,
+			final boolean strong) {
+		if (value.trim().equals("*"))
+			return true;
+		for (final String t : tags(value)) {
+			final boolean weak = t.startsWith("W/");
+			if (strong && weak)
+				continue;
+			final String v = unquote(weak ? t.substring(2) : t);
+			if (v.equals(tag) || Compression.identity(v).equals(tag))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Splits a list of entity tags. Commas may occur within quoted tags.
+	 *
+	 * @param value
+	 *            header value
+	 * @return entity tags
+	 */
+	private static List<String> tags(final String value) {
+		final List<String> list = new ArrayList<String>();
+		final StringBuilder sb = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '"')
+				quoted ^= true;
+			if (c == ',' && !quoted) {
+				list.add(sb.toString().trim());
+				sb.setLength(0);
+			} else {
+				sb.append(c);
+			}
+		}
+		list.add(sb.toString().trim());
+		return list;
+	}
+
+	/**
+	 * Removes the quotes of an entity tag.
+	 *
+	 * @param tag
+	 *            entity tag
+	 * @return opaque value
+	 */
+	private static String unquote(final String tag) {
+		if (tag.length() > 1 && tag.startsWith("\"") && tag.endsWith("\""))
+			return tag.substring(1, tag.length() - 1);
+		return tag;
+	}
+
+	/**
+	 * Returns the comma-separated values of the specified header.
+	 *
+	 * @param headers
+	 *            request headers
+	 * @param name
+	 *            name of the header
+	 * @return values, or {@code null} if the header is not specified
+	 */
+	private static String header(final HttpHeaders headers, final String name) {
+		final List<String> values = headers.getRequestHeader(name);
+		if (values == null || values.isEmpty())
+			return null;
+		final StringBuilder sb = new StringBuilder();
+		for (final String v : values) {
+			if (sb.length() != 0)
+				sb.append(',');
+			sb.append(v);
+		}
+		return sb.toString();
+	}
+}
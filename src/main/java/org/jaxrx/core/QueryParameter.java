@@ -14,6 +14,8 @@ public enum QueryParameter {
 	COMMAND,
 	/** Query file to process. */
 	RUN,
+	/** Keywords to search for. */
+	SEARCH,
 
 	/** Choose revision to work on. */
 	REVISION,
@@ -27,6 +29,10 @@ public enum QueryParameter {
 	START,
 	/** Number of results to print. */
 	COUNT,
+	/** Flag for returning phase durations in a Server-Timing header. */
+	TIMING,
+	/** Flag for storing all or no documents of a bulk request. */
+	ATOMIC,
   /** External variable. */
   VAR;
 }
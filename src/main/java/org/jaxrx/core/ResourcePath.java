@@ -15,6 +15,8 @@ public final class ResourcePath {
   private final Map<QueryParameter, String> params;
   /** Resource path. */
   private final String[] resource;
+  /** Preconditions of a write request. */
+  private final Precondition precondition;
 
   /**
    * Constructs a new {@code ResourcePath}.
@@ -32,11 +34,25 @@ public final class ResourcePath {
    */
   public ResourcePath(final String resourcePath,
       final Map<QueryParameter, String> queryParameters) {
+    this(resourcePath, queryParameters, null);
+  }
+
+  /**
+   * Constructs a new {@code ResourcePath} with an additional
+   * {@link QueryParameter} map and the preconditions of a write request.
+   * @param resourcePath resource path string
+   * @param queryParameters query parameters
+   * @param pre preconditions (may be {@code null})
+   */
+  public ResourcePath(final String resourcePath,
+      final Map<QueryParameter, String> queryParameters,
+      final Precondition pre) {
 
     // chop trailing slashes, ignore empty steps
     final String[] rp = resourcePath.replaceAll("/+$", "").split("/");
     resource = rp.length == 1 && rp[0].isEmpty() ? new String[] { } : rp;
     params = queryParameters;
+    precondition = pre;
   }
 
   /**
@@ -90,6 +106,15 @@ public final class ResourcePath {
     return params;
   }
 
+  /**
+   * Returns the preconditions of a write request, which must be checked by
+   * the implementation before the resource is modified.
+   * @return preconditions, or {@code null}
+   */
+  public Precondition getPrecondition() {
+    return precondition;
+  }
+
   @Override
   public String toString() {
     return getResourcePath();
@@ -1,16 +1,12 @@
 package org.jaxrx.core;
 
+import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import javax.ws.rs.core.StreamingOutput;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
@@ -114,22 +110,13 @@ public final class ResponseBuilder {
 	 */
 	public static StreamingOutput createStream(final Document doc) {
 		return new StreamingOutput() {
-
 			@Override
-			public void write(final OutputStream output) {
-				synchronized (output) {
-					final DOMSource domSource = new DOMSource(doc);
-					final StreamResult streamResult = new StreamResult(output);
-					Transformer transformer;
-					try {
-						transformer = TransformerFactory.newInstance()
-								.newTransformer();
-						transformer.transform(domSource, streamResult);
-					} catch (final TransformerException exc) {
-						exc.printStackTrace();
-						throw new JaxRxException(exc);
-					}
-
+			public void write(final OutputStream output) throws IOException {
+				final DOMSerializer ser = new DOMSerializer(output);
+				try {
+					ser.declaration().node(doc).finish();
+				} finally {
+					ser.abort();
 				}
 			}
 		};
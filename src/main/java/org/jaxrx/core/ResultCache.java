@@ -0,0 +1,491 @@
+package org.jaxrx.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * This class caches serialized results of GET and query requests. Entries
+ * are identified by the system, the resource path, the query parameters that
+ * affect the result (all but {@link QueryParameter#TIMING}) and the version
+ * of the resource, and they are dropped as soon as the resource
+ * is modified. The least recently used entries are evicted if the size of all
+ * cached results exceeds the byte budget, which can be specified via the
+ * system property {@link #SIZE}. A budget of {@code 0} disables the cache.
+ * <p>
+ * The cache can be accessed concurrently without a global lock. Each entry
+ * records the time of its last access, and eviction is performed by a single
+ * thread at a time, which removes the entries with the oldest access times
+ * until an eighth of the budget is free again. The order of eviction is
+ * therefore only approximately the order of access.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public final class ResultCache {
+	/**
+	 * System property for the maximum number of cached bytes.
+	 */
+	public static final String SIZE = "org.jaxrx.cache.size";
+
+	/**
+	 * Maximum number of cached bytes.
+	 */
+	private static final long BUDGET = Math.max(0, Long.getLong(SIZE,
+			32L << 20));
+
+	/**
+	 * Maximum size of a single result; larger results are not cached.
+	 */
+	private static final int MAXENTRY = (int) Math.min(Integer.MAX_VALUE,
+			BUDGET / 4);
+
+	/**
+	 * Cached results.
+	 */
+	private static final ConcurrentMap<Key, Result> RESULTS = new ConcurrentHashMap<Key, Result>();
+
+	/**
+	 * Cache keys, indexed by system and resource.
+	 */
+	private static final ConcurrentMap<String, Set<Key>> RESOURCES = new ConcurrentHashMap<String, Set<Key>>();
+
+	/**
+	 * Lock of the evicting thread.
+	 */
+	private static final Lock EVICTION = new ReentrantLock();
+
+	/**
+	 * Number of cached bytes.
+	 */
+	private static final AtomicLong BYTES = new AtomicLong();
+
+	/**
+	 * Number of cache hits.
+	 */
+	private static final AtomicLong HITS = new AtomicLong();
+
+	/**
+	 * Number of cache misses.
+	 */
+	private static final AtomicLong MISSES = new AtomicLong();
+
+	/**
+	 * Number of evicted entries.
+	 */
+	private static final AtomicLong EVICTIONS = new AtomicLong();
+
+	/**
+	 * Private constructor.
+	 */
+	private ResultCache() {
+	}
+
+	/**
+	 * Indicates if the cache is enabled.
+	 *
+	 * @return result of check
+	 */
+	public static boolean enabled() {
+		return BUDGET > 0;
+	}
+
+	/**
+	 * Creates a cache key.
+	 *
+	 * @param system
+	 *            system name
+	 * @param path
+	 *            resource path and query parameters
+	 * @param version
+	 *            version of the resource
+	 * @return key
+	 */
+	public static Object key(final String system, final ResourcePath path,
+			final long version) {
+		final StringBuilder sb = new StringBuilder();
+		final Map<QueryParameter, String> params = path.getQueryParameter();
+		if (params != null) {
+			// parameters are appended in the order of their declaration
+			for (final QueryParameter qp : QueryParameter.values()) {
+				// timings are only returned in a header
+				if (qp == QueryParameter.TIMING)
+					continue;
+				final String val = params.get(qp);
+				if (val != null)
+					sb.append(qp.ordinal()).append('=').append(val).append('\0');
+			}
+		}
+		return new Key(system, path.getResourcePath(), version, sb.toString());
+	}
+
+	/**
+	 * Returns a cached result.
+	 *
+	 * @param key
+	 *            cache key
+	 * @return result, or {@code null} if no result is cached
+	 */
+	public static byte[] get(final Object key) {
+		final Result result = RESULTS.get(key);
+		if (result == null) {
+			MISSES.incrementAndGet();
+			return null;
+		}
+		HITS.incrementAndGet();
+		result.access = System.nanoTime();
+		return result.bytes;
+	}
+
+	/**
+	 * Caches a result and evicts the least recently used entries if the byte
+	 * budget is exceeded.
+	 *
+	 * @param key
+	 *            cache key
+	 * @param result
+	 *            result
+	 */
+	public static void put(final Object key, final byte[] result) {
+		if (result.length > MAXENTRY)
+			return;
+		final Key k = (Key) key;
+		Set<Key> keys = RESOURCES.get(k.resource());
+		if (keys == null) {
+			final Set<Key> ks = Collections
+					.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+			keys = RESOURCES.putIfAbsent(k.resource(), ks);
+			if (keys == null)
+				keys = ks;
+		}
+		keys.add(k);
+
+		final Result old = RESULTS.put(k, new Result(k, result));
+		BYTES.addAndGet(result.length - (old != null ? old.bytes.length : 0));
+		if (BYTES.get() > BUDGET)
+			evict();
+	}
+
+	/**
+	 * Drops all results of the specified resource and of the root of the
+	 * system, which may contain results of all resources.
+	 *
+	 * @param system
+	 *            system name
+	 * @param resource
+	 *            resource path
+	 */
+	public static void invalidate(final String system,
+			final String resource) {
+		drop(system + '/' + new ResourcePath(resource).getResourcePath());
+		drop(system + '/');
+	}
+
+	/**
+	 * Returns a streaming output for a cached result.
+	 *
+	 * @param result
+	 *            cached result
+	 * @return streaming output
+	 */
+	public static StreamingOutput output(final byte[] result) {
+		return new StreamingOutput() {
+			@Override
+			public void write(final OutputStream output) throws IOException {
+				output.write(result);
+			}
+		};
+	}
+
+	/**
+	 * Returns a streaming output, which passes on the specified output and
+	 * caches the result after it has been completely written.
+	 *
+	 * @param key
+	 *            cache key
+	 * @param out
+	 *            streaming output
+	 * @return streaming output
+	 */
+	public static StreamingOutput capture(final Object key,
+			final StreamingOutput out) {
+		return new StreamingOutput() {
+			@Override
+			public void write(final OutputStream output) throws IOException {
+				final Capture capture = new Capture(output);
+				out.write(capture);
+				if (capture.result != null)
+					put(key, capture.result.toByteArray());
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of cache hits.
+	 *
+	 * @return number of hits
+	 */
+	public static long hits() {
+		return HITS.get();
+	}
+
+	/**
+	 * Returns the number of cache misses.
+	 *
+	 * @return number of misses
+	 */
+	public static long misses() {
+		return MISSES.get();
+	}
+
+	/**
+	 * Returns the number of evicted entries.
+	 *
+	 * @return number of evictions
+	 */
+	public static long evictions() {
+		return EVICTIONS.get();
+	}
+
+	/**
+	 * Returns the number of cached bytes.
+	 *
+	 * @return number of bytes
+	 */
+	public static long bytes() {
+		return BYTES.get();
+	}
+
+	/**
+	 * Drops all results of the specified resource.
+	 *
+	 * @param resource
+	 *            system and resource path
+	 */
+	private static void drop(final String resource) {
+		final Set<Key> keys = RESOURCES.remove(resource);
+		if (keys == null)
+			return;
+		for (final Key k : keys) {
+			final Result result = RESULTS.remove(k);
+			if (result != null)
+				BYTES.addAndGet(-result.bytes.length);
+		}
+	}
+
+	/**
+	 * Evicts the least recently used entries until an eighth of the byte
+	 * budget is free. Returns immediately if another thread is evicting
+	 * entries.
+	 */
+	private static void evict() {
+		if (!EVICTION.tryLock())
+			return;
+		try {
+			if (BYTES.get() <= BUDGET)
+				return;
+			// access times are copied, as they may change while sorting
+			final List<Candidate> candidates = new ArrayList<Candidate>();
+			for (final Result r : RESULTS.values())
+				candidates.add(new Candidate(r));
+			Collections.sort(candidates);
+
+			final long target = BUDGET - BUDGET / 8;
+			for (final Candidate c : candidates) {
+				if (BYTES.get() <= target)
+					break;
+				final Result r = c.result;
+				if (RESULTS.remove(r.key, r)) {
+					BYTES.addAndGet(-r.bytes.length);
+					EVICTIONS.incrementAndGet();
+					unindex(r.key);
+				}
+			}
+		} finally {
+			EVICTION.unlock();
+		}
+	}
+
+	/**
+	 * Removes the specified key from the resource index.
+	 *
+	 * @param key
+	 *            key
+	 */
+	private static void unindex(final Key key) {
+		final Set<Key> keys = RESOURCES.get(key.resource());
+		if (keys != null && keys.remove(key) && keys.isEmpty())
+			RESOURCES.remove(key.resource(), keys);
+	}
+
+	/**
+	 * Cached result.
+	 */
+	private static final class Result {
+		/** Cache key. */
+		final Key key;
+		/** Serialized result. */
+		final byte[] bytes;
+		/** Time of the last access. */
+		volatile long access = System.nanoTime();
+
+		/**
+		 * Constructor.
+		 *
+		 * @param k
+		 *            cache key
+		 * @param b
+		 *            serialized result
+		 */
+		Result(final Key k, final byte[] b) {
+			key = k;
+			bytes = b;
+		}
+	}
+
+	/**
+	 * Candidate for eviction.
+	 */
+	private static final class Candidate implements Comparable<Candidate> {
+		/** Cached result. */
+		final Result result;
+		/** Time of the last access. */
+		private final long access;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param r
+		 *            cached result
+		 */
+		Candidate(final Result r) {
+			result = r;
+			access = r.access;
+		}
+
+		@Override
+		public int compareTo(final Candidate c) {
+			return access - c.access < 0 ? -1 : access == c.access ? 0 : 1;
+		}
+	}
+
+	/**
+	 * Output stream, which passes on all bytes and collects them until the
+	 * maximum size of a cached result is exceeded.
+	 */
+	private static final class Capture extends FilterOutputStream {
+		/** Collected bytes, or {@code null} if the result is too large. */
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+
+		/**
+		 * Constructor.
+		 *
+		 * @param output
+		 *            output stream
+		 */
+		Capture(final OutputStream output) {
+			super(output);
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			out.write(b);
+			if (collect(1))
+				result.write(b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len)
+				throws IOException {
+			out.write(b, off, len);
+			if (collect(len))
+				result.write(b, off, len);
+		}
+
+		/**
+		 * Checks if the specified number of bytes can still be collected.
+		 *
+		 * @param len
+		 *            number of bytes
+		 * @return result of check
+		 */
+		private boolean collect(final int len) {
+			if (result != null && result.size() + len > MAXENTRY)
+				result = null;
+			return result != null;
+		}
+	}
+
+	/**
+	 * Cache key.
+	 */
+	private static final class Key {
+		/** System name. */
+		private final String system;
+		/** Resource path. */
+		private final String path;
+		/** Resource version. */
+		private final long version;
+		/** Query parameters. */
+		private final String params;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param sys
+		 *            system name
+		 * @param pth
+		 *            resource path
+		 * @param vers
+		 *            resource version
+		 * @param prms
+		 *            query parameters
+		 */
+		Key(final String sys, final String pth, final long vers,
+				final String prms) {
+			system = sys;
+			path = pth;
+			version = vers;
+			params = prms;
+		}
+
+		/**
+		 * Returns the system and resource path.
+		 *
+		 * @return resource string
+		 */
+		String resource() {
+			return system + '/' + path;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			final Key k = (Key) obj;
+			return version == k.version && system.equals(k.system)
+					&& path.equals(k.path) && params.equals(k.params);
+		}
+
+		@Override
+		public int hashCode() {
+			int h = system.hashCode();
+			h = 31 * h + path.hashCode();
+			h = 31 * h + (int) (version ^ version >>> 32);
+			return 31 * h + params.hashCode();
+		}
+	}
+}
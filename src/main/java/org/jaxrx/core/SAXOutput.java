@@ -0,0 +1,33 @@
+package org.jaxrx.core;
+
+import java.io.IOException;
+import javax.ws.rs.core.StreamingOutput;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * This interface can be implemented by streaming outputs whose content can
+ * also be passed on as SAX events. Stylesheets transform such outputs
+ * directly, without serializing the content and parsing it again (see
+ * {@link Stylesheets.Stylesheet#transform(StreamingOutput)}).
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public interface SAXOutput extends StreamingOutput {
+	/**
+	 * Passes on the content as a complete document, including the start and
+	 * end of the document. A {@link SAXWriter} can be used to create the
+	 * events.
+	 *
+	 * @param handler
+	 *            content handler, which may also be a
+	 *            {@link org.xml.sax.ext.LexicalHandler}
+	 * @throws IOException
+	 *             I/O exception
+	 * @throws SAXException
+	 *             SAX exception, raised by the content handler
+	 */
+	void write(ContentHandler handler) throws IOException, SAXException;
+}
@@ -0,0 +1,383 @@
+package org.jaxrx.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * This class passes on DOM nodes and other XML content as SAX events, which
+ * can be consumed without serializing and parsing the content, e.g. by a
+ * {@link javax.xml.transform.sax.TransformerHandler}. Namespace URIs are
+ * resolved from the namespace declarations that have been written, and
+ * missing declarations of namespace-aware DOM nodes are added. Comments and
+ * CDATA sections are only reported if the content handler is a
+ * {@link LexicalHandler}.
+ *
+ * <p>
+ * Instances are not thread-safe. Elements that are started via
+ * {@link #startElement(String, String[])} must be closed via
+ * {@link #endElement()}.
+ * </p>
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public final class SAXWriter {
+	/**
+	 * Namespace URI of namespace declarations.
+	 */
+	private static final String XMLNS = "http://www.w3.org/2000/xmlns/";
+
+	/**
+	 * Namespace URI of the {@code xml} prefix.
+	 */
+	private static final String XML = "http://www.w3.org/XML/1998/namespace";
+
+	/**
+	 * Content handler.
+	 */
+	private final ContentHandler handler;
+
+	/**
+	 * Lexical handler, or {@code null}.
+	 */
+	private final LexicalHandler lexical;
+
+	/**
+	 * Namespace declarations in scope, stored as prefix/URI pairs.
+	 */
+	private final List<String> ns = new ArrayList<String>();
+
+	/**
+	 * Open elements, stored as name and number of namespace declarations in
+	 * scope before the element was started.
+	 */
+	private final List<Object> open = new ArrayList<Object>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param h
+	 *            content handler, which may also be a {@link LexicalHandler}
+	 */
+	public SAXWriter(final ContentHandler h) {
+		handler = h;
+		lexical = h instanceof LexicalHandler ? (LexicalHandler) h : null;
+	}
+
+	/**
+	 * Starts the document.
+	 *
+	 * @return self reference
+	 * @throws SAXException
+	 *             SAX exception
+	 */
+	public SAXWriter startDocument() throws SAXException {
+		handler.startDocument();
+		return this;
+	}
+
+	/**
+	 * Ends the document.
+	 *
+	 * @throws SAXException
+	 *             SAX exception
+	 */
+	public void endDocument() throws SAXException {
+		handler.endDocument();
+	}
+
+	/**
+	 * Passes on the specified node and its descendants. Attribute nodes are
+	 * passed on as text.
+	 *
+	 * @param node
+	 *            node
+	 * @return self reference
+	 * @throws SAXException
+	 *             SAX exception
+	 */
+	public SAXWriter node(final Node node) throws SAXException {
+		switch (node.getNodeType()) {
+		case Node.DOCUMENT_NODE:
+		case Node.DOCUMENT_FRAGMENT_NODE:
+		case Node.ENTITY_REFERENCE_NODE:
+			children(node);
+			break;
+		case Node.ELEMENT_NODE:
+			element(node);
+			break;
+		case Node.TEXT_NODE:
+		case Node.ATTRIBUTE_NODE:
+			text(node.getNodeValue());
+			break;
+		case Node.CDATA_SECTION_NODE:
+			cdata(node.getNodeValue());
+			break;
+		case Node.COMMENT_NODE:
+			comment(node.getNodeValue());
+			break;
+		case Node.PROCESSING_INSTRUCTION_NODE:
+			pi(node.getNodeName(), node.getNodeValue());
+			break;
+		default:
+			// document types, entities and notations are skipped
+		}
+		return this;
+	}
+
+	/**
+	 * Starts an element. Namespace declarations among the attributes are
+	 * reported as prefix mappings.
+	 *
+	 * @param name
+	 *            element name
+	 * @param atts
+	 *            attribute names and values, in alternating order
+	 * @return self reference
+	 * @throws SAXException
+	 *             SAX exception
+	 */
+	public SAXWriter startElement(final String name, final String... atts)
+			throws SAXException {
+		open.add(name);
+		open.add(ns.size());
+		for (int a = 0; a < atts.length; a += 2) {
+			final String an = atts[a];
+			if (an.equals("xmlns"))
+				declare("", atts[a + 1]);
+			else if (an.startsWith("xmlns:"))
+				declare(an.substring(6), atts[a + 1]);
+		}
+		final AttributesImpl attributes = new AttributesImpl();
+		for (int a = 0; a < atts.length; a += 2) {
+			final String an = atts[a];
+			if (an.equals("xmlns") || an.startsWith("xmlns:"))
+				continue;
+			// attributes without prefix are in no namespace
+			final String uri = an.indexOf(':') == -1 ? "" : uri(an);
+			attributes.addAttribute(uri, local(an), an, "CDATA", atts[a + 1]);
+		}
+		handler.startElement(uri(name), local(name), name, attributes);
+		return this;
+	}
+
+	/**
+	 * Ends the element that has been started last.
+	 *
+	 * @return self reference
+	 * @throws SAXException
+	 *             SAX exception
+	 */
+	public SAXWriter endElement() throws SAXException {
+		final int scope = (Integer) open.remove(open.size() - 1);
+		final String name = (String) open.remove(open.size() - 1);
+		handler.endElement(uri(name), local(name), name);
+		// remove namespace declarations of this element
+		while (ns.size() > scope) {
+			ns.remove(ns.size() - 1);
+			handler.endPrefixMapping(ns.remove(ns.size() - 1));
+		}
+		return this;
+	}
+
+	/**
+	 * Passes on text.
+	 *
+	 * @param text
+	 *            text
+	 * @return self reference
+	 * @throws SAXException
+	 *             SAX exception
+	 */
+	public SAXWriter text(final String text) throws SAXException {
+		handler.characters(text.toCharArray(), 0, text.length());
+		return this;
+	}
+
+	/**
+	 * Passes on a CDATA section.
+	 *
+	 * @param text
+	 *            contents of the section
+	 * @return self reference
+	 * @throws SAXException
+	 *             SAX exception
+	 */
+	public SAXWriter cdata(final String text) throws SAXException {
+		if (lexical != null)
+			lexical.startCDATA();
+		text(text);
+		if (lexical != null)
+			lexical.endCDATA();
+		return this;
+	}
+
+	/**
+	 * Passes on a comment.
+	 *
+	 * @param text
+	 *            contents of the comment
+	 * @return self reference
+	 * @throws SAXException
+	 *             SAX exception
+	 */
+	public SAXWriter comment(final String text) throws SAXException {
+		if (lexical != null)
+			lexical.comment(text.toCharArray(), 0, text.length());
+		return this;
+	}
+
+	/**
+	 * Passes on a processing instruction.
+	 *
+	 * @param target
+	 *            target
+	 * @param data
+	 *            data (may be {@code null})
+	 * @return self reference
+	 * @throws SAXException
+	 *             SAX exception
+	 */
+	public SAXWriter pi(final String target, final String data)
+			throws SAXException {
+		handler.processingInstruction(target, data == null ? "" : data);
+		return this;
+	}
+
+	/**
+	 * Passes on an element node.
+	 *
+	 * @param elem
+	 *            element node
+	 * @throws SAXException
+	 *             SAX exception
+	 */
+	private void element(final Node elem) throws SAXException {
+		final NamedNodeMap atts = elem.getAttributes();
+		final int al = atts.getLength();
+		final List<String> list = new ArrayList<String>(al * 2 + 2);
+		for (int a = 0; a < al; a++) {
+			list.add(atts.item(a).getNodeName());
+			list.add(atts.item(a).getNodeValue());
+		}
+		// add missing namespace declarations
+		fixup(elem, true, list);
+		for (int a = 0; a < al; a++)
+			fixup(atts.item(a), false, list);
+
+		startElement(elem.getNodeName(), list.toArray(new String[list.size()]));
+		children(elem);
+		endElement();
+	}
+
+	/**
+	 * Passes on all children of a node.
+	 *
+	 * @param node
+	 *            parent node
+	 * @throws SAXException
+	 *             SAX exception
+	 */
+	private void children(final Node node) throws SAXException {
+		for (Node ch = node.getFirstChild(); ch != null; ch = ch
+				.getNextSibling()) {
+			node(ch);
+		}
+	}
+
+	/**
+	 * Adds a namespace declaration for the specified node to the attribute
+	 * list if its namespace is neither in scope nor declared by the element.
+	 *
+	 * @param node
+	 *            element or attribute node
+	 * @param elem
+	 *            element flag
+	 * @param atts
+	 *            attribute names and values
+	 */
+	private void fixup(final Node node, final boolean elem,
+			final List<String> atts) {
+		final String uri = node.getNamespaceURI();
+		if (uri == null || uri.equals(XMLNS) || uri.equals(XML))
+			return;
+		final String prefix = node.getPrefix() == null ? "" : node.getPrefix();
+		if (!elem && prefix.length() == 0)
+			return;
+		final String decl = prefix.length() == 0 ? "xmlns" : "xmlns:" + prefix;
+		for (int a = 0; a < atts.size(); a += 2) {
+			if (atts.get(a).equals(decl))
+				return;
+		}
+		if (uri.equals(lookup(prefix)))
+			return;
+		atts.add(decl);
+		atts.add(uri);
+	}
+
+	/**
+	 * Registers and reports a namespace declaration.
+	 *
+	 * @param prefix
+	 *            prefix (empty for the default namespace)
+	 * @param uri
+	 *            namespace URI
+	 * @throws SAXException
+	 *             SAX exception
+	 */
+	private void declare(final String prefix, final String uri)
+			throws SAXException {
+		ns.add(prefix);
+		ns.add(uri);
+		handler.startPrefixMapping(prefix, uri);
+	}
+
+	/**
+	 * Returns the namespace URI of the specified name.
+	 *
+	 * @param name
+	 *            element or attribute name
+	 * @return namespace URI; empty if the prefix is not bound
+	 */
+	private String uri(final String name) {
+		final int i = name.indexOf(':');
+		final String prefix = i == -1 ? "" : name.substring(0, i);
+		if (prefix.equals("xml"))
+			return XML;
+		final String uri = lookup(prefix);
+		return uri == null ? "" : uri;
+	}
+
+	/**
+	 * Returns the local part of the specified name.
+	 *
+	 * @param name
+	 *            element or attribute name
+	 * @return local name
+	 */
+	private static String local(final String name) {
+		return name.substring(name.indexOf(':') + 1);
+	}
+
+	/**
+	 * Returns the namespace URI bound to the specified prefix.
+	 *
+	 * @param prefix
+	 *            prefix
+	 * @return namespace URI, or {@code null}
+	 */
+	private String lookup(final String prefix) {
+		for (int n = ns.size() - 2; n >= 0; n -= 2) {
+			if (ns.get(n).equals(prefix))
+				return ns.get(n + 1);
+		}
+		return null;
+	}
+}
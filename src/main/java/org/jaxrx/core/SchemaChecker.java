@@ -2,27 +2,70 @@ package org.jaxrx.core;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Source;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
-import javax.xml.validation.Validator;
 import org.w3c.dom.Document;
-import org.xml.sax.InputSource;
+import org.xml.sax.ErrorHandler;
 import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
 
 /**
- * This class validates XML documents against a specified XML schema.
+ * This class validates XML documents against a specified XML schema. The
+ * schema is compiled only once and shared by all threads, and the input is
+ * validated while it is parsed. As document builders are not thread-safe,
+ * each thread keeps its own builder per schema.
  *
  * @author Lukas Lewandowski, University of Konstanz
  *
  */
 public final class SchemaChecker {
+	/**
+	 * Compiled schemas, indexed by their resource names.
+	 */
+	private static final ConcurrentMap<String, Schema> SCHEMAS = new ConcurrentHashMap<String, Schema>();
+
+	/**
+	 * Document builders of the current thread, indexed by the schema resource
+	 * names.
+	 */
+	private static final ThreadLocal<Map<String, DocumentBuilder>> BUILDERS = new ThreadLocal<Map<String, DocumentBuilder>>() {
+		@Override
+		protected Map<String, DocumentBuilder> initialValue() {
+			return new HashMap<String, DocumentBuilder>();
+		}
+	};
+
+	/**
+	 * Error handler, which rejects invalid input.
+	 */
+	private static final ErrorHandler HANDLER = new ErrorHandler() {
+		@Override
+		public void warning(final SAXParseException exception) {
+			// warnings are ignored
+		}
+
+		@Override
+		public void error(final SAXParseException exception)
+				throws SAXException {
+			throw exception;
+		}
+
+		@Override
+		public void fatalError(final SAXParseException exception)
+				throws SAXException {
+			throw exception;
+		}
+	};
+
 	/**
 	 * The validation schema.
 	 */
@@ -40,52 +83,80 @@ public final class SchemaChecker {
 
 	/**
 	 * This method parses an XML input with a W3C DOM implementation and
-	 * validates it then with the available XML schema.
+	 * validates it in the same pass with the available XML schema. The time
+	 * is recorded as {@link Metrics.Phase#VALIDATE} phase of the request.
 	 *
 	 * @param input
 	 *            The input stream containing the XML query.
 	 * @return The parsed XML source as {@link Document}.
 	 */
 	public Document check(final InputStream input) {
-		Document document;
+		final long start = System.nanoTime();
 		try {
-			final DocumentBuilder docBuilder = DocumentBuilderFactory
-					.newInstance().newDocumentBuilder();
-			document = docBuilder.parse(input);
-
-			final InputStream is = getClass().getResourceAsStream(xslSchema);
-			final Source source = new SAXSource(new InputSource(is));
-			checkIsValid(document, source);
+			return builder().parse(input);
 		} catch (final SAXException exce) {
 			throw new JaxRxException(400, exce.getMessage());
 		} catch (final ParserConfigurationException exce) {
 			throw new JaxRxException(exce);
 		} catch (final IOException exce) {
 			throw new JaxRxException(exce);
+		} finally {
+			Metrics.phase(Metrics.Phase.VALIDATE, start);
 		}
-		return document;
 	}
 
 	/**
-	 * This method checks the parsed document if it is valid to a given XML
-	 * schema. If not, an exception is thrown
+	 * Returns a validating document builder for the current thread.
 	 *
-	 * @param document
-	 *            The parsed document.
-	 * @param source
-	 *            The {@link String} representation of the XML schema file.
-	 * @throws SAXException
-	 *             if the document is invalid
-	 * @throws IOException
-	 *             if the input cannot be read
+	 * @return document builder
+	 * @throws ParserConfigurationException
+	 *             parser configuration exception
 	 */
-	private void checkIsValid(final Document document, final Source source)
-			throws SAXException, IOException {
+	private DocumentBuilder builder() throws ParserConfigurationException {
+		final Map<String, DocumentBuilder> builders = BUILDERS.get();
+		DocumentBuilder builder = builders.get(xslSchema);
+		if (builder == null) {
+			final DocumentBuilderFactory dbf = DocumentBuilderFactory
+					.newInstance();
+			dbf.setSchema(schema());
+			builder = dbf.newDocumentBuilder();
+			builders.put(xslSchema, builder);
+		} else {
+			builder.reset();
+		}
+		builder.setErrorHandler(HANDLER);
+		return builder;
+	}
 
-		final SchemaFactory schemaFactory = SchemaFactory
-				.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-		final Schema schema = schemaFactory.newSchema(source);
-		final Validator validator = schema.newValidator();
-		validator.validate(new DOMSource(document));
+	/**
+	 * Returns the compiled schema, compiling it on first access.
+	 *
+	 * @return schema
+	 */
+	private Schema schema() {
+		Schema schema = SCHEMAS.get(xslSchema);
+		if (schema == null) {
+			final InputStream is = getClass().getResourceAsStream(xslSchema);
+			if (is == null) {
+				throw new JaxRxException(500, "Schema not found: " + xslSchema);
+			}
+			try {
+				schema = SchemaFactory.newInstance(
+						XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(
+						new StreamSource(is));
+			} catch (final SAXException exce) {
+				throw new JaxRxException(exce);
+			} finally {
+				try {
+					is.close();
+				} catch (final IOException exce) {
+					// ignore
+				}
+			}
+			final Schema old = SCHEMAS.putIfAbsent(xslSchema, schema);
+			if (old != null)
+				schema = old;
+		}
+		return schema;
 	}
 }
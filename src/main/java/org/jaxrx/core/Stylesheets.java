@@ -0,0 +1,319 @@
+package org.jaxrx.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.XMLConstants;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import org.jaxrx.JaxRx;
+import org.jaxrx.Versioned;
+import org.xml.sax.SAXException;
+
+/**
+ * This class compiles XSL stylesheets, which are specified via the
+ * {@link QueryParameter#XSL} parameter, and caches the compiled
+ * {@link Templates}, which are thread-safe and shared by all requests.
+ * <p>
+ * If a stylesheet directory is specified via the system property
+ * {@link #DIR}, and if it contains a file with the specified name, the file is
+ * used as stylesheet. Otherwise, the stylesheet is taken from the stored
+ * resource with the specified name. A cached stylesheet is compiled again as
+ * soon as the modification time of its file or the version of its resource
+ * changes. Stored stylesheets of implementations without resource versions
+ * are compiled for each request.
+ * <p>
+ * As stored stylesheets can be supplied by any client, stylesheets are
+ * compiled with secure processing, which disables extension functions. Access
+ * to external stylesheets, documents and DTDs is restricted to the protocols
+ * specified via the system property {@link #ACCESS} (default: none).
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public final class Stylesheets {
+	/**
+	 * System property for the stylesheet directory.
+	 */
+	public static final String DIR = "org.jaxrx.xsl.dir";
+
+	/**
+	 * System property for the comma-separated list of protocols that may be
+	 * used to access external resources, such as {@code file,http}.
+	 */
+	public static final String ACCESS = "org.jaxrx.xsl.access";
+
+	/**
+	 * JAXP 1.5 property for restricting access to external DTDs. The name is
+	 * specified literally, as the constant is missing in older JAXP versions.
+	 */
+	private static final String ACCESS_DTD = "http://javax.xml.XMLConstants/property/accessExternalDTD";
+
+	/**
+	 * JAXP 1.5 property for restricting access to external stylesheets.
+	 */
+	private static final String ACCESS_STYLESHEET = "http://javax.xml.XMLConstants/property/accessExternalStylesheet";
+
+	/**
+	 * Maximum number of cached stylesheets.
+	 */
+	private static final int MAX = 64;
+
+	/**
+	 * Compiled stylesheets, ordered by access.
+	 */
+	private static final Map<String, Stylesheet> CACHE = new LinkedHashMap<String, Stylesheet>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				final Map.Entry<String, Stylesheet> eldest) {
+			return size() > MAX;
+		}
+	};
+
+	/**
+	 * Private constructor.
+	 */
+	private Stylesheets() {
+	}
+
+	/**
+	 * Returns the compiled stylesheet with the specified name.
+	 *
+	 * @param system
+	 *            system name
+	 * @param impl
+	 *            implementation, which provides stored stylesheets
+	 * @param name
+	 *            name of the stylesheet
+	 * @return stylesheet
+	 * @throws JaxRxException
+	 *             thrown if the stylesheet does not exist (status code: 404)
+	 *             or is invalid (status code: 400)
+	 */
+	public static Stylesheet get(final String system, final JaxRx impl,
+			final String name) {
+		final File file = file(name);
+		final String key;
+		final long version;
+		if (file != null) {
+			key = file.getPath();
+			version = file.lastModified();
+		} else {
+			key = system + '/' + name;
+			version = impl instanceof Versioned ? ((Versioned) impl)
+					.getVersion(new ResourcePath(name)) : -1;
+			if (version == -1 && impl instanceof Versioned)
+				throw new JaxRxException(404, "Stylesheet '" + name
+						+ "' not found.");
+		}
+
+		if (version != -1) {
+			synchronized (CACHE) {
+				final Stylesheet sheet = CACHE.get(key);
+				if (sheet != null && sheet.version == version)
+					return sheet;
+			}
+		}
+
+		// stylesheets are compiled outside the lock; if a stored stylesheet
+		// is modified meanwhile, it will be compiled again by the next request
+		final StreamSource source;
+		if (file != null) {
+			source = new StreamSource(file);
+		} else {
+			final ByteArrayOutputStream bo = new ByteArrayOutputStream();
+			try {
+				impl.get(new ResourcePath(name)).write(bo);
+			} catch (final IOException ex) {
+				throw new JaxRxException(ex);
+			}
+			source = new StreamSource(new ByteArrayInputStream(bo.toByteArray()));
+		}
+		final Stylesheet sheet;
+		try {
+			final TransformerFactory tf = factory();
+			final SAXTransformerFactory stf = tf
+					.getFeature(SAXTransformerFactory.FEATURE) ? (SAXTransformerFactory) tf
+					: null;
+			sheet = new Stylesheet(tf.newTemplates(source), stf, version);
+		} catch (final TransformerConfigurationException ex) {
+			throw new JaxRxException(400, "Invalid stylesheet '" + name + "': "
+					+ ex.getMessageAndLocation());
+		}
+		if (version != -1) {
+			synchronized (CACHE) {
+				CACHE.put(key, sheet);
+			}
+		}
+		return sheet;
+	}
+
+	/**
+	 * Returns a transformer factory with restricted access.
+	 *
+	 * @return transformer factory
+	 * @throws TransformerConfigurationException
+	 *             thrown if secure processing is not supported
+	 */
+	private static TransformerFactory factory()
+			throws TransformerConfigurationException {
+		final TransformerFactory factory = TransformerFactory.newInstance();
+		factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		final String access = System.getProperty(ACCESS, "");
+		try {
+			factory.setAttribute(ACCESS_DTD, access);
+			factory.setAttribute(ACCESS_STYLESHEET, access);
+		} catch (final IllegalArgumentException ex) {
+			// JAXP versions before 1.5 only support secure processing
+		}
+		return factory;
+	}
+
+	/**
+	 * Returns the file of a stylesheet in the stylesheet directory.
+	 *
+	 * @param name
+	 *            name of the stylesheet
+	 * @return file, or {@code null} if no directory is specified or if it
+	 *         does not contain the stylesheet
+	 */
+	private static File file(final String name) {
+		final String dir = System.getProperty(DIR);
+		if (dir == null)
+			return null;
+		try {
+			final File root = new File(dir).getCanonicalFile();
+			final File file = new File(root, name).getCanonicalFile();
+			// names must not point outside the directory
+			return file.getPath().startsWith(root.getPath() + File.separator)
+					&& file.isFile() ? file : null;
+		} catch (final IOException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * A compiled stylesheet.
+	 */
+	public static final class Stylesheet {
+		/**
+		 * Compiled stylesheet.
+		 */
+		private final Templates templates;
+
+		/**
+		 * Factory for transformers that consume SAX events, or {@code null}.
+		 */
+		private final SAXTransformerFactory factory;
+
+		/**
+		 * Version of the stylesheet, or {@code -1}.
+		 */
+		private final long version;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param t
+		 *            compiled stylesheet
+		 * @param f
+		 *            factory for transformers that consume SAX events (may be
+		 *            {@code null})
+		 * @param v
+		 *            version of the stylesheet
+		 */
+		Stylesheet(final Templates t, final SAXTransformerFactory f,
+				final long v) {
+			templates = t;
+			factory = f;
+			version = v;
+		}
+
+		/**
+		 * Returns the version of the stylesheet, which is the version of the
+		 * stored resource or the modification time of the file.
+		 *
+		 * @return version, or {@code -1} if no version is available
+		 */
+		public long version() {
+			return version;
+		}
+
+		/**
+		 * Returns the media type of the transformation results, as specified
+		 * by the {@code xsl:output} declaration of the stylesheet.
+		 *
+		 * @return media type
+		 */
+		public String mediaType() {
+			final Properties props = templates.getOutputProperties();
+			// only consider media types that are explicitly specified
+			final Object type = props.get(OutputKeys.MEDIA_TYPE);
+			if (type != null)
+				return type.toString();
+			final String method = props.getProperty(OutputKeys.METHOD);
+			for (final String[] m : JaxRxConstants.METHODS) {
+				if (m[0].equals(method))
+					return m[1];
+			}
+			return JaxRxConstants.METHODS[0][1];
+		}
+
+		/**
+		 * Returns an output which transforms the specified output. The result
+		 * is written directly to the response. The input of the
+		 * transformation is passed on as SAX events if the output is a
+		 * {@link SAXOutput}; otherwise, it is buffered and parsed.
+		 *
+		 * @param output
+		 *            output to be transformed
+		 * @return transformed output
+		 */
+		public StreamingOutput transform(final StreamingOutput output) {
+			return new StreamingOutput() {
+				@Override
+				public void write(final OutputStream out) throws IOException {
+					try {
+						if (factory != null && output instanceof SAXOutput) {
+							final TransformerHandler th = factory
+									.newTransformerHandler(templates);
+							th.setResult(new StreamResult(out));
+							((SAXOutput) output).write(th);
+						} else {
+							final ByteArrayOutputStream bo = new ByteArrayOutputStream();
+							output.write(bo);
+							templates.newTransformer().transform(
+									new StreamSource(new ByteArrayInputStream(
+											bo.toByteArray())),
+									new StreamResult(out));
+						}
+					} catch (final TransformerException ex) {
+						throw new JaxRxException(400, ex.getMessageAndLocation());
+					} catch (final SAXException ex) {
+						// errors of the output stream are passed on
+						if (ex.getException() instanceof IOException)
+							throw (IOException) ex.getException();
+						throw new JaxRxException(400, ex.getMessage());
+					}
+				}
+			};
+		}
+	}
+}
@@ -2,10 +2,13 @@ package org.jaxrx.core;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.jaxrx.JaxRx;
 
 /**
- * This class organizes all implementations of the JAX-RX interface.
+ * This class organizes all implementations of the JAX-RX interface. The
+ * system name {@link JaxRxConstants#METRICS} is reserved for the request
+ * metrics and is rejected.
  *
  * @author Sebastian Graf, University of Konstanz
  *
@@ -66,7 +69,7 @@ public final class Systems {
 	 * The map holds the instances representing the classes of the
 	 * implementation.
 	 */
-	private static final Map<String, JaxRx> INSTANCES = new HashMap<String, JaxRx>();
+	private static final Map<String, JaxRx> INSTANCES = new ConcurrentHashMap<String, JaxRx>();
 
 	static {
 		final String systemVal = System.getProperty(Sys.SYSTEMNAME.key);
@@ -84,6 +87,11 @@ public final class Systems {
 			// TODO insert cool exception;
 			throw new IllegalStateException();
 		}
+		// the system would be shadowed by the request metrics
+		if (SYSTEMSIMPLS.containsKey(JaxRxConstants.METRICS)) {
+			throw new IllegalStateException("Reserved system name: "
+					+ JaxRxConstants.METRICS);
+		}
 	}
 
 	/**
@@ -121,4 +129,17 @@ public final class Systems {
 		}
 		return jaxrx;
 	}
+
+	/**
+	 * Returns the instance for the specified implementation if it has already
+	 * been created.
+	 *
+	 * @param impl
+	 *            implementation
+	 * @return instance, or {@code null}
+	 */
+	public static JaxRx getCreatedInstance(final String impl) {
+		final String path = Systems.getSystems().get(impl);
+		return path == null ? null : INSTANCES.get(path);
+	}
 }
@@ -0,0 +1,172 @@
+package org.jaxrx.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * This class writes slow requests to a trace log. Each request is written as
+ * a single line with a JSON object, which contains the time, the method, the
+ * URI, the system and the operation of the request, the status code, the
+ * number of written bytes, the total duration and the durations of all
+ * measured phases in milliseconds.
+ * <p>
+ * The log is enabled by specifying the path of the log file via the system
+ * property {@link #TRACE}. Requests are logged if they take at least as long
+ * as the number of milliseconds specified via {@link #THRESHOLD} (default:
+ * 1000). Errors while writing the log are ignored, as they should not affect
+ * the requests.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+final class TraceLog {
+	/**
+	 * System property for the path of the log file.
+	 */
+	static final String TRACE = "org.jaxrx.trace";
+
+	/**
+	 * System property for the threshold in milliseconds.
+	 */
+	static final String THRESHOLD = "org.jaxrx.trace.threshold";
+
+	/**
+	 * Log file, or {@code null}.
+	 */
+	private static final File FILE = System.getProperty(TRACE) == null ? null
+			: new File(System.getProperty(TRACE));
+
+	/**
+	 * Threshold in nanoseconds.
+	 */
+	private static final long MIN = Math.max(0, Long.getLong(THRESHOLD, 1000))
+			* 1000000;
+
+	/**
+	 * Format of the request times; guarded by the class.
+	 */
+	private static final SimpleDateFormat DATE = new SimpleDateFormat(
+			"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+	/**
+	 * Output stream; guarded by the class.
+	 */
+	private static OutputStream out;
+
+	static {
+		DATE.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	/**
+	 * Private constructor.
+	 */
+	private TraceLog() {
+	}
+
+	/**
+	 * Indicates if the log is enabled.
+	 *
+	 * @return result of check
+	 */
+	static boolean enabled() {
+		return FILE != null;
+	}
+
+	/**
+	 * Returns the threshold.
+	 *
+	 * @return threshold in nanoseconds
+	 */
+	static long threshold() {
+		return MIN;
+	}
+
+	/**
+	 * Writes a request to the log.
+	 *
+	 * @param sample
+	 *            request
+	 * @param status
+	 *            status code
+	 * @param bytes
+	 *            number of written bytes
+	 * @param time
+	 *            total duration in nanoseconds
+	 */
+	static void write(final Metrics.Sample sample, final int status,
+			final long bytes, final long time) {
+		final StringBuilder sb = new StringBuilder("{");
+		synchronized (TraceLog.class) {
+			// the start time is derived from the current time and the duration
+			string(sb, "time", DATE.format(new Date(System.currentTimeMillis()
+					- time / 1000000)));
+		}
+		string(sb.append(','), "method", sample.method);
+		string(sb.append(','), "uri", sample.uri);
+		string(sb.append(','), "system", sample.system);
+		string(sb.append(','), "operation", sample.operation);
+		sb.append(",\"status\":").append(status);
+		sb.append(",\"bytes\":").append(bytes);
+		sb.append(",\"duration\":").append(Metrics.millis(time));
+		sb.append(",\"phases\":{");
+		boolean first = true;
+		for (final Metrics.Phase p : Metrics.Phase.values()) {
+			final long t = sample.phases[p.ordinal()];
+			if (t == -1)
+				continue;
+			if (!first)
+				sb.append(',');
+			sb.append('"').append(p.name().toLowerCase()).append("\":").append(
+					Metrics.millis(t));
+			first = false;
+		}
+		sb.append("}}\n");
+
+		try {
+			final byte[] line = sb.toString().getBytes("UTF-8");
+			synchronized (TraceLog.class) {
+				if (out == null) {
+					if (FILE.getParentFile() != null)
+						FILE.getParentFile().mkdirs();
+					out = new FileOutputStream(FILE, true);
+				}
+				out.write(line);
+				out.flush();
+			}
+		} catch (final IOException ex) {
+			// ignore
+		}
+	}
+
+	/**
+	 * Appends a JSON string property.
+	 *
+	 * @param sb
+	 *            string builder
+	 * @param name
+	 *            property name
+	 * @param value
+	 *            value
+	 */
+	private static void string(final StringBuilder sb, final String name,
+			final String value) {
+		sb.append('"').append(name).append("\":\"");
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < ' ') {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+}
@@ -0,0 +1,136 @@
+package org.jaxrx.dom;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class indexes the values of the attributes of a
+ * {@link CompactDocument} with a specific name. For each value, the pre values
+ * of the elements that own an attribute with this value are stored in
+ * ascending order, so that equality predicates such as {@code [@id='x']} are
+ * resolved with a hash lookup and a binary search.
+ * <p>
+ * The names of the indexed attributes can be specified via the system
+ * property {@link #NAMES} as comma-separated list (default: {@code id}). The
+ * indexes of a document are created before it is stored (see
+ * {@link DOMs#putDOM(org.w3c.dom.Document, CompactDocument, String)}), so
+ * that point lookups never need to scan the document. As compact documents
+ * are immutable, indexes never need to be updated; each new revision is
+ * indexed completely when it is stored, as the pre values of the indexed
+ * elements change with every insert or deletion.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+final class AttributeIndex {
+	/**
+	 * System property for the names of the indexed attributes.
+	 */
+	static final String NAMES = "org.jaxrx.dom.attributeIndex";
+
+	/**
+	 * Names of the indexed attributes.
+	 */
+	private static final Set<String> INDEXED = names(System.getProperty(
+			NAMES, "id"));
+
+	/**
+	 * Empty posting list.
+	 */
+	private static final int[] EMPTY = {};
+
+	/**
+	 * Pre values of the owner elements, indexed by attribute values.
+	 */
+	private final Map<String, int[]> owners = new HashMap<String, int[]>();
+
+	/**
+	 * Constructor, which indexes the attributes with the specified name.
+	 *
+	 * @param doc
+	 *            document
+	 * @param id
+	 *            name reference of the attributes
+	 */
+	AttributeIndex(final CompactDocument doc, final int id) {
+		final int n = doc.count();
+		// count owners per value, then fill the posting lists in document
+		// order
+		final Map<String, int[]> counts = new HashMap<String, int[]>();
+		for (int p = 0; p < n; p++) {
+			if (doc.nameId(p) == id && doc.kind(p) == CompactDocument.ATTR) {
+				final String value = doc.value(p);
+				final int[] c = counts.get(value);
+				if (c == null)
+					counts.put(value, new int[] { 1 });
+				else
+					c[0]++;
+			}
+		}
+		for (final Map.Entry<String, int[]> e : counts.entrySet()) {
+			owners.put(e.getKey(), new int[e.getValue()[0]]);
+			e.getValue()[0] = 0;
+		}
+		for (int p = 0; p < n; p++) {
+			if (doc.nameId(p) == id && doc.kind(p) == CompactDocument.ATTR) {
+				final String value = doc.value(p);
+				owners.get(value)[counts.get(value)[0]++] = doc.parent(p);
+			}
+		}
+	}
+
+	/**
+	 * Indicates if attributes with the specified name are indexed.
+	 *
+	 * @param name
+	 *            attribute name
+	 * @return result of check
+	 */
+	static boolean indexed(final String name) {
+		return INDEXED.contains(name);
+	}
+
+	/**
+	 * Creates the indexes of all indexed attributes of the specified document.
+	 *
+	 * @param doc
+	 *            document
+	 */
+	static void prepare(final CompactDocument doc) {
+		for (final String name : INDEXED)
+			doc.attributes(name);
+	}
+
+	/**
+	 * Returns the elements that own an attribute with the specified value.
+	 *
+	 * @param value
+	 *            attribute value
+	 * @return pre values in ascending order; must not be modified
+	 */
+	int[] owners(final String value) {
+		final int[] pres = owners.get(value);
+		return pres == null ? EMPTY : pres;
+	}
+
+	/**
+	 * Parses a comma-separated list of attribute names.
+	 *
+	 * @param list
+	 *            list
+	 * @return names
+	 */
+	private static Set<String> names(final String list) {
+		final Set<String> names = new HashSet<String>();
+		for (final String name : Arrays.asList(list.split(","))) {
+			if (name.trim().length() != 0)
+				names.add(name.trim());
+		}
+		return Collections.unmodifiableSet(names);
+	}
+}
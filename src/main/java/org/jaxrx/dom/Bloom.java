@@ -0,0 +1,294 @@
+package org.jaxrx.dom;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * This class contains a Bloom filter over the element names, the attribute
+ * names and the values of the indexed attributes (see {@link AttributeIndex})
+ * of a document. It is used to skip documents in queries on all documents
+ * (see {@link CollectionQuery}) that cannot contain a result, as they lack a
+ * name or value that is required by the query. A filter may report keys
+ * that do not occur in the document, but never misses a key that does.
+ * <p>
+ * The filter of a revision is created before the revision is published, and
+ * it is never changed afterwards. Revisions that are restored from the
+ * persistent storage are filtered by streaming over their serialization
+ * (see {@link #of(InputStream)}), so that they need not be parsed into
+ * documents. About ten bits are reserved per distinct
+ * key, up to a maximum of 64 kilobits per document.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+final class Bloom {
+	/**
+	 * Maximum number of bits per filter.
+	 */
+	private static final int MAXBITS = 1 << 16;
+
+	/**
+	 * Number of hash functions.
+	 */
+	private static final int HASHES = 5;
+
+	/**
+	 * Number of documents that have been checked.
+	 */
+	private static final AtomicLong CHECKED = new AtomicLong();
+
+	/**
+	 * Number of documents that have been skipped.
+	 */
+	private static final AtomicLong PRUNED = new AtomicLong();
+
+	/**
+	 * Bits of the filter.
+	 */
+	private final long[] bits;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param keys
+	 *            keys of the document
+	 */
+	private Bloom(final Set<String> keys) {
+		final int size = Math.min(MAXBITS, Math.max(64, keys.size() * 10));
+		bits = new long[size + 63 >>> 6];
+		for (final String key : keys) {
+			final int h1 = key.hashCode();
+			final int h2 = hash(h1);
+			for (int i = 0; i < HASHES; i++) {
+				final int b = bit(h1, h2, i);
+				bits[b >>> 6] |= 1L << b;
+			}
+		}
+	}
+
+	/**
+	 * Creates the filter of a compact document.
+	 *
+	 * @param doc
+	 *            document
+	 * @return filter
+	 */
+	static Bloom of(final CompactDocument doc) {
+		final Set<String> keys = new HashSet<String>();
+		final int n = doc.count();
+		for (int p = 0; p < n; p++) {
+			final byte k = doc.kind(p);
+			if (k == CompactDocument.ELEM) {
+				keys.add(element(doc.name(p)));
+			} else if (k == CompactDocument.ATTR) {
+				final String name = doc.name(p);
+				keys.add(attribute(name));
+				if (AttributeIndex.indexed(name))
+					keys.add(value(name, doc.value(p)));
+			}
+		}
+		return new Bloom(keys);
+	}
+
+	/**
+	 * Creates the filter of a DOM document.
+	 *
+	 * @param doc
+	 *            document
+	 * @return filter
+	 */
+	static Bloom of(final Document doc) {
+		final Set<String> keys = new HashSet<String>();
+		add(doc, keys);
+		return new Bloom(keys);
+	}
+
+	/**
+	 * Creates the filter of a serialized document. The document is only
+	 * streamed, and no node is created.
+	 *
+	 * @param input
+	 *            serialized document
+	 * @return filter
+	 * @throws SAXException
+	 *             if the input is no well-formed XML
+	 * @throws IOException
+	 *             I/O exception
+	 * @throws ParserConfigurationException
+	 *             parser configuration exception
+	 */
+	static Bloom of(final InputStream input) throws SAXException,
+			IOException, ParserConfigurationException {
+		final Set<String> keys = new HashSet<String>();
+		SAXParserFactory.newInstance().newSAXParser().parse(input,
+				new DefaultHandler() {
+					@Override
+					public void startElement(final String uri,
+							final String local, final String name,
+							final Attributes atts) {
+						keys.add(element(name));
+						for (int a = 0; a < atts.getLength(); a++) {
+							final String an = atts.getQName(a);
+							keys.add(attribute(an));
+							if (AttributeIndex.indexed(an))
+								keys.add(value(an, atts.getValue(a)));
+						}
+					}
+				});
+		return new Bloom(keys);
+	}
+
+	/**
+	 * Adds the keys of a DOM node and its descendants.
+	 *
+	 * @param node
+	 *            node
+	 * @param keys
+	 *            keys
+	 */
+	private static void add(final Node node, final Set<String> keys) {
+		if (node.getNodeType() == Node.ELEMENT_NODE) {
+			keys.add(element(node.getNodeName()));
+			final NamedNodeMap atts = node.getAttributes();
+			for (int a = 0; a < atts.getLength(); a++) {
+				final Attr att = (Attr) atts.item(a);
+				keys.add(attribute(att.getName()));
+				if (AttributeIndex.indexed(att.getName()))
+					keys.add(value(att.getName(), att.getValue()));
+			}
+		}
+		for (Node n = node.getFirstChild(); n != null; n = n.getNextSibling())
+			add(n, keys);
+	}
+
+	/**
+	 * Checks if the document may contain all specified keys, and counts the
+	 * result.
+	 *
+	 * @param keys
+	 *            keys
+	 * @return {@code false} if at least one key is definitely missing
+	 */
+	boolean check(final List<String> keys) {
+		CHECKED.incrementAndGet();
+		for (final String key : keys) {
+			if (!contains(key)) {
+				PRUNED.incrementAndGet();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if the document may contain the specified key.
+	 *
+	 * @param key
+	 *            key
+	 * @return result of check
+	 */
+	boolean contains(final String key) {
+		final int h1 = key.hashCode();
+		final int h2 = hash(h1);
+		for (int i = 0; i < HASHES; i++) {
+			final int b = bit(h1, h2, i);
+			if ((bits[b >>> 6] & 1L << b) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of documents that have been checked.
+	 *
+	 * @return number of documents
+	 */
+	static long checked() {
+		return CHECKED.get();
+	}
+
+	/**
+	 * Returns the number of documents that have been skipped.
+	 *
+	 * @return number of documents
+	 */
+	static long pruned() {
+		return PRUNED.get();
+	}
+
+	/**
+	 * Returns the key for an element name.
+	 *
+	 * @param name
+	 *            element name
+	 * @return key
+	 */
+	static String element(final String name) {
+		return '<' + name;
+	}
+
+	/**
+	 * Returns the key for an attribute name.
+	 *
+	 * @param name
+	 *            attribute name
+	 * @return key
+	 */
+	static String attribute(final String name) {
+		return '@' + name;
+	}
+
+	/**
+	 * Returns the key for the value of an indexed attribute.
+	 *
+	 * @param name
+	 *            attribute name
+	 * @param value
+	 *            attribute value
+	 * @return key
+	 */
+	static String value(final String name, final String value) {
+		return '@' + name + '=' + value;
+	}
+
+	/**
+	 * Returns the second hash value for a key.
+	 *
+	 * @param h
+	 *            hash code of the key
+	 * @return hash value
+	 */
+	private static int hash(final int h) {
+		final int x = h * 0x9E3779B9;
+		return x ^ x >>> 16 | 1;
+	}
+
+	/**
+	 * Returns the position of the bit for a hash function.
+	 *
+	 * @param h1
+	 *            first hash value
+	 * @param h2
+	 *            second hash value
+	 * @param i
+	 *            number of the hash function
+	 * @return bit position
+	 */
+	private int bit(final int h1, final int h2, final int i) {
+		return ((h1 + i * h2) & 0x7FFFFFFF) % (bits.length << 6);
+	}
+}
@@ -0,0 +1,326 @@
+package org.jaxrx.dom;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.jaxrx.core.Archive;
+import org.jaxrx.core.JaxRxConstants;
+import org.jaxrx.core.JaxRxException;
+import org.jaxrx.core.Locks;
+import org.jaxrx.core.ResponseBuilder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * This class stores the documents of a bulk request. The archive is read by
+ * the requesting thread, and the documents are parsed in parallel by a shared
+ * pool of worker threads. The number of documents that are read but not yet
+ * parsed is bounded, so that the archive is only read as fast as it can be
+ * parsed.
+ * <p>
+ * Documents are parsed by the {@link StreamParser}, which applies the
+ * configured size and depth limits to each document.
+ * <p>
+ * In the default mode, each worker stores its document as soon as it has
+ * been parsed, and documents that cannot be parsed are reported in the
+ * summary. In the atomic mode, the documents are only stored if all of them
+ * could be parsed. They are then published together while the write locks
+ * of all documents are held (see {@link DOMs#putDOMs}): readers see either
+ * all or none of the new documents, and if a document cannot be stored, no
+ * document is changed. In both modes, the requesting thread waits once for
+ * the write-ahead log before the summary is returned, so that all documents
+ * are committed together.
+ * <p>
+ * The number of worker threads can be specified via the system property
+ * {@link #THREADS} (default: number of processors).
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+final class BulkLoad {
+	/**
+	 * System property for the number of worker threads.
+	 */
+	static final String THREADS = "org.jaxrx.dom.bulk.threads";
+
+	/**
+	 * Number of worker threads.
+	 */
+	private static final int SIZE = Math.max(1, Integer.getInteger(THREADS,
+			Runtime.getRuntime().availableProcessors()));
+
+	/**
+	 * Worker threads, shared by all requests.
+	 */
+	private static final ExecutorService WORKERS = Executors.newFixedThreadPool(
+			SIZE, new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "JAX-RX bulk load");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/**
+	 * Maximum number of documents of a request that are read but not parsed.
+	 */
+	private static final int PENDING = SIZE * 4;
+
+	/**
+	 * Document locks.
+	 */
+	private final Locks locks;
+
+	/**
+	 * All-or-nothing flag.
+	 */
+	private final boolean atomic;
+
+	/**
+	 * Slots for pending documents.
+	 */
+	private final Semaphore slots = new Semaphore(PENDING);
+
+	/**
+	 * Indexes of the most recent entries that have been stored per document.
+	 * Used to keep the last entry of a document if an archive contains the
+	 * same name several times.
+	 */
+	private final Map<String, Integer> latest = new HashMap<String, Integer>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param l
+	 *            document locks
+	 * @param a
+	 *            all-or-nothing flag
+	 */
+	BulkLoad(final Locks l, final boolean a) {
+		locks = l;
+		atomic = a;
+	}
+
+	/**
+	 * Stores the documents of the specified archive.
+	 *
+	 * @param archive
+	 *            archive
+	 * @return summary
+	 */
+	StreamingOutput run(final Archive archive) {
+		final long start = System.nanoTime();
+		final List<Task> tasks = new ArrayList<Task>();
+		try {
+			try {
+				for (Archive.Entry e; (e = archive.next()) != null;) {
+					slots.acquireUninterruptibly();
+					final Task task = new Task(tasks.size(), e);
+					tasks.add(task);
+					WORKERS.execute(task);
+				}
+			} finally {
+				// wait for all workers of this request
+				slots.acquireUninterruptibly(PENDING);
+			}
+		} catch (final IOException ex) {
+			throw new JaxRxException(ex);
+		}
+
+		if (atomic) {
+			for (final Task t : tasks) {
+				if (t.error != null)
+					throw new JaxRxException(400, "Nothing stored; " + t.name
+							+ ": " + t.error);
+			}
+			publish(tasks);
+		}
+		DOMs.syncAll();
+		return summary(tasks, (System.nanoTime() - start) / 1000000);
+	}
+
+	/**
+	 * Publishes all parsed documents together while holding the locks of all
+	 * documents. If an archive contains the same name several times, the last
+	 * entry is stored.
+	 *
+	 * @param tasks
+	 *            tasks
+	 */
+	private void publish(final List<Task> tasks) {
+		final Map<String, Task> last = new LinkedHashMap<String, Task>();
+		for (final Task t : tasks)
+			last.put(t.name, t);
+		final List<String> names = new ArrayList<String>(last.keySet());
+		final List<Document> doms = new ArrayList<Document>();
+		final List<CompactDocument> cmps = new ArrayList<CompactDocument>();
+		for (final Task t : last.values()) {
+			doms.add(t.dom);
+			cmps.add(t.compact);
+		}
+		final List<Lock> held = new ArrayList<Lock>();
+		try {
+			for (final ReadWriteLock rwl : locks.get(names)) {
+				final Lock lock = rwl.writeLock();
+				lock.lock();
+				held.add(lock);
+			}
+			DOMs.putDOMs(names, doms, cmps);
+		} finally {
+			for (final Lock lock : held)
+				lock.unlock();
+			for (final Task t : tasks) {
+				t.dom = null;
+				t.compact = null;
+			}
+		}
+	}
+
+	/**
+	 * Stores the document of a single task, unless a later entry with the same
+	 * name has already been stored.
+	 *
+	 * @param task
+	 *            task
+	 */
+	private void store(final Task task) {
+		final Lock lock = locks.get(task.name).writeLock();
+		lock.lock();
+		try {
+			synchronized (latest) {
+				final Integer index = latest.get(task.name);
+				if (index != null && index > task.index)
+					return;
+				latest.put(task.name, task.index);
+			}
+			DOMs.putDOM(task.dom, task.compact, task.name);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Creates the summary of a request.
+	 *
+	 * @param tasks
+	 *            tasks
+	 * @param ms
+	 *            elapsed time in milliseconds
+	 * @return summary
+	 */
+	private StreamingOutput summary(final List<Task> tasks, final long ms) {
+		try {
+			final Document doc = DocumentBuilderFactory.newInstance()
+					.newDocumentBuilder().newDocument();
+			final Element root = doc.createElementNS(JaxRxConstants.URL,
+					JaxRxConstants.JAXRX + ":bulk");
+			int failed = 0;
+			for (final Task t : tasks) {
+				if (t.error == null)
+					continue;
+				final Element failure = doc.createElementNS(JaxRxConstants.URL,
+						JaxRxConstants.JAXRX + ":failure");
+				failure.setAttribute("name", t.name);
+				failure.setTextContent(t.error);
+				root.appendChild(failure);
+				failed++;
+			}
+			root.setAttribute("documents", String.valueOf(tasks.size()));
+			root.setAttribute("stored", String.valueOf(tasks.size() - failed));
+			root.setAttribute("failed", String.valueOf(failed));
+			root.setAttribute("atomic", String.valueOf(atomic));
+			root.setAttribute("time", ms + " ms");
+			doc.appendChild(root);
+			return ResponseBuilder.createStream(doc);
+		} catch (final ParserConfigurationException ex) {
+			throw new JaxRxException(ex);
+		}
+	}
+
+	/**
+	 * Parses and, in the default mode, stores a single document.
+	 */
+	private final class Task implements Runnable {
+		/**
+		 * Index of the entry in the archive.
+		 */
+		final int index;
+
+		/**
+		 * Name of the document.
+		 */
+		final String name;
+
+		/**
+		 * Contents of the document; released after parsing.
+		 */
+		private byte[] data;
+
+		/**
+		 * Parsed document, or {@code null}.
+		 */
+		Document dom;
+
+		/**
+		 * Parsed compact document, or {@code null}.
+		 */
+		CompactDocument compact;
+
+		/**
+		 * Error message, or {@code null}.
+		 */
+		String error;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param i
+		 *            index of the entry
+		 * @param entry
+		 *            archive entry
+		 */
+		Task(final int i, final Archive.Entry entry) {
+			index = i;
+			name = entry.name;
+			data = entry.data;
+		}
+
+		@Override
+		public void run() {
+			try {
+				final StreamParser parser = new StreamParser()
+						.parse(new ByteArrayInputStream(data));
+				data = null;
+				dom = parser.dom();
+				compact = parser.compact();
+				if (!atomic) {
+					store(this);
+					dom = null;
+					compact = null;
+				}
+			} catch (final JaxRxException ex) {
+				error = String.valueOf(ex.getResponse().getEntity());
+			} catch (final Exception ex) {
+				error = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+			} finally {
+				data = null;
+				slots.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package org.jaxrx.dom;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import javax.xml.xpath.XPathExpressionException;
+import org.jaxrx.core.JaxRxException;
+
+/**
+ * This class evaluates a query or a full-text search on all stored
+ * documents. The latest revisions of all documents are pinned when the
+ * evaluation starts (see {@link DOMs#pin()}). The documents are
+ * processed in the order of their names and split into chunks, which are
+ * evaluated in parallel by a shared pool of worker threads. The requesting
+ * thread collects the results of the chunks in their original order, so
+ * that the results are always returned in the same order.
+ * <p>
+ * Only a limited number of chunks of a request is submitted in advance. As
+ * soon as enough results have been collected, no further chunks are
+ * submitted, and the evaluation of pending chunks is stopped.
+ * <p>
+ * If the query is a path that can be analyzed by {@link CompactPath},
+ * documents whose {@link Bloom} filter lacks a name or value required by
+ * the path are skipped without accessing their contents.
+ * <p>
+ * The number of worker threads can be specified via the system property
+ * {@link #THREADS} (default: number of processors).
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+final class CollectionQuery {
+	/**
+	 * System property for the number of worker threads.
+	 */
+	static final String THREADS = "org.jaxrx.dom.query.threads";
+
+	/**
+	 * Number of worker threads.
+	 */
+	private static final int SIZE = Math.max(1, Integer.getInteger(THREADS,
+			Runtime.getRuntime().availableProcessors()));
+
+	/**
+	 * Worker threads, shared by all requests.
+	 */
+	private static final ExecutorService WORKERS = Executors.newFixedThreadPool(
+			SIZE, new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "JAX-RX query");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/**
+	 * Maximum number of documents of a chunk.
+	 */
+	private static final int CHUNK = 256;
+
+	/**
+	 * Maximum number of chunks of a request that are submitted but not yet
+	 * collected.
+	 */
+	private static final int AHEAD = SIZE * 2;
+
+	/**
+	 * Query, or search string.
+	 */
+	private final String query;
+
+	/**
+	 * Indicates if the query is a full-text search string.
+	 */
+	private final boolean search;
+
+	/**
+	 * Keys that a document must contain to yield results, or {@code null}.
+	 */
+	private final List<String> keys;
+
+	/**
+	 * Number of results after which the evaluation is stopped.
+	 */
+	private final long limit;
+
+	/**
+	 * Indicates if the evaluation has been stopped.
+	 */
+	private volatile boolean stopped;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param q
+	 *            query, or search string
+	 * @param s
+	 *            indicates if the query is a full-text search string
+	 * @param l
+	 *            number of results after which the evaluation can be stopped
+	 */
+	CollectionQuery(final String q, final boolean s, final long l) {
+		query = q;
+		search = s;
+		limit = l;
+		final CompactPath cp = s ? null : CompactPath.parse(q);
+		keys = cp == null ? null : cp.keys();
+	}
+
+	/**
+	 * Evaluates the query on all documents.
+	 *
+	 * @return results of all documents with at least one result, in the order
+	 *         of the document names
+	 * @throws XPathExpressionException
+	 *             if the query is invalid or does not yield nodes
+	 */
+	List<Hits> evaluate() throws XPathExpressionException {
+		// the revisions are pinned before the evaluation is started
+		final List<Revision> revs = DOMs.pin();
+		// small collections are distributed to all workers as well
+		final int chunk = Math.max(1, Math.min(CHUNK, revs.size()
+				/ (SIZE * 4)));
+
+		final List<Hits> hits = new ArrayList<Hits>();
+		final LinkedList<Future<List<Hits>>> pending = new LinkedList<Future<List<Hits>>>();
+		long found = 0;
+		int next = 0;
+		try {
+			while (found < limit) {
+				while (next < revs.size() && pending.size() < AHEAD) {
+					final int end = Math.min(next + chunk, revs.size());
+					pending.add(WORKERS.submit(new Task(revs.subList(next, end))));
+					next = end;
+				}
+				if (pending.isEmpty())
+					break;
+				for (final Hits h : pending.removeFirst().get()) {
+					hits.add(h);
+					found += h.size();
+				}
+			}
+		} catch (final InterruptedException ex) {
+			throw new JaxRxException(ex);
+		} catch (final ExecutionException ex) {
+			final Throwable cause = ex.getCause();
+			if (cause instanceof XPathExpressionException)
+				throw (XPathExpressionException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw (Error) cause;
+		} finally {
+			stopped = true;
+			for (final Future<List<Hits>> f : pending)
+				f.cancel(false);
+		}
+		return hits;
+	}
+
+	/**
+	 * Evaluates the query on a chunk of documents.
+	 */
+	private final class Task implements Callable<List<Hits>> {
+		/**
+		 * Revisions of the documents.
+		 */
+		private final List<Revision> revs;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param r
+		 *            revisions of the documents
+		 */
+		Task(final List<Revision> r) {
+			revs = r;
+		}
+
+		@Override
+		public List<Hits> call() throws XPathExpressionException {
+			final List<Hits> hits = new ArrayList<Hits>();
+			for (final Revision rev : revs) {
+				if (stopped)
+					break;
+				// skip documents that lack a required name or value
+				if (keys != null && !keys.isEmpty()
+						&& !rev.bloom().check(keys))
+					continue;
+				final Hits h = search ? Hits.search(rev, query) : Hits
+						.evaluate(rev, query, false);
+				if (h.size() != 0)
+					hits.add(h);
+			}
+			return hits;
+		}
+	}
+}
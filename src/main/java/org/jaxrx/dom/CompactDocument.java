@@ -0,0 +1,1144 @@
+package org.jaxrx.dom;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.jaxrx.core.DOMSerializer;
+import org.jaxrx.core.JaxRxException;
+import org.jaxrx.core.SAXWriter;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * This class represents a document as an immutable table of nodes. Nodes are
+ * stored in document order and identified by their position in the table
+ * (their pre value). Attributes directly follow their element, followed by
+ * the descendants of the element. The properties of all nodes are stored in
+ * primitive arrays: the node kind, the pre value of the parent, the size of
+ * the subtree (which also yields the next sibling), a reference into the pool
+ * of element and attribute names, and the offset and length of the string
+ * value in a single character array.
+ *
+ * <p>
+ * Instances are immutable and can be read by any number of threads.
+ * </p>
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+final class CompactDocument {
+	/** Node kind: document. */
+	static final byte DOC = 0;
+	/** Node kind: element. */
+	static final byte ELEM = 1;
+	/** Node kind: attribute. */
+	static final byte ATTR = 2;
+	/** Node kind: text. */
+	static final byte TEXT = 3;
+	/** Node kind: CDATA section. */
+	static final byte CDATA = 4;
+	/** Node kind: comment. */
+	static final byte COMMENT = 5;
+	/** Node kind: processing instruction. */
+	static final byte PI = 6;
+
+	/** Minimum number of unreferenced characters before they are packed. */
+	private static final int MINPACK = 1 << 12;
+
+	/** Node kinds. */
+	private final byte[] kinds;
+	/** Parent references. */
+	private final int[] parents;
+	/** Subtree sizes, including attributes. */
+	private final int[] sizes;
+	/** Name references; {@code -1} for nodes without name. */
+	private final int[] names;
+	/** Offsets of the string values. */
+	private final int[] offsets;
+	/** Lengths of the string values. */
+	private final int[] lengths;
+	/** Characters of all string values. */
+	private final char[] chars;
+	/** Number of characters that are referenced by nodes. */
+	private final int live;
+	/** Name pool. */
+	private final String[] pool;
+	/** Name references, indexed by names. */
+	private final Map<String, Integer> ids;
+	/** Flag for CDATA sections. */
+	private final boolean cdata;
+	/** Flag for prefixed names and namespace declarations. */
+	private final boolean namespaces;
+	/** Element index, or {@code null} if it has not been created yet. */
+	private volatile PathIndex paths;
+	/** Full-text index, or {@code null} if it has not been created yet. */
+	private volatile FullTextIndex fullText;
+	/** Attribute value indexes, indexed by name references. */
+	private final ConcurrentMap<Integer, AttributeIndex> attributes = new ConcurrentHashMap<Integer, AttributeIndex>();
+
+	/**
+	 * Constructor, called by the {@link Builder}.
+	 *
+	 * @param b
+	 *            builder
+	 */
+	private CompactDocument(final Builder b) {
+		final int n = b.count;
+		kinds = Arrays.copyOf(b.kinds, n);
+		parents = Arrays.copyOf(b.parents, n);
+		sizes = Arrays.copyOf(b.sizes, n);
+		names = Arrays.copyOf(b.names, n);
+		offsets = Arrays.copyOf(b.offsets, n);
+		lengths = Arrays.copyOf(b.lengths, n);
+		chars = Arrays.copyOf(b.chars, b.clength);
+		live = b.clength;
+		pool = b.pool.toArray(new String[b.pool.size()]);
+		ids = b.ids;
+		cdata = b.cdata;
+		namespaces = b.namespaces;
+	}
+
+	/**
+	 * Constructor for modified copies of a document. Arrays that are not
+	 * affected by a modification are shared with the original document. If
+	 * more than half of the characters are no longer referenced, the
+	 * characters are packed, and the specified offsets are updated.
+	 *
+	 * @param k
+	 *            node kinds
+	 * @param par
+	 *            parent references
+	 * @param sz
+	 *            subtree sizes
+	 * @param nm
+	 *            name references
+	 * @param off
+	 *            value offsets
+	 * @param len
+	 *            value lengths
+	 * @param ch
+	 *            value characters
+	 * @param lv
+	 *            number of referenced characters
+	 * @param nms
+	 *            name pool
+	 * @param cd
+	 *            flag for CDATA sections
+	 */
+	private CompactDocument(final byte[] k, final int[] par, final int[] sz,
+			final int[] nm, final int[] off, final int[] len, final char[] ch,
+			final int lv, final Names nms, final boolean cd) {
+		kinds = k;
+		parents = par;
+		sizes = sz;
+		names = nm;
+		offsets = off;
+		lengths = len;
+		chars = ch.length - lv > Math.max(lv, MINPACK) ? pack(ch, off, len, lv)
+				: ch;
+		live = lv;
+		pool = nms.pool();
+		ids = nms.ids;
+		cdata = cd;
+		namespaces = nms.namespaces;
+	}
+
+	/**
+	 * Returns a new document in which the contents of the specified fragment
+	 * are appended as last children of an element. This document is not
+	 * changed.
+	 *
+	 * @param pre
+	 *            pre value of the element
+	 * @param frag
+	 *            fragment
+	 * @return new document
+	 */
+	CompactDocument insert(final int pre, final CompactDocument frag) {
+		return splice(pre + sizes[pre], 0, pre, frag);
+	}
+
+	/**
+	 * Returns a new document in which a range of nodes is replaced with the
+	 * contents of a fragment. The node arrays are copied, the parents behind
+	 * the range are shifted, the sizes of the ancestors are adjusted, and the
+	 * characters of the fragment are appended to the character array; no
+	 * other nodes are rebuilt. The characters of the removed nodes are
+	 * reclaimed when the characters are packed. This document is not changed.
+	 *
+	 * @param pos
+	 *            pre value of the first removed or inserted node
+	 * @param remove
+	 *            number of removed nodes, which must form complete subtrees
+	 * @param parent
+	 *            parent of the removed and inserted nodes
+	 * @param frag
+	 *            fragment, all children of whose document node are inserted
+	 *            (may be {@code null})
+	 * @return new document
+	 */
+	CompactDocument splice(final int pos, final int remove, final int parent,
+			final CompactDocument frag) {
+		final int on = kinds.length;
+		final int n = frag == null ? 0 : frag.kinds.length - 1;
+		final int d = n - remove;
+		final int nn = on + d;
+		final byte[] k = new byte[nn];
+		final int[] par = new int[nn];
+		final int[] sz = new int[nn];
+		final int[] nm = new int[nn];
+		final int[] off = new int[nn];
+		final int[] len = new int[nn];
+
+		// nodes before and after the modified range
+		copy(this, 0, k, par, sz, nm, off, len, 0, pos);
+		copy(this, pos + remove, k, par, sz, nm, off, len, pos + n, on - pos
+				- remove);
+		for (int p = pos + n; p < nn; p++) {
+			if (par[p] >= pos)
+				par[p] += d;
+		}
+		for (int p = parent; p != -1; p = par[p])
+			sz[p] += d;
+		int lv = live;
+		for (int p = pos; p < pos + remove; p++)
+			lv -= lengths[p];
+		if (frag == null)
+			return new CompactDocument(k, par, sz, nm, off, len, chars, lv,
+					new Names(this), cdata);
+
+		// nodes of the fragment, with values behind the existing characters
+		final Names nms = new Names(this);
+		final int[] refs = new int[frag.pool.length];
+		for (int i = 0; i < refs.length; i++)
+			refs[i] = nms.id(frag.pool[i]);
+		final int cl = chars.length;
+		copy(frag, 1, k, par, sz, nm, off, len, pos, n);
+		for (int p = pos; p < pos + n; p++) {
+			final int fp = frag.parents[p - pos + 1];
+			par[p] = fp == 0 ? parent : fp - 1 + pos;
+			if (nm[p] != -1)
+				nm[p] = refs[nm[p]];
+			off[p] += cl;
+		}
+		final char[] ch = Arrays.copyOf(chars, cl + frag.chars.length);
+		System.arraycopy(frag.chars, 0, ch, cl, frag.chars.length);
+		return new CompactDocument(k, par, sz, nm, off, len, ch, lv
+				+ frag.live, nms, cdata || frag.cdata);
+	}
+
+	/**
+	 * Returns a new document in which an element, attribute or processing
+	 * instruction is renamed. Only the name references are copied.
+	 *
+	 * @param pre
+	 *            pre value of the node
+	 * @param name
+	 *            new name
+	 * @return new document
+	 */
+	CompactDocument rename(final int pre, final String name) {
+		final Names nms = new Names(this);
+		final int[] nm = names.clone();
+		nm[pre] = nms.id(name);
+		return new CompactDocument(kinds, parents, sizes, nm, offsets,
+				lengths, chars, live, nms, cdata);
+	}
+
+	/**
+	 * Returns a new document in which the value of an attribute, text,
+	 * comment or processing instruction is replaced. The value offsets and
+	 * lengths are copied, and the new value is appended to the characters;
+	 * the characters of the old value are reclaimed when the characters are
+	 * packed.
+	 *
+	 * @param pre
+	 *            pre value of the node
+	 * @param value
+	 *            new value
+	 * @return new document
+	 */
+	CompactDocument value(final int pre, final String value) {
+		final int[] off = offsets.clone();
+		final int[] len = lengths.clone();
+		off[pre] = chars.length;
+		len[pre] = value.length();
+		final char[] ch = Arrays.copyOf(chars, chars.length + value.length());
+		value.getChars(0, value.length(), ch, chars.length);
+		final CompactDocument doc = new CompactDocument(kinds, parents, sizes,
+				names, off, len, ch, live - lengths[pre] + value.length(),
+				new Names(this), cdata);
+		// the structure is unchanged, so the element index remains valid
+		doc.paths = paths;
+		return doc;
+	}
+
+	/**
+	 * Packs the characters of all node values into a new array. As values
+	 * are appended for each modification, unreferenced characters are
+	 * reclaimed once they outweigh the referenced ones, which keeps the
+	 * amortized costs of packing proportional to the appended characters.
+	 *
+	 * @param ch
+	 *            characters
+	 * @param off
+	 *            value offsets, which are updated
+	 * @param len
+	 *            value lengths
+	 * @param lv
+	 *            number of referenced characters
+	 * @return packed characters
+	 */
+	private static char[] pack(final char[] ch, final int[] off,
+			final int[] len, final int lv) {
+		final char[] packed = new char[lv];
+		int c = 0;
+		for (int p = 0; p < off.length; p++) {
+			System.arraycopy(ch, off[p], packed, c, len[p]);
+			off[p] = c;
+			c += len[p];
+		}
+		return packed;
+	}
+
+	/**
+	 * Copies node properties from the specified document.
+	 *
+	 * @param doc
+	 *            source document
+	 * @param src
+	 *            first source node
+	 * @param k
+	 *            target node kinds
+	 * @param par
+	 *            target parent references
+	 * @param sz
+	 *            target subtree sizes
+	 * @param nm
+	 *            target name references
+	 * @param off
+	 *            target value offsets
+	 * @param len
+	 *            target value lengths
+	 * @param trg
+	 *            first target node
+	 * @param n
+	 *            number of nodes
+	 */
+	private static void copy(final CompactDocument doc, final int src,
+			final byte[] k, final int[] par, final int[] sz, final int[] nm,
+			final int[] off, final int[] len, final int trg, final int n) {
+		System.arraycopy(doc.kinds, src, k, trg, n);
+		System.arraycopy(doc.parents, src, par, trg, n);
+		System.arraycopy(doc.sizes, src, sz, trg, n);
+		System.arraycopy(doc.names, src, nm, trg, n);
+		System.arraycopy(doc.offsets, src, off, trg, n);
+		System.arraycopy(doc.lengths, src, len, trg, n);
+	}
+
+	/**
+	 * Returns the size of the character array, including characters that are
+	 * no longer referenced.
+	 *
+	 * @return number of characters
+	 */
+	int capacity() {
+		return chars.length;
+	}
+
+	/**
+	 * Returns the pre value of the root element.
+	 *
+	 * @return pre value, or {@code -1} if the document has no root element
+	 */
+	int root() {
+		for (int p = 1; p < kinds.length; p += sizes[p]) {
+			if (kinds[p] == ELEM)
+				return p;
+		}
+		return -1;
+	}
+
+	/**
+	 * Creates a compact representation of the specified DOM document.
+	 *
+	 * @param doc
+	 *            document
+	 * @return compact document
+	 */
+	static CompactDocument of(final Document doc) {
+		final Builder b = new Builder();
+		for (Node ch = doc.getFirstChild(); ch != null; ch = ch
+				.getNextSibling()) {
+			add(b, ch);
+		}
+		return b.build();
+	}
+
+	/**
+	 * Creates a compact document from the specified nodes, which become the
+	 * children of the document node.
+	 *
+	 * @param nodes
+	 *            nodes
+	 * @return compact document
+	 */
+	static CompactDocument of(final List<Node> nodes) {
+		final Builder b = new Builder();
+		for (final Node node : nodes)
+			add(b, node);
+		return b.build();
+	}
+
+	/**
+	 * Adds a DOM node and its descendants to the specified builder.
+	 *
+	 * @param b
+	 *            builder
+	 * @param node
+	 *            node
+	 */
+	private static void add(final Builder b, final Node node) {
+		switch (node.getNodeType()) {
+		case Node.ELEMENT_NODE:
+			b.startElement(node.getNodeName());
+			final NamedNodeMap atts = node.getAttributes();
+			for (int a = 0; a < atts.getLength(); a++) {
+				b.attribute(atts.item(a).getNodeName(), atts.item(a)
+						.getNodeValue());
+			}
+			for (Node ch = node.getFirstChild(); ch != null; ch = ch
+					.getNextSibling()) {
+				add(b, ch);
+			}
+			b.endElement();
+			break;
+		case Node.TEXT_NODE:
+			b.text(node.getNodeValue());
+			break;
+		case Node.CDATA_SECTION_NODE:
+			b.cdata(node.getNodeValue());
+			break;
+		case Node.COMMENT_NODE:
+			b.comment(node.getNodeValue());
+			break;
+		case Node.PROCESSING_INSTRUCTION_NODE:
+			b.pi(node.getNodeName(), node.getNodeValue());
+			break;
+		case Node.ENTITY_REFERENCE_NODE:
+			for (Node ch = node.getFirstChild(); ch != null; ch = ch
+					.getNextSibling()) {
+				add(b, ch);
+			}
+			break;
+		default:
+			// document types, entities and notations are skipped
+		}
+	}
+
+	/**
+	 * Returns the number of nodes.
+	 *
+	 * @return number of nodes
+	 */
+	int count() {
+		return kinds.length;
+	}
+
+	/**
+	 * Returns the kind of a node.
+	 *
+	 * @param pre
+	 *            pre value
+	 * @return node kind
+	 */
+	byte kind(final int pre) {
+		return kinds[pre];
+	}
+
+	/**
+	 * Returns the parent of a node.
+	 *
+	 * @param pre
+	 *            pre value
+	 * @return pre value of the parent, or {@code -1} for the document node
+	 */
+	int parent(final int pre) {
+		return parents[pre];
+	}
+
+	/**
+	 * Returns the size of the subtree of a node, including attributes. The
+	 * next sibling of a node has the pre value {@code pre + size(pre)}.
+	 *
+	 * @param pre
+	 *            pre value
+	 * @return subtree size
+	 */
+	int size(final int pre) {
+		return sizes[pre];
+	}
+
+	/**
+	 * Returns the pre value of the first node after the attributes of a node.
+	 *
+	 * @param pre
+	 *            pre value
+	 * @return pre value of the first child or following node
+	 */
+	int attEnd(final int pre) {
+		int p = pre + 1;
+		final int end = pre + sizes[pre];
+		while (p < end && kinds[p] == ATTR)
+			p++;
+		return p;
+	}
+
+	/**
+	 * Returns the name reference of a node.
+	 *
+	 * @param pre
+	 *            pre value
+	 * @return name reference, or {@code -1}
+	 */
+	int nameId(final int pre) {
+		return names[pre];
+	}
+
+	/**
+	 * Returns the element index of this document, which is created on first
+	 * access.
+	 *
+	 * @return index
+	 */
+	PathIndex paths() {
+		PathIndex pi = paths;
+		if (pi == null) {
+			// concurrent readers may create the index twice, which is harmless
+			pi = new PathIndex(this);
+			paths = pi;
+		}
+		return pi;
+	}
+
+	/**
+	 * Returns the full-text index of this document, which is created on first
+	 * access.
+	 *
+	 * @return index
+	 */
+	FullTextIndex fullText() {
+		FullTextIndex fi = fullText;
+		if (fi == null) {
+			fi = new FullTextIndex(this);
+			fullText = fi;
+		}
+		return fi;
+	}
+
+	/**
+	 * Returns the value index of the attributes with the specified name, which
+	 * is created on first access.
+	 *
+	 * @param name
+	 *            attribute name
+	 * @return index, or {@code null} if the name does not occur in the
+	 *         document
+	 */
+	AttributeIndex attributes(final String name) {
+		final int id = nameId(name);
+		if (id == -1)
+			return null;
+		AttributeIndex ai = attributes.get(id);
+		if (ai == null) {
+			ai = new AttributeIndex(this, id);
+			final AttributeIndex old = attributes.putIfAbsent(id, ai);
+			if (old != null)
+				ai = old;
+		}
+		return ai;
+	}
+
+	/**
+	 * Returns the reference of the specified name.
+	 *
+	 * @param name
+	 *            name
+	 * @return name reference, or {@code -1} if the name does not occur in the
+	 *         document
+	 */
+	int nameId(final String name) {
+		final Integer id = ids.get(name);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Returns the name of a node.
+	 *
+	 * @param pre
+	 *            pre value
+	 * @return name, or {@code null}
+	 */
+	String name(final int pre) {
+		return names[pre] == -1 ? null : pool[names[pre]];
+	}
+
+	/**
+	 * Returns the value of a text, attribute, comment or processing
+	 * instruction node.
+	 *
+	 * @param pre
+	 *            pre value
+	 * @return value
+	 */
+	String value(final int pre) {
+		return new String(chars, offsets[pre], lengths[pre]);
+	}
+
+	/**
+	 * Checks if the value of a node equals the specified string.
+	 *
+	 * @param pre
+	 *            pre value
+	 * @param string
+	 *            string to compare
+	 * @return result of check
+	 */
+	boolean valueEquals(final int pre, final String string) {
+		final int l = lengths[pre];
+		if (l != string.length())
+			return false;
+		final int o = offsets[pre];
+		for (int i = 0; i < l; i++) {
+			if (chars[o + i] != string.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the XPath string value of a node. For documents and elements,
+	 * the values of all descendant text nodes are concatenated.
+	 *
+	 * @param pre
+	 *            pre value
+	 * @return string value
+	 */
+	String string(final int pre) {
+		final byte k = kinds[pre];
+		if (k != DOC && k != ELEM)
+			return value(pre);
+		final StringBuilder sb = new StringBuilder();
+		final int end = pre + sizes[pre];
+		for (int p = pre + 1; p < end; p++) {
+			if (kinds[p] == TEXT || kinds[p] == CDATA)
+				sb.append(chars, offsets[p], lengths[p]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Indicates if the document contains CDATA sections.
+	 *
+	 * @return result of check
+	 */
+	boolean hasCData() {
+		return cdata;
+	}
+
+	/**
+	 * Indicates if the document contains prefixed names or namespace
+	 * declarations.
+	 *
+	 * @return result of check
+	 */
+	boolean hasNamespaces() {
+		return namespaces;
+	}
+
+	/**
+	 * Serializes a node and its descendants.
+	 *
+	 * @param pre
+	 *            pre value
+	 * @param ser
+	 *            serializer
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	void serialize(final int pre, final DOMSerializer ser) throws IOException {
+		switch (kinds[pre]) {
+		case DOC:
+			children(pre, ser);
+			break;
+		case ELEM:
+			final String name = pool[names[pre]];
+			ser.markup("<").markup(name);
+			final int ae = attEnd(pre);
+			for (int a = pre + 1; a < ae; a++) {
+				ser.attribute(pool[names[a]], value(a));
+			}
+			if (ae == pre + sizes[pre]) {
+				ser.markup("/>");
+			} else {
+				ser.markup(">");
+				children(pre, ser);
+				ser.markup("</").markup(name).markup(">");
+			}
+			break;
+		case ATTR:
+		case TEXT:
+			ser.text(value(pre));
+			break;
+		case CDATA:
+			ser.cdata(value(pre));
+			break;
+		case COMMENT:
+			ser.comment(value(pre));
+			break;
+		default:
+			ser.pi(pool[names[pre]], value(pre));
+		}
+	}
+
+	/**
+	 * Serializes the children of a node.
+	 *
+	 * @param pre
+	 *            pre value
+	 * @param ser
+	 *            serializer
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private void children(final int pre, final DOMSerializer ser)
+			throws IOException {
+		final int end = pre + sizes[pre];
+		for (int p = attEnd(pre); p < end; p += sizes[p]) {
+			serialize(p, ser);
+		}
+	}
+
+	/**
+	 * Passes on a node and its descendants as SAX events.
+	 *
+	 * @param pre
+	 *            pre value
+	 * @param sax
+	 *            SAX writer
+	 * @throws SAXException
+	 *             SAX exception
+	 */
+	void serialize(final int pre, final SAXWriter sax) throws SAXException {
+		switch (kinds[pre]) {
+		case DOC:
+			children(pre, sax);
+			break;
+		case ELEM:
+			final int ae = attEnd(pre);
+			final String[] atts = new String[ae - pre - 1 << 1];
+			for (int a = pre + 1; a < ae; a++) {
+				atts[a - pre - 1 << 1] = pool[names[a]];
+				atts[(a - pre - 1 << 1) + 1] = value(a);
+			}
+			sax.startElement(pool[names[pre]], atts);
+			children(pre, sax);
+			sax.endElement();
+			break;
+		case ATTR:
+		case TEXT:
+			sax.text(value(pre));
+			break;
+		case CDATA:
+			sax.cdata(value(pre));
+			break;
+		case COMMENT:
+			sax.comment(value(pre));
+			break;
+		default:
+			sax.pi(pool[names[pre]], value(pre));
+		}
+	}
+
+	/**
+	 * Passes on the children of a node as SAX events.
+	 *
+	 * @param pre
+	 *            pre value
+	 * @param sax
+	 *            SAX writer
+	 * @throws SAXException
+	 *             SAX exception
+	 */
+	private void children(final int pre, final SAXWriter sax)
+			throws SAXException {
+		final int end = pre + sizes[pre];
+		for (int p = attEnd(pre); p < end; p += sizes[p]) {
+			serialize(p, sax);
+		}
+	}
+
+	/**
+	 * Creates a DOM representation of this document.
+	 *
+	 * @return DOM document
+	 */
+	Document toDOM() {
+		final Document doc;
+		try {
+			doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+					.newDocument();
+		} catch (final ParserConfigurationException ex) {
+			throw new JaxRxException(ex);
+		}
+		final Node[] nodes = new Node[kinds.length];
+		nodes[0] = doc;
+		for (int p = 1; p < kinds.length; p++) {
+			final Node parent = nodes[parents[p]];
+			switch (kinds[p]) {
+			case ELEM:
+				nodes[p] = parent.appendChild(doc.createElement(pool[names[p]]));
+				break;
+			case ATTR:
+				((Element) parent).setAttribute(pool[names[p]], value(p));
+				break;
+			case TEXT:
+				parent.appendChild(doc.createTextNode(value(p)));
+				break;
+			case CDATA:
+				parent.appendChild(doc.createCDATASection(value(p)));
+				break;
+			case COMMENT:
+				parent.appendChild(doc.createComment(value(p)));
+				break;
+			default:
+				parent.appendChild(doc.createProcessingInstruction(
+						pool[names[p]], value(p)));
+			}
+		}
+		return doc;
+	}
+
+	/**
+	 * Name pool of a modified document. The pool of the original document is
+	 * only copied if new names are added.
+	 */
+	private static final class Names {
+		/** Original pool. */
+		private final String[] original;
+		/** Added names, or {@code null}. */
+		private List<String> added;
+		/** Name references, indexed by names. */
+		Map<String, Integer> ids;
+		/** Flag for prefixed names and namespace declarations. */
+		boolean namespaces;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param doc
+		 *            original document
+		 */
+		Names(final CompactDocument doc) {
+			original = doc.pool;
+			ids = doc.ids;
+			namespaces = doc.namespaces;
+		}
+
+		/**
+		 * Returns the reference of a name, adding it to the pool if
+		 * necessary.
+		 *
+		 * @param name
+		 *            name
+		 * @return name reference
+		 */
+		int id(final String name) {
+			Integer id = ids.get(name);
+			if (id == null) {
+				if (added == null) {
+					added = new ArrayList<String>();
+					ids = new HashMap<String, Integer>(ids);
+				}
+				if (name.indexOf(':') != -1 || name.equals("xmlns"))
+					namespaces = true;
+				id = original.length + added.size();
+				added.add(name);
+				ids.put(name, id);
+			}
+			return id;
+		}
+
+		/**
+		 * Returns the resulting pool.
+		 *
+		 * @return pool
+		 */
+		String[] pool() {
+			if (added == null)
+				return original;
+			final String[] p = Arrays.copyOf(original, original.length
+					+ added.size());
+			for (int i = 0; i < added.size(); i++)
+				p[original.length + i] = added.get(i);
+			return p;
+		}
+	}
+
+	/**
+	 * Builder for compact documents. Nodes must be added in document order,
+	 * and attributes must directly follow the start of their element.
+	 */
+	static final class Builder {
+		/** Node kinds. */
+		byte[] kinds = new byte[64];
+		/** Parent references. */
+		int[] parents = new int[64];
+		/** Subtree sizes. */
+		int[] sizes = new int[64];
+		/** Name references. */
+		int[] names = new int[64];
+		/** Value offsets. */
+		int[] offsets = new int[64];
+		/** Value lengths. */
+		int[] lengths = new int[64];
+		/** Number of nodes. */
+		int count;
+		/** Value characters. */
+		char[] chars = new char[256];
+		/** Number of value characters. */
+		int clength;
+		/** Name pool. */
+		final List<String> pool = new ArrayList<String>();
+		/** Name references, indexed by names. */
+		final Map<String, Integer> ids = new HashMap<String, Integer>();
+		/** Flag for CDATA sections. */
+		boolean cdata;
+		/** Flag for prefixed names and namespace declarations. */
+		boolean namespaces;
+		/** Stack of open nodes. */
+		private int[] open = new int[16];
+		/** Number of open nodes. */
+		private int depth;
+
+		/**
+		 * Constructor.
+		 */
+		Builder() {
+			open(add(DOC, null, null, 0, 0));
+		}
+
+		/**
+		 * Returns the number of open elements.
+		 *
+		 * @return depth
+		 */
+		int depth() {
+			return depth - 1;
+		}
+
+		/**
+		 * Starts an element.
+		 *
+		 * @param name
+		 *            element name
+		 */
+		void startElement(final String name) {
+			open(add(ELEM, name, null, 0, 0));
+		}
+
+		/**
+		 * Adds an attribute to the current element.
+		 *
+		 * @param name
+		 *            attribute name
+		 * @param value
+		 *            attribute value
+		 */
+		void attribute(final String name, final String value) {
+			add(ATTR, name, value.toCharArray(), 0, value.length());
+		}
+
+		/**
+		 * Ends the current element.
+		 */
+		void endElement() {
+			final int pre = open[--depth];
+			sizes[pre] = count - pre;
+		}
+
+		/**
+		 * Adds a text node. Adjacent texts are merged.
+		 *
+		 * @param ch
+		 *            characters
+		 * @param off
+		 *            offset
+		 * @param len
+		 *            length
+		 */
+		void text(final char[] ch, final int off, final int len) {
+			final int last = count - 1;
+			if (kinds[last] == TEXT && parents[last] == open[depth - 1]) {
+				chars(ch, off, len);
+				lengths[last] += len;
+			} else {
+				add(TEXT, null, ch, off, len);
+			}
+		}
+
+		/**
+		 * Adds a text node. Adjacent texts are merged.
+		 *
+		 * @param text
+		 *            text
+		 */
+		void text(final String text) {
+			text(text.toCharArray(), 0, text.length());
+		}
+
+		/**
+		 * Adds a CDATA section.
+		 *
+		 * @param text
+		 *            contents of the section
+		 */
+		void cdata(final String text) {
+			cdata = true;
+			add(CDATA, null, text.toCharArray(), 0, text.length());
+		}
+
+		/**
+		 * Adds a comment.
+		 *
+		 * @param text
+		 *            contents of the comment
+		 */
+		void comment(final String text) {
+			add(COMMENT, null, text.toCharArray(), 0, text.length());
+		}
+
+		/**
+		 * Adds a processing instruction.
+		 *
+		 * @param target
+		 *            target
+		 * @param data
+		 *            data (may be {@code null})
+		 */
+		void pi(final String target, final String data) {
+			final String d = data == null ? "" : data;
+			add(PI, target, d.toCharArray(), 0, d.length());
+		}
+
+		/**
+		 * Creates the compact document.
+		 *
+		 * @return compact document
+		 */
+		CompactDocument build() {
+			while (depth > 0)
+				endElement();
+			return new CompactDocument(this);
+		}
+
+		/**
+		 * Adds a node.
+		 *
+		 * @param kind
+		 *            node kind
+		 * @param name
+		 *            name (may be {@code null})
+		 * @param ch
+		 *            value characters (may be {@code null})
+		 * @param off
+		 *            offset of the value
+		 * @param len
+		 *            length of the value
+		 * @return pre value of the new node
+		 */
+		private int add(final byte kind, final String name, final char[] ch,
+				final int off, final int len) {
+			if (count == kinds.length) {
+				final int s = count << 1;
+				kinds = Arrays.copyOf(kinds, s);
+				parents = Arrays.copyOf(parents, s);
+				sizes = Arrays.copyOf(sizes, s);
+				names = Arrays.copyOf(names, s);
+				offsets = Arrays.copyOf(offsets, s);
+				lengths = Arrays.copyOf(lengths, s);
+			}
+			final int pre = count++;
+			kinds[pre] = kind;
+			parents[pre] = depth == 0 ? -1 : open[depth - 1];
+			sizes[pre] = 1;
+			names[pre] = name == null ? -1 : name(name);
+			offsets[pre] = clength;
+			lengths[pre] = len;
+			if (ch != null)
+				chars(ch, off, len);
+			return pre;
+		}
+
+		/**
+		 * Returns the reference of a name, adding it to the pool if necessary.
+		 *
+		 * @param name
+		 *            name
+		 * @return name reference
+		 */
+		private int name(final String name) {
+			Integer id = ids.get(name);
+			if (id == null) {
+				if (name.indexOf(':') != -1 || name.equals("xmlns"))
+					namespaces = true;
+				id = pool.size();
+				pool.add(name);
+				ids.put(name, id);
+			}
+			return id;
+		}
+
+		/**
+		 * Appends value characters.
+		 *
+		 * @param ch
+		 *            characters
+		 * @param off
+		 *            offset
+		 * @param len
+		 *            length
+		 */
+		private void chars(final char[] ch, final int off, final int len) {
+			if (clength + len > chars.length) {
+				chars = Arrays.copyOf(chars, Math.max(clength + len,
+						chars.length << 1));
+			}
+			System.arraycopy(ch, off, chars, clength, len);
+			clength += len;
+		}
+
+		/**
+		 * Pushes a node onto the stack of open nodes.
+		 *
+		 * @param pre
+		 *            pre value
+		 */
+		private void open(final int pre) {
+			if (depth == open.length)
+				open = Arrays.copyOf(open, depth << 1);
+			open[depth++] = pre;
+		}
+	}
+}
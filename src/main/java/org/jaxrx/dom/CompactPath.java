@@ -0,0 +1,750 @@
+package org.jaxrx.dom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class evaluates simple XPath location paths on a
+ * {@link CompactDocument}. The supported subset comprises absolute and
+ * relative paths with the axes {@code child}, {@code descendant},
+ * {@code descendant-or-self}, {@code attribute}, {@code self} and
+ * {@code parent} (including their abbreviations), name tests, wildcards, the
+ * kind tests {@code node()}, {@code text()}, {@code comment()} and
+ * {@code processing-instruction()}, and the following predicates:
+ * {@code [n]}, {@code [last()]}, {@code [position() op n]}, {@code [@a]},
+ * {@code [@a='v']}, {@code [a]}, {@code [a='v']}, {@code [text()]} and
+ * {@code [text()='v']}.
+ *
+ * <p>
+ * {@link #parse(String)} returns {@code null} for all other queries, which
+ * are then evaluated by the generic XPath processor. Location steps of the
+ * form {@code //name} without positional predicates are resolved with the
+ * {@link PathIndex} of the document, or by a single sequential scan of the
+ * node table if the index is disabled. If such a step compares an indexed
+ * attribute with a value, as in {@code //*[@id='x']}, the candidates are
+ * taken from the {@link AttributeIndex} of the document.
+ * </p>
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+final class CompactPath {
+	/** Axis: child. */
+	private static final int CHILD = 0;
+	/** Axis: descendant. */
+	private static final int DESC = 1;
+	/** Axis: descendant-or-self. */
+	private static final int DESC_OR_SELF = 2;
+	/** Axis: attribute. */
+	private static final int ATTRIBUTE = 3;
+	/** Axis: self. */
+	private static final int SELF = 4;
+	/** Axis: parent. */
+	private static final int PARENT = 5;
+	/** Axis names. */
+	private static final String[] AXES = { "child", "descendant",
+			"descendant-or-self", "attribute", "self", "parent" };
+
+	/** Test: name. */
+	private static final int NAME = 0;
+	/** Test: wildcard. */
+	private static final int ANY = 1;
+	/** Test: node(). */
+	private static final int NODE = 2;
+	/** Test: text(). */
+	private static final int TEXT = 3;
+	/** Test: comment(). */
+	private static final int COMMENT = 4;
+	/** Test: processing-instruction(). */
+	private static final int PI = 5;
+	/** Kind test names. */
+	private static final String[] KINDS = { null, null, "node", "text",
+			"comment", "processing-instruction" };
+
+	/** Predicate: position comparison. */
+	private static final int POS = 0;
+	/** Predicate: last position. */
+	private static final int LAST = 1;
+	/** Predicate: existence of a child or attribute. */
+	private static final int EXISTS = 2;
+	/** Predicate: comparison of a child or attribute. */
+	private static final int EQUALS = 3;
+
+	/** Location steps. */
+	private final Step[] steps;
+	/** Flag for text() tests. */
+	private final boolean text;
+
+	/** Query string. */
+	private final String query;
+	/** Current parser position. */
+	private int ip;
+
+	/**
+	 * Constructor, which parses the query.
+	 *
+	 * @param qu
+	 *            query
+	 * @throws IllegalArgumentException
+	 *             if the query is not supported
+	 */
+	private CompactPath(final String qu) {
+		query = qu;
+		final List<Step> list = new ArrayList<Step>();
+		ws();
+		boolean desc = false;
+		if (consume("//")) {
+			desc = true;
+		} else if (consume("/")) {
+			ws();
+			if (ip == query.length()) {
+				steps = new Step[0];
+				text = false;
+				return;
+			}
+		}
+		while (true) {
+			ws();
+			final Step step = step();
+			if (desc) {
+				if (step.axis == CHILD && !step.positional()) {
+					step.axis = DESC;
+				} else {
+					list.add(new Step(DESC_OR_SELF, NODE, null));
+				}
+			}
+			list.add(step);
+			ws();
+			if (ip == query.length())
+				break;
+			if (consume("//")) {
+				desc = true;
+			} else if (consume("/")) {
+				desc = false;
+			} else {
+				throw new IllegalArgumentException();
+			}
+		}
+		steps = list.toArray(new Step[list.size()]);
+		boolean t = false;
+		for (final Step s : steps) {
+			t |= s.test == TEXT;
+			for (final Pred p : s.preds)
+				t |= p.test == TEXT;
+		}
+		text = t;
+	}
+
+	/**
+	 * Parses the specified query.
+	 *
+	 * @param query
+	 *            query
+	 * @return compiled path, or {@code null} if the query is not supported
+	 */
+	static CompactPath parse(final String query) {
+		try {
+			return new CompactPath(query);
+		} catch (final IllegalArgumentException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the keys that a document must contain to yield results for this
+	 * path (see {@link Bloom}): the names of all name tests, and the values
+	 * of indexed attributes that are compared in predicates.
+	 *
+	 * @return keys
+	 */
+	List<String> keys() {
+		final List<String> keys = new ArrayList<String>();
+		for (final Step step : steps) {
+			if (step.test == NAME)
+				keys.add(step.axis == ATTRIBUTE ? Bloom.attribute(step.name)
+						: Bloom.element(step.name));
+			for (final Pred p : step.preds) {
+				if (p.test != NAME || p.type != EXISTS && p.type != EQUALS)
+					continue;
+				if (p.axis != ATTRIBUTE) {
+					keys.add(Bloom.element(p.name));
+				} else {
+					keys.add(Bloom.attribute(p.name));
+					if (p.type == EQUALS && AttributeIndex.indexed(p.name))
+						keys.add(Bloom.value(p.name, p.value));
+				}
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Evaluates the path on the specified document, using the document node as
+	 * context node.
+	 *
+	 * @param doc
+	 *            document
+	 * @return pre values of the resulting nodes in document order, or
+	 *         {@code null} if the path cannot be evaluated on this document
+	 */
+	int[] evaluate(final CompactDocument doc) {
+		// namespaces and merged CDATA sections are left to the XPath processor
+		if (doc.hasNamespaces() || text && doc.hasCData())
+			return null;
+		int[] ctx = { 0 };
+		int size = 1;
+		for (final Step step : steps) {
+			final Nodes out = new Nodes();
+			final int id = step.name == null ? -1 : doc.nameId(step.name);
+			if (step.test == NAME && id == -1)
+				return new int[0];
+			int max = -1;
+			boolean sorted = true;
+			for (int c = 0; c < size; c++) {
+				final int from = out.size;
+				step.axis(doc, ctx[c], id, out);
+				for (final Pred pred : step.preds)
+					pred.filter(doc, out, from);
+				if (out.size > from) {
+					sorted &= out.nodes[from] > max;
+					max = Math.max(max, out.nodes[out.size - 1]);
+				}
+			}
+			if (!sorted)
+				out.sort();
+			ctx = out.nodes;
+			size = out.size;
+			if (size == 0)
+				break;
+		}
+		return Arrays.copyOf(ctx, size);
+	}
+
+	/**
+	 * Parses a location step.
+	 *
+	 * @return step
+	 */
+	private Step step() {
+		if (consume("..")) {
+			return new Step(PARENT, NODE, null);
+		}
+		if (consume(".")) {
+			return new Step(SELF, NODE, null);
+		}
+		int axis = CHILD;
+		if (consume("@")) {
+			axis = ATTRIBUTE;
+		} else {
+			final int p = ip;
+			final String name = name();
+			ws();
+			if (name != null && consume("::")) {
+				axis = Arrays.asList(AXES).indexOf(name);
+				if (axis == -1)
+					throw new IllegalArgumentException();
+			} else {
+				ip = p;
+			}
+		}
+		ws();
+		final Step step = test(axis);
+		final List<Pred> preds = new ArrayList<Pred>();
+		ws();
+		while (consume("[")) {
+			ws();
+			preds.add(pred());
+			ws();
+			if (!consume("]"))
+				throw new IllegalArgumentException();
+			ws();
+		}
+		step.preds = preds.toArray(new Pred[preds.size()]);
+		return step;
+	}
+
+	/**
+	 * Parses a node test.
+	 *
+	 * @param axis
+	 *            axis
+	 * @return step without predicates
+	 */
+	private Step test(final int axis) {
+		if (consume("*"))
+			return new Step(axis, ANY, null);
+		final String name = name();
+		if (name == null || name.indexOf(':') != -1)
+			throw new IllegalArgumentException();
+		ws();
+		if (consume("(")) {
+			ws();
+			final int test = Arrays.asList(KINDS).indexOf(name);
+			if (test == -1 || !consume(")"))
+				throw new IllegalArgumentException();
+			return new Step(axis, test, null);
+		}
+		return new Step(axis, NAME, name);
+	}
+
+	/**
+	 * Parses a predicate.
+	 *
+	 * @return predicate
+	 */
+	private Pred pred() {
+		final Pred pred = new Pred();
+		if (ip < query.length() && Character.isDigit(query.charAt(ip))) {
+			pred.type = POS;
+			pred.op = "=";
+			pred.pos = integer();
+			return pred;
+		}
+		final int p = ip;
+		final String fn = name();
+		ws();
+		if (fn != null && !Arrays.asList(KINDS).contains(fn) && consume("(")) {
+			ws();
+			if (!consume(")"))
+				throw new IllegalArgumentException();
+			ws();
+			if (fn.equals("last")) {
+				pred.type = LAST;
+				return pred;
+			}
+			if (!fn.equals("position"))
+				throw new IllegalArgumentException();
+			for (final String op : new String[] { "<=", ">=", "<", ">", "=" }) {
+				if (consume(op)) {
+					pred.op = op;
+					break;
+				}
+			}
+			if (pred.op == null)
+				throw new IllegalArgumentException();
+			ws();
+			pred.type = POS;
+			pred.pos = integer();
+			return pred;
+		}
+		ip = p;
+		final Step step = step();
+		if (step.axis != CHILD && step.axis != ATTRIBUTE
+				|| step.test != NAME && step.test != ANY && step.test != TEXT
+				|| step.preds.length != 0)
+			throw new IllegalArgumentException();
+		pred.axis = step.axis;
+		pred.test = step.test;
+		pred.name = step.name;
+		pred.type = EXISTS;
+		if (consume("=")) {
+			ws();
+			final char q = ip < query.length() ? query.charAt(ip) : 0;
+			final int end = q == '"' || q == '\'' ? query.indexOf(q, ip + 1)
+					: -1;
+			if (end == -1)
+				throw new IllegalArgumentException();
+			pred.type = EQUALS;
+			pred.value = query.substring(ip + 1, end);
+			ip = end + 1;
+		}
+		return pred;
+	}
+
+	/**
+	 * Parses a name, consisting of letters, digits and the characters
+	 * {@code _-.:}, and starting with a letter or an underscore.
+	 *
+	 * @return name, or {@code null}
+	 */
+	private String name() {
+		final int p = ip;
+		while (ip < query.length()) {
+			final char ch = query.charAt(ip);
+			final boolean part = Character.isDigit(ch) || ch == '-'
+					|| ch == '.' || ch == ':' && !query.startsWith("::", ip);
+			if (!(Character.isLetter(ch) || ch == '_' || ip > p && part))
+				break;
+			ip++;
+		}
+		return ip == p ? null : query.substring(p, ip);
+	}
+
+	/**
+	 * Parses a positive integer.
+	 *
+	 * @return integer
+	 */
+	private int integer() {
+		final int p = ip;
+		while (ip < query.length() && Character.isDigit(query.charAt(ip)))
+			ip++;
+		if (ip == p || ip - p > 9 || ip < query.length()
+				&& query.charAt(ip) == '.')
+			throw new IllegalArgumentException();
+		return Integer.parseInt(query.substring(p, ip));
+	}
+
+	/**
+	 * Consumes the specified string, if it occurs at the current position.
+	 *
+	 * @param string
+	 *            string
+	 * @return {@code true} if the string was consumed
+	 */
+	private boolean consume(final String string) {
+		if (!query.startsWith(string, ip))
+			return false;
+		ip += string.length();
+		return true;
+	}
+
+	/**
+	 * Skips whitespace.
+	 */
+	private void ws() {
+		while (ip < query.length()
+				&& Character.isWhitespace(query.charAt(ip)))
+			ip++;
+	}
+
+	/**
+	 * Checks if a node matches a node test.
+	 *
+	 * @param doc
+	 *            document
+	 * @param pre
+	 *            pre value
+	 * @param axis
+	 *            axis, which determines the principal node kind
+	 * @param test
+	 *            node test
+	 * @param id
+	 *            name reference
+	 * @return result of check
+	 */
+	static boolean matches(final CompactDocument doc, final int pre,
+			final int axis, final int test, final int id) {
+		final byte k = doc.kind(pre);
+		switch (test) {
+		case NAME:
+			return k == (axis == ATTRIBUTE ? CompactDocument.ATTR
+					: CompactDocument.ELEM)
+					&& doc.nameId(pre) == id;
+		case ANY:
+			return k == (axis == ATTRIBUTE ? CompactDocument.ATTR
+					: CompactDocument.ELEM);
+		case TEXT:
+			return k == CompactDocument.TEXT || k == CompactDocument.CDATA;
+		case COMMENT:
+			return k == CompactDocument.COMMENT;
+		case PI:
+			return k == CompactDocument.PI;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Location step.
+	 */
+	private static final class Step {
+		/** Axis. */
+		int axis;
+		/** Node test. */
+		final int test;
+		/** Name of a name test. */
+		final String name;
+		/** Predicates. */
+		Pred[] preds = new Pred[0];
+
+		/**
+		 * Constructor.
+		 *
+		 * @param a
+		 *            axis
+		 * @param t
+		 *            node test
+		 * @param n
+		 *            name (may be {@code null})
+		 */
+		Step(final int a, final int t, final String n) {
+			axis = a;
+			test = t;
+			name = n;
+		}
+
+		/**
+		 * Checks if this step has positional predicates.
+		 *
+		 * @return result of check
+		 */
+		boolean positional() {
+			for (final Pred p : preds) {
+				if (p.type == POS || p.type == LAST)
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Returns a predicate that compares an indexed attribute with a value.
+		 * Such predicates can only be used to select the nodes of this step
+		 * if they are not preceded by positional predicates.
+		 *
+		 * @return predicate, or {@code null}
+		 */
+		private Pred key() {
+			if (test != NAME && test != ANY)
+				return null;
+			for (final Pred p : preds) {
+				if (p.type == POS || p.type == LAST)
+					return null;
+				if (p.type == EQUALS && p.axis == ATTRIBUTE && p.test == NAME
+						&& AttributeIndex.indexed(p.name))
+					return p;
+			}
+			return null;
+		}
+
+		/**
+		 * Adds the nodes of the axis of a context node, which match the node
+		 * test, to the specified list.
+		 *
+		 * @param doc
+		 *            document
+		 * @param pre
+		 *            context node
+		 * @param id
+		 *            name reference
+		 * @param out
+		 *            output list
+		 */
+		void axis(final CompactDocument doc, final int pre, final int id,
+				final Nodes out) {
+			final int end = pre + doc.size(pre);
+			switch (axis) {
+			case CHILD:
+				for (int p = doc.attEnd(pre); p < end; p += doc.size(p)) {
+					if (matches(doc, p, axis, test, id))
+						out.add(p);
+				}
+				break;
+			case DESC_OR_SELF:
+				if (doc.kind(pre) == CompactDocument.ATTR) {
+					if (matches(doc, pre, axis, test, id))
+						out.add(pre);
+					break;
+				}
+				if (matches(doc, pre, axis, test, id))
+					out.add(pre);
+				descendants(doc, pre, end, id, out);
+				break;
+			case DESC:
+				if (doc.kind(pre) != CompactDocument.ATTR)
+					descendants(doc, pre, end, id, out);
+				break;
+			case ATTRIBUTE:
+				if (doc.kind(pre) != CompactDocument.ELEM)
+					break;
+				final int ae = doc.attEnd(pre);
+				for (int p = pre + 1; p < ae; p++) {
+					if (matches(doc, p, axis, test, id))
+						out.add(p);
+				}
+				break;
+			case SELF:
+				if (matches(doc, pre, axis, test, id))
+					out.add(pre);
+				break;
+			default:
+				final int par = doc.parent(pre);
+				if (par != -1 && matches(doc, par, axis, test, id))
+					out.add(par);
+			}
+		}
+
+		/**
+		 * Adds the descendants of a node, which match the node test, to the
+		 * specified list.
+		 *
+		 * @param doc
+		 *            document
+		 * @param pre
+		 *            context node
+		 * @param end
+		 *            end of the subtree
+		 * @param id
+		 *            name reference
+		 * @param out
+		 *            output list
+		 */
+		private void descendants(final CompactDocument doc, final int pre,
+				final int end, final int id, final Nodes out) {
+			final Pred key = key();
+			if (key != null) {
+				// elements with an indexed attribute value; the predicate is
+				// checked again by the caller
+				final AttributeIndex ai = doc.attributes(key.name);
+				if (ai == null)
+					return;
+				final int[] posts = ai.owners(key.value);
+				for (int i = PathIndex.first(posts, pre + 1); i < posts.length
+						&& posts[i] < end; i++) {
+					if (matches(doc, posts[i], axis, test, id))
+						out.add(posts[i]);
+				}
+			} else if (test == NAME && PathIndex.enabled()) {
+				// descendants occupy the pre values up to the end of the subtree
+				final int[] posts = doc.paths().elements(id);
+				for (int i = PathIndex.first(posts, pre + 1); i < posts.length
+						&& posts[i] < end; i++)
+					out.add(posts[i]);
+			} else if (test == NAME) {
+				// sequential scan for elements with the requested name
+				for (int p = pre + 1; p < end; p++) {
+					if (doc.nameId(p) == id
+							&& doc.kind(p) == CompactDocument.ELEM)
+						out.add(p);
+				}
+			} else {
+				for (int p = pre + 1; p < end; p++) {
+					if (doc.kind(p) != CompactDocument.ATTR
+							&& matches(doc, p, axis, test, id))
+						out.add(p);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Predicate.
+	 */
+	private static final class Pred {
+		/** Predicate type. */
+		int type;
+		/** Comparison operator of positional predicates. */
+		String op;
+		/** Position of positional predicates. */
+		int pos;
+		/** Axis of the tested nodes. */
+		int axis;
+		/** Node test of the tested nodes. */
+		int test;
+		/** Name of the tested nodes. */
+		String name;
+		/** Value to compare. */
+		String value;
+
+		/**
+		 * Removes all nodes, starting from the specified offset, which do not
+		 * satisfy the predicate.
+		 *
+		 * @param doc
+		 *            document
+		 * @param nodes
+		 *            nodes
+		 * @param from
+		 *            offset of the nodes of the current context node
+		 */
+		void filter(final CompactDocument doc, final Nodes nodes,
+				final int from) {
+			final int last = nodes.size - from;
+			final int id = name == null ? -1 : doc.nameId(name);
+			int w = from;
+			for (int i = 0; i < last; i++) {
+				final int pre = nodes.nodes[from + i];
+				if (matches(doc, pre, i + 1, last, id))
+					nodes.nodes[w++] = pre;
+			}
+			nodes.size = w;
+		}
+
+		/**
+		 * Checks if a node satisfies the predicate.
+		 *
+		 * @param doc
+		 *            document
+		 * @param pre
+		 *            pre value
+		 * @param position
+		 *            context position
+		 * @param last
+		 *            context size
+		 * @param id
+		 *            name reference
+		 * @return result of check
+		 */
+		private boolean matches(final CompactDocument doc, final int pre,
+				final int position, final int last, final int id) {
+			switch (type) {
+			case POS:
+				return op.equals("=") ? position == pos : op.equals("<")
+						? position < pos : op.equals("<=") ? position <= pos
+								: op.equals(">") ? position > pos
+										: position >= pos;
+			case LAST:
+				return position == last;
+			default:
+				if (test == NAME && id == -1)
+					return false;
+				final byte k = doc.kind(pre);
+				if (k != CompactDocument.ELEM && k != CompactDocument.DOC)
+					return false;
+				final int end = pre + doc.size(pre);
+				final int ae = doc.attEnd(pre);
+				if (axis == ATTRIBUTE) {
+					for (int p = pre + 1; p < ae; p++) {
+						if (CompactPath.matches(doc, p, axis, test, id)
+								&& (value == null || doc.valueEquals(p, value)))
+							return true;
+					}
+					return false;
+				}
+				for (int p = ae; p < end; p += doc.size(p)) {
+					if (CompactPath.matches(doc, p, axis, test, id)
+							&& (value == null || doc.string(p).equals(value)))
+						return true;
+				}
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Growable list of pre values.
+	 */
+	private static final class Nodes {
+		/** Pre values. */
+		int[] nodes = new int[8];
+		/** Number of pre values. */
+		int size;
+
+		/**
+		 * Adds a pre value.
+		 *
+		 * @param pre
+		 *            pre value
+		 */
+		void add(final int pre) {
+			if (size == nodes.length)
+				nodes = Arrays.copyOf(nodes, size << 1);
+			nodes[size++] = pre;
+		}
+
+		/**
+		 * Sorts the pre values and removes duplicates.
+		 */
+		void sort() {
+			Arrays.sort(nodes, 0, size);
+			int w = 0;
+			for (int i = 0; i < size; i++) {
+				if (w == 0 || nodes[w - 1] != nodes[i])
+					nodes[w++] = nodes[i];
+			}
+			size = w;
+		}
+	}
+}
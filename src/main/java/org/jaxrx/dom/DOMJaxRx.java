@@ -5,48 +5,82 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
 import javax.ws.rs.core.StreamingOutput;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
+import org.jaxrx.Bulk;
 import org.jaxrx.JaxRx;
+import org.jaxrx.Measurable;
+import org.jaxrx.Patchable;
+import org.jaxrx.Versioned;
+import org.jaxrx.core.Archive;
+import org.jaxrx.core.DOMSerializer;
 import org.jaxrx.core.JaxRxException;
+import org.jaxrx.core.Locks;
+import org.jaxrx.core.Metrics;
+import org.jaxrx.core.Precondition;
+import org.jaxrx.core.Precompressed;
 import org.jaxrx.core.QueryParameter;
 import org.jaxrx.core.ResourcePath;
 import org.jaxrx.core.ResponseBuilder;
+import org.jaxrx.core.SAXOutput;
+import org.jaxrx.core.SAXWriter;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
 
 /* TODO comments missing. */
 
 @SuppressWarnings("all")
-public final class DOMJaxRx implements JaxRx {
+public final class DOMJaxRx implements JaxRx, Versioned, Bulk, Patchable,
+		Measurable {
+	/**
+	 * Xerces feature for deferred node expansion.
+	 */
+	private static final String DEFER_NODE_EXPANSION = "http://apache.org/xml/features/dom/defer-node-expansion";
+
+	/**
+	 * Read/write locks for the stored documents. Readers work on immutable
+	 * revisions and need no locks; writers of the same document are
+	 * serialized via the write lock.
+	 */
+	private static final Locks LOCKS = new Locks();
+
+	/**
+	 * Namespace URI of the result wrapper.
+	 */
+	private static final String JAXRX = "http://jaxrx.org/";
+
 	@Override
 	public Set<QueryParameter> getParameters() {
 		final Set<QueryParameter> params = new HashSet<QueryParameter>();
 		params.add(QueryParameter.QUERY);
 		params.add(QueryParameter.WRAP);
+		params.add(QueryParameter.REVISION);
+		params.add(QueryParameter.START);
+		params.add(QueryParameter.COUNT);
+		params.add(QueryParameter.SEARCH);
+		params.add(QueryParameter.ATOMIC);
 		return params;
 	}
 
 	@Override
-	public synchronized StreamingOutput get(final ResourcePath path) {
+	public StreamingOutput get(final ResourcePath path) {
+		final String search = path.getValue(QueryParameter.SEARCH);
+		if (search != null)
+			return results(search, true, path);
+
 		StreamingOutput sOutput = null;
 		if (path.getDepth() == 0) {
 			final Set<String> docNames = DOMs.getAllDOMs();
@@ -56,61 +90,147 @@ public final class DOMJaxRx implements JaxRx {
 			}
 			sOutput = ResponseBuilder.buildDOMResponse(docNamesRes);
 		} else {
-			final Document currentDoc = DOMs.getDOM(root(path));
-			if (currentDoc == null)
+			final Revision revision = revision(path);
+			if (revision == null)
 				throw new JaxRxException(HttpURLConnection.HTTP_NOT_FOUND,
 						"Requested resource is not available");
-			else
-				sOutput = ResponseBuilder.createStream(currentDoc);
+			sOutput = new RevisionOutput(revision);
 		}
 		return sOutput;
 	}
 
 	@Override
-	public synchronized StreamingOutput query(final String query, final ResourcePath path) {
-		final XPathFactory xpathFac = XPathFactory.newInstance();
-		final XPath xpath = xpathFac.newXPath();
+	public StreamingOutput query(final String query, final ResourcePath path) {
+		if (path.getValue(QueryParameter.SEARCH) != null)
+			throw new JaxRxException(400,
+					"Queries cannot be combined with full-text searches.");
+		return results(query, false, path);
+	}
+
+	/**
+	 * Returns the results of a query or a full-text search. Requests on the
+	 * root are evaluated on all documents.
+	 *
+	 * @param query
+	 *            query, or search string
+	 * @param search
+	 *            indicates if the query is a full-text search string
+	 * @param path
+	 *            path info
+	 * @return results
+	 */
+	private StreamingOutput results(final String query, final boolean search,
+			final ResourcePath path) {
+		// pin the requested revision; it will not change while it is evaluated
+		final Revision revision = path.getDepth() == 0 ? null : pin(path);
+		// results are counted from 1
+		final int start = number(path, QueryParameter.START, 1);
+		final int count = number(path, QueryParameter.COUNT, Integer.MAX_VALUE);
+		final boolean paging = path.getValue(QueryParameter.START) != null
+				|| path.getValue(QueryParameter.COUNT) != null;
+		final boolean wrap = path.getValue(QueryParameter.WRAP) == null
+				|| path.getValue(QueryParameter.WRAP).equals("yes");
 
-		return new StreamingOutput() {
+		return new SAXOutput() {
 			@Override
 			public void write(final OutputStream output) throws IOException {
-				final Document currentDoc = path.getDepth() == 0 ? null : DOMs
-						.getDOM(root(path));
+				final List<Hits> hits = evaluate();
+				// skipped nodes will never be serialized
+				final long serial = System.nanoTime();
+				final int size = size(hits);
+				final int first = Math.min(start - 1, size);
+				final int last = (int) Math.min((long) first + count, size);
+				final DOMSerializer ser = new DOMSerializer(output);
 				try {
-					final NodeList resultNodeList = (NodeList) xpath.evaluate(
-							query, currentDoc, XPathConstants.NODESET);
-
-					final Transformer transformer = TransformerFactory
-							.newInstance().newTransformer();
-					final Map<QueryParameter, String> params = path
-							.getQueryParameter();
-					final boolean wrap = path.getValue(QueryParameter.WRAP) == null
-							|| path.getValue(QueryParameter.WRAP).equals("yes");
-					transformer.setOutputProperty(
-							OutputKeys.OMIT_XML_DECLARATION, "yes");
 					if (wrap) {
-						output
-								.write("<jaxrx:result xmlns:jaxrx=\"http://jaxrx.org/\">"
-										.getBytes());
+						ser.markup("<jaxrx:result xmlns:jaxrx=\"" + JAXRX + "\"");
+						if (paging) {
+							ser.markup(last < size ? " more=\"yes\""
+									: " more=\"no\"");
+						}
+						ser.markup(">");
 					}
-					for (int i = 0; i < resultNodeList.getLength(); i++) {
-						final Node node = resultNodeList.item(i);
-						transformer.transform(new DOMSource(node),
-								new StreamResult(output));
+					int offset = 0;
+					for (final Hits h : hits) {
+						final int from = Math.max(first - offset, 0);
+						final int to = Math.min(last - offset, h.size());
+						for (int i = from; i < to; i++)
+							h.serialize(i, ser);
+						offset += h.size();
+						if (offset >= last)
+							break;
 					}
 					if (wrap)
-						output.write("</jaxrx:result>".getBytes());
+						ser.markup("</jaxrx:result>");
+					ser.finish();
+				} finally {
+					ser.abort();
+				}
+				Metrics.phase(Metrics.Phase.SERIALIZE, serial);
+			}
+
+			@Override
+			public void write(final ContentHandler handler) throws SAXException {
+				final List<Hits> hits = evaluate();
+				final long serial = System.nanoTime();
+				final int size = size(hits);
+				final int first = Math.min(start - 1, size);
+				final int last = (int) Math.min((long) first + count, size);
+				final SAXWriter sax = new SAXWriter(handler).startDocument();
+				if (wrap) {
+					if (paging) {
+						sax.startElement("jaxrx:result", "xmlns:jaxrx", JAXRX,
+								"more", last < size ? "yes" : "no");
+					} else {
+						sax.startElement("jaxrx:result", "xmlns:jaxrx", JAXRX);
+					}
+				}
+				int offset = 0;
+				for (final Hits h : hits) {
+					final int from = Math.max(first - offset, 0);
+					final int to = Math.min(last - offset, h.size());
+					for (int i = from; i < to; i++)
+						h.serialize(i, sax);
+					offset += h.size();
+					if (offset >= last)
+						break;
+				}
+				if (wrap)
+					sax.endElement();
+				sax.endDocument();
+				Metrics.phase(Metrics.Phase.SERIALIZE, serial);
+			}
+
+			/**
+			 * Evaluates the query or search.
+			 *
+			 * @return hits
+			 */
+			private List<Hits> evaluate() {
+				try {
+					final long time = System.nanoTime();
+					final List<Hits> hits;
+					if (revision == null) {
+						// queries on the root are evaluated on all documents;
+						// one more result is needed to find out if there are more
+						hits = new CollectionQuery(query, search, (long) start - 1
+								+ count + (paging && wrap ? 1 : 0)).evaluate();
+					} else if (search) {
+						hits = Collections.singletonList(Hits.search(revision,
+								query));
+					} else {
+						// only the first node is requested, and no wrapper
+						// reports further results: stop evaluation as soon as
+						// the first node has been found
+						hits = Collections.singletonList(Hits.evaluate(revision,
+								query, start == 1 && count == 1 && !wrap));
+					}
+					Metrics.phase(Metrics.Phase.EVALUATE, time);
+					return hits;
 				} catch (final XPathExpressionException exce) {
 					throw new JaxRxException(400, exce.getMessage());
-				} catch (final TransformerConfigurationException exce) {
-					throw new JaxRxException(500, exce.getMessage());
-				} catch (final TransformerFactoryConfigurationError exce) {
-					throw new JaxRxException(500, exce.getMessage());
-				} catch (final TransformerException exce) {
-					throw new JaxRxException(500, exce.getMessage());
 				}
 			}
-
 		};
 
 	}
@@ -125,33 +245,344 @@ public final class DOMJaxRx implements JaxRx {
 		return null;
 	}
 
+	/**
+	 * Appends the posted fragment as last child to the root element of the
+	 * addressed document, or to the single element that is selected by the
+	 * {@link QueryParameter#QUERY} parameter. A new revision is created from
+	 * the current one: compact documents are extended by copying their node
+	 * arrays, and DOM documents are cloned, so that the existing document is
+	 * never parsed again. The indexes of the new revision are still built
+	 * from the complete document, and the complete document is persisted
+	 * (see {@link DOMs#putDOM(Document, CompactDocument, String)}).
+	 */
 	@Override
-	public synchronized String add(final InputStream input, final ResourcePath path) {
-	  return "Nothing done";
+	public String add(final InputStream input, final ResourcePath path) {
+		final String name = root(path);
+		final String target = path.getValue(QueryParameter.QUERY);
+		try {
+			// parse fragment before locking the resource
+			final StreamParser parser = new StreamParser().parse(input);
+			final Document frag = parser.dom();
+			final CompactDocument cfrag = parser.compact();
+			final Lock lock = LOCKS.get(name).writeLock();
+			lock.lock();
+			try {
+				check(path, name);
+				final Revision rev = DOMs.getRevision(name);
+				if (rev == null)
+					throw new JaxRxException(404, "Resource not found: " + path);
+				final CompactDocument cmp = rev.compact();
+				if (cmp != null) {
+					final int pre = target(cmp, target);
+					if (pre != -1) {
+						DOMs.putDOM(null, cmp.insert(pre, cfrag), name);
+					} else {
+						// target cannot be found on the compact document
+						final Document doc = cmp.toDOM();
+						append(doc, target, cfrag.toDOM());
+						DOMs.putDOM(doc, name);
+					}
+				} else {
+					// the DOM of the revision is a private copy
+					final Document doc = rev.dom();
+					append(doc, target, frag);
+					DOMs.putDOM(doc, name);
+				}
+			} finally {
+				lock.unlock();
+			}
+			DOMs.sync();
+			return "Fragment added.";
+		} catch (final ParserConfigurationException exc) {
+			throw new JaxRxException(exc);
+		} catch (final SAXException exc) {
+			throw new JaxRxException(400, exc.getMessage());
+		} catch (final XPathExpressionException exc) {
+			throw new JaxRxException(400, exc.getMessage());
+		} catch (final IOException exc) {
+			throw new JaxRxException(exc);
+		}
+	}
+
+	/**
+	 * Returns the element of a compact document to which a fragment will be
+	 * added.
+	 *
+	 * @param cmp
+	 *            compact document
+	 * @param target
+	 *            target path, or {@code null} for the root element
+	 * @return pre value, or {@code -1} if the path cannot be evaluated on the
+	 *         compact document
+	 */
+	private static int target(final CompactDocument cmp, final String target) {
+		if (target == null)
+			return cmp.root();
+		final CompactPath cp = CompactPath.parse(target);
+		final int[] pres = cp == null ? null : cp.evaluate(cmp);
+		if (pres == null)
+			return -1;
+		if (pres.length != 1 || cmp.kind(pres[0]) != CompactDocument.ELEM)
+			throw new JaxRxException(400, "Target must be a single element: "
+					+ target);
+		return pres[0];
+	}
+
+	/**
+	 * Appends the root element of a fragment to the target of a document.
+	 *
+	 * @param doc
+	 *            document, which is modified
+	 * @param target
+	 *            target path, or {@code null} for the root element
+	 * @param frag
+	 *            fragment
+	 * @throws XPathExpressionException
+	 *             if the target path is invalid
+	 */
+	private static void append(final Document doc, final String target,
+			final Document frag) throws XPathExpressionException {
+		Node node = doc.getDocumentElement();
+		if (target != null) {
+			final NodeList nodes = (NodeList) XPathCache.get(target, null)
+					.evaluate(doc, XPathConstants.NODESET);
+			if (nodes.getLength() != 1
+					|| nodes.item(0).getNodeType() != Node.ELEMENT_NODE)
+				throw new JaxRxException(400,
+						"Target must be a single element: " + target);
+			node = nodes.item(0);
+		}
+		node.appendChild(doc.importNode(frag.getDocumentElement(), true));
 	}
 
 	@Override
-	public synchronized String update(final InputStream input, final ResourcePath path) {
+	public String update(final InputStream input, final ResourcePath path) {
+		final String name = root(path);
 		try {
-			final Document document = DocumentBuilderFactory.newInstance()
-					.newDocumentBuilder().parse(input);
-			DOMs.putDOM(document, root(path));
+			// parse document before locking the resource
+			final StreamParser parser = new StreamParser().parse(input);
+			final Document dom = parser.dom();
+			final CompactDocument cmp = parser.compact();
+			final Lock lock = LOCKS.get(name).writeLock();
+			lock.lock();
+			try {
+				check(path, name);
+				DOMs.putDOM(dom, cmp, name);
+			} finally {
+				lock.unlock();
+			}
+			// wait for the group commit of the write-ahead log
+			DOMs.sync();
       return "Document updated.";
 		} catch (final ParserConfigurationException exc) {
 			throw new JaxRxException(exc);
 		} catch (final SAXException exc) {
-			throw new JaxRxException(exc);
+			throw new JaxRxException(400, exc.getMessage());
 		} catch (final IOException exc) {
 			throw new JaxRxException(exc);
 		}
 	}
 
+	@Override
+	public String patch(final Document update, final ResourcePath path) {
+		final String name = root(path);
+		final Lock lock = LOCKS.get(name).writeLock();
+		lock.lock();
+		try {
+			check(path, name);
+			final Revision rev = DOMs.getRevision(name);
+			if (rev == null)
+				throw new JaxRxException(404, "Resource not found: " + path);
+			final CompactDocument cmp = rev.compact();
+			final Patch patch = new Patch(update).apply(cmp, cmp == null ? rev
+					.dom() : null);
+			if (patch.compact() != null)
+				DOMs.putDOM(null, patch.compact(), name);
+			else
+				DOMs.putDOM(patch.dom(), name);
+		} catch (final XPathExpressionException exc) {
+			throw new JaxRxException(400, exc.getMessage());
+		} finally {
+			lock.unlock();
+		}
+		DOMs.sync();
+		return "Document updated.";
+	}
+
 	@Override
 	public String delete(final ResourcePath path) {
-		DOMs.deleteDOM(root(path));
+		final String name = root(path);
+		final Lock lock = LOCKS.get(name).writeLock();
+		lock.lock();
+		try {
+			check(path, name);
+			DOMs.deleteDOM(name);
+		} finally {
+			lock.unlock();
+		}
+		DOMs.sync();
     return "Document deleted.";
 	}
 
+	@Override
+	public StreamingOutput bulk(final Archive archive, final boolean atomic) {
+		return new BulkLoad(LOCKS, atomic).run(archive);
+	}
+
+	/**
+	 * Checks the preconditions of a write operation with the current version
+	 * of the specified document. Must be called while the document is locked.
+	 *
+	 * @param path
+	 *            path info
+	 * @param name
+	 *            name of the document
+	 */
+	private static void check(final ResourcePath path, final String name) {
+		final Precondition pre = path.getPrecondition();
+		if (pre != null) {
+			final Revision rev = DOMs.getRevision(name);
+			pre.check(rev == null ? -1 : rev.version);
+		}
+	}
+
+	/**
+	 * Parses the specified input to a document. Deferred node expansion is
+	 * disabled, as stored documents are copied by concurrent readers (see
+	 * {@link Revision#dom()}), and the lazily expanded nodes of the Xerces
+	 * DOM must not be accessed by several threads.
+	 *
+	 * @param input
+	 *            input stream
+	 * @return document
+	 * @throws ParserConfigurationException
+	 *             parser configuration exception
+	 * @throws SAXException
+	 *             if the input is no well-formed XML
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	static Document parse(final InputStream input)
+			throws ParserConfigurationException, SAXException, IOException {
+		final DocumentBuilderFactory dbf = DocumentBuilderFactory
+				.newInstance();
+		dbf.setFeature(DEFER_NODE_EXPANSION, false);
+		return dbf.newDocumentBuilder().parse(input);
+	}
+
+	@Override
+	public long getVersion(final ResourcePath path) {
+		if (path.getDepth() == 0)
+			return DOMs.version();
+		if (path.getDepth() != 1)
+			return -1;
+		final Revision revision = revision(path);
+		return revision == null ? -1 : revision.version;
+	}
+
+	@Override
+	public long getModified(final ResourcePath path) {
+		if (path.getDepth() == 0)
+			return DOMs.modified();
+		if (path.getDepth() != 1)
+			return -1;
+		final Revision revision = revision(path);
+		return revision == null ? -1 : revision.modified;
+	}
+
+	@Override
+	public Map<String, Long> getCounters() {
+		final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+		counters.put("documents", (long) DOMs.getAllDOMs().size());
+		counters.put("xpath_cache_hits_total", XPathCache.hits());
+		counters.put("xpath_cache_misses_total", XPathCache.misses());
+		counters.put("bloom_checked_total", Bloom.checked());
+		counters.put("bloom_pruned_total", Bloom.pruned());
+		final WriteAheadLog log = DOMs.log();
+		if (log != null) {
+			counters.put("wal_records_total", log.count());
+			counters.put("wal_batches_total", log.batches());
+			counters.put("wal_position_bytes", log.position());
+		}
+		final Snapshots snapshots = DOMs.snapshots();
+		if (snapshots != null) {
+			counters.put("snapshots_total", snapshots.count());
+			counters.put("snapshot_failures_total", snapshots.failures());
+			counters.put("snapshot_duration_milliseconds", snapshots
+					.duration());
+			counters.put("snapshot_bytes", snapshots.size());
+			counters.put("recovery_duration_milliseconds", snapshots
+					.recovery());
+		}
+		return counters;
+	}
+
+	/**
+	 * Returns the existing revision of the specified path. If the
+	 * {@link QueryParameter#REVISION} parameter is specified, the requested
+	 * revision is returned.
+	 *
+	 * @param path
+	 *            path
+	 * @return revision
+	 */
+	private static Revision pin(final ResourcePath path) {
+		final Revision revision = revision(path);
+		if (revision == null)
+			throw new JaxRxException(HttpURLConnection.HTTP_NOT_FOUND,
+					"Requested resource is not available");
+		return revision;
+	}
+
+	/**
+	 * Returns the revision of the specified path. If the
+	 * {@link QueryParameter#REVISION} parameter is specified, the requested
+	 * revision is returned.
+	 *
+	 * @param path
+	 *            path
+	 * @return revision, or {@code null} if the resource or revision does not
+	 *         exist
+	 */
+	private static Revision revision(final ResourcePath path) {
+		final String name = root(path);
+		final String rev = path.getValue(QueryParameter.REVISION);
+		if (rev == null)
+			return DOMs.getRevision(name);
+		try {
+			return DOMs.getRevision(name, Integer.parseInt(rev));
+		} catch (final NumberFormatException ex) {
+			throw new JaxRxException(400, "Invalid revision: " + rev);
+		}
+	}
+
+	/**
+	 * Returns the positive integer value of the specified parameter.
+	 *
+	 * @param path
+	 *            path
+	 * @param param
+	 *            parameter
+	 * @param def
+	 *            default value, which is returned if the parameter is missing
+	 * @return value
+	 */
+	private static int number(final ResourcePath path,
+			final QueryParameter param, final int def) {
+		final String val = path.getValue(param);
+		if (val == null)
+			return def;
+		try {
+			final int num = Integer.parseInt(val.trim());
+			if (num > 0)
+				return num;
+		} catch (final NumberFormatException ex) {
+			// invalid number, handled below
+		}
+		throw new JaxRxException(400, "Invalid value for parameter '"
+				+ param.toString().toLowerCase() + "': " + val);
+	}
+
 	/**
 	 * Returns the root resource of the specified path.
 	 *
@@ -164,4 +595,57 @@ public final class DOMJaxRx implements JaxRx {
 			return path.getResourcePath();
 		throw new JaxRxException(404, "Resource not found: " + path);
 	}
+
+	/**
+	 * Returns the total number of hits.
+	 *
+	 * @param hits
+	 *            hits
+	 * @return number of hits
+	 */
+	private static int size(final List<Hits> hits) {
+		int size = 0;
+		for (final Hits h : hits)
+			size += h.size();
+		return size;
+	}
+
+	/**
+	 * Output of a stored document, which provides a compressed
+	 * representation and can be passed on as SAX events.
+	 */
+	private static final class RevisionOutput implements Precompressed,
+			SAXOutput {
+		/** Revision. */
+		private final Revision revision;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param rev
+		 *            revision
+		 */
+		RevisionOutput(final Revision rev) {
+			revision = rev;
+		}
+
+		@Override
+		public void write(final OutputStream output) throws IOException {
+			final long time = System.nanoTime();
+			revision.write(output);
+			Metrics.phase(Metrics.Phase.SERIALIZE, time);
+		}
+
+		@Override
+		public void write(final ContentHandler handler) throws SAXException {
+			final long time = System.nanoTime();
+			revision.write(handler);
+			Metrics.phase(Metrics.Phase.SERIALIZE, time);
+		}
+
+		@Override
+		public byte[] gzip() throws IOException {
+			return revision.gzip();
+		}
+	}
 }
@@ -1,35 +1,587 @@
 package org.jaxrx.dom;
 
-import java.util.HashMap;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.jaxrx.core.JaxRxException;
 import org.w3c.dom.Document;
 
-/* TODO comments missing. */
-
-@SuppressWarnings("all")
+/**
+ * This class stores the documents of the DOM implementation. Each document is
+ * kept as an immutable array of {@link Revision} instances, ordered from the
+ * oldest to the newest revision. Updates publish a new array, so that readers
+ * can pin a revision without locking, while writers of the same document are
+ * expected to be serialized by the caller. The number of retained revisions
+ * per document can be specified via the system property {@link #REVISIONS};
+ * older revisions are dropped and garbage-collected. The system property
+ * {@link #STORAGE} chooses the representation of stored documents:
+ * {@code compact} (default) converts documents to a {@link CompactDocument},
+ * which needs less memory, allows faster evaluation of simple paths and can
+ * be read by concurrent readers, and {@code dom} keeps the parsed DOM. As the
+ * DOM is not thread-safe even if it is only read, each reader is given its
+ * own copy of a DOM (see {@link Revision#dom()}). If the system property {@link #STORE}
+ * specifies a directory, all revisions are persisted in a
+ * {@link DocumentStore} in this directory, which is reopened on startup. If
+ * a {@link WriteAheadLog} is configured, all modifications are logged, and
+ * writers can wait for their modifications to become durable via
+ * {@link #sync()}. If {@link Snapshots} are configured, the newest snapshot is
+ * restored on startup. Afterwards, the revisions of the store and the logged
+ * modifications are replayed, skipping all modifications that are older than
+ * the restored revision of a document.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
 final class DOMs {
+	/**
+	 * System property for the number of retained revisions per document.
+	 */
+	static final String REVISIONS = "org.jaxrx.dom.revisions";
+
+	/**
+	 * System property for the storage engine ({@code dom} or {@code compact}).
+	 */
+	static final String STORAGE = "org.jaxrx.dom.storage";
+
+	/**
+	 * Flag for the compact storage engine.
+	 */
+	private static final boolean COMPACT = "compact".equals(System
+			.getProperty(STORAGE, "compact"));
+
+	/**
+	 * System property for the directory of the persistent store.
+	 */
+	static final String STORE = "org.jaxrx.dom.store";
+
+	/**
+	 * Number of retained revisions per document.
+	 */
+	private static final int RETAIN = Math.max(1, Integer.getInteger(
+			REVISIONS, 5));
+
+	/**
+	 * Stored documents.
+	 */
+	private static final ConcurrentMap<String, Revision[]> DOMS = new ConcurrentHashMap<String, Revision[]>();
+
+	/**
+	 * Version counter. It is incremented before a new revision is created and
+	 * after a document has been published or deleted, so that the version of
+	 * the whole store changes with every modification.
+	 */
+	private static final AtomicLong VERSION = new AtomicLong();
+
+	/**
+	 * Lock for publishing revisions. Revisions are published with the write
+	 * lock, and readers that pin the revisions of all documents hold the read
+	 * lock, so that documents published together are seen together.
+	 */
+	private static final ReadWriteLock PUBLISH = new ReentrantReadWriteLock();
+
+	/**
+	 * Time of the last modification of the store.
+	 */
+	private static volatile long modified = System.currentTimeMillis();
+
+	/**
+	 * Persistent store, or {@code null}.
+	 */
+	private static final DocumentStore PERSISTENT;
+
+	/**
+	 * Write-ahead log, or {@code null}.
+	 */
+	private static final WriteAheadLog LOG;
+
+	/**
+	 * Snapshots, or {@code null}.
+	 */
+	private static final Snapshots SNAPSHOTS = Snapshots.open();
+
+	static {
+		try {
+			final String dir = System.getProperty(STORE);
+			PERSISTENT = dir == null ? null : new DocumentStore(new File(dir));
+			LOG = WriteAheadLog.open();
+		} catch (final IOException ex) {
+			throw new JaxRxException(ex);
+		}
+		restore();
+		if (SNAPSHOTS != null)
+			SNAPSHOTS.start(LOG);
+	}
+
 	/**
 	 * Private constructor.
 	 */
 	private DOMs() {
 	}
 
-	private static final Map<String, Document> DOMS = new HashMap<String, Document>();
+	/**
+	 * Publishes the specified document as new revision.
+	 *
+	 * @param doc
+	 *            document, which must not be modified afterwards
+	 * @param name
+	 *            name of the document
+	 * @return new revision
+	 */
+	static Revision putDOM(final Document doc, final String name) {
+		return putDOM(COMPACT ? null : doc, COMPACT ? CompactDocument.of(doc)
+				: null, name);
+	}
+
+	/**
+	 * Publishes a document that has been parsed into the stored
+	 * representation (see {@link StreamParser}) as new revision.
+	 * The attribute indexes and the full-text index of compact documents and
+	 * the {@link Bloom} filter of the revision are created before the
+	 * revision is published (see {@link AttributeIndex} and
+	 * {@link FullTextIndex}).
+	 * <p>
+	 * The indexes are always built from the complete document, even if the
+	 * revision was derived from its predecessor by a small update: they
+	 * address nodes by their pre values, which are shifted by every insert or
+	 * deletion. Likewise, the complete document is serialized and written to
+	 * the store and to the write-ahead log. The costs of publishing a
+	 * revision are thus proportional to the size of the document; updates
+	 * only avoid parsing it again.
+	 * </p>
+	 *
+	 * @param dom
+	 *            document if the compact storage is disabled, or {@code null}
+	 * @param cmp
+	 *            compact document if the compact storage is enabled, or
+	 *            {@code null}
+	 * @param name
+	 *            name of the document
+	 * @return new revision
+	 */
+	static Revision putDOM(final Document dom, final CompactDocument cmp,
+			final String name) {
+		return putDOMs(Collections.singletonList(name), Collections
+				.singletonList(dom), Collections.singletonList(cmp)).get(0);
+	}
+
+	/**
+	 * Publishes several documents together, as described in
+	 * {@link #putDOM(Document, CompactDocument, String)}. All revisions are
+	 * prepared and persisted before any of them is published; if this fails,
+	 * no document is changed. Several revisions are then published while
+	 * holding the write lock of {@link #PUBLISH}, so that readers pinning the
+	 * revisions of all documents see either all or none of them, and they
+	 * are written to the write-ahead log in a single batch. The caller must
+	 * hold the write locks of all documents.
+	 *
+	 * @param names
+	 *            distinct names of the documents
+	 * @param doms
+	 *            documents if the compact storage is disabled, or
+	 *            {@code null} entries
+	 * @param cmps
+	 *            compact documents if the compact storage is enabled, or
+	 *            {@code null} entries
+	 * @return new revisions
+	 */
+	static List<Revision> putDOMs(final List<String> names,
+			final List<Document> doms, final List<CompactDocument> cmps) {
+		final int n = names.size();
+		final long time = System.currentTimeMillis();
+		final Revision[] revs = new Revision[n];
+		final byte[][] data = new byte[n][];
+		try {
+			for (int i = 0; i < n; i++) {
+				// lookups on the published revision never scan the document;
+				// the indexes are rebuilt for each revision (see putDOM)
+				final CompactDocument cmp = cmps.get(i);
+				if (cmp != null) {
+					AttributeIndex.prepare(cmp);
+					FullTextIndex.prepare(cmp);
+				}
+				final Revision[] old = DOMS.get(names.get(i));
+				final int number = old == null ? 0
+						: old[old.length - 1].number + 1;
+				revs[i] = new Revision(number, VERSION.incrementAndGet(), time,
+						null, doms.get(i), cmp);
+				if (PERSISTENT != null || LOG != null) {
+					final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					revs[i].write(bytes);
+					data[i] = bytes.toByteArray();
+				}
+				// the filter is created while the document is still referenced
+				revs[i].bloom();
+			}
+			if (PERSISTENT != null) {
+				// the revisions become visible in the store when they are indexed
+				final List<DocumentStore.Entry> entries = new ArrayList<DocumentStore.Entry>();
+				for (int i = 0; i < n; i++) {
+					entries.add(PERSISTENT.append(names.get(i), revs[i].number,
+							revs[i].version, time, data[i]));
+				}
+				PERSISTENT.index(entries);
+				// persisted documents are sent to clients from the store
+				for (int i = 0; i < n; i++)
+					revs[i] = revs[i].stored(PERSISTENT.data(entries.get(i)));
+			}
+		} catch (final IOException ex) {
+			throw new JaxRxException(ex);
+		}
+
+		// single revisions are published without locking
+		final Lock lock = n > 1 ? PUBLISH.writeLock() : null;
+		if (lock != null)
+			lock.lock();
+		try {
+			for (int i = 0; i < n; i++)
+				add(names.get(i), revs[i]);
+			modified = time;
+			VERSION.incrementAndGet();
+		} finally {
+			if (lock != null)
+				lock.unlock();
+		}
+		// the revisions are logged after they have been published, so that
+		// they will be contained in all snapshots started after they have
+		// been logged
+		if (LOG != null) {
+			final List<WriteAheadLog.Record> records = new ArrayList<WriteAheadLog.Record>();
+			for (int i = 0; i < n; i++) {
+				records.add(new WriteAheadLog.Record(WriteAheadLog.PUT, names
+						.get(i), revs[i].number, revs[i].version, time, data[i]));
+			}
+			try {
+				LOG.put(records);
+			} catch (final IOException ex) {
+				throw new JaxRxException(ex);
+			}
+		}
+		return Arrays.asList(revs);
+	}
 
-	static void putDOM(final Document doc, final String name) {
-		DOMS.put(name, doc);
+	/**
+	 * Adds a revision to the revisions of the specified document, dropping
+	 * revisions that exceed the retention limit.
+	 *
+	 * @param name
+	 *            name of the document
+	 * @param rev
+	 *            new revision
+	 */
+	private static void add(final String name, final Revision rev) {
+		final Revision[] old = DOMS.get(name);
+		final Revision[] revs;
+		if (old == null) {
+			revs = new Revision[] { rev };
+		} else {
+			final int keep = Math.min(old.length, RETAIN - 1);
+			revs = new Revision[keep + 1];
+			System.arraycopy(old, old.length - keep, revs, 0, keep);
+			revs[keep] = rev;
+		}
+		DOMS.put(name, revs);
 	}
 
+	/**
+	 * Returns a DOM copy of the latest revision of the specified document.
+	 *
+	 * @param name
+	 *            name of the document
+	 * @return document, or {@code null} if the document does not exist
+	 */
 	static Document getDOM(final String name) {
+		final Revision rev = getRevision(name);
+		return rev == null ? null : rev.dom();
+	}
+
+	/**
+	 * Returns the latest revision of the specified document.
+	 *
+	 * @param name
+	 *            name of the document
+	 * @return revision, or {@code null} if the document does not exist
+	 */
+	static Revision getRevision(final String name) {
+		final Revision[] revs = DOMS.get(name);
+		return revs == null ? null : revs[revs.length - 1];
+	}
+
+	/**
+	 * Returns the latest revisions of all documents, ordered by the names of
+	 * the documents. Documents that are published together are either all
+	 * included in their new revisions or all in their previous state.
+	 *
+	 * @return revisions
+	 */
+	static List<Revision> pin() {
+		final Map<String, Revision> revs = new TreeMap<String, Revision>();
+		final Lock lock = PUBLISH.readLock();
+		lock.lock();
+		try {
+			for (final Map.Entry<String, Revision[]> e : DOMS.entrySet())
+				revs.put(e.getKey(), e.getValue()[e.getValue().length - 1]);
+		} finally {
+			lock.unlock();
+		}
+		return new ArrayList<Revision>(revs.values());
+	}
+
+	/**
+	 * Returns all retained revisions of the specified document.
+	 *
+	 * @param name
+	 *            name of the document
+	 * @return revisions, ordered from the oldest to the newest revision, or
+	 *         {@code null} if the document does not exist
+	 */
+	static Revision[] getRevisions(final String name) {
 		return DOMS.get(name);
 	}
 
+	/**
+	 * Returns the specified revision of a document.
+	 *
+	 * @param name
+	 *            name of the document
+	 * @param number
+	 *            revision number
+	 * @return revision, or {@code null} if the document does not exist or
+	 *         the revision is not available
+	 */
+	static Revision getRevision(final String name, final int number) {
+		final Revision[] revs = DOMS.get(name);
+		if (revs == null)
+			return null;
+		final int r = number - revs[0].number;
+		return r >= 0 && r < revs.length ? revs[r] : null;
+	}
+
+	/**
+	 * Deletes all revisions of the specified document.
+	 *
+	 * @param name
+	 *            name of the document
+	 * @return {@code true} if the document existed
+	 */
 	static boolean deleteDOM(final String name) {
-		return DOMS.remove(name) != null;
+		final boolean deleted = DOMS.remove(name) != null;
+		final long time = System.currentTimeMillis();
+		final long version = VERSION.incrementAndGet();
+		modified = time;
+		if (deleted) {
+			try {
+				if (PERSISTENT != null)
+					PERSISTENT.delete(name, version, time);
+				if (LOG != null)
+					LOG.delete(name, version, time);
+			} catch (final IOException ex) {
+				throw new JaxRxException(ex);
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Waits until all modifications of the current thread have been written
+	 * to the write-ahead log. Should be called after all locks have been
+	 * released, so that the modifications of concurrent writers can be
+	 * committed together.
+	 */
+	static void sync() {
+		if (LOG == null)
+			return;
+		try {
+			LOG.sync();
+		} catch (final IOException ex) {
+			throw new JaxRxException(ex);
+		}
+	}
+
+	/**
+	 * Waits until all modifications of all threads have been written to the
+	 * write-ahead log. Used by writers that distribute their modifications
+	 * across several threads.
+	 */
+	static void syncAll() {
+		if (LOG == null)
+			return;
+		try {
+			LOG.syncAll();
+		} catch (final IOException ex) {
+			throw new JaxRxException(ex);
+		}
 	}
 
+	/**
+	 * Returns the version of the whole store, which changes whenever a
+	 * document is published or deleted.
+	 *
+	 * @return version
+	 */
+	static long version() {
+		return VERSION.get();
+	}
+
+	/**
+	 * Returns the time when a document was last published or deleted.
+	 *
+	 * @return modification time
+	 */
+	static long modified() {
+		return modified;
+	}
+
+	/**
+	 * Returns the names of all stored documents.
+	 *
+	 * @return document names
+	 */
 	static Set<String> getAllDOMs() {
 		return DOMS.keySet();
 	}
+
+	/**
+	 * Returns the write-ahead log.
+	 *
+	 * @return log, or {@code null}
+	 */
+	static WriteAheadLog log() {
+		return LOG;
+	}
+
+	/**
+	 * Returns the snapshots.
+	 *
+	 * @return snapshots, or {@code null}
+	 */
+	static Snapshots snapshots() {
+		return SNAPSHOTS;
+	}
+
+	/**
+	 * Indicates if the compact storage engine is used.
+	 *
+	 * @return result of check
+	 */
+	static boolean compact() {
+		return COMPACT;
+	}
+
+	/**
+	 * Restores the newest snapshot and replays the revisions of the persistent
+	 * store and the logged modifications. The Bloom filters of the current
+	 * revisions are created from their serializations.
+	 */
+	private static void restore() {
+		try {
+			if (SNAPSHOTS != null)
+				DOMS.putAll(SNAPSHOTS.read());
+			if (PERSISTENT != null) {
+				for (final DocumentStore.Entry e : PERSISTENT.entries()) {
+					if (e.type == DocumentStore.PUT) {
+						replay(e.name, new Revision(e.number, e.version,
+								e.modified, PERSISTENT.data(e), null, null));
+					} else {
+						replay(e.name, e.version);
+					}
+				}
+			}
+			if (LOG != null) {
+				for (final WriteAheadLog.Record r : LOG.records()) {
+					if (r.type == WriteAheadLog.PUT) {
+						if (!newer(r.name, r.version))
+							continue;
+						// documents are parsed when they are first queried
+						final ByteBuffer src = PERSISTENT != null ? PERSISTENT
+								.put(r.name, r.number, r.version, r.modified,
+										r.data) : ByteBuffer.wrap(r.data)
+								.asReadOnlyBuffer();
+						replay(r.name, new Revision(r.number, r.version,
+								r.modified, src, null, null));
+					} else if (replay(r.name, r.version) && PERSISTENT != null) {
+						PERSISTENT.delete(r.name, r.version, r.modified);
+					}
+				}
+			}
+		} catch (final IOException ex) {
+			throw new JaxRxException(ex);
+		}
+		// the filters of the current revisions are created from their
+		// serializations, so that the first query can prune the documents
+		// without parsing them
+		for (final Revision[] revs : DOMS.values())
+			revs[revs.length - 1].bloom();
+		long version = 0;
+		long time = 0;
+		for (final Revision[] revs : DOMS.values()) {
+			for (final Revision rev : revs) {
+				version = Math.max(version, rev.version);
+				time = Math.max(time, rev.modified);
+			}
+		}
+		VERSION.set(Math.max(VERSION.get(), version + 1));
+		if (time != 0)
+			modified = time;
+	}
+
+	/**
+	 * Replays a stored revision, if it is newer than the current revision of
+	 * the document.
+	 *
+	 * @param name
+	 *            name of the document
+	 * @param rev
+	 *            revision
+	 */
+	private static void replay(final String name, final Revision rev) {
+		if (newer(name, rev.version))
+			add(name, rev);
+		VERSION.set(Math.max(VERSION.get(), rev.version + 1));
+	}
+
+	/**
+	 * Replays the deletion of a document, if it is newer than the current
+	 * revision of the document.
+	 *
+	 * @param name
+	 *            name of the document
+	 * @param version
+	 *            version of the deletion
+	 * @return {@code true} if the document was deleted
+	 */
+	private static boolean replay(final String name, final long version) {
+		VERSION.set(Math.max(VERSION.get(), version + 1));
+		return newer(name, version) && DOMS.remove(name) != null;
+	}
+
+	/**
+	 * Checks if the specified version is newer than the current revision of a
+	 * document.
+	 *
+	 * @param name
+	 *            name of the document
+	 * @param version
+	 *            version
+	 * @return result of check
+	 */
+	private static boolean newer(final String name, final long version) {
+		final Revision rev = getRevision(name);
+		return rev == null || rev.version < version;
+	}
 }
@@ -0,0 +1,415 @@
+package org.jaxrx.dom;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * This class persists the serialized documents of the DOM implementation in
+ * memory-mapped files. Documents are appended to segment files, which are
+ * mapped in their full size; every revision or deletion is recorded in an
+ * index file. When a store is reopened, the index is read and the segments
+ * are mapped again, so that the documents are available without being parsed;
+ * they can be sent to clients directly from the mapped pages.
+ *
+ * <p>
+ * The store is append-only: space of dropped revisions and deleted documents
+ * is not reclaimed. Index entries are protected by a checksum; an incomplete
+ * entry at the end of the index, which may result from a crash, is discarded
+ * when the store is opened.
+ * </p>
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+final class DocumentStore {
+	/**
+	 * System property for the size of segment files.
+	 */
+	static final String SEGMENTSIZE = "org.jaxrx.dom.segmentSize";
+
+	/**
+	 * Size of segment files. Larger documents are stored in a segment of their
+	 * own.
+	 */
+	private static final int SEGMENT = Math.max(1 << 12, Integer.getInteger(
+			SEGMENTSIZE, 1 << 26));
+
+	/**
+	 * Name of the index file.
+	 */
+	private static final String INDEX = "index";
+
+	/**
+	 * Entry type: stored revision.
+	 */
+	static final byte PUT = 0;
+
+	/**
+	 * Entry type: deleted document.
+	 */
+	static final byte DELETE = 1;
+
+	/**
+	 * Store directory.
+	 */
+	private final File dir;
+
+	/**
+	 * Mapped segments.
+	 */
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+	/**
+	 * Index entries, read when the store was opened.
+	 */
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	/**
+	 * Output stream of the index file.
+	 */
+	private final FileOutputStream index;
+
+	/**
+	 * Opens or creates a store in the specified directory.
+	 *
+	 * @param directory
+	 *            store directory
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	DocumentStore(final File directory) throws IOException {
+		dir = directory;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Store directory cannot be created: " + dir);
+
+		// read index, and discard an incomplete entry at its end
+		final File file = new File(dir, INDEX);
+		long valid = 0;
+		if (file.exists()) {
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file)));
+			try {
+				while (true) {
+					final Entry entry = Entry.read(in);
+					if (entry == null)
+						break;
+					entries.add(entry);
+					valid += entry.size;
+				}
+			} finally {
+				in.close();
+			}
+			final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				if (raf.length() != valid)
+					raf.setLength(valid);
+			} finally {
+				raf.close();
+			}
+		}
+		index = new FileOutputStream(file, true);
+
+		// map existing segments
+		for (int s = 0;; s++) {
+			final File seg = segment(s);
+			if (!seg.exists())
+				break;
+			segments.add(map(seg, (int) seg.length()));
+		}
+		// continue writing behind the last stored document
+		int pos = 0;
+		for (final Entry e : entries) {
+			if (e.type == PUT && e.segment == segments.size() - 1)
+				pos = Math.max(pos, e.offset + e.length);
+		}
+		if (!segments.isEmpty())
+			segments.get(segments.size() - 1).position(pos);
+	}
+
+	/**
+	 * Returns the index entries that were read when the store was opened, in
+	 * the order in which they were written.
+	 *
+	 * @return index entries
+	 */
+	List<Entry> entries() {
+		return entries;
+	}
+
+	/**
+	 * Returns a read-only view on the data of a stored revision.
+	 *
+	 * @param entry
+	 *            index entry
+	 * @return data
+	 */
+	ByteBuffer data(final Entry entry) {
+		final ByteBuffer bb = segments.get(entry.segment).duplicate();
+		bb.limit(entry.offset + entry.length).position(entry.offset);
+		return bb.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Appends a revision to the store.
+	 *
+	 * @param name
+	 *            name of the document
+	 * @param number
+	 *            revision number
+	 * @param version
+	 *            version
+	 * @param modified
+	 *            modification time
+	 * @param data
+	 *            serialized document
+	 * @return read-only view on the stored data
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	synchronized ByteBuffer put(final String name, final int number,
+			final long version, final long modified, final byte[] data)
+			throws IOException {
+		final Entry entry = append(name, number, version, modified, data);
+		index(Collections.singletonList(entry));
+		return data(entry);
+	}
+
+	/**
+	 * Appends the data of a revision to the current segment, without
+	 * recording it in the index. The revision will be ignored when the store
+	 * is reopened unless its entry is written via {@link #index(List)}.
+	 *
+	 * @param name
+	 *            name of the document
+	 * @param number
+	 *            revision number
+	 * @param version
+	 *            version
+	 * @param modified
+	 *            modification time
+	 * @param data
+	 *            serialized document
+	 * @return index entry
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	synchronized Entry append(final String name, final int number,
+			final long version, final long modified, final byte[] data)
+			throws IOException {
+		MappedByteBuffer seg = segments.isEmpty() ? null : segments
+				.get(segments.size() - 1);
+		if (seg == null || seg.remaining() < data.length) {
+			seg = map(segment(segments.size()), Math.max(SEGMENT, data.length));
+			segments.add(seg);
+		}
+		final Entry entry = new Entry(PUT, name, number, version, modified,
+				segments.size() - 1, seg.position(), data.length);
+		seg.put(data);
+		return entry;
+	}
+
+	/**
+	 * Records appended revisions in the index. All entries are written
+	 * together.
+	 *
+	 * @param list
+	 *            index entries
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	synchronized void index(final List<Entry> list) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (final Entry e : list)
+			bytes.write(e.bytes());
+		index.write(bytes.toByteArray());
+	}
+
+	/**
+	 * Records the deletion of a document.
+	 *
+	 * @param name
+	 *            name of the document
+	 * @param version
+	 *            version
+	 * @param modified
+	 *            modification time
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	synchronized void delete(final String name, final long version,
+			final long modified) throws IOException {
+		index(Collections.singletonList(new Entry(DELETE, name, 0, version,
+				modified, 0, 0, 0)));
+	}
+
+	/**
+	 * Returns the file of the specified segment.
+	 *
+	 * @param s
+	 *            segment number
+	 * @return file
+	 */
+	private File segment(final int s) {
+		return new File(dir, "segment-" + s);
+	}
+
+	/**
+	 * Maps a segment file. The file is extended to the specified size.
+	 *
+	 * @param file
+	 *            segment file
+	 * @param size
+	 *            size of the segment
+	 * @return mapped segment
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private static MappedByteBuffer map(final File file, final int size)
+			throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			// the mapping remains valid after the channel has been closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Index entry.
+	 */
+	static final class Entry {
+		/** Entry type ({@link #PUT} or {@link #DELETE}). */
+		final byte type;
+		/** Document name. */
+		final String name;
+		/** Revision number. */
+		final int number;
+		/** Version. */
+		final long version;
+		/** Modification time. */
+		final long modified;
+		/** Segment number. */
+		final int segment;
+		/** Offset in the segment. */
+		final int offset;
+		/** Length of the serialized document. */
+		final int length;
+		/** Size of the entry in the index file. */
+		int size;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param t
+		 *            entry type
+		 * @param n
+		 *            document name
+		 * @param num
+		 *            revision number
+		 * @param vers
+		 *            version
+		 * @param mod
+		 *            modification time
+		 * @param seg
+		 *            segment number
+		 * @param off
+		 *            offset
+		 * @param len
+		 *            length
+		 */
+		Entry(final byte t, final String n, final int num, final long vers,
+				final long mod, final int seg, final int off, final int len) {
+			type = t;
+			name = n;
+			number = num;
+			version = vers;
+			modified = mod;
+			segment = seg;
+			offset = off;
+			length = len;
+		}
+
+		/**
+		 * Returns the binary representation of this entry: its length, its
+		 * contents and a checksum.
+		 *
+		 * @return bytes
+		 * @throws IOException
+		 *             I/O exception
+		 */
+		byte[] bytes() throws IOException {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(type);
+			out.writeUTF(name);
+			out.writeInt(number);
+			out.writeLong(version);
+			out.writeLong(modified);
+			out.writeInt(segment);
+			out.writeInt(offset);
+			out.writeInt(length);
+			final byte[] content = bytes.toByteArray();
+			final CRC32 crc = new CRC32();
+			crc.update(content);
+
+			final ByteArrayOutputStream entry = new ByteArrayOutputStream();
+			final DataOutputStream eout = new DataOutputStream(entry);
+			eout.writeInt(content.length);
+			eout.write(content);
+			eout.writeInt((int) crc.getValue());
+			size = entry.size();
+			return entry.toByteArray();
+		}
+
+		/**
+		 * Reads an entry.
+		 *
+		 * @param in
+		 *            input stream
+		 * @return entry, or {@code null} if the end of the index has been
+		 *         reached or the entry is incomplete or corrupt
+		 * @throws IOException
+		 *             I/O exception
+		 */
+		static Entry read(final DataInputStream in) throws IOException {
+			try {
+				final int l = in.readInt();
+				if (l <= 0 || l > 1 << 20)
+					return null;
+				final byte[] content = new byte[l];
+				in.readFully(content);
+				final CRC32 crc = new CRC32();
+				crc.update(content);
+				if (in.readInt() != (int) crc.getValue())
+					return null;
+				final DataInputStream cin = new DataInputStream(
+						new ByteArrayInputStream(content));
+				final Entry entry = new Entry(cin.readByte(), cin.readUTF(),
+						cin.readInt(), cin.readLong(), cin.readLong(), cin
+								.readInt(), cin.readInt(), cin.readInt());
+				entry.size = l + 8;
+				return entry;
+			} catch (final EOFException ex) {
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package org.jaxrx.dom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * This class contains an inverted index over the texts and attribute values
+ * of a {@link CompactDocument}. Texts are split into lower-case terms, which
+ * consist of letters and digits. For each term, the pre values of all
+ * elements whose text children or attributes contain the term are stored in
+ * ascending order. The pre values are delta-encoded as variable-length
+ * integers, so that most entries only need a single byte.
+ * <p>
+ * The index is optional and can be enabled via the system property
+ * {@link #ENABLED}. If it is enabled, the index of a document is created
+ * before it is stored (see
+ * {@link DOMs#putDOM(org.w3c.dom.Document, CompactDocument, String)}); for
+ * documents that are not stored in compact form, it is created on the first
+ * search (see {@link Revision#fullText()}). Otherwise, searches scan the
+ * stored representation of the document (see {@link #scan}).
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+final class FullTextIndex {
+	/**
+	 * System property for enabling the index.
+	 */
+	static final String ENABLED = "org.jaxrx.dom.fulltext";
+
+	/**
+	 * Indicates if the index is kept for stored documents.
+	 */
+	private static final boolean USE = Boolean.getBoolean(ENABLED);
+
+	/**
+	 * Encoded posting lists, indexed by terms.
+	 */
+	private final Map<String, byte[]> terms = new HashMap<String, byte[]>();
+
+	/**
+	 * Indexed document.
+	 */
+	private final CompactDocument document;
+
+	/**
+	 * Constructor, which indexes the specified document.
+	 *
+	 * @param doc
+	 *            document
+	 */
+	FullTextIndex(final CompactDocument doc) {
+		document = doc;
+		final Map<String, int[]> lists = new HashMap<String, int[]>();
+		final int n = doc.count();
+		for (int p = 0; p < n; p++) {
+			final byte k = doc.kind(p);
+			if (k != CompactDocument.TEXT && k != CompactDocument.CDATA
+					&& k != CompactDocument.ATTR)
+				continue;
+			final int owner = doc.parent(p);
+			if (doc.kind(owner) != CompactDocument.ELEM)
+				continue;
+			for (final String term : terms(doc.value(p))) {
+				// the first entry of each list contains its size
+				int[] list = lists.get(term);
+				if (list == null || list[0] + 1 == list.length) {
+					list = list == null ? new int[4] : Arrays.copyOf(list,
+							list.length << 1);
+					lists.put(term, list);
+				}
+				list[++list[0]] = owner;
+			}
+		}
+		for (final Map.Entry<String, int[]> e : lists.entrySet())
+			terms.put(e.getKey(), encode(e.getValue()));
+	}
+
+	/**
+	 * Indicates if the index is kept for stored documents.
+	 *
+	 * @return result of check
+	 */
+	static boolean enabled() {
+		return USE;
+	}
+
+	/**
+	 * Creates the index of the specified document, if the index is enabled.
+	 *
+	 * @param doc
+	 *            document
+	 */
+	static void prepare(final CompactDocument doc) {
+		if (USE)
+			doc.fullText();
+	}
+
+	/**
+	 * Returns the indexed document.
+	 *
+	 * @return document
+	 */
+	CompactDocument document() {
+		return document;
+	}
+
+	/**
+	 * Returns all elements whose text children or attributes contain all
+	 * terms of the specified string.
+	 *
+	 * @param string
+	 *            search string
+	 * @return pre values in ascending order
+	 */
+	int[] search(final String string) {
+		final List<int[]> lists = new ArrayList<int[]>();
+		for (final String term : terms(string)) {
+			final byte[] list = terms.get(term);
+			if (list == null)
+				return new int[0];
+			lists.add(decode(list));
+		}
+		if (lists.isEmpty())
+			return new int[0];
+		int[] result = lists.get(0);
+		for (int l = 1; l < lists.size(); l++)
+			result = intersect(result, lists.get(l));
+		return result;
+	}
+
+	/**
+	 * Returns all elements of the specified document whose text children or
+	 * attributes contain all terms of the specified string, without using an
+	 * index.
+	 *
+	 * @param doc
+	 *            document
+	 * @param string
+	 *            search string
+	 * @return pre values in ascending order
+	 */
+	static int[] scan(final CompactDocument doc, final String string) {
+		final Set<String> search = terms(string);
+		final int n = doc.count();
+		final int[] result = new int[search.isEmpty() ? 0 : n];
+		int r = 0;
+		for (int p = 0; p < result.length; p++) {
+			if (doc.kind(p) != CompactDocument.ELEM)
+				continue;
+			final Set<String> missing = new HashSet<String>(search);
+			final int end = p + doc.size(p);
+			for (int c = p + 1; c < end && !missing.isEmpty(); c += doc.size(c)) {
+				final byte k = doc.kind(c);
+				if (k == CompactDocument.TEXT || k == CompactDocument.CDATA
+						|| k == CompactDocument.ATTR)
+					missing.removeAll(terms(doc.value(c)));
+			}
+			if (missing.isEmpty())
+				result[r++] = p;
+		}
+		return Arrays.copyOf(result, r);
+	}
+
+	/**
+	 * Returns all elements of the specified DOM document whose text children
+	 * or attributes contain all terms of the specified string, without using
+	 * an index.
+	 *
+	 * @param doc
+	 *            document
+	 * @param string
+	 *            search string
+	 * @return elements in document order
+	 */
+	static List<Node> scan(final Document doc, final String string) {
+		final Set<String> search = terms(string);
+		final List<Node> result = new ArrayList<Node>();
+		Node node = search.isEmpty() ? null : doc.getDocumentElement();
+		while (node != null) {
+			if (node.getNodeType() == Node.ELEMENT_NODE) {
+				final Set<String> missing = new HashSet<String>(search);
+				final NamedNodeMap atts = node.getAttributes();
+				for (int a = 0; a < atts.getLength() && !missing.isEmpty(); a++)
+					missing.removeAll(terms(atts.item(a).getNodeValue()));
+				for (Node ch = node.getFirstChild(); ch != null
+						&& !missing.isEmpty(); ch = ch.getNextSibling()) {
+					final short t = ch.getNodeType();
+					if (t == Node.TEXT_NODE || t == Node.CDATA_SECTION_NODE)
+						missing.removeAll(terms(ch.getNodeValue()));
+				}
+				if (missing.isEmpty())
+					result.add(node);
+			}
+			// next node in document order
+			Node next = node.getFirstChild();
+			while (next == null && node != null) {
+				next = node.getNextSibling();
+				if (next == null)
+					node = node.getParentNode();
+			}
+			node = next;
+		}
+		return result;
+	}
+
+	/**
+	 * Splits a string into distinct lower-case terms.
+	 *
+	 * @param string
+	 *            string
+	 * @return terms
+	 */
+	static Set<String> terms(final String string) {
+		final Set<String> set = new LinkedHashSet<String>();
+		final int l = string.length();
+		for (int i = 0; i < l;) {
+			while (i < l && !Character.isLetterOrDigit(string.charAt(i)))
+				i++;
+			final int s = i;
+			while (i < l && Character.isLetterOrDigit(string.charAt(i)))
+				i++;
+			if (i > s)
+				set.add(string.substring(s, i).toLowerCase(Locale.ENGLISH));
+		}
+		return set;
+	}
+
+	/**
+	 * Sorts, deduplicates and encodes a posting list.
+	 *
+	 * @param list
+	 *            posting list; the first entry contains the number of pre
+	 *            values
+	 * @return encoded list
+	 */
+	private static byte[] encode(final int[] list) {
+		final int size = list[0];
+		Arrays.sort(list, 1, size + 1);
+		byte[] bytes = new byte[size + 4];
+		int b = 0;
+		int last = -1;
+		for (int i = 1; i <= size; i++) {
+			if (list[i] == last)
+				continue;
+			if (b + 5 > bytes.length)
+				bytes = Arrays.copyOf(bytes, bytes.length << 1);
+			// delta to the previous value, 7 bits per byte
+			int v = list[i] - last;
+			while (v > 0x7F) {
+				bytes[b++] = (byte) (v & 0x7F | 0x80);
+				v >>>= 7;
+			}
+			bytes[b++] = (byte) v;
+			last = list[i];
+		}
+		return Arrays.copyOf(bytes, b);
+	}
+
+	/**
+	 * Decodes a posting list.
+	 *
+	 * @param bytes
+	 *            encoded list
+	 * @return pre values
+	 */
+	private static int[] decode(final byte[] bytes) {
+		final int[] list = new int[bytes.length];
+		int size = 0;
+		int last = -1;
+		for (int b = 0; b < bytes.length;) {
+			int v = 0;
+			int shift = 0;
+			byte by;
+			do {
+				by = bytes[b++];
+				v |= (by & 0x7F) << shift;
+				shift += 7;
+			} while (by < 0);
+			last += v;
+			list[size++] = last;
+		}
+		return Arrays.copyOf(list, size);
+	}
+
+	/**
+	 * Intersects two sorted lists.
+	 *
+	 * @param a
+	 *            first list
+	 * @param b
+	 *            second list
+	 * @return values contained in both lists
+	 */
+	private static int[] intersect(final int[] a, final int[] b) {
+		final int[] r = new int[Math.min(a.length, b.length)];
+		int n = 0;
+		for (int i = 0, j = 0; i < a.length && j < b.length;) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				r[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(r, n);
+	}
+}
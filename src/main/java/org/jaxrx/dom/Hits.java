@@ -0,0 +1,209 @@
+package org.jaxrx.dom;
+
+import java.io.IOException;
+import java.util.List;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import org.jaxrx.core.DOMSerializer;
+import org.jaxrx.core.SAXWriter;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * This class contains the nodes of a single revision that are selected by a
+ * query. Simple paths are evaluated on compact documents; all other queries
+ * are evaluated on the DOM.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+final class Hits {
+	/**
+	 * Compact document, or {@code null}.
+	 */
+	private final CompactDocument compact;
+
+	/**
+	 * Selected nodes of the compact document, or {@code null}.
+	 */
+	private final int[] pres;
+
+	/**
+	 * Selected DOM nodes, or {@code null}.
+	 */
+	private final NodeList nodes;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param c
+	 *            compact document
+	 * @param p
+	 *            selected nodes of the compact document
+	 * @param n
+	 *            selected DOM nodes
+	 */
+	private Hits(final CompactDocument c, final int[] p, final NodeList n) {
+		compact = c;
+		pres = p;
+		nodes = n;
+	}
+
+	/**
+	 * Evaluates a query on the specified revision.
+	 *
+	 * @param revision
+	 *            revision
+	 * @param query
+	 *            query
+	 * @param first
+	 *            only return the first node; evaluation is stopped as soon as
+	 *            it has been found
+	 * @return selected nodes
+	 * @throws XPathExpressionException
+	 *             if the query is invalid or does not yield nodes
+	 */
+	static Hits evaluate(final Revision revision, final String query,
+			final boolean first) throws XPathExpressionException {
+		final CompactDocument cmp = revision.compact();
+		final CompactPath cp = cmp == null ? null : CompactPath.parse(query);
+		final int[] p = cp == null ? null : cp.evaluate(cmp);
+		if (p != null)
+			return new Hits(cmp, p, null);
+
+		final XPathExpression expr = XPathCache.get(query, null);
+		final Document doc = revision.dom();
+		if (first)
+			return new Hits(null, null, new SingleNodeList((Node) expr
+					.evaluate(doc, XPathConstants.NODE)));
+		return new Hits(null, null, (NodeList) expr.evaluate(doc,
+				XPathConstants.NODESET));
+	}
+
+	/**
+	 * Returns the elements of the specified revision whose texts or attributes
+	 * contain all terms of a search string. If the full-text index is enabled,
+	 * it is created on first access and cached with the revision; otherwise,
+	 * the texts of the document are scanned.
+	 *
+	 * @param revision
+	 *            revision
+	 * @param terms
+	 *            search string
+	 * @return selected nodes
+	 */
+	static Hits search(final Revision revision, final String terms) {
+		if (FullTextIndex.enabled()) {
+			final FullTextIndex fi = revision.fullText();
+			return new Hits(fi.document(), fi.search(terms), null);
+		}
+		final CompactDocument cmp = revision.compact();
+		if (cmp != null)
+			return new Hits(cmp, FullTextIndex.scan(cmp, terms), null);
+		return new Hits(null, null, new ListNodeList(FullTextIndex.scan(
+				revision.dom(), terms)));
+	}
+
+	/**
+	 * Returns the number of selected nodes.
+	 *
+	 * @return number of nodes
+	 */
+	int size() {
+		return pres != null ? pres.length : nodes.getLength();
+	}
+
+	/**
+	 * Serializes the specified node.
+	 *
+	 * @param i
+	 *            index of the node
+	 * @param ser
+	 *            serializer
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	void serialize(final int i, final DOMSerializer ser) throws IOException {
+		if (pres != null)
+			compact.serialize(pres[i], ser);
+		else
+			ser.node(nodes.item(i));
+	}
+
+	/**
+	 * Passes on the specified node as SAX events.
+	 *
+	 * @param i
+	 *            index of the node
+	 * @param sax
+	 *            SAX writer
+	 * @throws SAXException
+	 *             SAX exception
+	 */
+	void serialize(final int i, final SAXWriter sax) throws SAXException {
+		if (pres != null)
+			compact.serialize(pres[i], sax);
+		else
+			sax.node(nodes.item(i));
+	}
+
+	/**
+	 * Node list, containing at most one node.
+	 */
+	private static final class SingleNodeList implements NodeList {
+		/** Node, or {@code null}. */
+		private final Node node;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param n
+		 *            node (may be {@code null})
+		 */
+		SingleNodeList(final Node n) {
+			node = n;
+		}
+
+		@Override
+		public Node item(final int index) {
+			return index == 0 ? node : null;
+		}
+
+		@Override
+		public int getLength() {
+			return node == null ? 0 : 1;
+		}
+	}
+
+	/**
+	 * Node list, backed by a list.
+	 */
+	private static final class ListNodeList implements NodeList {
+		/** Nodes. */
+		private final List<Node> list;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param l
+		 *            nodes
+		 */
+		ListNodeList(final List<Node> l) {
+			list = l;
+		}
+
+		@Override
+		public Node item(final int index) {
+			return index < list.size() ? list.get(index) : null;
+		}
+
+		@Override
+		public int getLength() {
+			return list.size();
+		}
+	}
+}
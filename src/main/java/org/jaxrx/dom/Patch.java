@@ -0,0 +1,324 @@
+package org.jaxrx.dom;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import org.jaxrx.core.JaxRxException;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * This class applies the operations of an update envelope to a revision. The
+ * operations are applied one after another to a new document, which is only
+ * published if all operations succeed. If an operation selects several
+ * nodes, they are processed in reverse document order.
+ * <p>
+ * Compact documents are modified with {@link CompactDocument#splice},
+ * {@link CompactDocument#rename} and {@link CompactDocument#value}, which
+ * copy the node arrays, but neither parse nor rebuild the unchanged nodes.
+ * The indexes of the resulting revision are built from the complete
+ * document when it is published.
+ * If an expression cannot be evaluated by {@link CompactPath}, the remaining
+ * operations are applied to a DOM representation. DOM documents are cloned
+ * before they are modified.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+final class Patch {
+	/**
+	 * Operations of the envelope.
+	 */
+	private final List<Element> ops = new ArrayList<Element>();
+
+	/**
+	 * Current compact document, or {@code null}.
+	 */
+	private CompactDocument compact;
+
+	/**
+	 * Current DOM, or {@code null}.
+	 */
+	private Document dom;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param update
+	 *            update envelope
+	 */
+	Patch(final Document update) {
+		for (Node n = update.getDocumentElement().getFirstChild(); n != null; n = n
+				.getNextSibling()) {
+			if (n.getNodeType() == Node.ELEMENT_NODE)
+				ops.add((Element) n);
+		}
+	}
+
+	/**
+	 * Applies all operations to a copy of the specified document.
+	 *
+	 * @param cmp
+	 *            compact document, or {@code null}
+	 * @param doc
+	 *            DOM, which is only used if no compact document is given
+	 * @return self reference
+	 * @throws XPathExpressionException
+	 *             if an expression is invalid
+	 */
+	Patch apply(final CompactDocument cmp, final Document doc)
+			throws XPathExpressionException {
+		compact = cmp;
+		if (compact == null)
+			dom = (Document) doc.cloneNode(true);
+		for (final Element op : ops) {
+			final String select = op.getAttribute("select");
+			if (compact != null) {
+				final CompactPath cp = CompactPath.parse(select);
+				final int[] pres = cp == null ? null : cp.evaluate(compact);
+				if (pres != null) {
+					apply(op, pres);
+					continue;
+				}
+				dom = compact.toDOM();
+				compact = null;
+			}
+			final NodeList nl = (NodeList) XPathCache.get(select, null).evaluate(
+					dom, XPathConstants.NODESET);
+			final Node[] nodes = new Node[nl.getLength()];
+			for (int n = 0; n < nodes.length; n++)
+				nodes[n] = nl.item(n);
+			apply(op, nodes);
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the resulting DOM.
+	 *
+	 * @return document, or {@code null} if a compact document was created
+	 */
+	Document dom() {
+		return dom;
+	}
+
+	/**
+	 * Returns the resulting compact document.
+	 *
+	 * @return compact document, or {@code null} if a DOM was created
+	 */
+	CompactDocument compact() {
+		return compact;
+	}
+
+	/**
+	 * Applies an operation to the nodes of the compact document.
+	 *
+	 * @param op
+	 *            operation
+	 * @param pres
+	 *            selected nodes, in document order
+	 */
+	private void apply(final Element op, final int[] pres) {
+		final String type = op.getNodeName();
+		check(op, pres.length);
+		final CompactDocument frag = type.equals("insert")
+				|| type.equals("replace") ? CompactDocument.of(content(op))
+				: null;
+		for (int i = pres.length - 1; i >= 0; i--) {
+			final CompactDocument c = compact;
+			final int pre = pres[i];
+			final byte kind = c.kind(pre);
+			final int parent = c.parent(pre);
+			if (type.equals("delete")) {
+				if (kind == CompactDocument.DOC)
+					throw invalid(op);
+				compact = c.splice(pre, c.size(pre), parent, null);
+			} else if (type.equals("insert")) {
+				final String pos = position(op);
+				if (pos.equals("before") || pos.equals("after")) {
+					if (kind == CompactDocument.DOC || kind == CompactDocument.ATTR)
+						throw invalid(op);
+					compact = c.splice(pos.equals("before") ? pre : pre
+							+ c.size(pre), 0, parent, frag);
+				} else {
+					if (kind != CompactDocument.ELEM)
+						throw invalid(op);
+					compact = c.splice(pos.equals("first") ? c.attEnd(pre) : pre
+							+ c.size(pre), 0, pre, frag);
+				}
+			} else if (type.equals("replace")) {
+				if (kind == CompactDocument.DOC || kind == CompactDocument.ATTR)
+					throw invalid(op);
+				compact = c.splice(pre, c.size(pre), parent, frag);
+			} else if (type.equals("rename")) {
+				if (kind != CompactDocument.ELEM && kind != CompactDocument.ATTR
+						&& kind != CompactDocument.PI)
+					throw invalid(op);
+				compact = c.rename(pre, op.getAttribute("name"));
+			} else {
+				final String value = op.getTextContent();
+				if (kind == CompactDocument.DOC)
+					throw invalid(op);
+				if (kind == CompactDocument.ELEM) {
+					// the children of the element are replaced with a text
+					final int start = c.attEnd(pre);
+					final CompactDocument.Builder b = new CompactDocument.Builder();
+					if (value.length() != 0)
+						b.text(value);
+					compact = c.splice(start, pre + c.size(pre) - start, pre,
+							value.length() == 0 ? null : b.build());
+				} else {
+					compact = c.value(pre, value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies an operation to the nodes of the DOM.
+	 *
+	 * @param op
+	 *            operation
+	 * @param nodes
+	 *            selected nodes, in document order
+	 */
+	private void apply(final Element op, final Node[] nodes) {
+		final String type = op.getNodeName();
+		check(op, nodes.length);
+		final List<Node> content = content(op);
+		for (int i = nodes.length - 1; i >= 0; i--) {
+			final Node node = nodes[i];
+			final short kind = node.getNodeType();
+			final Node parent = node.getParentNode();
+			if (type.equals("delete")) {
+				if (kind == Node.DOCUMENT_NODE)
+					throw invalid(op);
+				if (kind == Node.ATTRIBUTE_NODE) {
+					((Attr) node).getOwnerElement().removeAttributeNode(
+							(Attr) node);
+				} else {
+					parent.removeChild(node);
+				}
+			} else if (type.equals("insert")) {
+				final String pos = position(op);
+				if (pos.equals("before") || pos.equals("after")) {
+					if (kind == Node.DOCUMENT_NODE || kind == Node.ATTRIBUTE_NODE)
+						throw invalid(op);
+					insert(parent, content, pos.equals("before") ? node : node
+							.getNextSibling());
+				} else {
+					if (kind != Node.ELEMENT_NODE)
+						throw invalid(op);
+					insert(node, content, pos.equals("first") ? node
+							.getFirstChild() : null);
+				}
+			} else if (type.equals("replace")) {
+				if (kind == Node.DOCUMENT_NODE || kind == Node.ATTRIBUTE_NODE)
+					throw invalid(op);
+				insert(parent, content, node);
+				parent.removeChild(node);
+			} else if (type.equals("rename")) {
+				final String name = op.getAttribute("name");
+				if (kind == Node.PROCESSING_INSTRUCTION_NODE) {
+					parent.replaceChild(dom.createProcessingInstruction(name,
+							node.getNodeValue()), node);
+				} else if (kind == Node.ELEMENT_NODE
+						|| kind == Node.ATTRIBUTE_NODE) {
+					dom.renameNode(node, null, name);
+				} else {
+					throw invalid(op);
+				}
+			} else {
+				if (kind == Node.DOCUMENT_NODE)
+					throw invalid(op);
+				if (kind == Node.ELEMENT_NODE)
+					node.setTextContent(op.getTextContent());
+				else
+					node.setNodeValue(op.getTextContent());
+			}
+		}
+	}
+
+	/**
+	 * Inserts copies of the specified nodes.
+	 *
+	 * @param parent
+	 *            parent node
+	 * @param content
+	 *            nodes to be inserted
+	 * @param next
+	 *            node before which the nodes are inserted, or {@code null}
+	 */
+	private void insert(final Node parent, final List<Node> content,
+			final Node next) {
+		for (final Node n : content)
+			parent.insertBefore(dom.importNode(n, true), next);
+	}
+
+	/**
+	 * Checks the number of selected nodes. Only delete operations may
+	 * select no nodes.
+	 *
+	 * @param op
+	 *            operation
+	 * @param count
+	 *            number of selected nodes
+	 */
+	private static void check(final Element op, final int count) {
+		if (count == 0 && !op.getNodeName().equals("delete")) {
+			throw new JaxRxException(400, "No nodes selected by '"
+					+ op.getAttribute("select") + "'.");
+		}
+	}
+
+	/**
+	 * Returns the content of an operation. Whitespace-only texts are
+	 * ignored.
+	 *
+	 * @param op
+	 *            operation
+	 * @return content nodes
+	 */
+	private static List<Node> content(final Element op) {
+		final List<Node> nodes = new ArrayList<Node>();
+		for (Node n = op.getFirstChild(); n != null; n = n.getNextSibling()) {
+			if (n.getNodeType() != Node.TEXT_NODE
+					|| n.getNodeValue().trim().length() != 0)
+				nodes.add(n);
+		}
+		return nodes;
+	}
+
+	/**
+	 * Returns the position of an insert operation.
+	 *
+	 * @param op
+	 *            operation
+	 * @return position ({@code first}, {@code last}, {@code before} or
+	 *         {@code after})
+	 */
+	private static String position(final Element op) {
+		final String pos = op.getAttribute("position");
+		return pos.length() == 0 ? "last" : pos;
+	}
+
+	/**
+	 * Returns an exception for an operation that cannot be applied to the
+	 * selected nodes.
+	 *
+	 * @param op
+	 *            operation
+	 * @return exception
+	 */
+	private static JaxRxException invalid(final Element op) {
+		return new JaxRxException(400, "Operation '" + op.getNodeName()
+				+ "' cannot be applied to the nodes selected by '"
+				+ op.getAttribute("select") + "'.");
+	}
+}
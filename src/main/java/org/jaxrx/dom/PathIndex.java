@@ -0,0 +1,114 @@
+package org.jaxrx.dom;
+
+/**
+ * This class indexes the elements of a {@link CompactDocument} by their names.
+ * For each name, the pre values of all elements with this name are stored in
+ * ascending order. As the descendants of a node occupy a contiguous range of
+ * pre values, the descendants with a specific name can be found by a binary
+ * search, without scanning the subtree.
+ * <p>
+ * Compact documents are immutable, so the index of a document never needs
+ * to be updated. It is created on first access; documents that are derived
+ * from a modified document either share the index of the original document,
+ * if the structure is unchanged, or create a new index when it is first
+ * needed.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+final class PathIndex {
+	/**
+	 * System property for disabling the index.
+	 */
+	static final String ENABLED = "org.jaxrx.dom.pathIndex";
+
+	/**
+	 * Indicates if the index is used.
+	 */
+	private static final boolean USE = !"false".equals(System
+			.getProperty(ENABLED));
+
+	/**
+	 * Empty posting list.
+	 */
+	private static final int[] EMPTY = {};
+
+	/**
+	 * Pre values of the elements, indexed by name references.
+	 */
+	private final int[][] elements;
+
+	/**
+	 * Constructor, which indexes the specified document.
+	 *
+	 * @param doc
+	 *            document
+	 */
+	PathIndex(final CompactDocument doc) {
+		final int n = doc.count();
+		int max = -1;
+		for (int p = 0; p < n; p++)
+			max = Math.max(max, doc.nameId(p));
+		// count elements per name, then fill the posting lists in document
+		// order
+		final int[] counts = new int[max + 1];
+		for (int p = 0; p < n; p++) {
+			if (doc.kind(p) == CompactDocument.ELEM)
+				counts[doc.nameId(p)]++;
+		}
+		elements = new int[max + 1][];
+		for (int i = 0; i <= max; i++)
+			elements[i] = counts[i] == 0 ? EMPTY : new int[counts[i]];
+		final int[] fill = new int[max + 1];
+		for (int p = 0; p < n; p++) {
+			if (doc.kind(p) == CompactDocument.ELEM) {
+				final int id = doc.nameId(p);
+				elements[id][fill[id]++] = p;
+			}
+		}
+	}
+
+	/**
+	 * Indicates if the index is used.
+	 *
+	 * @return result of check
+	 */
+	static boolean enabled() {
+		return USE;
+	}
+
+	/**
+	 * Returns the pre values of all elements with the specified name.
+	 *
+	 * @param id
+	 *            name reference
+	 * @return pre values in ascending order; must not be modified
+	 */
+	int[] elements(final int id) {
+		return id >= 0 && id < elements.length ? elements[id] : EMPTY;
+	}
+
+	/**
+	 * Returns the index of the first entry of a posting list that is equal to
+	 * or greater than the specified pre value.
+	 *
+	 * @param posts
+	 *            posting list
+	 * @param pre
+	 *            pre value
+	 * @return index
+	 */
+	static int first(final int[] posts, final int pre) {
+		int l = 0;
+		int h = posts.length;
+		while (l < h) {
+			final int m = l + h >>> 1;
+			if (posts[m] < pre)
+				l = m + 1;
+			else
+				h = m;
+		}
+		return l;
+	}
+}
@@ -0,0 +1,359 @@
+package org.jaxrx.dom;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.parsers.ParserConfigurationException;
+import org.jaxrx.core.Compression;
+import org.jaxrx.core.DOMSerializer;
+import org.jaxrx.core.JaxRxException;
+import org.jaxrx.core.SAXWriter;
+import org.w3c.dom.Document;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * This class represents a single revision of a stored document. Once a
+ * revision has been published by {@link DOMs}, its document must not be
+ * modified anymore, so that it can be read by any number of threads without
+ * locking. Depending on the storage engine chosen in {@link DOMs}, the
+ * document is kept as DOM or as {@link CompactDocument}. In the latter case, a
+ * DOM representation is only created if a query cannot be evaluated on the
+ * compact representation. As the Xerces DOM caches node lists in its nodes
+ * and is thus not thread-safe even for read-only access, DOM representations
+ * are never shared: each caller of {@link #dom()} gets its own copy.
+ *
+ * <p>
+ * If the document is persisted in a {@link DocumentStore}, the revision
+ * references the serialized document in the mapped store, which is directly
+ * sent to clients. The parsed representations are only softly referenced and
+ * are recreated from the stored serialization when needed.
+ * </p>
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+final class Revision {
+	/**
+	 * Revision number.
+	 */
+	final int number;
+
+	/**
+	 * Version, which is unique among all revisions of all documents.
+	 */
+	final long version;
+
+	/**
+	 * Creation time of this revision.
+	 */
+	final long modified;
+
+	/**
+	 * DOM document, or {@code null} if the document is not kept as DOM.
+	 */
+	private final Document doc;
+
+	/**
+	 * Compact document, or {@code null} if the document is not kept in compact
+	 * form.
+	 */
+	private final CompactDocument compact;
+
+	/**
+	 * Serialized document in the store, or {@code null}.
+	 */
+	private final ByteBuffer source;
+
+	/**
+	 * Cached compact representation.
+	 */
+	private volatile SoftReference<CompactDocument> compactCache;
+
+	/**
+	 * Compressed serialization of the document, or an empty array if the
+	 * document is not to be compressed; {@code null} if it has not been
+	 * requested yet.
+	 */
+	private volatile byte[] gzip;
+
+	/**
+	 * Bloom filter of the document, or {@code null} if it has not been
+	 * created yet.
+	 */
+	private volatile Bloom bloom;
+
+	/**
+	 * Full-text index of the document, or {@code null} if it has not been
+	 * created yet.
+	 */
+	private volatile FullTextIndex fullText;
+
+	/**
+	 * Constructor. If a stored serialization is specified, a compact document
+	 * is only cached, and a DOM document is discarded.
+	 *
+	 * @param num
+	 *            revision number
+	 * @param vers
+	 *            unique version
+	 * @param mod
+	 *            creation time
+	 * @param src
+	 *            serialized document in the store, or {@code null}
+	 * @param document
+	 *            DOM document, or {@code null}
+	 * @param cmp
+	 *            compact document, or {@code null}
+	 */
+	Revision(final int num, final long vers, final long mod,
+			final ByteBuffer src, final Document document,
+			final CompactDocument cmp) {
+		number = num;
+		version = vers;
+		modified = mod;
+		source = src;
+		if (src == null) {
+			doc = document;
+			compact = cmp;
+		} else {
+			doc = null;
+			compact = null;
+			if (cmp != null)
+				compactCache = new SoftReference<CompactDocument>(cmp);
+		}
+	}
+
+	/**
+	 * Returns a copy of this revision that references the specified stored
+	 * serialization. The Bloom filter is taken over, and the document
+	 * representations are only cached.
+	 *
+	 * @param src
+	 *            serialized document in the store
+	 * @return stored revision
+	 */
+	Revision stored(final ByteBuffer src) {
+		final Revision rev = new Revision(number, version, modified, src, doc,
+				compact);
+		rev.bloom = bloom;
+		rev.fullText = fullText;
+		return rev;
+	}
+
+	/**
+	 * Returns a DOM representation of the document, which is owned by the
+	 * caller and may be modified. A DOM document is cloned; otherwise, the
+	 * DOM is created from the compact representation or from the stored
+	 * serialization.
+	 *
+	 * @return new document
+	 */
+	Document dom() {
+		if (doc != null)
+			return (Document) doc.cloneNode(true);
+		final CompactDocument c = compact != null ? compact
+				: cached(compactCache);
+		return c != null ? c.toDOM() : parse();
+	}
+
+	/**
+	 * Returns the Bloom filter of the document, which is created on first
+	 * access. If the document is only available in its stored serialization,
+	 * the filter is created by streaming over the serialization, and the
+	 * document is not parsed.
+	 *
+	 * @return filter
+	 */
+	Bloom bloom() {
+		Bloom b = bloom;
+		if (b == null) {
+			final CompactDocument c = compact != null ? compact
+					: cached(compactCache);
+			if (c != null) {
+				b = Bloom.of(c);
+			} else if (doc != null) {
+				b = Bloom.of(doc);
+			} else {
+				try {
+					b = Bloom.of(input());
+				} catch (final ParserConfigurationException ex) {
+					throw new JaxRxException(ex);
+				} catch (final SAXException ex) {
+					throw new JaxRxException(ex);
+				} catch (final IOException ex) {
+					throw new JaxRxException(ex);
+				}
+			}
+			bloom = b;
+		}
+		return b;
+	}
+
+	/**
+	 * Returns the full-text index of the document, which is created on first
+	 * access. If the document is not stored in compact form, the index is
+	 * built on a compact copy of the DOM, which is kept with the index.
+	 *
+	 * @return index
+	 */
+	FullTextIndex fullText() {
+		FullTextIndex fi = fullText;
+		if (fi == null) {
+			final CompactDocument c = compact();
+			fi = c != null ? c.fullText() : new FullTextIndex(CompactDocument
+					.of(doc != null ? doc : dom()));
+			fullText = fi;
+		}
+		return fi;
+	}
+
+	/**
+	 * Returns the compact representation of the document.
+	 *
+	 * @return compact document, or {@code null} if the compact storage engine
+	 *         is not used
+	 */
+	CompactDocument compact() {
+		if (compact != null || source == null || !DOMs.compact())
+			return compact;
+		CompactDocument c = cached(compactCache);
+		if (c == null) {
+			c = CompactDocument.of(parse());
+			compactCache = new SoftReference<CompactDocument>(c);
+		}
+		return c;
+	}
+
+	/**
+	 * Serializes the document, including the XML declaration.
+	 *
+	 * @param output
+	 *            output stream
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	void write(final OutputStream output) throws IOException {
+		if (source != null) {
+			final ByteBuffer bb = source.duplicate();
+			final byte[] buffer = new byte[Math.min(1 << 13, bb.remaining())];
+			while (bb.hasRemaining()) {
+				final int l = Math.min(buffer.length, bb.remaining());
+				bb.get(buffer, 0, l);
+				output.write(buffer, 0, l);
+			}
+			return;
+		}
+		final DOMSerializer ser = new DOMSerializer(output);
+		try {
+			ser.declaration();
+			if (compact != null)
+				compact.serialize(0, ser);
+			else
+				ser.node(doc);
+			ser.finish();
+		} finally {
+			ser.abort();
+		}
+	}
+
+	/**
+	 * Passes on the document as SAX events.
+	 *
+	 * @param handler
+	 *            content handler
+	 * @throws SAXException
+	 *             SAX exception
+	 */
+	void write(final ContentHandler handler) throws SAXException {
+		final SAXWriter sax = new SAXWriter(handler).startDocument();
+		final CompactDocument c = compact();
+		if (c != null)
+			c.serialize(0, sax);
+		else
+			sax.node(dom());
+		sax.endDocument();
+	}
+
+	/**
+	 * Returns the gzip-compressed serialization of the document, which is
+	 * created on first access.
+	 *
+	 * @return compressed document, or {@code null} if the document is not to
+	 *         be compressed
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	byte[] gzip() throws IOException {
+		byte[] gz = gzip;
+		if (gz == null) {
+			gz = Compression.gzip(new StreamingOutput() {
+				@Override
+				public void write(final OutputStream output) throws IOException {
+					Revision.this.write(output);
+				}
+			});
+			if (gz == null)
+				gz = new byte[0];
+			gzip = gz;
+		}
+		return gz.length == 0 ? null : gz;
+	}
+
+	/**
+	 * Returns the referenced compact document.
+	 *
+	 * @param ref
+	 *            soft reference (may be {@code null})
+	 * @return compact document, or {@code null}
+	 */
+	private static CompactDocument cached(
+			final SoftReference<CompactDocument> ref) {
+		return ref == null ? null : ref.get();
+	}
+
+	/**
+	 * Parses the stored serialization of the document.
+	 *
+	 * @return document
+	 */
+	private Document parse() {
+		try {
+			return DOMJaxRx.parse(input());
+		} catch (final ParserConfigurationException ex) {
+			throw new JaxRxException(ex);
+		} catch (final SAXException ex) {
+			throw new JaxRxException(ex);
+		} catch (final IOException ex) {
+			throw new JaxRxException(ex);
+		}
+	}
+
+	/**
+	 * Returns an input stream over the stored serialization of the document.
+	 *
+	 * @return input stream
+	 */
+	private InputStream input() {
+		final ByteBuffer bb = source.duplicate();
+		return new InputStream() {
+			@Override
+			public int read() {
+				return bb.hasRemaining() ? bb.get() & 0xFF : -1;
+			}
+
+			@Override
+			public int read(final byte[] b, final int off, final int len) {
+				if (!bb.hasRemaining())
+					return -1;
+				final int l = Math.min(len, bb.remaining());
+				bb.get(b, off, l);
+				return l;
+			}
+		};
+	}
+}
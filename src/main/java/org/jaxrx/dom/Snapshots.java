@@ -0,0 +1,506 @@
+package org.jaxrx.dom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * This class writes periodic snapshots of all documents of the DOM
+ * implementation and restores the newest snapshot on startup. As published
+ * revisions are immutable, a snapshot is taken without locking: readers and
+ * writers continue while the documents are written. Each snapshot is stored
+ * in a directory of its own, which contains one part file per worker thread
+ * and a manifest; a snapshot is only valid after its manifest has been
+ * written. The documents are distributed among the parts, which are written
+ * and read in parallel.
+ *
+ * <p>
+ * The following system properties are supported:
+ * </p>
+ * <ul>
+ * <li>{@link #SNAPSHOTS}: snapshot directory; snapshots are disabled if it is
+ * not specified</li>
+ * <li>{@link #INTERVAL}: number of seconds between two snapshots (default:
+ * 300)</li>
+ * <li>{@link #THREADS}: number of worker threads (default: number of
+ * processors)</li>
+ * </ul>
+ *
+ * <p>
+ * If a {@link WriteAheadLog} is used, all records that were appended before a
+ * snapshot was started are removed from the log when the snapshot is
+ * complete.
+ * </p>
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+final class Snapshots {
+	/**
+	 * System property for the snapshot directory.
+	 */
+	static final String SNAPSHOTS = "org.jaxrx.dom.snapshots";
+
+	/**
+	 * System property for the snapshot interval in seconds.
+	 */
+	static final String INTERVAL = "org.jaxrx.dom.snapshots.interval";
+
+	/**
+	 * System property for the number of worker threads.
+	 */
+	static final String THREADS = "org.jaxrx.dom.snapshots.threads";
+
+	/**
+	 * Prefix of snapshot directories.
+	 */
+	private static final String PREFIX = "snapshot-";
+
+	/**
+	 * Name of the manifest file.
+	 */
+	private static final String MANIFEST = "manifest";
+
+	/**
+	 * Snapshot directory.
+	 */
+	private final File dir;
+
+	/**
+	 * Number of parts.
+	 */
+	private final int parts;
+
+	/**
+	 * Worker threads.
+	 */
+	private final ExecutorService workers;
+
+	/**
+	 * Write-ahead log, or {@code null}.
+	 */
+	private WriteAheadLog log;
+
+	/**
+	 * Number of written snapshots.
+	 */
+	private volatile long count;
+
+	/**
+	 * Number of failed snapshots.
+	 */
+	private volatile long failures;
+
+	/**
+	 * Duration of the last snapshot in milliseconds.
+	 */
+	private volatile long duration;
+
+	/**
+	 * Size of the last snapshot in bytes.
+	 */
+	private volatile long size;
+
+	/**
+	 * Duration of the recovery in milliseconds.
+	 */
+	private volatile long recovery;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory
+	 *            snapshot directory
+	 * @param threads
+	 *            number of worker threads
+	 */
+	Snapshots(final File directory, final int threads) {
+		dir = directory;
+		parts = Math.max(1, threads);
+		workers = Executors.newFixedThreadPool(parts, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "JAX-RX snapshot");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Returns the snapshots that are specified via the system properties.
+	 *
+	 * @return snapshots, or {@code null} if no directory is specified
+	 */
+	static Snapshots open() {
+		final String path = System.getProperty(SNAPSHOTS);
+		return path == null ? null : new Snapshots(new File(path), Integer
+				.getInteger(THREADS, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Starts writing snapshots periodically.
+	 *
+	 * @param wal
+	 *            write-ahead log, which is truncated after each snapshot (may
+	 *            be {@code null})
+	 */
+	void start(final WriteAheadLog wal) {
+		log = wal;
+		final long interval = Math.max(1, Long.getLong(INTERVAL, 300));
+		final ScheduledExecutorService timer = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread t = new Thread(r, "JAX-RX snapshot timer");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write();
+				} catch (final IOException ex) {
+					// the next snapshot will be tried after the interval
+					failures++;
+				}
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Writes a snapshot of all documents and deletes older snapshots.
+	 *
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	synchronized void write() throws IOException {
+		final long start = System.currentTimeMillis();
+		// all logged modifications before this position will be included
+		final long lsn = log == null ? 0 : log.position();
+		final long version = DOMs.version();
+		final File snap = new File(dir, PREFIX + version);
+		// skip snapshot if nothing has changed since the last one
+		if (new File(snap, MANIFEST).exists())
+			return;
+		if (!snap.isDirectory() && !snap.mkdirs())
+			throw new IOException("Snapshot directory cannot be created: "
+					+ snap);
+
+		// distribute documents among the parts
+		final List<List<String>> names = new ArrayList<List<String>>();
+		for (int p = 0; p < parts; p++)
+			names.add(new ArrayList<String>());
+		int n = 0;
+		for (final String name : DOMs.getAllDOMs())
+			names.get(n++ % parts).add(name);
+
+		final List<Future<Long>> futures = new ArrayList<Future<Long>>();
+		for (int p = 0; p < parts; p++) {
+			final File file = new File(snap, "part-" + p);
+			final List<String> docs = names.get(p);
+			futures.add(workers.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws IOException {
+					return writePart(file, docs);
+				}
+			}));
+		}
+		long bytes = 0;
+		for (final Future<Long> f : futures)
+			bytes += get(f);
+
+		// the snapshot becomes valid when the manifest is written
+		final File tmp = new File(snap, MANIFEST + ".tmp");
+		final FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			final DataOutputStream out = new DataOutputStream(fos);
+			out.writeInt(parts);
+			out.writeLong(version);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(new File(snap, MANIFEST)))
+			throw new IOException("Manifest cannot be written: " + snap);
+
+		// delete older snapshots and logged modifications
+		for (final File old : snapshots()) {
+			if (!old.equals(snap))
+				delete(old);
+		}
+		if (log != null)
+			log.truncate(lsn);
+
+		size = bytes;
+		duration = System.currentTimeMillis() - start;
+		count++;
+	}
+
+	/**
+	 * Restores the newest valid snapshot.
+	 *
+	 * @return revisions of all documents, or an empty map if no snapshot
+	 *         exists
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	Map<String, Revision[]> read() throws IOException {
+		final long start = System.currentTimeMillis();
+		final Map<String, Revision[]> docs = new HashMap<String, Revision[]>();
+		for (final File snap : snapshots()) {
+			final File manifest = new File(snap, MANIFEST);
+			if (!manifest.exists())
+				continue;
+			final DataInputStream in = new DataInputStream(new FileInputStream(
+					manifest));
+			final int p;
+			try {
+				p = in.readInt();
+			} finally {
+				in.close();
+			}
+			final List<Future<Map<String, Revision[]>>> futures = new ArrayList<Future<Map<String, Revision[]>>>();
+			for (int i = 0; i < p; i++) {
+				final File file = new File(snap, "part-" + i);
+				futures.add(workers.submit(new Callable<Map<String, Revision[]>>() {
+					@Override
+					public Map<String, Revision[]> call() throws IOException {
+						return readPart(file);
+					}
+				}));
+			}
+			for (final Future<Map<String, Revision[]>> f : futures)
+				docs.putAll(get(f));
+			break;
+		}
+		recovery = System.currentTimeMillis() - start;
+		return docs;
+	}
+
+	/**
+	 * Returns the number of written snapshots.
+	 *
+	 * @return number of snapshots
+	 */
+	long count() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of failed snapshots.
+	 *
+	 * @return number of failures
+	 */
+	long failures() {
+		return failures;
+	}
+
+	/**
+	 * Returns the duration of the last snapshot.
+	 *
+	 * @return duration in milliseconds
+	 */
+	long duration() {
+		return duration;
+	}
+
+	/**
+	 * Returns the size of the last snapshot.
+	 *
+	 * @return size in bytes
+	 */
+	long size() {
+		return size;
+	}
+
+	/**
+	 * Returns the duration of the recovery.
+	 *
+	 * @return duration in milliseconds
+	 */
+	long recovery() {
+		return recovery;
+	}
+
+	/**
+	 * Writes the revisions of the specified documents to a part file.
+	 *
+	 * @param file
+	 *            part file
+	 * @param names
+	 *            names of the documents
+	 * @return number of written bytes
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private static long writePart(final File file, final List<String> names)
+			throws IOException {
+		final FileOutputStream fos = new FileOutputStream(file);
+		try {
+			final CheckedOutputStream cos = new CheckedOutputStream(
+					new BufferedOutputStream(fos, 1 << 16), new CRC32());
+			final DataOutputStream out = new DataOutputStream(cos);
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			for (final String name : names) {
+				final Revision[] revs = DOMs.getRevisions(name);
+				if (revs == null)
+					continue;
+				out.writeBoolean(true);
+				out.writeUTF(name);
+				out.writeInt(revs.length);
+				for (final Revision rev : revs) {
+					bytes.reset();
+					rev.write(bytes);
+					out.writeInt(rev.number);
+					out.writeLong(rev.version);
+					out.writeLong(rev.modified);
+					out.writeInt(bytes.size());
+					bytes.writeTo(out);
+				}
+			}
+			out.writeBoolean(false);
+			out.writeLong(cos.getChecksum().getValue());
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		return file.length();
+	}
+
+	/**
+	 * Reads the revisions of a part file.
+	 *
+	 * @param file
+	 *            part file
+	 * @return revisions
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private static Map<String, Revision[]> readPart(final File file)
+			throws IOException {
+		final Map<String, Revision[]> docs = new HashMap<String, Revision[]>();
+		final CheckedInputStream cis = new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(file), 1 << 16),
+				new CRC32());
+		final DataInputStream in = new DataInputStream(cis);
+		try {
+			while (in.readBoolean()) {
+				final String name = in.readUTF();
+				final Revision[] revs = new Revision[in.readInt()];
+				for (int r = 0; r < revs.length; r++) {
+					final int number = in.readInt();
+					final long version = in.readLong();
+					final long modified = in.readLong();
+					final byte[] data = new byte[in.readInt()];
+					in.readFully(data);
+					// documents are parsed when they are first queried
+					revs[r] = new Revision(number, version, modified, ByteBuffer
+							.wrap(data).asReadOnlyBuffer(), null, null);
+				}
+				docs.put(name, revs);
+			}
+			final long crc = cis.getChecksum().getValue();
+			if (in.readLong() != crc)
+				throw new IOException("Snapshot is corrupt: " + file);
+		} finally {
+			in.close();
+		}
+		return docs;
+	}
+
+	/**
+	 * Returns all snapshot directories, starting with the newest.
+	 *
+	 * @return snapshot directories
+	 */
+	private List<File> snapshots() {
+		final List<File> list = new ArrayList<File>();
+		final File[] files = dir.listFiles();
+		if (files == null)
+			return list;
+		for (final File f : files) {
+			if (f.isDirectory() && f.getName().startsWith(PREFIX))
+				list.add(f);
+		}
+		Collections.sort(list, new Comparator<File>() {
+			@Override
+			public int compare(final File a, final File b) {
+				final long va = Long.parseLong(a.getName().substring(
+						PREFIX.length()));
+				final long vb = Long.parseLong(b.getName().substring(
+						PREFIX.length()));
+				return va < vb ? 1 : va > vb ? -1 : 0;
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * Deletes a snapshot directory.
+	 *
+	 * @param snap
+	 *            snapshot directory
+	 */
+	private static void delete(final File snap) {
+		final File[] files = snap.listFiles();
+		if (files != null) {
+			for (final File f : files)
+				f.delete();
+		}
+		snap.delete();
+	}
+
+	/**
+	 * Returns the result of a task.
+	 *
+	 * @param <T>
+	 *            result type
+	 * @param future
+	 *            future
+	 * @return result
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private static <T> T get(final Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (final InterruptedException ex) {
+			throw new IOException("Snapshot was interrupted");
+		} catch (final ExecutionException ex) {
+			final Throwable cause = ex.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException(String.valueOf(cause));
+		}
+	}
+}
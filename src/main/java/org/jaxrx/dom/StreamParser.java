@@ -0,0 +1,392 @@
+package org.jaxrx.dom;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import org.jaxrx.core.JaxRxException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * This class parses incoming documents with SAX and converts the events
+ * directly into the representation in which documents are stored: a
+ * {@link CompactDocument} if the compact storage is enabled (see
+ * {@link DOMs#STORAGE}), or a DOM otherwise. The input is consumed while it
+ * is arriving, and no intermediate DOM is created for compact documents.
+ * <p>
+ * The following limits can be specified via system properties; documents
+ * exceeding them are rejected as soon as the limit is reached:
+ * <ul>
+ * <li>{@link #MAXSIZE}: maximum size of a document in bytes (default: no
+ * limit)</li>
+ * <li>{@link #MAXDEPTH}: maximum depth of elements (default: 10000)</li>
+ * </ul>
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+final class StreamParser extends DefaultHandler implements LexicalHandler {
+	/**
+	 * System property for the maximum document size in bytes.
+	 */
+	static final String MAXSIZE = "org.jaxrx.dom.maxSize";
+
+	/**
+	 * System property for the maximum element depth.
+	 */
+	static final String MAXDEPTH = "org.jaxrx.dom.maxDepth";
+
+	/**
+	 * SAX property for lexical handlers.
+	 */
+	private static final String LEXICAL = "http://xml.org/sax/properties/lexical-handler";
+
+	/**
+	 * Parsers, one per thread, as parsers are not thread-safe.
+	 */
+	private static final ThreadLocal<SAXParser> PARSERS = new ThreadLocal<SAXParser>() {
+		@Override
+		protected SAXParser initialValue() {
+			try {
+				return SAXParserFactory.newInstance().newSAXParser();
+			} catch (final ParserConfigurationException ex) {
+				throw new JaxRxException(ex);
+			} catch (final SAXException ex) {
+				throw new JaxRxException(ex);
+			}
+		}
+	};
+
+	/**
+	 * Maximum document size, or {@code 0}.
+	 */
+	private final long maxSize;
+
+	/**
+	 * Maximum element depth, or {@code 0}.
+	 */
+	private final int maxDepth;
+
+	/**
+	 * Builder for compact documents, or {@code null}.
+	 */
+	private final CompactDocument.Builder builder;
+
+	/**
+	 * Created DOM, or {@code null}.
+	 */
+	private final Document document;
+
+	/**
+	 * Current DOM node, or {@code null}.
+	 */
+	private Node node;
+
+	/**
+	 * Pending text of the DOM.
+	 */
+	private final StringBuilder text = new StringBuilder();
+
+	/**
+	 * Contents of the current CDATA section, or {@code null}.
+	 */
+	private StringBuilder cdata;
+
+	/**
+	 * Current element depth.
+	 */
+	private int depth;
+
+	/**
+	 * Indicates if the document type declaration is being parsed.
+	 */
+	private boolean dtd;
+
+	/**
+	 * Error message for exceeded limits, or {@code null}.
+	 */
+	private String limit;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param compact
+	 *            create compact document
+	 * @param size
+	 *            maximum document size, or {@code 0}
+	 * @param dpth
+	 *            maximum element depth, or {@code 0}
+	 * @throws ParserConfigurationException
+	 *             parser configuration exception
+	 */
+	StreamParser(final boolean compact, final long size, final int dpth)
+			throws ParserConfigurationException {
+		maxSize = size;
+		maxDepth = dpth;
+		if (compact) {
+			builder = new CompactDocument.Builder();
+			document = null;
+		} else {
+			builder = null;
+			document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+					.newDocument();
+			node = document;
+		}
+	}
+
+	/**
+	 * Constructor, using the storage and limits specified by the system
+	 * properties.
+	 *
+	 * @throws ParserConfigurationException
+	 *             parser configuration exception
+	 */
+	StreamParser() throws ParserConfigurationException {
+		this(DOMs.compact(), Long.getLong(MAXSIZE, 0), Integer.getInteger(
+				MAXDEPTH, 10000));
+	}
+
+	/**
+	 * Parses the specified input.
+	 *
+	 * @param input
+	 *            input stream
+	 * @return self reference
+	 * @throws SAXException
+	 *             if the input is no well-formed XML
+	 * @throws IOException
+	 *             I/O exception
+	 * @throws JaxRxException
+	 *             thrown if a limit is exceeded (status code: 413)
+	 */
+	StreamParser parse(final InputStream input) throws SAXException,
+			IOException {
+		final SAXParser parser = PARSERS.get();
+		try {
+			parser.setProperty(LEXICAL, this);
+			parser.parse(maxSize > 0 ? new Limited(input) : input, this);
+		} catch (final SAXException ex) {
+			if (limit != null)
+				throw new JaxRxException(413, limit);
+			throw ex;
+		} catch (final IOException ex) {
+			if (limit != null)
+				throw new JaxRxException(413, limit);
+			throw ex;
+		} finally {
+			parser.reset();
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the parsed DOM.
+	 *
+	 * @return document, or {@code null} if a compact document was created
+	 */
+	Document dom() {
+		return document;
+	}
+
+	/**
+	 * Returns the parsed compact document.
+	 *
+	 * @return compact document, or {@code null} if a DOM was created
+	 */
+	CompactDocument compact() {
+		return builder == null ? null : builder.build();
+	}
+
+	@Override
+	public void startElement(final String uri, final String local,
+			final String name, final Attributes atts) throws SAXException {
+		if (++depth > maxDepth && maxDepth > 0) {
+			limit = "Document exceeds the maximum depth of " + maxDepth
+					+ " elements.";
+			throw new SAXException(limit);
+		}
+		if (builder != null) {
+			builder.startElement(name);
+			for (int a = 0; a < atts.getLength(); a++)
+				builder.attribute(atts.getQName(a), atts.getValue(a));
+		} else {
+			flush();
+			final Element elem = document.createElement(name);
+			for (int a = 0; a < atts.getLength(); a++)
+				elem.setAttribute(atts.getQName(a), atts.getValue(a));
+			node = node.appendChild(elem);
+		}
+	}
+
+	@Override
+	public void endElement(final String uri, final String local,
+			final String name) {
+		depth--;
+		if (builder != null) {
+			builder.endElement();
+		} else {
+			flush();
+			node = node.getParentNode();
+		}
+	}
+
+	@Override
+	public void characters(final char[] ch, final int start, final int length) {
+		if (cdata != null) {
+			cdata.append(ch, start, length);
+		} else if (builder != null) {
+			builder.text(ch, start, length);
+		} else {
+			// texts may be reported in several chunks
+			text.append(ch, start, length);
+		}
+	}
+
+	/**
+	 * Adds the pending text to the current DOM node.
+	 */
+	private void flush() {
+		if (text.length() != 0) {
+			node.appendChild(document.createTextNode(text.toString()));
+			text.setLength(0);
+		}
+	}
+
+	@Override
+	public void ignorableWhitespace(final char[] ch, final int start,
+			final int length) {
+		characters(ch, start, length);
+	}
+
+	@Override
+	public void processingInstruction(final String target, final String data) {
+		if (builder != null) {
+			builder.pi(target, data);
+		} else {
+			flush();
+			node.appendChild(document.createProcessingInstruction(target, data));
+		}
+	}
+
+	@Override
+	public void comment(final char[] ch, final int start, final int length) {
+		// comments of the document type declaration are skipped
+		if (dtd)
+			return;
+		final String value = new String(ch, start, length);
+		if (builder != null) {
+			builder.comment(value);
+		} else {
+			flush();
+			node.appendChild(document.createComment(value));
+		}
+	}
+
+	@Override
+	public void startCDATA() {
+		if (builder == null)
+			flush();
+		cdata = new StringBuilder();
+	}
+
+	@Override
+	public void endCDATA() {
+		final String value = cdata.toString();
+		cdata = null;
+		if (builder != null) {
+			builder.cdata(value);
+		} else {
+			node.appendChild(document.createCDATASection(value));
+		}
+	}
+
+	@Override
+	public void startDTD(final String name, final String publicId,
+			final String systemId) {
+		dtd = true;
+	}
+
+	@Override
+	public void endDTD() {
+		dtd = false;
+	}
+
+	@Override
+	public void startEntity(final String name) {
+	}
+
+	@Override
+	public void endEntity(final String name) {
+	}
+
+	/**
+	 * Input stream that rejects documents exceeding the maximum size.
+	 */
+	private final class Limited extends FilterInputStream {
+		/**
+		 * Number of bytes read so far.
+		 */
+		private long read;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param in
+		 *            input stream
+		 */
+		Limited(final InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = in.read();
+			if (b != -1)
+				count(1);
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len)
+				throws IOException {
+			final int r = in.read(b, off, len);
+			if (r > 0)
+				count(r);
+			return r;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException {
+			final long s = in.skip(n);
+			count(s);
+			return s;
+		}
+
+		/**
+		 * Counts the specified number of bytes.
+		 *
+		 * @param n
+		 *            number of bytes
+		 * @throws IOException
+		 *             if the maximum size is exceeded
+		 */
+		private void count(final long n) throws IOException {
+			read += n;
+			if (read > maxSize) {
+				limit = "Document exceeds the maximum size of " + maxSize
+						+ " bytes.";
+				throw new IOException(limit);
+			}
+		}
+	}
+}
@@ -0,0 +1,597 @@
+package org.jaxrx.dom;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * This class implements a write-ahead log for the documents of the DOM
+ * implementation. Every stored revision and every deletion is appended to the
+ * log. Records of concurrent writers are collected in memory and written by a
+ * background thread in a single batch (group commit), which is then forced to
+ * disk according to the chosen synchronization policy. A writer calls
+ * {@link #sync()} after it has released its locks to wait until its records
+ * are durable.
+ *
+ * <p>
+ * The following system properties are supported:
+ * </p>
+ * <ul>
+ * <li>{@link #WAL}: path of the log file; the log is disabled if it is not
+ * specified</li>
+ * <li>{@link #SYNC}: {@code force} (default) forces the file contents to disk
+ * after each batch, {@code metadata} forces contents and metadata, and
+ * {@code none} only writes the batch to the operating system</li>
+ * <li>{@link #INTERVAL}: number of milliseconds the log thread waits before
+ * writing a batch, in order to collect more records (default: 0)</li>
+ * </ul>
+ *
+ * <p>
+ * Records are protected by a checksum; an incomplete record at the end of the
+ * log, which may result from a crash, is discarded when the log is opened.
+ * </p>
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+final class WriteAheadLog {
+	/**
+	 * System property for the path of the log file.
+	 */
+	static final String WAL = "org.jaxrx.dom.wal";
+
+	/**
+	 * System property for the synchronization policy.
+	 */
+	static final String SYNC = "org.jaxrx.dom.wal.sync";
+
+	/**
+	 * System property for the flush interval.
+	 */
+	static final String INTERVAL = "org.jaxrx.dom.wal.interval";
+
+	/**
+	 * Record type: stored revision.
+	 */
+	static final byte PUT = 0;
+
+	/**
+	 * Record type: deleted document.
+	 */
+	static final byte DELETE = 1;
+
+	/**
+	 * Path of the log file.
+	 */
+	private final File path;
+
+	/**
+	 * Log file; guarded by {@link #io}.
+	 */
+	private RandomAccessFile file;
+
+	/**
+	 * Channel of the log file; guarded by {@link #io}.
+	 */
+	private FileChannel channel;
+
+	/**
+	 * Lock for accessing the log file.
+	 */
+	private final Object io = new Object();
+
+	/**
+	 * Log position of the first byte in the log file; guarded by {@link #io}.
+	 */
+	private long base;
+
+	/**
+	 * Flag for forcing batches to disk.
+	 */
+	private final boolean force;
+
+	/**
+	 * Flag for forcing metadata to disk.
+	 */
+	private final boolean metadata;
+
+	/**
+	 * Flush interval in milliseconds.
+	 */
+	private final long interval;
+
+	/**
+	 * Records that were read when the log was opened.
+	 */
+	private final List<Record> records = new ArrayList<Record>();
+
+	/**
+	 * Records that have not been written yet.
+	 */
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+	/**
+	 * Number of appended bytes.
+	 */
+	private long appended;
+
+	/**
+	 * Number of durable bytes.
+	 */
+	private long durable;
+
+	/**
+	 * Number of written batches.
+	 */
+	private long batches;
+
+	/**
+	 * Number of appended records.
+	 */
+	private long count;
+
+	/**
+	 * Error of the log thread, or {@code null}.
+	 */
+	private IOException failure;
+
+	/**
+	 * Log position of the last record appended by the current thread.
+	 */
+	private final ThreadLocal<long[]> last = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	/**
+	 * Opens or creates a log.
+	 *
+	 * @param file
+	 *            log file
+	 * @param sync
+	 *            synchronization policy ({@code force}, {@code metadata} or
+	 *            {@code none})
+	 * @param ms
+	 *            flush interval in milliseconds
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	WriteAheadLog(final File file, final String sync, final long ms)
+			throws IOException {
+		path = file;
+		force = !sync.equals("none");
+		metadata = sync.equals("metadata");
+		interval = Math.max(0, ms);
+
+		// read records, and discard an incomplete record at the end
+		long valid = 0;
+		if (path.exists()) {
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(path)));
+			try {
+				final long length = path.length();
+				while (true) {
+					final Record rec = Record.read(in, length - valid);
+					if (rec == null)
+						break;
+					records.add(rec);
+					valid += rec.size;
+				}
+			} finally {
+				in.close();
+			}
+		} else if (path.getParentFile() != null) {
+			path.getParentFile().mkdirs();
+		}
+		this.file = new RandomAccessFile(path, "rw");
+		this.file.setLength(valid);
+		channel = this.file.getChannel();
+		channel.position(valid);
+		appended = valid;
+		durable = valid;
+
+		final Thread thread = new Thread("JAX-RX write-ahead log") {
+			@Override
+			public void run() {
+				flush();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Opens the log that is specified via the system properties.
+	 *
+	 * @return log, or {@code null} if no log file is specified
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	static WriteAheadLog open() throws IOException {
+		final String path = System.getProperty(WAL);
+		return path == null ? null : new WriteAheadLog(new File(path), System
+				.getProperty(SYNC, "force"), Long.getLong(INTERVAL, 0));
+	}
+
+	/**
+	 * Returns the records that were read when the log was opened, in the order
+	 * in which they were written.
+	 *
+	 * @return records
+	 */
+	List<Record> records() {
+		return records;
+	}
+
+	/**
+	 * Appends a stored revision to the log.
+	 *
+	 * @param name
+	 *            name of the document
+	 * @param number
+	 *            revision number
+	 * @param version
+	 *            version
+	 * @param modified
+	 *            modification time
+	 * @param data
+	 *            serialized document
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	void put(final String name, final int number, final long version,
+			final long modified, final byte[] data) throws IOException {
+		append(new Record(PUT, name, number, version, modified, data)
+				.bytes(), 1);
+	}
+
+	/**
+	 * Appends several records to the log. The records are appended together,
+	 * so that they are written in the same batch.
+	 *
+	 * @param list
+	 *            records
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	void put(final List<Record> list) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (final Record rec : list)
+			bytes.write(rec.bytes());
+		append(bytes.toByteArray(), list.size());
+	}
+
+	/**
+	 * Appends the deletion of a document to the log.
+	 *
+	 * @param name
+	 *            name of the document
+	 * @param version
+	 *            version
+	 * @param modified
+	 *            modification time
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	void delete(final String name, final long version, final long modified)
+			throws IOException {
+		append(new Record(DELETE, name, 0, version, modified, new byte[0])
+				.bytes(), 1);
+	}
+
+	/**
+	 * Waits until all records that have been appended by the current thread
+	 * are durable.
+	 *
+	 * @throws IOException
+	 *             if the log could not be written
+	 */
+	void sync() throws IOException {
+		await(last.get()[0]);
+	}
+
+	/**
+	 * Waits until all records that have been appended so far, by any thread,
+	 * are durable.
+	 *
+	 * @throws IOException
+	 *             if the log could not be written
+	 */
+	void syncAll() throws IOException {
+		await(position());
+	}
+
+	/**
+	 * Returns the current log position. All records that have been appended
+	 * so far are located before this position.
+	 *
+	 * @return log position
+	 */
+	synchronized long position() {
+		return appended;
+	}
+
+	/**
+	 * Removes all records before the specified log position from the log file.
+	 * The remaining records are copied to a new file, which replaces the
+	 * current file. Concurrent writers are not blocked; their records are
+	 * written when the new file is ready.
+	 *
+	 * @param lsn
+	 *            log position
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	void truncate(final long lsn) throws IOException {
+		await(lsn);
+		synchronized (io) {
+			final long off = lsn - base;
+			if (off <= 0)
+				return;
+			final File tmp = new File(path.getPath() + ".tmp");
+			final RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				raf.setLength(0);
+				final FileChannel fc = raf.getChannel();
+				final long size = channel.size();
+				for (long p = off; p < size;)
+					p += channel.transferTo(p, size - p, fc);
+				fc.force(true);
+			} finally {
+				raf.close();
+			}
+			file.close();
+			if (!tmp.renameTo(path) && !(path.delete() && tmp.renameTo(path)))
+				throw new IOException("Log file cannot be replaced: " + path);
+			file = new RandomAccessFile(path, "rw");
+			channel = file.getChannel();
+			channel.position(channel.size());
+			base = lsn;
+		}
+	}
+
+	/**
+	 * Waits until the log is durable up to the specified position.
+	 *
+	 * @param lsn
+	 *            log position
+	 * @throws IOException
+	 *             if the log could not be written
+	 */
+	private void await(final long lsn) throws IOException {
+		synchronized (this) {
+			while (durable < lsn) {
+				if (failure != null)
+					throw failure;
+				try {
+					wait();
+				} catch (final InterruptedException ex) {
+					throw new IOException("Interrupted while waiting for the log");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of batches that have been written.
+	 *
+	 * @return number of batches
+	 */
+	synchronized long batches() {
+		return batches;
+	}
+
+	/**
+	 * Returns the number of records that have been appended.
+	 *
+	 * @return number of records
+	 */
+	synchronized long count() {
+		return count;
+	}
+
+	/**
+	 * Appends records to the pending batch.
+	 *
+	 * @param bytes
+	 *            binary representation of the records
+	 * @param n
+	 *            number of records
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private void append(final byte[] bytes, final int n) throws IOException {
+		synchronized (this) {
+			if (failure != null)
+				throw failure;
+			pending.write(bytes);
+			appended += bytes.length;
+			count += n;
+			last.get()[0] = appended;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Writes pending batches until the log fails. Called by the log thread.
+	 */
+	private void flush() {
+		try {
+			while (true) {
+				synchronized (this) {
+					while (pending.size() == 0)
+						wait();
+				}
+				if (interval > 0)
+					Thread.sleep(interval);
+
+				final ByteArrayOutputStream batch;
+				final long target;
+				synchronized (this) {
+					batch = pending;
+					pending = new ByteArrayOutputStream();
+					target = appended;
+				}
+				final ByteBuffer bb = ByteBuffer.wrap(batch.toByteArray());
+				synchronized (io) {
+					while (bb.hasRemaining())
+						channel.write(bb);
+					if (force)
+						channel.force(metadata);
+				}
+				synchronized (this) {
+					durable = target;
+					batches++;
+					notifyAll();
+				}
+			}
+		} catch (final IOException ex) {
+			synchronized (this) {
+				failure = ex;
+				notifyAll();
+			}
+		} catch (final InterruptedException ex) {
+			synchronized (this) {
+				failure = new IOException("Log thread was interrupted");
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Log record.
+	 */
+	static final class Record {
+		/** Record type ({@link #PUT} or {@link #DELETE}). */
+		final byte type;
+		/** Document name. */
+		final String name;
+		/** Revision number. */
+		final int number;
+		/** Version. */
+		final long version;
+		/** Modification time. */
+		final long modified;
+		/** Serialized document. */
+		final byte[] data;
+		/** Size of the record in the log. */
+		long size;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param t
+		 *            record type
+		 * @param n
+		 *            document name
+		 * @param num
+		 *            revision number
+		 * @param vers
+		 *            version
+		 * @param mod
+		 *            modification time
+		 * @param d
+		 *            serialized document
+		 */
+		Record(final byte t, final String n, final int num, final long vers,
+				final long mod, final byte[] d) {
+			type = t;
+			name = n;
+			number = num;
+			version = vers;
+			modified = mod;
+			data = d;
+		}
+
+		/**
+		 * Returns the binary representation of this record: its length, its
+		 * contents and a checksum.
+		 *
+		 * @return bytes
+		 * @throws IOException
+		 *             I/O exception
+		 */
+		byte[] bytes() throws IOException {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+					data.length + name.length() + 48);
+			final DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0);
+			out.writeByte(type);
+			out.writeUTF(name);
+			out.writeInt(number);
+			out.writeLong(version);
+			out.writeLong(modified);
+			out.writeInt(data.length);
+			out.write(data);
+			out.writeInt(0);
+			final byte[] rec = bytes.toByteArray();
+			final int l = rec.length - 8;
+			final CRC32 crc = new CRC32();
+			crc.update(rec, 4, l);
+			ByteBuffer.wrap(rec).putInt(0, l).putInt(rec.length - 4,
+					(int) crc.getValue());
+			size = rec.length;
+			return rec;
+		}
+
+		/**
+		 * Reads a record.
+		 *
+		 * @param in
+		 *            input stream
+		 * @param max
+		 *            maximum number of bytes to read
+		 * @return record, or {@code null} if the end of the log has been
+		 *         reached or the record is incomplete or corrupt
+		 * @throws IOException
+		 *             I/O exception
+		 */
+		static Record read(final DataInputStream in, final long max)
+				throws IOException {
+			try {
+				final int l = in.readInt();
+				if (l <= 0 || l > max - 8)
+					return null;
+				final byte[] content = new byte[l];
+				in.readFully(content);
+				final CRC32 crc = new CRC32();
+				crc.update(content);
+				if (in.readInt() != (int) crc.getValue())
+					return null;
+				final DataInputStream cin = new DataInputStream(
+						new ByteArrayInputStream(content));
+				final byte type = cin.readByte();
+				final String name = cin.readUTF();
+				final int number = cin.readInt();
+				final long version = cin.readLong();
+				final long modified = cin.readLong();
+				final int dl = cin.readInt();
+				if (dl < 0 || dl > l)
+					return null;
+				final byte[] data = new byte[dl];
+				cin.readFully(data);
+				final Record rec = new Record(type, name, number, version,
+						modified, data);
+				rec.size = l + 8;
+				return rec;
+			} catch (final EOFException ex) {
+				return null;
+			}
+		}
+	}
+}
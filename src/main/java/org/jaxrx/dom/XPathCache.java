@@ -0,0 +1,180 @@
+package org.jaxrx.dom;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+/**
+ * This class caches compiled XPath expressions, using the query string and the
+ * namespace context as key. As JAXP guarantees thread safety neither for
+ * {@link XPathFactory} nor for {@link XPathExpression} instances, each thread
+ * keeps its own factory and a bounded map of compiled expressions, which is
+ * ordered by access and evicts the least recently used entry. The maximum
+ * number of expressions per thread can be specified via the system property
+ * {@link #SIZE}.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+final class XPathCache {
+	/**
+	 * System property for the maximum number of cached expressions per
+	 * thread.
+	 */
+	static final String SIZE = "org.jaxrx.dom.xpathCacheSize";
+
+	/**
+	 * Maximum number of cached expressions per thread.
+	 */
+	private static final int MAXSIZE = Math.max(0, Integer.getInteger(SIZE,
+			256));
+
+	/**
+	 * Number of cache hits.
+	 */
+	private static final AtomicLong HITS = new AtomicLong();
+
+	/**
+	 * Number of cache misses.
+	 */
+	private static final AtomicLong MISSES = new AtomicLong();
+
+	/**
+	 * Thread-local caches.
+	 */
+	private static final ThreadLocal<XPathCache> CACHES = new ThreadLocal<XPathCache>() {
+		@Override
+		protected XPathCache initialValue() {
+			return new XPathCache();
+		}
+	};
+
+	/**
+	 * XPath factory, which is used for compiling expressions.
+	 */
+	private final XPathFactory factory = XPathFactory.newInstance();
+
+	/**
+	 * Compiled expressions, ordered by access.
+	 */
+	private final Map<Key, XPathExpression> exprs = new LinkedHashMap<Key, XPathExpression>(
+			16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(
+				final Map.Entry<Key, XPathExpression> eldest) {
+			return size() > MAXSIZE;
+		}
+	};
+
+	/**
+	 * Private constructor.
+	 */
+	private XPathCache() {
+	}
+
+	/**
+	 * Returns a compiled version of the specified query. The expression must
+	 * only be evaluated by the calling thread.
+	 *
+	 * @param query
+	 *            query string
+	 * @param ns
+	 *            namespace context (may be {@code null})
+	 * @return compiled expression
+	 * @throws XPathExpressionException
+	 *             if the query cannot be compiled
+	 */
+	static XPathExpression get(final String query, final NamespaceContext ns)
+			throws XPathExpressionException {
+		return CACHES.get().compile(query, ns);
+	}
+
+	/**
+	 * Returns the number of cache hits.
+	 *
+	 * @return number of hits
+	 */
+	static long hits() {
+		return HITS.get();
+	}
+
+	/**
+	 * Returns the number of cache misses.
+	 *
+	 * @return number of misses
+	 */
+	static long misses() {
+		return MISSES.get();
+	}
+
+	/**
+	 * Returns a cached expression or compiles and caches a new one.
+	 *
+	 * @param query
+	 *            query string
+	 * @param ns
+	 *            namespace context (may be {@code null})
+	 * @return compiled expression
+	 * @throws XPathExpressionException
+	 *             if the query cannot be compiled
+	 */
+	private XPathExpression compile(final String query,
+			final NamespaceContext ns) throws XPathExpressionException {
+		final Key key = new Key(query, ns);
+		XPathExpression expr = exprs.get(key);
+		if (expr != null) {
+			HITS.incrementAndGet();
+			return expr;
+		}
+		MISSES.incrementAndGet();
+		final XPath xpath = factory.newXPath();
+		if (ns != null)
+			xpath.setNamespaceContext(ns);
+		expr = xpath.compile(query);
+		exprs.put(key, expr);
+		return expr;
+	}
+
+	/**
+	 * Cache key, consisting of the query string and the namespace context.
+	 */
+	private static final class Key {
+		/** Query string. */
+		private final String query;
+		/** Namespace context. */
+		private final NamespaceContext ns;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param qu
+		 *            query string
+		 * @param nsc
+		 *            namespace context
+		 */
+		Key(final String qu, final NamespaceContext nsc) {
+			query = qu;
+			ns = nsc;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			final Key k = (Key) obj;
+			return query.equals(k.query)
+					&& (ns == null ? k.ns == null : ns.equals(k.ns));
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * query.hashCode() + (ns == null ? 0 : ns.hashCode());
+		}
+	}
+}
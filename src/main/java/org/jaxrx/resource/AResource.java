@@ -1,22 +1,36 @@
 package org.jaxrx.resource;
 
 import static org.jaxrx.core.JaxRxConstants.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Scanner;
 import java.util.Set;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 import org.jaxrx.JaxRx;
+import org.jaxrx.Patchable;
+import org.jaxrx.Versioned;
+import org.jaxrx.core.Compression;
 import org.jaxrx.core.JaxRxException;
+import org.jaxrx.core.Metrics;
+import org.jaxrx.core.Precondition;
+import org.jaxrx.core.Precompressed;
 import org.jaxrx.core.QueryParameter;
 import org.jaxrx.core.ResourcePath;
+import org.jaxrx.core.ResultCache;
 import org.jaxrx.core.SchemaChecker;
+import org.jaxrx.core.Stylesheets;
 import org.jaxrx.core.Systems;
 import org.w3c.dom.Document;
 import org.w3c.dom.NamedNodeMap;
@@ -36,6 +50,11 @@ abstract class AResource {
 	 */
 	protected static final String APPLICATION_QUERY_XML = "application/query+xml";
 
+	/**
+	 * Root element of update envelopes.
+	 */
+	protected static final String UPDATE = "update";
+
 	/**
 	 * Returns a stream output, depending on the query parameters.
 	 *
@@ -72,22 +91,167 @@ abstract class AResource {
 	}
 
 	/**
-	 * Returns a result, depending on the query parameters.
+	 * Returns a stream output, depending on the query parameters. Results of
+	 * GET and query requests are taken from the {@link ResultCache} if the
+	 * implementation provides resource versions, unless phase durations are
+	 * requested via {@link QueryParameter#TIMING}. If a stylesheet is
+	 * specified, the transformed results are cached.
 	 *
+	 * @param system
+	 *            system name
 	 * @param impl
 	 *            implementation
 	 * @param path
 	 *            path info
+	 * @param version
+	 *            version of the resource, or {@code -1}
+	 * @param sheet
+	 *            stylesheet, or {@code null}
 	 *
 	 * @return parameter map
 	 */
-	Response createResponse(final JaxRx impl, final ResourcePath path) {
-		final StreamingOutput out = createOutput(impl, path);
+	private StreamingOutput createOutput(final String system,
+			final JaxRx impl, final ResourcePath path, final long version,
+			final Stylesheets.Stylesheet sheet) {
+
+		if (!ResultCache.enabled() || version == -1) {
+			return transform(sheet, createOutput(impl, path));
+		}
+		// stored resources with a compressed representation are not cached
+		if (sheet == null && path.getDepth() != 0
+				&& path.getValue(QueryParameter.QUERY) == null) {
+			final StreamingOutput out = createOutput(impl, path);
+			if (out instanceof Precompressed) {
+				return out;
+			}
+		}
+		// transformed results depend on the version of the stylesheet as well
+		ResourcePath kp = path;
+		if (sheet != null) {
+			final Map<QueryParameter, String> params = new HashMap<QueryParameter, String>(
+					path.getQueryParameter());
+			params.put(QueryParameter.XSL, params.get(QueryParameter.XSL) + '\0'
+					+ sheet.version());
+			kp = new ResourcePath(path.getResourcePath(), params);
+		}
+		final Object key = ResultCache.key(system, kp, version);
+		// timed requests are evaluated, so that all phases are measured
+		final byte[] result = "yes".equals(path
+				.getValue(QueryParameter.TIMING)) ? null : ResultCache.get(key);
+		if (result != null) {
+			return ResultCache.output(result);
+		}
+		return ResultCache.capture(key, transform(sheet, createOutput(impl,
+				path)));
+	}
+
+	/**
+	 * Applies a stylesheet to the specified output.
+	 *
+	 * @param sheet
+	 *            stylesheet, or {@code null}
+	 * @param out
+	 *            output
+	 * @return transformed output, or the original output if no stylesheet is
+	 *         specified
+	 */
+	private static StreamingOutput transform(
+			final Stylesheets.Stylesheet sheet, final StreamingOutput out) {
+		return sheet == null ? out : sheet.transform(out);
+	}
+
+	/**
+	 * Returns a result, depending on the query parameters. If the
+	 * implementation provides resource versions, the response contains an
+	 * entity tag and the modification time of the resource, and conditional
+	 * requests are answered without evaluating the request. If the
+	 * {@link QueryParameter#XSL} parameter is specified, the result is
+	 * transformed with the specified stylesheet, and the entity tag includes
+	 * the version of the stylesheet. The operation and the phases of the
+	 * request are recorded in the {@link Metrics}. If the
+	 * {@link QueryParameter#TIMING} parameter is specified, the result is
+	 * created before the response is returned, so that the durations of all
+	 * phases can be sent in the response header.
+	 *
+	 * @param system
+	 *            system name
+	 * @param impl
+	 *            implementation
+	 * @param path
+	 *            path info
+	 * @param request
+	 *            request, used for evaluating date preconditions (may be
+	 *            {@code null})
+	 * @param headers
+	 *            request headers, used for evaluating entity tag
+	 *            preconditions (may be {@code null})
+	 * @param accept
+	 *            value of the {@code Accept-Encoding} header (may be
+	 *            {@code null})
+	 *
+	 * @return parameter map
+	 */
+	Response createResponse(final String system, final JaxRx impl,
+			final ResourcePath path, final Request request,
+			final HttpHeaders headers, final String accept) {
+
+		final long start = System.nanoTime();
+		Metrics.operation(system, operation(path));
+		if ("yes".equals(path.getValue(QueryParameter.TIMING))) {
+			Metrics.requestTiming();
+		}
+
+		// commands and query files may have side effects and are never cached
+		final long current = impl instanceof Versioned
+				&& path.getValue(QueryParameter.COMMAND) == null
+				&& path.getValue(QueryParameter.RUN) == null ? ((Versioned) impl)
+				.getVersion(path) : -1;
+		final String xsl = path.getValue(QueryParameter.XSL);
+		final Stylesheets.Stylesheet sheet = xsl == null ? null : Stylesheets
+				.get(system, impl, xsl);
+		final long version = sheet == null || sheet.version() != -1 ? current
+				: -1;
+		EntityTag tag = null;
+		Date modified = null;
+		if (version != -1) {
+			if (sheet == null) {
+				tag = Precondition.tag(version);
+				modified = modified((Versioned) impl, path);
+			} else {
+				tag = new EntityTag(Long.toHexString(version) + '-'
+						+ Long.toHexString(sheet.version()));
+			}
+			// entity tags are compared by the preconditions, as tags of
+			// compressed responses match the tag of the uncompressed response
+			final Precondition pre = Precondition.of(headers);
+			Response.ResponseBuilder rb = null;
+			if (pre != null) {
+				if (!pre.ifMatch(tag))
+					rb = Response.status(412);
+				else if (!pre.ifNoneMatch(tag))
+					rb = Response.notModified();
+			} else if (request != null && modified != null) {
+				rb = request.evaluatePreconditions(modified);
+			}
+			if (rb != null) {
+				Metrics.phase(Metrics.Phase.RESPONSE, start);
+				return rb.tag(tag).build();
+			}
+		}
+
+		final long eval = System.nanoTime();
+		StreamingOutput out = Metrics.measure(createOutput(system, impl, path,
+				version, sheet));
+		Metrics.phase(Metrics.Phase.EVALUATE, eval);
+		if (Metrics.timing()) {
+			out = buffer(out);
+		}
 
 		// change media type, dependent on WRAP value
 		final boolean wrap = path.getValue(QueryParameter.WRAP) == null ||
       path.getValue(QueryParameter.WRAP).equals("yes");
-    String type = wrap ? MediaType.APPLICATION_XML : MediaType.TEXT_PLAIN;
+    String type = sheet != null ? sheet.mediaType() : wrap ?
+      MediaType.APPLICATION_XML : MediaType.TEXT_PLAIN;
 
     // overwrite type if METHOD or MEDIA-TYPE parameters are specified
     final String op = path.getValue(QueryParameter.OUTPUT);
@@ -112,8 +276,109 @@ abstract class AResource {
     } catch(final IllegalArgumentException ex) {
       throw new JaxRxException(400, ex.getMessage());
     }
-		return Response.ok(out, mt).build();
+		// compress output if accepted by the client
+		final String coding = Compression.negotiate(accept);
+		final Response.ResponseBuilder rb = Response.ok(coding == null ? out
+				: new CompressedOutput(out, coding), mt);
+		if (Compression.enabled()) {
+			rb.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		}
+		if (tag != null) {
+			rb.tag(tag);
+			if (modified != null)
+				rb.lastModified(modified);
+		}
+		Metrics.phase(Metrics.Phase.RESPONSE, start);
+		return rb.build();
+	}
 
+	/**
+	 * Writes the specified output to a buffer.
+	 *
+	 * @param out
+	 *            output
+	 * @return buffered output
+	 */
+	private static StreamingOutput buffer(final StreamingOutput out) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			out.write(bytes);
+		} catch (final IOException ex) {
+			throw new JaxRxException(ex);
+		}
+		return ResultCache.output(bytes.toByteArray());
+	}
+
+	/**
+	 * Returns the operation of a request, depending on the query parameters.
+	 *
+	 * @param path
+	 *            path info
+	 * @return operation
+	 */
+	private static String operation(final ResourcePath path) {
+		for (final QueryParameter qp : new QueryParameter[] {
+				QueryParameter.COMMAND, QueryParameter.RUN, QueryParameter.QUERY,
+				QueryParameter.SEARCH }) {
+			if (path.getValue(qp) != null) {
+				return qp.name().toLowerCase();
+			}
+		}
+		return "get";
+	}
+
+	/**
+	 * Returns the preconditions ({@code If-Match}, {@code If-None-Match}) of
+	 * a write request. Preconditions are only checked by implementations
+	 * that provide resource versions.
+	 *
+	 * @param impl
+	 *            implementation
+	 * @param headers
+	 *            request headers (may be {@code null})
+	 * @return preconditions, or {@code null}
+	 */
+	static Precondition precondition(final JaxRx impl,
+			final HttpHeaders headers) {
+		return impl instanceof Versioned ? Precondition.of(headers) : null;
+	}
+
+	/**
+	 * Adds the current entity tag of a modified resource to the specified
+	 * response.
+	 *
+	 * @param rb
+	 *            response builder
+	 * @param impl
+	 *            implementation
+	 * @param path
+	 *            path info
+	 * @return response
+	 */
+	Response tagged(final Response.ResponseBuilder rb, final JaxRx impl,
+			final ResourcePath path) {
+		if (impl instanceof Versioned) {
+			final long version = ((Versioned) impl).getVersion(path);
+			if (version != -1) {
+				rb.tag(Precondition.tag(version));
+			}
+		}
+		return rb.build();
+	}
+
+	/**
+	 * Returns the modification time of the specified resource, truncated to
+	 * seconds, as HTTP dates have no higher precision.
+	 *
+	 * @param impl
+	 *            implementation
+	 * @param path
+	 *            path info
+	 * @return modification time, or {@code null}
+	 */
+	private static Date modified(final Versioned impl, final ResourcePath path) {
+		final long modified = impl.getModified(path);
+		return modified < 0 ? null : new Date(modified / 1000 * 1000);
 	}
 
 	/**
@@ -130,6 +395,7 @@ abstract class AResource {
 	protected Map<QueryParameter, String> getParameters(final UriInfo uri,
 			final JaxRx jaxrx) {
 
+		final long start = System.nanoTime();
 		final MultivaluedMap<String, String> params = uri.getQueryParameters();
 		final Map<QueryParameter, String> newParam = createMap();
 		final Set<QueryParameter> impl = jaxrx.getParameters();
@@ -139,6 +405,7 @@ abstract class AResource {
 	      addParameter(key, s, newParam, impl);
 		  }
 		}
+		Metrics.phase(Metrics.Phase.PARSE, start);
 		return newParam;
 	}
 
@@ -157,6 +424,7 @@ abstract class AResource {
 	protected Map<QueryParameter, String> getParameters(final Document doc,
 			final JaxRx jaxrx) {
 
+		final long start = System.nanoTime();
 		final Map<QueryParameter, String> newParams = createMap();
 		final Set<QueryParameter> impl = jaxrx.getParameters();
 
@@ -193,6 +461,7 @@ abstract class AResource {
                    nnm.getNamedItem("value").getNodeValue();
       addParameter("output", val, newParams, impl);
     }
+		Metrics.phase(Metrics.Phase.PARSE, start);
 		return newParams;
 	}
 
@@ -215,7 +484,9 @@ abstract class AResource {
 
     try {
       final QueryParameter ep = QueryParameter.valueOf(key.toUpperCase());
-      if (!impl.contains(ep)) {
+      // stylesheets and timings are handled by the resource layer
+      if (!impl.contains(ep) && ep != QueryParameter.XSL &&
+          ep != QueryParameter.TIMING) {
         throw new JaxRxException(400, "Parameter '" + key
             + "' is not supported by the implementation.");
       }
@@ -270,22 +541,63 @@ abstract class AResource {
    *            The input stream.
    * @param resource
    *            The resource
+   * @param accept
+   *            The {@code Accept-Encoding} header (may be {@code null}).
    * @return The {@link Response} which can be empty when no response is
    *         expected. Otherwise it holds the response XML file.
    */
   public Response postQuery(final String system, final InputStream input,
-      final String resource) {
+      final String resource, final String accept) {
 
     final JaxRx impl = Systems.getInstance(system);
     final Document doc = new SchemaChecker("post").check(input);
+    // update envelopes modify the resource
+    if(doc.getDocumentElement().getNodeName().equals(UPDATE)) {
+      return patch(system, resource, null, doc);
+    }
     final Map<QueryParameter, String> param = getParameters(doc, impl);
     final ResourcePath path = new ResourcePath(resource, param);
-    return createResponse(impl, path);
+    return createResponse(system, impl, path, null, null, accept);
   }
 
   /**
-   * This method will be called when a HTTP client sends a POST request to an
-   * existing resource with 'application/query+xml' as Content-Type.
+   * Applies the operations of an update envelope to a resource. Like all
+   * write operations, the envelope is only applied if the preconditions of
+   * the request are met.
+   *
+   * @param system
+   *            The implementation system.
+   * @param resource
+   *            The resource.
+   * @param headers
+   *            The request headers, used for evaluating preconditions (may
+   *            be {@code null}).
+   * @param update
+   *            The update envelope.
+   * @return The {@link Response} with an info message.
+   */
+  Response patch(final String system, final String resource,
+      final HttpHeaders headers, final Document update) {
+
+    final JaxRx impl = Systems.getInstance(system);
+    if(!(impl instanceof Patchable)) {
+      throw new JaxRxException(501,
+          "Updates are not supported by the implementation.");
+    }
+    final ResourcePath path = new ResourcePath(resource, null,
+        precondition(impl, headers));
+    if(path.getDepth() == 0) {
+      throw new JaxRxException(400, "Updates require a resource.");
+    }
+    Metrics.operation(system, "update");
+    final String info = ((Patchable) impl).patch(update, path);
+    ResultCache.invalidate(system, resource);
+    return tagged(Response.ok(info), impl, path);
+  }
+
+  /**
+   * This method will be called when a HTTP client sends a GET request to an
+   * existing resource.
    *
    * @param system
    *            The implementation system.
@@ -293,15 +605,24 @@ abstract class AResource {
    *            The context information due to the requested URI.
    * @param resource
    *            The resource
+   * @param request
+   *            The request, used for evaluating preconditions (may be
+   *            {@code null}).
+   * @param headers
+   *            The request headers, used for evaluating preconditions (may
+   *            be {@code null}).
+   * @param accept
+   *            The {@code Accept-Encoding} header (may be {@code null}).
    * @return The {@link Response} which can be empty when no response is
    *         expected. Otherwise it holds the response XML file.
    */
   public Response getResource(final String system, final UriInfo uri,
-      final String resource) {
+      final String resource, final Request request, final HttpHeaders headers,
+      final String accept) {
 
     final JaxRx impl = Systems.getInstance(system);
     final Map<QueryParameter, String> param = getParameters(uri, impl);
     final ResourcePath path = new ResourcePath(resource, param);
-    return createResponse(impl, path);
+    return createResponse(system, impl, path, request, headers, accept);
   }
 }
@@ -0,0 +1,37 @@
+package org.jaxrx.resource;
+
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * This class wraps a streaming output, which is sent with the content coding
+ * that has been negotiated with the client. It is written by the
+ * {@link CompressedOutputWriter}.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+final class CompressedOutput {
+	/**
+	 * Streaming output.
+	 */
+	final StreamingOutput output;
+
+	/**
+	 * Content coding.
+	 */
+	final String coding;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param out
+	 *            streaming output
+	 * @param cod
+	 *            content coding
+	 */
+	CompressedOutput(final StreamingOutput out, final String cod) {
+		output = out;
+		coding = cod;
+	}
+}
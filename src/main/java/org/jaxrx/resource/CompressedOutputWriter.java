@@ -0,0 +1,160 @@
+package org.jaxrx.resource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+import org.jaxrx.core.Compression;
+import org.jaxrx.core.Precompressed;
+
+/**
+ * This class writes compressed responses. Precompressed outputs are sent as
+ * they are. Other outputs are buffered until {@link Compression#minSize()}
+ * bytes have been written: smaller outputs are sent uncompressed, larger ones
+ * are compressed while they are written. As the HTTP headers are only sent
+ * with the first byte of the body, the {@code Content-Encoding} header can be
+ * set after the output has been started. Compressed responses are sent with
+ * their own entity tag (see {@link Compression#tag}).
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+@Provider
+@Produces(MediaType.WILDCARD)
+public final class CompressedOutputWriter implements
+		MessageBodyWriter<CompressedOutput> {
+
+	@Override
+	public boolean isWriteable(final Class<?> type, final Type genericType,
+			final Annotation[] annotations, final MediaType mediaType) {
+		return CompressedOutput.class.isAssignableFrom(type);
+	}
+
+	@Override
+	public long getSize(final CompressedOutput out, final Class<?> type,
+			final Type genericType, final Annotation[] annotations,
+			final MediaType mediaType) {
+		return -1;
+	}
+
+	@Override
+	public void writeTo(final CompressedOutput out, final Class<?> type,
+			final Type genericType, final Annotation[] annotations,
+			final MediaType mediaType,
+			final MultivaluedMap<String, Object> headers,
+			final OutputStream entity) throws IOException {
+
+		if (out.output instanceof Precompressed
+				&& out.coding.equals(Compression.GZIP)) {
+			final byte[] gzip = ((Precompressed) out.output).gzip();
+			if (gzip != null) {
+				encoded(headers, Compression.GZIP);
+				entity.write(gzip);
+				return;
+			}
+		}
+		final Deferred deferred = new Deferred(entity, headers, out.coding);
+		out.output.write(deferred);
+		deferred.finish();
+	}
+
+	/**
+	 * Sets the content coding of a response. The entity tag is replaced with
+	 * the tag of the compressed representation.
+	 *
+	 * @param headers
+	 *            response headers
+	 * @param coding
+	 *            content coding
+	 */
+	private static void encoded(final MultivaluedMap<String, Object> headers,
+			final String coding) {
+		headers.putSingle(HttpHeaders.CONTENT_ENCODING, coding);
+		final Object tag = headers.getFirst(HttpHeaders.ETAG);
+		if (tag != null) {
+			headers.putSingle(HttpHeaders.ETAG, Compression.tag(
+					tag instanceof EntityTag ? (EntityTag) tag : EntityTag
+							.valueOf(tag.toString()), coding));
+		}
+	}
+
+	/**
+	 * Output stream, which starts compression as soon as the minimum size of
+	 * compressed responses has been exceeded.
+	 */
+	private static final class Deferred extends OutputStream {
+		/** Entity stream. */
+		private final OutputStream entity;
+		/** Response headers. */
+		private final MultivaluedMap<String, Object> headers;
+		/** Content coding. */
+		private final String coding;
+		/** Buffered bytes. */
+		private byte[] buffer = new byte[Compression.minSize()];
+		/** Number of buffered bytes. */
+		private int size;
+		/** Compressing stream, or {@code null}. */
+		private OutputStream out;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param ent
+		 *            entity stream
+		 * @param hdrs
+		 *            response headers
+		 * @param cod
+		 *            content coding
+		 */
+		Deferred(final OutputStream ent,
+				final MultivaluedMap<String, Object> hdrs, final String cod) {
+			entity = ent;
+			headers = hdrs;
+			coding = cod;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len)
+				throws IOException {
+			if (out == null) {
+				if (size + len <= buffer.length) {
+					System.arraycopy(b, off, buffer, size, len);
+					size += len;
+					return;
+				}
+				// minimum size exceeded: start compression
+				encoded(headers, coding);
+				out = Compression.compress(entity, coding);
+				out.write(buffer, 0, size);
+				buffer = null;
+			}
+			out.write(b, off, len);
+		}
+
+		/**
+		 * Writes the buffered bytes or finishes compression.
+		 *
+		 * @throws IOException
+		 *             I/O exception
+		 */
+		void finish() throws IOException {
+			if (out == null)
+				entity.write(buffer, 0, size);
+			else
+				out.close();
+		}
+	}
+}
@@ -5,16 +5,26 @@ import java.util.ArrayList;
 import java.util.List;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
+import org.jaxrx.Bulk;
+import org.jaxrx.JaxRx;
+import org.jaxrx.core.Archive;
+import org.jaxrx.core.JaxRxException;
+import org.jaxrx.core.Metrics;
+import org.jaxrx.core.QueryParameter;
 import org.jaxrx.core.ResponseBuilder;
+import org.jaxrx.core.ResultCache;
 import org.jaxrx.core.Systems;
 import org.jaxrx.core.JaxRxConstants;
 
@@ -46,6 +56,22 @@ public final class JaxRxResource extends AResource {
 		return ResponseBuilder.buildDOMResponse(resources);
 	}
 
+	/**
+	 * This method returns the request metrics and the statistics of all
+	 * created implementations in the text format of Prometheus.
+	 *
+	 * @return metrics
+	 */
+	@Path(JaxRxConstants.METRICSPATH)
+	@GET
+	@Produces(Metrics.TYPE)
+	public String getMetrics() {
+		if (!Metrics.enabled()) {
+			throw new JaxRxException(404, "Metrics are disabled.");
+		}
+		return Metrics.text();
+	}
+
 	/**
 	 * This method waits for calls to the specified URL
 	 * {@link JaxRxConstants#SYSTEMPATH} and creates a response XML file
@@ -63,6 +89,7 @@ public final class JaxRxResource extends AResource {
 			@PathParam(JaxRxConstants.SYSTEM) final String system) {
 
 		Systems.getInstance(system);
+		Metrics.operation(system, "get");
 		final List<String> resources = new ArrayList<String>();
 		resources.add(JaxRxConstants.JAXRX);
 		return ResponseBuilder.buildDOMResponse(resources);
@@ -77,15 +104,23 @@ public final class JaxRxResource extends AResource {
 	 *            The associated system with this request.
 	 * @param uri
 	 *            The context information due to the requested URI.
+	 * @param request
+	 *            The request, used for evaluating preconditions.
+	 * @param headers
+	 *            The request headers, used for evaluating preconditions.
+	 * @param accept
+	 *            The accepted content codings.
 	 * @return The available resources resources according to the URL path.
 	 */
 	@Path(JaxRxConstants.JAXRXPATH)
 	@GET
 	public Response getResource(
 			@PathParam(JaxRxConstants.SYSTEM) final String system,
-			@Context final UriInfo uri) {
+			@Context final UriInfo uri, @Context final Request request,
+			@Context final HttpHeaders headers,
+			@HeaderParam(HttpHeaders.ACCEPT_ENCODING) final String accept) {
 
-    return getResource(system, uri, "");
+    return getResource(system, uri, "", request, headers, accept);
 	}
 
 	/**
@@ -94,6 +129,8 @@ public final class JaxRxResource extends AResource {
 	 *
 	 * @param system
 	 *            The implementation system.
+	 * @param accept
+	 *            The accepted content codings.
 	 * @param input
 	 *            The input stream.
 	 * @return The {@link Response} which can be empty when no response is
@@ -104,8 +141,55 @@ public final class JaxRxResource extends AResource {
 	@Consumes(APPLICATION_QUERY_XML)
 	public Response postQuery(
 			@PathParam(JaxRxConstants.SYSTEM) final String system,
+			@HeaderParam(HttpHeaders.ACCEPT_ENCODING) final String accept,
 			final InputStream input) {
 
-	  return postQuery(system, input, "");
+	  return postQuery(system, input, "", accept);
+	}
+
+	/**
+	 * This method will be called when a HTTP client sends a POST request with
+	 * an archive or a multipart body as content. All contained documents are
+	 * stored as resources.
+	 *
+	 * @param system
+	 *            The implementation system.
+	 * @param type
+	 *            The content type of the input.
+	 * @param uri
+	 *            The query parameters. If {@link QueryParameter#ATOMIC} is
+	 *            {@code yes} or {@code true}, either all documents or none
+	 *            are stored.
+	 * @param input
+	 *            The input stream.
+	 * @return The {@link Response} with a summary of the stored documents.
+	 */
+	@Path(JaxRxConstants.JAXRXPATH)
+	@POST
+	@Consumes( { Archive.ZIP, Archive.TAR, Archive.GTAR, Archive.MIXED,
+			Archive.FORM })
+	@Produces(MediaType.APPLICATION_XML)
+	public Response postArchive(
+			@PathParam(JaxRxConstants.SYSTEM) final String system,
+			@HeaderParam(HttpHeaders.CONTENT_TYPE) final String type,
+			@Context final UriInfo uri, final InputStream input) {
+
+		final JaxRx impl = Systems.getInstance(system);
+		if (!(impl instanceof Bulk)) {
+			throw new JaxRxException(501,
+					"Bulk requests are not supported by the implementation.");
+		}
+		Metrics.operation(system, "add");
+		final String flag = getParameters(uri, impl).get(QueryParameter.ATOMIC);
+		final boolean atomic = "yes".equals(flag) || "true".equals(flag);
+		final Archive archive = new Archive(input, type);
+		try {
+			final StreamingOutput summary = ((Bulk) impl).bulk(archive, atomic);
+			return Response.status(Response.Status.CREATED).entity(summary)
+					.build();
+		} finally {
+			for (final String name : archive.names())
+				ResultCache.invalidate(system, name);
+		}
 	}
 }
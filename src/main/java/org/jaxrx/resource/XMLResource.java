@@ -4,18 +4,26 @@ import java.io.InputStream;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 import org.jaxrx.JaxRx;
+import org.jaxrx.core.JaxRxException;
+import org.jaxrx.core.Metrics;
 import org.jaxrx.core.ResourcePath;
+import org.jaxrx.core.ResultCache;
+import org.jaxrx.core.SchemaChecker;
 import org.jaxrx.core.Systems;
 import org.jaxrx.core.JaxRxConstants;
+import org.w3c.dom.Document;
 
 /**
  * This class match HTTP requests for the {@link JaxRxConstants#RESOURCEPATH}.
@@ -42,14 +50,22 @@ public final class XMLResource extends AResource {
    *          The name of the requested resource.
    * @param uri
    *          The context information due to the requested URI.
+   * @param request
+   *          The request, used for evaluating preconditions.
+   * @param headers
+   *          The request headers, used for evaluating preconditions.
+   * @param accept
+   *          The accepted content codings.
    * @return A collection of available resources.
    */
   @GET
   public Response getResource(
       @PathParam(JaxRxConstants.SYSTEM) final String system,
       @PathParam(JaxRxConstants.RESOURCE) final String resource,
-      @Context final UriInfo uri) {
-    return getResource(system, uri, resource);
+      @Context final UriInfo uri, @Context final Request request,
+      @Context final HttpHeaders headers,
+      @HeaderParam(HttpHeaders.ACCEPT_ENCODING) final String accept) {
+    return getResource(system, uri, resource, request, headers, accept);
   }
 
   /**
@@ -60,6 +76,8 @@ public final class XMLResource extends AResource {
    *          The implementation system.
    * @param resource
    *          The resource name.
+   * @param accept
+   *          The accepted content codings.
    * @param input
    *          The input stream.
    * @return The {@link Response} which can be empty when no response is
@@ -70,9 +88,10 @@ public final class XMLResource extends AResource {
   public Response postQuery(
       @PathParam(JaxRxConstants.SYSTEM) final String system,
       @PathParam(JaxRxConstants.RESOURCE) final String resource,
+      @HeaderParam(HttpHeaders.ACCEPT_ENCODING) final String accept,
       final InputStream input) {
 
-    return postQuery(system, input, resource);
+    return postQuery(system, input, resource, accept);
   }
 
   /**
@@ -83,6 +102,11 @@ public final class XMLResource extends AResource {
    *          The implementation system.
    * @param resource
    *          The resource name.
+   * @param uri
+   *          The context information due to the requested URI; its query
+   *          parameters may specify where the input is added.
+   * @param headers
+   *          The request headers, used for evaluating preconditions.
    * @param input
    *          The input stream.
    * @return The {@link Response} which can be empty when no response is
@@ -93,23 +117,50 @@ public final class XMLResource extends AResource {
   public Response postResource(
       @PathParam(JaxRxConstants.SYSTEM) final String system,
       @PathParam(JaxRxConstants.RESOURCE) final String resource,
+      @Context final UriInfo uri, @Context final HttpHeaders headers,
       final InputStream input) {
 
     final JaxRx impl = Systems.getInstance(system);
-    final String info = impl.add(input, new ResourcePath(resource));
-    return Response.created(null).entity(info).build();
+    final ResourcePath path = new ResourcePath(resource, uri == null ? null
+        : getParameters(uri, impl), precondition(impl, headers));
+    Metrics.operation(system, "add");
+    final String info = impl.add(input, path);
+    ResultCache.invalidate(system, resource);
+    return tagged(Response.created(null).entity(info), impl, path);
+  }
+
+  /**
+   * Adds a resource without evaluating preconditions.
+   *
+   * @param system
+   *          The implementation system.
+   * @param resource
+   *          The resource name.
+   * @param input
+   *          The input stream.
+   * @return The {@link Response} which can be empty when no response is
+   *         expected. Otherwise it holds the response XML file.
+   * @see #postResource(String, String, UriInfo, HttpHeaders, InputStream)
+   */
+  public Response postResource(final String system, final String resource,
+      final InputStream input) {
+    return postResource(system, resource, null, null, input);
   }
 
   /**
    * This method will be called when a new XML file has to be stored within
    * the database. The user request will be forwarded to this method.
    * Afterwards it creates a response message with the 'created' HTTP status
-   * code, if the storing has been successful.
+   * code, if the storing has been successful. If the {@code If-Match} or
+   * {@code If-None-Match} headers do not match the current version of the
+   * resource, the resource is left untouched.
    *
    * @param system
    *          The associated system with this request.
    * @param resource
    *          The name of the new resource.
+   * @param headers
+   *          The request headers, used for evaluating preconditions.
    * @param xml
    *          The XML file as {@link InputStream} that will be stored.
    * @return The HTTP status code as response.
@@ -119,30 +170,105 @@ public final class XMLResource extends AResource {
   public Response putResource(
       @PathParam(JaxRxConstants.SYSTEM) final String system,
       @PathParam(JaxRxConstants.RESOURCE) final String resource,
-      final InputStream xml) {
+      @Context final HttpHeaders headers, final InputStream xml) {
 
     final JaxRx impl = Systems.getInstance(system);
-    final String info = impl.update(xml, new ResourcePath(resource));
-    return Response.created(null).entity(info).build();
+    final ResourcePath path = new ResourcePath(resource, null,
+        precondition(impl, headers));
+    Metrics.operation(system, "update");
+    final String info = impl.update(xml, path);
+    ResultCache.invalidate(system, resource);
+    return tagged(Response.created(null).entity(info), impl, path);
+  }
+
+  /**
+   * Stores a resource without evaluating preconditions.
+   *
+   * @param system
+   *          The associated system with this request.
+   * @param resource
+   *          The name of the new resource.
+   * @param xml
+   *          The XML file as {@link InputStream} that will be stored.
+   * @return The HTTP status code as response.
+   * @see #putResource(String, String, HttpHeaders, InputStream)
+   */
+  public Response putResource(final String system, final String resource,
+      final InputStream xml) {
+    return putResource(system, resource, null, xml);
+  }
+
+  /**
+   * This method will be called when an HTTP client sends a PATCH request to
+   * modify parts of an existing resource. The content must be an update
+   * envelope, as defined in {@code post.xsd}. If the {@code If-Match} header
+   * does not match the current version of the resource, the resource is left
+   * untouched.
+   *
+   * @param system
+   *          The associated system with this request.
+   * @param resource
+   *          The name of the resource that will be modified.
+   * @param headers
+   *          The request headers, used for evaluating preconditions.
+   * @param input
+   *          The update envelope.
+   * @return The HTTP response.
+   */
+  @PATCH
+  @Consumes({ APPLICATION_QUERY_XML, MediaType.TEXT_XML,
+      MediaType.APPLICATION_XML })
+  public Response patchResource(
+      @PathParam(JaxRxConstants.SYSTEM) final String system,
+      @PathParam(JaxRxConstants.RESOURCE) final String resource,
+      @Context final HttpHeaders headers, final InputStream input) {
+
+    final Document update = new SchemaChecker("post").check(input);
+    if(!update.getDocumentElement().getNodeName().equals(UPDATE)) {
+      throw new JaxRxException(400, "Update envelope expected.");
+    }
+    return patch(system, resource, headers, update);
   }
 
   /**
    * This method will be called when an HTTP client sends a DELETE request to
-   * delete an existing resource.
+   * delete an existing resource. If the {@code If-Match} header does not match
+   * the current version of the resource, the resource is left untouched.
    *
    * @param system
    *          The associated system with this request.
    * @param resource
    *          The name of the existing resource that has to be deleted.
+   * @param headers
+   *          The request headers, used for evaluating preconditions.
    * @return The HTTP response code for this call.
    */
   @DELETE
   public Response deleteResource(
       @PathParam(JaxRxConstants.SYSTEM) final String system,
-      @PathParam(JaxRxConstants.RESOURCE) final String resource) {
+      @PathParam(JaxRxConstants.RESOURCE) final String resource,
+      @Context final HttpHeaders headers) {
 
     final JaxRx impl = Systems.getInstance(system);
-    final String info = impl.delete(new ResourcePath(resource));
+    final ResourcePath path = new ResourcePath(resource, null,
+        precondition(impl, headers));
+    Metrics.operation(system, "delete");
+    final String info = impl.delete(path);
+    ResultCache.invalidate(system, resource);
     return Response.ok().entity(info).build();
   }
+
+  /**
+   * Deletes a resource without evaluating preconditions.
+   *
+   * @param system
+   *          The associated system with this request.
+   * @param resource
+   *          The name of the existing resource that has to be deleted.
+   * @return The HTTP response code for this call.
+   * @see #deleteResource(String, String, HttpHeaders)
+   */
+  public Response deleteResource(final String system, final String resource) {
+    return deleteResource(system, resource, null);
+  }
 }
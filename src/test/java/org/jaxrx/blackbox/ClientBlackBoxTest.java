@@ -1,17 +1,28 @@
 package org.jaxrx.blackbox;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.Socket;
 import java.net.URL;
+import java.util.Scanner;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import org.jaxrx.JettyServer;
@@ -22,6 +33,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
@@ -336,6 +348,27 @@ public class ClientBlackBoxTest {
 
 	}
 
+	/**
+	 * This method tests if invalid POST queries are rejected.
+	 *
+	 * @throws IOException I/O exception
+	 */
+	@Test
+	public void testPostInvalidQuery() throws IOException {
+		final String postRequest = "<query><text>//continent</text>"
+				+ "<parameter name='unknown' value='yes'/></query>";
+		connection = (HttpURLConnection) REQURL.openConnection();
+		connection.setDoOutput(true);
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", "application/query+xml");
+		final OutputStream output = connection.getOutputStream();
+		output.write(postRequest.getBytes("UTF-8"));
+		output.close();
+		assertEquals("Test if the invalid query has been rejected",
+				HttpURLConnection.HTTP_BAD_REQUEST, connection.getResponseCode());
+		connection.disconnect();
+	}
+
 	/**
 	 * This method tests a delete request.d
 	 *
@@ -360,6 +393,605 @@ public class ClientBlackBoxTest {
 		connection.disconnect();
 	}
 
+	/**
+	 * This method tests the START and COUNT query parameters.
+	 *
+	 * @throws Exception any exception
+	 */
+	@Test
+	public void testPaging() throws Exception {
+		URL url = new URL(REQURL.toString()
+				+ "?query=//country&start=2&count=3");
+		connection = (HttpURLConnection) url.openConnection();
+		assertEquals("Test if the query has been successful",
+				HttpURLConnection.HTTP_OK, connection.getResponseCode());
+		Document doc = xmlDocument(connection.getInputStream());
+		assertEquals("Test if 3 countries have been received", 3, doc
+				.getElementsByTagName(COUNTRY).getLength());
+		assertEquals("Test if more results are reported", "yes",
+				((Element) doc.getElementsByTagName(RESULTNODE)
+						.item(0)).getAttribute("more"));
+
+		url = new URL(REQURL.toString()
+				+ "?query=//country&start=1000000&count=3");
+		connection = (HttpURLConnection) url.openConnection();
+		doc = xmlDocument(connection.getInputStream());
+		assertEquals("Test if no countries have been received", 0, doc
+				.getElementsByTagName(COUNTRY).getLength());
+		assertEquals("Test if no more results are reported", "no",
+				((Element) doc.getElementsByTagName(RESULTNODE)
+						.item(0)).getAttribute("more"));
+
+		url = new URL(REQURL.toString() + "?query=//country&count=0");
+		connection = (HttpURLConnection) url.openConnection();
+		assertEquals("Test if an invalid count is rejected",
+				HttpURLConnection.HTTP_BAD_REQUEST, connection
+						.getResponseCode());
+		connection.disconnect();
+	}
+
+	/**
+	 * This method tests conditional GET and PUT requests.
+	 *
+	 * @throws IOException I/O exception
+	 */
+	@Test
+	public void testConditional() throws IOException {
+		connection = (HttpURLConnection) REQURL.openConnection();
+		assertEquals("Test if the resource is available",
+				HttpURLConnection.HTTP_OK, connection.getResponseCode());
+		final String etag = connection.getHeaderField("ETag");
+		assertNotNull("Test if an entity tag is returned", etag);
+		assertNotNull("Test if the modification time is returned", connection
+				.getHeaderField("Last-Modified"));
+		connection.getInputStream().close();
+
+		connection = (HttpURLConnection) REQURL.openConnection();
+		connection.setRequestProperty("If-None-Match", etag);
+		assertEquals("Test if the unchanged resource is not returned",
+				HttpURLConnection.HTTP_NOT_MODIFIED, connection
+						.getResponseCode());
+
+		assertEquals("Test if an outdated update is rejected",
+				HttpURLConnection.HTTP_PRECON_FAILED, put("If-Match", "\"0\""));
+		assertEquals("Test if an existing resource is not replaced",
+				HttpURLConnection.HTTP_PRECON_FAILED, put("If-None-Match", "*"));
+		assertEquals("Test if a current update is accepted",
+				HttpURLConnection.HTTP_CREATED, put("If-Match", etag));
+
+		connection = (HttpURLConnection) REQURL.openConnection();
+		connection.setRequestProperty("If-None-Match", etag);
+		assertEquals("Test if the changed resource is returned",
+				HttpURLConnection.HTTP_OK, connection.getResponseCode());
+		connection.getInputStream().close();
+
+		connection = (HttpURLConnection) REQURL.openConnection();
+		connection.setRequestMethod("DELETE");
+		connection.setRequestProperty("If-Match", etag);
+		assertEquals("Test if an outdated deletion is rejected",
+				HttpURLConnection.HTTP_PRECON_FAILED, connection
+						.getResponseCode());
+		connection.disconnect();
+	}
+
+	/**
+	 * Updates the test resource with a conditional header.
+	 *
+	 * @param header name of the header
+	 * @param etag entity tag
+	 * @return response code
+	 * @throws IOException I/O exception
+	 */
+	private int put(final String header, final String etag)
+			throws IOException {
+		connection = (HttpURLConnection) REQURL.openConnection();
+		connection.setRequestMethod("PUT");
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "application/xml");
+		connection.setRequestProperty(header, etag);
+		final OutputStream output = connection.getOutputStream();
+		output.write("<updated/>".getBytes("UTF-8"));
+		output.close();
+		return connection.getResponseCode();
+	}
+
+	/**
+	 * This method tests compressed responses.
+	 *
+	 * @throws Exception any exception
+	 */
+	@Test
+	public void testCompression() throws Exception {
+		String etag = null;
+		for (int i = 0; i < 2; i++) {
+			connection = (HttpURLConnection) REQURL.openConnection();
+			connection.setRequestProperty("Accept-Encoding", "gzip");
+			assertEquals("Test if the resource is available",
+					HttpURLConnection.HTTP_OK, connection.getResponseCode());
+			assertEquals("Test if the resource is compressed", "gzip",
+					connection.getHeaderField("Content-Encoding"));
+			etag = connection.getHeaderField("ETag");
+			final Document doc = xmlDocument(new GZIPInputStream(connection
+					.getInputStream()));
+			assertTrue("Test if the resource has been decompressed", doc
+					.getElementsByTagName(COUNTRY).getLength() > 1);
+		}
+
+		connection = (HttpURLConnection) REQURL.openConnection();
+		assertEquals("Test if the resource is available",
+				HttpURLConnection.HTTP_OK, connection.getResponseCode());
+		final String identity = connection.getHeaderField("ETag");
+		connection.getInputStream().close();
+		assertFalse("Test if the compressed resource has its own entity tag",
+				identity.equals(etag));
+		for (final String tag : new String[] { etag, identity }) {
+			connection = (HttpURLConnection) REQURL.openConnection();
+			connection.setRequestProperty("Accept-Encoding", "gzip");
+			connection.setRequestProperty("If-None-Match", tag);
+			assertEquals("Test if both entity tags are accepted",
+					HttpURLConnection.HTTP_NOT_MODIFIED, connection
+							.getResponseCode());
+		}
+
+		connection = (HttpURLConnection) REQURL.openConnection();
+		connection.setRequestProperty("Accept-Encoding", "gzip;q=0, *");
+		assertEquals("Test if a refused coding is not used", "deflate",
+				connection.getHeaderField("Content-Encoding"));
+		connection.getInputStream().close();
+
+		URL url = new URL(REQURL.toString() + "?query=//country");
+		connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestProperty("Accept-Encoding", "deflate");
+		assertEquals("Test if the query result is compressed", "deflate",
+				connection.getHeaderField("Content-Encoding"));
+		Document doc = xmlDocument(new InflaterInputStream(connection
+				.getInputStream()));
+		assertTrue("Test if the query result has been decompressed", doc
+				.getElementsByTagName(COUNTRY).getLength() > 1);
+
+		url = new URL(REQURL.toString() + "?query=//country[1]/@name");
+		connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		assertNull("Test if small results are not compressed", connection
+				.getHeaderField("Content-Encoding"));
+		doc = xmlDocument(connection.getInputStream());
+		assertEquals("Test if the small result is correct", 1, doc
+				.getElementsByTagName(RESULTNODE).getLength());
+		connection.disconnect();
+	}
+
+	/**
+	 * This method tests the access to older revisions of a resource.
+	 *
+	 * @throws Exception any exception
+	 */
+	@Test
+	public void testRevision() throws Exception {
+		xmlResource.putResource(SYSTEMNAME, RESURI, new ByteArrayInputStream(
+				"<revision>1</revision>".getBytes("UTF-8")));
+
+		URL url = new URL(REQURL.toString() + "?revision=0");
+		connection = (HttpURLConnection) url.openConnection();
+		assertEquals("Test if the first revision is available",
+				HttpURLConnection.HTTP_OK, connection.getResponseCode());
+		Document doc = xmlDocument(connection.getInputStream());
+		assertTrue("Test if the first revision has been returned", doc
+				.getElementsByTagName(COUNTRY).getLength() > 1);
+
+		url = new URL(REQURL.toString() + "?revision=1&query=/revision");
+		connection = (HttpURLConnection) url.openConnection();
+		assertEquals("Test if the second revision is available",
+				HttpURLConnection.HTTP_OK, connection.getResponseCode());
+		doc = xmlDocument(connection.getInputStream());
+		assertEquals("Test if the second revision has been queried", "1", doc
+				.getElementsByTagName("revision").item(0).getTextContent());
+
+		url = new URL(REQURL.toString() + "?revision=2");
+		connection = (HttpURLConnection) url.openConnection();
+		assertEquals("Test if an unknown revision is rejected",
+				HttpURLConnection.HTTP_NOT_FOUND, connection.getResponseCode());
+		connection.disconnect();
+	}
+
+	/**
+	 * This method tests adding fragments to an existing resource.
+	 *
+	 * @throws Exception any exception
+	 */
+	@Test
+	public void testAdd() throws Exception {
+		connection = (HttpURLConnection) REQURL.openConnection();
+		post("<country name='Added'/>".getBytes("UTF-8"), "application/xml");
+		assertEquals("Test if the fragment has been added",
+				HttpURLConnection.HTTP_CREATED, connection.getResponseCode());
+		connection = (HttpURLConnection) new URL(REQURL.toString()
+				+ "?query=//country[@car_code='A']").openConnection();
+		post("<city>Konstanz</city>".getBytes("UTF-8"), "application/xml");
+		assertEquals("Test if the fragment has been added to the target",
+				HttpURLConnection.HTTP_CREATED, connection.getResponseCode());
+		connection = (HttpURLConnection) new URL(REQURL.toString()
+				+ "?query=//country").openConnection();
+		post("<city/>".getBytes("UTF-8"), "application/xml");
+		assertEquals("Test if ambiguous targets are rejected",
+				HttpURLConnection.HTTP_BAD_REQUEST, connection.getResponseCode());
+
+		final URL url = new URL(REQURL + "?query=/mondial/country[last()]/@name"
+				+ "|//country[@car_code='A']/city[last()]&wrap=no");
+		connection = (HttpURLConnection) url.openConnection();
+		final Scanner sc = new Scanner(connection.getInputStream(), "UTF-8")
+				.useDelimiter("\\A");
+		final String result = sc.next();
+		assertTrue(result, result.contains("Added"));
+		assertTrue(result, result.contains("<city>Konstanz</city>"));
+		connection.disconnect();
+	}
+
+	/**
+	 * This method tests partial updates with POST and PATCH requests.
+	 *
+	 * @throws Exception any exception
+	 */
+	@Test
+	public void testPatch() throws Exception {
+		connection = (HttpURLConnection) REQURL.openConnection();
+		post(("<update><value select=\"//country[@car_code='A']/@name\">"
+				+ "Austria!</value><delete select='//country[@car_code=\"AL\"]'/>"
+				+ "</update>").getBytes("UTF-8"), "application/query+xml");
+		assertEquals("Test if the update has been applied",
+				HttpURLConnection.HTTP_OK, connection.getResponseCode());
+		final String etag = connection.getHeaderField("ETag");
+		assertNotNull(etag);
+
+		// PATCH is not supported by HttpURLConnection
+		final String body = "<update><rename select='/mondial' name='world'/>"
+				+ "</update>";
+		final Socket socket = new Socket("localhost", PORT);
+		final OutputStream out = socket.getOutputStream();
+		out.write(("PATCH " + REQURL.getPath() + " HTTP/1.0\r\n"
+				+ "Content-Type: application/query+xml\r\n" + "If-Match: "
+				+ etag + "\r\nContent-Length: " + body.length() + "\r\n\r\n"
+				+ body).getBytes("UTF-8"));
+		out.flush();
+		final String status = new Scanner(socket.getInputStream(), "UTF-8")
+				.nextLine();
+		socket.close();
+		assertTrue(status, status.contains(" 200 "));
+
+		final URL url = new URL(REQURL + "?query=/world/country[1]/@name"
+				+ "|//country[@car_code='A']/@name&wrap=no");
+		connection = (HttpURLConnection) url.openConnection();
+		final String result = new Scanner(connection.getInputStream(), "UTF-8")
+				.useDelimiter("\\A").next();
+		assertTrue(result, result.contains("Andorra"));
+		assertTrue(result, result.contains("Austria!"));
+
+		connection = (HttpURLConnection) REQURL.openConnection();
+		post("<update><delete select='/world/@x'/><value select='//nothing'>x"
+				.concat("</value></update>").getBytes("UTF-8"),
+				"application/query+xml");
+		assertEquals("Test if empty targets are rejected",
+				HttpURLConnection.HTTP_BAD_REQUEST, connection.getResponseCode());
+		connection.disconnect();
+	}
+
+	/**
+	 * This method tests bulk requests with ZIP archives and multipart bodies.
+	 *
+	 * @throws Exception any exception
+	 */
+	@Test
+	public void testBulk() throws Exception {
+		final URL url = new URL("http://localhost:" + PORT + "/" + SYSTEMNAME
+				+ "/" + JAXRX);
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ZipOutputStream zip = new ZipOutputStream(bytes);
+		for (int d = 0; d < 3; d++) {
+			zip.putNextEntry(new ZipEntry("bulk/bulk" + d + ".xml"));
+			zip.write((d == 2 ? "<bulk>" : "<bulk>" + d + "</bulk>")
+					.getBytes("UTF-8"));
+		}
+		zip.close();
+
+		// atomic requests are rejected if a document is invalid
+		connection = (HttpURLConnection) new URL(url + "?atomic=true")
+				.openConnection();
+		post(bytes.toByteArray(), "application/zip");
+		assertEquals("Test if the atomic request has been rejected",
+				HttpURLConnection.HTTP_BAD_REQUEST, connection.getResponseCode());
+		connection = (HttpURLConnection) new URL(url + "/bulk0")
+				.openConnection();
+		assertEquals("Test if no document has been stored",
+				HttpURLConnection.HTTP_NOT_FOUND, connection.getResponseCode());
+
+		// other requests store all valid documents
+		connection = (HttpURLConnection) url.openConnection();
+		post(bytes.toByteArray(), "application/zip");
+		assertEquals("Test if the documents have been stored",
+				HttpURLConnection.HTTP_CREATED, connection.getResponseCode());
+		Element summary = xmlDocument(connection.getInputStream())
+				.getDocumentElement();
+		assertEquals("2", summary.getAttribute("stored"));
+		assertEquals("1", summary.getAttribute("failed"));
+		assertEquals("bulk2", ((Element) summary.getElementsByTagName(
+				"jax-rx:failure").item(0)).getAttribute("name"));
+
+		final String multipart = "--b\r\nContent-Disposition: form-data; "
+				+ "name=\"bulk1\"\r\n\r\n<bulk>x</bulk>\r\n--b--\r\n";
+		connection = (HttpURLConnection) url.openConnection();
+		post(multipart.getBytes("UTF-8"), "multipart/form-data; boundary=b");
+		assertEquals("Test if the part has been stored",
+				HttpURLConnection.HTTP_CREATED, connection.getResponseCode());
+		summary = xmlDocument(connection.getInputStream()).getDocumentElement();
+		assertEquals("1", summary.getAttribute("stored"));
+
+		final String[] expected = { "0", "x" };
+		for (int d = 0; d < 2; d++) {
+			connection = (HttpURLConnection) new URL(url + "/bulk" + d)
+					.openConnection();
+			assertEquals("Test if the document has been stored", expected[d],
+					xmlDocument(connection.getInputStream()).getDocumentElement()
+							.getTextContent());
+			xmlResource.deleteResource(SYSTEMNAME, "bulk" + d);
+		}
+		connection.disconnect();
+	}
+
+	/**
+	 * This method tests the transformation of results with stored
+	 * stylesheets.
+	 *
+	 * @throws Exception any exception
+	 */
+	@Test
+	public void testXsl() throws Exception {
+		final String xsl = "<xsl:stylesheet version='1.0' "
+				+ "xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+				+ "<xsl:output method='text'/><xsl:template match='/'>";
+		xmlResource.putResource(SYSTEMNAME, "count.xsl",
+				new ByteArrayInputStream((xsl + "<xsl:value-of select="
+						+ "'count(//country)'/></xsl:template></xsl:stylesheet>")
+						.getBytes("UTF-8")));
+		try {
+			final URL url = new URL(REQURL + "?xsl=count.xsl");
+			connection = (HttpURLConnection) url.openConnection();
+			assertEquals("12", new Scanner(connection.getInputStream(), "UTF-8")
+					.useDelimiter("\\A").next());
+			assertTrue(connection.getContentType().startsWith("text/plain"));
+			final String etag = connection.getHeaderField("ETag");
+
+			// modified stylesheets are compiled again
+			xmlResource.putResource(SYSTEMNAME, "count.xsl",
+					new ByteArrayInputStream((xsl + "<xsl:value-of select="
+							+ "'count(//city)'/></xsl:template></xsl:stylesheet>")
+							.getBytes("UTF-8")));
+			connection = (HttpURLConnection) url.openConnection();
+			final String cities = new Scanner(connection.getInputStream(),
+					"UTF-8").useDelimiter("\\A").next();
+			assertFalse(cities.equals("12"));
+			assertFalse(etag.equals(connection.getHeaderField("ETag")));
+
+			connection = (HttpURLConnection) REQURL.openConnection();
+			post(("<query>"
+					+ "<text>//country</text>"
+					+ "<parameter name='xsl' value='count.xsl'/></query>")
+					.getBytes("UTF-8"), "application/query+xml");
+			assertEquals(cities, new Scanner(connection.getInputStream(),
+					"UTF-8").useDelimiter("\\A").next());
+
+			connection = (HttpURLConnection) new URL(REQURL + "?xsl=unknown.xsl")
+					.openConnection();
+			assertEquals("Test if missing stylesheets are reported",
+					HttpURLConnection.HTTP_NOT_FOUND, connection.getResponseCode());
+			connection.disconnect();
+		} finally {
+			xmlResource.deleteResource(SYSTEMNAME, "count.xsl");
+		}
+	}
+
+	/**
+	 * This method tests that stored stylesheets cannot call extension
+	 * functions or read local files.
+	 *
+	 * @throws Exception any exception
+	 */
+	@Test
+	public void testXslRestricted() throws Exception {
+		final String xsl = "<xsl:stylesheet version='1.0' "
+				+ "xmlns:xsl='http://www.w3.org/1999/XSL/Transform' "
+				+ "xmlns:rt='http://xml.apache.org/xalan/java/java.lang.System'>"
+				+ "<xsl:output method='text'/><xsl:template match='/'>";
+		xmlResource.putResource(SYSTEMNAME, "java.xsl",
+				new ByteArrayInputStream((xsl + "<xsl:value-of select="
+						+ "\"rt:getProperty('user.home')\"/></xsl:template>"
+						+ "</xsl:stylesheet>").getBytes("UTF-8")));
+		final File file = File.createTempFile("jaxrx", ".xml");
+		final FileOutputStream fos = new FileOutputStream(file);
+		fos.write("<secret>local</secret>".getBytes("UTF-8"));
+		fos.close();
+		xmlResource.putResource(SYSTEMNAME, "file.xsl",
+				new ByteArrayInputStream((xsl + "<xsl:value-of select="
+						+ "\"document('" + file.toURI() + "')\"/></xsl:template>"
+						+ "</xsl:stylesheet>").getBytes("UTF-8")));
+		try {
+			connection = (HttpURLConnection) new URL(REQURL + "?xsl=java.xsl")
+					.openConnection();
+			assertEquals("Test if extension functions are rejected",
+					HttpURLConnection.HTTP_BAD_REQUEST, connection
+							.getResponseCode());
+			connection.disconnect();
+
+			connection = (HttpURLConnection) new URL(REQURL + "?xsl=file.xsl")
+					.openConnection();
+			final int code = connection.getResponseCode();
+			final InputStream in = code == HttpURLConnection.HTTP_OK ? connection
+					.getInputStream() : connection.getErrorStream();
+			final String result = in == null ? "" : new Scanner(in, "UTF-8")
+					.useDelimiter("\\A").next();
+			assertFalse("Test if local files cannot be read", result
+					.contains("local"));
+			connection.disconnect();
+		} finally {
+			xmlResource.deleteResource(SYSTEMNAME, "java.xsl");
+			xmlResource.deleteResource(SYSTEMNAME, "file.xsl");
+			file.delete();
+		}
+	}
+
+	/**
+	 * This method tests queries on all documents of a system.
+	 *
+	 * @throws Exception any exception
+	 */
+	@Test
+	public void testCollectionQuery() throws Exception {
+		for (int i = 1; i <= 3; i++) {
+			xmlResource.putResource(SYSTEMNAME, "collection" + i,
+					new ByteArrayInputStream(("<c><x>" + i + "</x></c>")
+							.getBytes("UTF-8")));
+		}
+		try {
+			final String root = "http://localhost:" + PORT + "/" + SYSTEMNAME
+					+ "/" + JAXRX + "?query=//x";
+			connection = (HttpURLConnection) new URL(root + "&wrap=no")
+					.openConnection();
+			assertEquals("<x>1</x><x>2</x><x>3</x>", new Scanner(connection
+					.getInputStream(), "UTF-8").useDelimiter("\\A").next());
+
+			connection = (HttpURLConnection) new URL(root + "&start=2&count=1")
+					.openConnection();
+			final String result = new Scanner(connection.getInputStream(),
+					"UTF-8").useDelimiter("\\A").next();
+			assertTrue(result, result.contains("more=\"yes\""));
+			assertTrue(result, result.contains("<x>2</x>"));
+			assertFalse(result, result.contains("<x>3</x>"));
+			connection.disconnect();
+		} finally {
+			for (int i = 1; i <= 3; i++)
+				xmlResource.deleteResource(SYSTEMNAME, "collection" + i);
+		}
+	}
+
+	/**
+	 * This method tests full-text searches.
+	 *
+	 * @throws Exception any exception
+	 */
+	@Test
+	public void testSearch() throws Exception {
+		connection = (HttpURLConnection) new URL(REQURL.toString()
+				+ "?search=VIENNA&wrap=no").openConnection();
+		final String result = new Scanner(connection.getInputStream(), "UTF-8")
+				.useDelimiter("\\A").next();
+		assertTrue(result, result.startsWith("<province"));
+		assertTrue(result, result.contains("Vienna"));
+
+		connection = (HttpURLConnection) new URL(REQURL.toString()
+				+ "?search=vienna&query=//city").openConnection();
+		assertEquals("Test if searches and queries are rejected",
+				HttpURLConnection.HTTP_BAD_REQUEST, connection.getResponseCode());
+		connection.disconnect();
+	}
+
+	/**
+	 * This method tests the request metrics.
+	 *
+	 * @throws Exception any exception
+	 */
+	@Test
+	public void testMetrics() throws Exception {
+		connection = (HttpURLConnection) new URL(REQURL.toString()
+				+ "?query=//city").openConnection();
+		assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+		connection.disconnect();
+		connection = (HttpURLConnection) new URL("http://localhost:" + PORT
+				+ "/unknown/" + JAXRX).openConnection();
+		assertEquals(HttpURLConnection.HTTP_NOT_FOUND, connection
+				.getResponseCode());
+		connection.disconnect();
+
+		// requests are recorded after the response has been sent
+		final String notFound = "jaxrx_requests_total{system=\"\","
+				+ "method=\"GET\",operation=\"get\",status=\"4xx\"}";
+		String result = "";
+		for (int i = 0; i < 100 && !result.contains(notFound); i++) {
+			Thread.sleep(i == 0 ? 0 : 10);
+			connection = (HttpURLConnection) new URL("http://localhost:" + PORT
+					+ "/metrics").openConnection();
+			assertTrue(connection.getContentType().startsWith("text/plain"));
+			result = new Scanner(connection.getInputStream(), "UTF-8")
+					.useDelimiter("\\A").next();
+			connection.disconnect();
+		}
+		assertTrue(result, result.contains(notFound));
+		final String query = "{system=\"" + SYSTEMNAME
+				+ "\",method=\"GET\",operation=\"query\"";
+		assertTrue(result, result.contains("jaxrx_requests_total" + query
+				+ ",status=\"2xx\"}"));
+		assertTrue(result, result.contains("jaxrx_request_duration_seconds_count"
+				+ query + "}"));
+		assertTrue(result, result.contains("jaxrx_phase_duration_seconds_count"
+				+ query + ",phase=\"write\"}"));
+		assertTrue(result, result.contains("jaxrx_result_cache_hits_total "));
+		assertTrue(result, result.contains("jaxrx_xpath_cache_hits_total{system=\""
+				+ SYSTEMNAME + "\"}"));
+	}
+
+	/**
+	 * This method tests the phase durations in the Server-Timing header.
+	 *
+	 * @throws Exception any exception
+	 */
+	@Test
+	public void testTiming() throws Exception {
+		connection = (HttpURLConnection) new URL(REQURL.toString()
+				+ "?query=//city").openConnection();
+		assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+		assertNull(connection.getHeaderField("Server-Timing"));
+		connection.disconnect();
+
+		connection = (HttpURLConnection) new URL(REQURL.toString()
+				+ "?query=//city&timing=yes").openConnection();
+		assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+		String timing = connection.getHeaderField("Server-Timing");
+		assertNotNull(timing);
+		for (final String phase : new String[] { "parse", "evaluate",
+				"serialize", "write", "response", "total" })
+			assertTrue(timing, timing.contains(phase + ";dur="));
+		final String result = new Scanner(connection.getInputStream(), "UTF-8")
+				.useDelimiter("\\A").next();
+		assertTrue(result, result.contains("<city"));
+		connection.disconnect();
+
+		connection = (HttpURLConnection) REQURL.openConnection();
+		post(("<query><text>//city</text><parameter name='timing' "
+				+ "value='yes'/></query>").getBytes("UTF-8"),
+				"application/query+xml");
+		assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+		timing = connection.getHeaderField("Server-Timing");
+		assertNotNull(timing);
+		assertTrue(timing, timing.contains("validate;dur="));
+		connection.disconnect();
+	}
+
+	/**
+	 * Sends the specified content via POST.
+	 *
+	 * @param content
+	 *            content
+	 * @param type
+	 *            content type
+	 * @throws IOException I/O exception
+	 */
+	private void post(final byte[] content, final String type)
+			throws IOException {
+		connection.setDoOutput(true);
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", type);
+		final OutputStream out = connection.getOutputStream();
+		out.write(content);
+		out.close();
+	}
+
 	/**
 	 * This method creates of an input stream an XML document.
 	 *
@@ -0,0 +1,112 @@
+package org.jaxrx.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+
+/**
+ * This class tests reading the documents of bulk requests.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public class ArchiveTest {
+	/**
+	 * Reads a TAR archive with a directory, a regular file and a file with a
+	 * GNU long name, both uncompressed and compressed with gzip.
+	 *
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	@Test
+	public void testTar() throws IOException {
+		final StringBuilder longName = new StringBuilder("dir/");
+		for (int i = 0; i < 30; i++)
+			longName.append("long");
+		final ByteArrayOutputStream tar = new ByteArrayOutputStream();
+		entry(tar, "dir/", '5', new byte[0]);
+		entry(tar, "dir/a.xml", '0', "<a/>".getBytes("UTF-8"));
+		entry(tar, "././@LongLink", 'L', (longName + ".xml").getBytes("UTF-8"));
+		entry(tar, "dir/truncated", '0', "<b/>".getBytes("UTF-8"));
+		tar.write(new byte[1024]);
+
+		final ByteArrayOutputStream gz = new ByteArrayOutputStream();
+		final GZIPOutputStream out = new GZIPOutputStream(gz);
+		out.write(tar.toByteArray());
+		out.close();
+
+		for (final byte[] data : new byte[][] { tar.toByteArray(),
+				gz.toByteArray() }) {
+			final Archive archive = new Archive(new ByteArrayInputStream(data),
+					Archive.TAR);
+			Archive.Entry e = archive.next();
+			assertEquals("a", e.name);
+			assertEquals("<a/>", new String(e.data, "UTF-8"));
+			e = archive.next();
+			assertEquals(longName.substring(4), e.name);
+			assertEquals("<b/>", new String(e.data, "UTF-8"));
+			assertNull(archive.next());
+		}
+	}
+
+	/**
+	 * Reads a multipart body with a preamble and a part that contains a
+	 * partial delimiter.
+	 *
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	@Test
+	public void testMultipart() throws IOException {
+		final String body = "preamble\r\n--xyz\r\n"
+				+ "Content-Disposition: attachment; filename=\"x/one.xml\"\r\n"
+				+ "Content-Type: application/xml\r\n\r\n<one>\r\n--xy</one>"
+				+ "\r\n--xyz\r\nContent-Disposition: form-data; name=two\r\n\r\n"
+				+ "<two/>\r\n--xyz--\r\nepilogue";
+		final Archive archive = new Archive(new ByteArrayInputStream(body
+				.getBytes("UTF-8")), "multipart/mixed; boundary=xyz");
+		Archive.Entry e = archive.next();
+		assertEquals("one", e.name);
+		assertEquals("<one>\r\n--xy</one>", new String(e.data, "UTF-8"));
+		e = archive.next();
+		assertEquals("two", e.name);
+		assertEquals("<two/>", new String(e.data, "UTF-8"));
+		assertNull(archive.next());
+		assertEquals(2, archive.names().size());
+	}
+
+	/**
+	 * Writes a TAR entry.
+	 *
+	 * @param out
+	 *            output stream
+	 * @param name
+	 *            name
+	 * @param type
+	 *            entry type
+	 * @param data
+	 *            contents
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private static void entry(final ByteArrayOutputStream out,
+			final String name, final char type, final byte[] data)
+			throws IOException {
+		final byte[] header = new byte[512];
+		final byte[] n = name.getBytes("UTF-8");
+		System.arraycopy(n, 0, header, 0, n.length);
+		final byte[] size = String.format("%011o", data.length).getBytes(
+				"UTF-8");
+		System.arraycopy(size, 0, header, 124, size.length);
+		header[156] = (byte) type;
+		System.arraycopy("ustar".getBytes("UTF-8"), 0, header, 257, 5);
+		out.write(header);
+		out.write(data);
+		out.write(new byte[(512 - data.length % 512) % 512]);
+	}
+}
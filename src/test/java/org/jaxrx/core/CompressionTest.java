@@ -0,0 +1,61 @@
+package org.jaxrx.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import javax.ws.rs.core.EntityTag;
+import org.junit.Test;
+
+/**
+ * This class tests the negotiation of content codings and the entity tags of
+ * compressed responses.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public class CompressionTest {
+	/**
+	 * Chooses content codings from {@code Accept-Encoding} headers.
+	 */
+	@Test
+	public void testNegotiate() {
+		assertNull(Compression.negotiate(null));
+		assertNull(Compression.negotiate("identity"));
+		assertEquals(Compression.GZIP, Compression.negotiate("deflate, gzip"));
+		assertEquals(Compression.GZIP, Compression.negotiate("x-gzip"));
+		assertEquals(Compression.DEFLATE, Compression
+				.negotiate("gzip;q=0, deflate"));
+		assertEquals(Compression.GZIP, Compression.negotiate("*"));
+		assertEquals(Compression.DEFLATE, Compression
+				.negotiate("gzip;q=0, *"));
+		assertEquals(Compression.DEFLATE, Compression
+				.negotiate("*, gzip;q=0"));
+		assertNull(Compression.negotiate("gzip;q=0, deflate;q=0, *"));
+		assertNull(Compression.negotiate("*;q=0"));
+		assertEquals(Compression.DEFLATE, Compression
+				.negotiate("*;q=0, deflate;q=0.5"));
+		assertNull(Compression.negotiate("gzip;q=x"));
+	}
+
+	/**
+	 * Checks that tags of compressed responses match the tag of the
+	 * uncompressed response.
+	 */
+	@Test
+	public void testTags() {
+		final EntityTag tag = Precondition.tag(42);
+		final EntityTag gzip = Compression.tag(tag, Compression.GZIP);
+		assertFalse(tag.equals(gzip));
+		assertEquals(tag.getValue(), Compression.identity(gzip.getValue()));
+		final Precondition match = new Precondition(gzip.toString(), null);
+		assertTrue(match.ifMatch(tag));
+		assertFalse(match.ifMatch(Precondition.tag(43)));
+		final Precondition noneMatch = new Precondition(null, "W/"
+				+ Compression.tag(tag, Compression.DEFLATE));
+		assertFalse(noneMatch.ifNoneMatch(tag));
+		assertTrue(noneMatch.ifNoneMatch(Precondition.tag(43)));
+		assertTrue(noneMatch.ifNoneMatch(null));
+	}
+}
@@ -0,0 +1,49 @@
+package org.jaxrx.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * This class tests the histograms of the request metrics.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public class HistogramTest {
+	/**
+	 * Checks that each value is assigned to a bucket whose upper bound is
+	 * larger than the value, but by no more than an eighth.
+	 */
+	@Test
+	public void testBuckets() {
+		for (long v = 0; v < 1L << 44; v = v * 3 / 2 + 1) {
+			final int b = Histogram.bucket(v);
+			assertTrue(v + " < " + Histogram.upper(b), v < Histogram.upper(b));
+			assertTrue(String.valueOf(v), b == 0 || Histogram.upper(b - 1) <= v);
+			if (v >= 8 && v < 1L << 41)
+				assertTrue(String.valueOf(v), Histogram.upper(b) <= v + v / 8 + 1);
+		}
+		assertEquals(Long.MAX_VALUE, Histogram.upper(Histogram
+				.bucket(Long.MAX_VALUE)));
+	}
+
+	/**
+	 * Records durations and checks counts and percentiles.
+	 */
+	@Test
+	public void testPercentiles() {
+		final Histogram h = new Histogram();
+		assertEquals(0, h.percentile(0.5));
+		for (int i = 1; i <= 1000; i++)
+			h.record(i * 1000L);
+		assertEquals(1000, h.count());
+		assertEquals(500500, h.sum());
+		assertEquals(255, h.below(256));
+		final long median = h.percentile(0.5);
+		assertTrue(String.valueOf(median), median > 500 && median <= 576);
+		final long max = h.percentile(1);
+		assertTrue(String.valueOf(max), max > 1000 && max <= 1152);
+	}
+}
@@ -0,0 +1,94 @@
+package org.jaxrx.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.util.EnumMap;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * This class tests the eviction and invalidation of cached results.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public class ResultCacheTest {
+	/**
+	 * Size of the cached results: a quarter of the default budget.
+	 */
+	private static final int SIZE = 8 << 20;
+
+	/**
+	 * Caches more results than the budget allows and checks that the least
+	 * recently used ones are evicted.
+	 *
+	 * @throws InterruptedException
+	 *             interruption
+	 */
+	@Test
+	public void testEviction() throws InterruptedException {
+		final Object[] keys = new Object[5];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = ResultCache.key("cachetest", new ResourcePath("r" + i), 1);
+		final long evictions = ResultCache.evictions();
+		for (int i = 0; i < 4; i++) {
+			ResultCache.put(keys[i], new byte[SIZE]);
+			Thread.sleep(1);
+		}
+		assertNotNull(ResultCache.get(keys[0]));
+		Thread.sleep(1);
+		// exceeds the budget: the two oldest results are evicted
+		ResultCache.put(keys[4], new byte[SIZE]);
+		assertNull(ResultCache.get(keys[1]));
+		assertNull(ResultCache.get(keys[2]));
+		assertNotNull(ResultCache.get(keys[0]));
+		assertNotNull(ResultCache.get(keys[3]));
+		assertNotNull(ResultCache.get(keys[4]));
+		// results of other tests may have been evicted before
+		assertTrue(ResultCache.evictions() - evictions >= 2);
+		for (int i = 0; i < keys.length; i++)
+			ResultCache.invalidate("cachetest", "r" + i);
+	}
+
+	/**
+	 * Drops the results of a modified resource.
+	 */
+	@Test
+	public void testInvalidate() {
+		final Object key = ResultCache.key("cachetest", new ResourcePath("a"),
+				1);
+		final long bytes = ResultCache.bytes();
+		final long hits = ResultCache.hits();
+		final long misses = ResultCache.misses();
+		ResultCache.put(key, new byte[10]);
+		assertEquals(bytes + 10, ResultCache.bytes());
+		assertNotNull(ResultCache.get(key));
+		ResultCache.invalidate("cachetest", "a");
+		assertNull(ResultCache.get(key));
+		assertEquals(bytes, ResultCache.bytes());
+		assertEquals(hits + 1, ResultCache.hits());
+		assertEquals(misses + 1, ResultCache.misses());
+	}
+
+	/**
+	 * Ignores query parameters that do not change the result.
+	 */
+	@Test
+	public void testKey() {
+		final Map<QueryParameter, String> params = new EnumMap<QueryParameter, String>(
+				QueryParameter.class);
+		params.put(QueryParameter.QUERY, "*");
+		final Object key = ResultCache.key("cachetest", new ResourcePath("a",
+				params), 1);
+		params.put(QueryParameter.TIMING, "true");
+		assertEquals(key, ResultCache.key("cachetest", new ResourcePath("a",
+				params), 1));
+		params.put(QueryParameter.COUNT, "1");
+		assertFalse(key.equals(ResultCache.key("cachetest", new ResourcePath(
+				"a", params), 1)));
+	}
+}
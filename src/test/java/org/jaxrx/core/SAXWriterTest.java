@@ -0,0 +1,100 @@
+package org.jaxrx.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * This class tests passing on DOM nodes as SAX events.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public class SAXWriterTest {
+	/**
+	 * Passes on a document with namespaces, comments and escaped text and
+	 * compares the resulting DOM with the original document.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@Test
+	public void testNode() throws Exception {
+		final String xml = "<a xmlns='u' xmlns:p='v' p:x='1'><!--c-->"
+				+ "<p:b y='2'>&lt;t&gt;</p:b><?pi d?></a>";
+		final Document doc = DocumentBuilderFactory.newInstance()
+				.newDocumentBuilder().parse(
+						new ByteArrayInputStream(xml.getBytes("UTF-8")));
+		final Document result = write(doc);
+		assertEquals(serialize(doc), serialize(result));
+
+		final Element a = result.getDocumentElement();
+		assertEquals("u", a.getNamespaceURI());
+		assertEquals("v", a.getAttributeNodeNS("v", "x").getNamespaceURI());
+		final Element b = (Element) a.getElementsByTagNameNS("v", "b").item(0);
+		assertEquals("v", b.getNamespaceURI());
+		assertNull(b.getAttributeNode("y").getNamespaceURI());
+	}
+
+	/**
+	 * Adds missing namespace declarations of namespace-aware nodes.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@Test
+	public void testFixup() throws Exception {
+		final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(true);
+		final Document doc = dbf.newDocumentBuilder().parse(
+				new ByteArrayInputStream("<p:a xmlns:p='v'><p:b/></p:a>"
+						.getBytes("UTF-8")));
+		final Document result = write(doc.getDocumentElement().getFirstChild());
+		assertEquals("v", result.getDocumentElement().getNamespaceURI());
+	}
+
+	/**
+	 * Passes on the specified node to an identity transformation.
+	 *
+	 * @param node
+	 *            node
+	 * @return resulting document
+	 * @throws Exception
+	 *             exception
+	 */
+	private static Document write(final org.w3c.dom.Node node)
+			throws Exception {
+		final TransformerHandler th = ((SAXTransformerFactory) TransformerFactory
+				.newInstance()).newTransformerHandler();
+		final DOMResult result = new DOMResult();
+		th.setResult(result);
+		new SAXWriter(th).startDocument().node(node).endDocument();
+		return (Document) result.getNode();
+	}
+
+	/**
+	 * Serializes a node.
+	 *
+	 * @param node
+	 *            node
+	 * @return serialized node
+	 * @throws Exception
+	 *             exception
+	 */
+	private static String serialize(final org.w3c.dom.Node node)
+			throws Exception {
+		final ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		new DOMSerializer(bo).node(node).finish();
+		return bo.toString("UTF-8");
+	}
+}
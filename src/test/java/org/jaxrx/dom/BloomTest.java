@@ -0,0 +1,57 @@
+package org.jaxrx.dom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.InputStream;
+import java.util.Arrays;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * This class tests the Bloom filters of documents.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public class BloomTest {
+	/**
+	 * Checks that the filters of both representations and of the serialized
+	 * document contain all keys of a document, and that paths with missing names are pruned.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@Test
+	public void testFilter() throws Exception {
+		InputStream in = BloomTest.class.getClassLoader().getResourceAsStream(
+				"factbook.xml");
+		final Document dom = DocumentBuilderFactory.newInstance()
+				.newDocumentBuilder().parse(in);
+		in.close();
+		final CompactDocument compact = CompactDocument.of(dom);
+		in = BloomTest.class.getClassLoader().getResourceAsStream(
+				"factbook.xml");
+		final Bloom stream = Bloom.of(in);
+		in.close();
+
+		for (final Bloom bloom : new Bloom[] { Bloom.of(dom),
+				Bloom.of(compact), stream }) {
+			for (int p = 0; p < compact.count(); p++) {
+				if (compact.kind(p) == CompactDocument.ELEM)
+					assertTrue(bloom.contains(Bloom.element(compact.name(p))));
+			}
+			for (final String query : new String[] { "//country//city",
+					"//*[@id='f0_119']", "/mondial/country[@name]/@car_code" }) {
+				assertTrue(query, bloom.check(CompactPath.parse(query).keys()));
+			}
+			final long pruned = Bloom.pruned();
+			assertFalse(bloom.check(Arrays.asList(Bloom.element("unknown"))));
+			assertFalse(bloom.check(CompactPath.parse("//*[@id='unknown']")
+					.keys()));
+			assertEquals(pruned + 2, Bloom.pruned());
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package org.jaxrx.dom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+import org.jaxrx.core.DOMSerializer;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * This class tests the compact document representation and the evaluation of
+ * paths on it by comparing the results with the DOM and the XPath processor.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public class CompactDocumentTest {
+	/**
+	 * Supported queries.
+	 */
+	private static final String[] QUERIES = { "/", "/mondial",
+			"//country", "/mondial/country", "//country[@car_code='D']",
+			"//country[@name='Germany']/province",
+			"//country[name='x']", "//city[3]",
+			"//country/city[last()]", "//city[position() <= 2]/name",
+			"//province[@capital]/@name", "//@population",
+			"/mondial/*[1]/name/text()", "//name/..", "//religions/.",
+			"descendant::country/child::name", "//country//city",
+			"//*[@id]", "//country[city]", "//node()", "//text()[1]",
+			"/mondial/country[2]/attribute::*", "//ethnicgroups[text()]",
+			"//unknown", "//country[@unknown='x']", "./mondial/.",
+			"//*[@id='f0_119']", "//country[@id='f0_136']//*[@id='f0_1461']",
+			"//city[@id='f0_136']", "//*[@id='x'][name]" };
+
+	/**
+	 * Unsupported queries.
+	 */
+	private static final String[] UNSUPPORTED = { "count(//city)",
+			"//city | //country", "//city[@id != 'x']", "//p:city", "1 + 2",
+			"//city[", "//country[city[2]]", "following::city",
+			"//city[population > 1000]" };
+
+	/**
+	 * DOM document.
+	 */
+	private static Document dom;
+
+	/**
+	 * Compact document.
+	 */
+	private static CompactDocument compact;
+
+	/**
+	 * Parses the test document.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@BeforeClass
+	public static void setUp() throws Exception {
+		final InputStream in = CompactDocumentTest.class.getClassLoader()
+				.getResourceAsStream("factbook.xml");
+		dom = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+				in);
+		in.close();
+		compact = CompactDocument.of(dom);
+	}
+
+	/**
+	 * Compares the serialization of the compact document with the DOM.
+	 *
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	@Test
+	public void testSerialize() throws IOException {
+		final ByteArrayOutputStream exp = new ByteArrayOutputStream();
+		new DOMSerializer(exp).node(dom).finish();
+		assertArrayEquals(exp.toByteArray(), serialize(compact));
+		assertArrayEquals(exp.toByteArray(), serialize(CompactDocument
+				.of(compact.toDOM())));
+	}
+
+	/**
+	 * Appends fragments to compact documents and compares the results with
+	 * the DOM.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@Test
+	public void testInsert() throws Exception {
+		final Document frag = DocumentBuilderFactory.newInstance()
+				.newDocumentBuilder().parse(new ByteArrayInputStream(
+						"<new a='1'><![CDATA[x]]><name>y</name><p:q/></new>"
+								.getBytes("UTF-8")));
+		final CompactDocument cfrag = CompactDocument.of(frag);
+		for (final String query : new String[] { "/mondial",
+				"//country[@car_code='A']", "//city[last()]" }) {
+			final Document exp = (Document) dom.cloneNode(true);
+			final Node target = (Node) XPathFactory.newInstance().newXPath()
+					.evaluate(query, exp, XPathConstants.NODE);
+			target.appendChild(exp.importNode(frag.getDocumentElement(), true));
+			final CompactDocument res = compact.insert(CompactPath.parse(query)
+					.evaluate(compact)[0], cfrag);
+			assertArrayEquals(query, serialize(CompactDocument.of(exp)),
+					serialize(res));
+			// parents and sizes of the new document must be consistent
+			assertArrayEquals(query, serialize(res), serialize(CompactDocument
+					.of(res.toDOM())));
+			assertEquals(query, compact.count() + cfrag.count() - 1, res
+					.count());
+		}
+	}
+
+	/**
+	 * Modifies a document repeatedly and checks that the characters of
+	 * replaced values are reclaimed.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@Test
+	public void testPack() throws Exception {
+		final CompactDocument frag = CompactDocument.of(DocumentBuilderFactory
+				.newInstance().newDocumentBuilder().parse(
+						new ByteArrayInputStream("<c>z</c>".getBytes("UTF-8"))));
+		CompactDocument doc = CompactDocument.of(DocumentBuilderFactory
+				.newInstance().newDocumentBuilder().parse(
+						new ByteArrayInputStream("<a><b>x</b><c/></a>"
+								.getBytes("UTF-8"))));
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			sb.setLength(0);
+			for (int j = 0; j < 100; j++)
+				sb.append((char) ('a' + (i + j) % 26));
+			doc = doc.value(3, sb.toString());
+			// replace the last element
+			final int c = CompactPath.parse("/a/c").evaluate(doc)[0];
+			doc = doc.splice(c, doc.size(c), 1, frag);
+			assertEquals(sb.toString(), doc.value(3));
+			assertEquals("z", doc.value(CompactPath.parse("/a/c/text()")
+					.evaluate(doc)[0]));
+			assertTrue(doc.capacity() < 1 << 14);
+		}
+		assertArrayEquals(serialize(doc), serialize(CompactDocument.of(doc
+				.toDOM())));
+	}
+
+	/**
+	 * Compares the results of the element index with a scan of modified
+	 * documents.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@Test
+	public void testPathIndex() throws Exception {
+		final int city = CompactPath.parse("//city").evaluate(compact)[0];
+		final CompactDocument changed = compact.value(city + 1, "x");
+		// documents with an unchanged structure share the index
+		assertSame(compact.paths(), changed.paths());
+		assertEquals(1, compact.attributes("id").owners("f0_119").length);
+		for (final CompactDocument doc : new CompactDocument[] { changed,
+				compact.rename(city, "town"),
+				compact.insert(compact.root(), CompactDocument.of(compact
+						.toDOM())) }) {
+			final List<Integer> exp = new ArrayList<Integer>();
+			for (int p = 0; p < doc.count(); p++) {
+				if (doc.kind(p) == CompactDocument.ELEM
+						&& doc.name(p).equals("city"))
+					exp.add(p);
+			}
+			final List<Integer> res = new ArrayList<Integer>();
+			for (final int pre : CompactPath.parse("//city").evaluate(doc))
+				res.add(pre);
+			assertEquals(exp, res);
+		}
+	}
+
+	/**
+	 * Compares the results of supported queries with the XPath processor.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@Test
+	public void testEvaluate() throws Exception {
+		for (final String query : QUERIES) {
+			final CompactPath path = CompactPath.parse(query);
+			assertNotNull(query, path);
+			final int[] pres = path.evaluate(compact);
+			assertNotNull(query, pres);
+
+			final NodeList nodes = (NodeList) XPathFactory.newInstance()
+					.newXPath().evaluate(query, dom, XPathConstants.NODESET);
+			final ByteArrayOutputStream exp = new ByteArrayOutputStream();
+			final DOMSerializer es = new DOMSerializer(exp);
+			for (int n = 0; n < nodes.getLength(); n++)
+				es.markup("|").node(nodes.item(n));
+			es.finish();
+			final ByteArrayOutputStream res = new ByteArrayOutputStream();
+			final DOMSerializer rs = new DOMSerializer(res);
+			for (final int pre : pres)
+				compact.serialize(pre, rs.markup("|"));
+			rs.finish();
+			assertEquals(query, exp.toString("UTF-8"), res.toString("UTF-8"));
+		}
+	}
+
+	/**
+	 * Checks that unsupported queries are rejected.
+	 */
+	@Test
+	public void testUnsupported() {
+		for (final String query : UNSUPPORTED)
+			assertNull(query, CompactPath.parse(query));
+	}
+
+	/**
+	 * Checks the handling of CDATA sections and namespaces.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@Test
+	public void testSpecial() throws Exception {
+		final String xml = "<a><b>x<![CDATA[<y>]]></b><!--c--><?p d?></a>";
+		final CompactDocument cd = CompactDocument.of(DocumentBuilderFactory
+				.newInstance().newDocumentBuilder().parse(
+						new ByteArrayInputStream(xml.getBytes("UTF-8"))));
+		assertEquals(xml, new String(serialize(cd), "UTF-8"));
+		assertEquals("x<y>", cd.string(0));
+		assertNull(CompactPath.parse("//text()").evaluate(cd));
+		assertEquals(1, CompactPath.parse("//b").evaluate(cd).length);
+
+		final CompactDocument ns = CompactDocument.of(DocumentBuilderFactory
+				.newInstance().newDocumentBuilder().parse(
+						new ByteArrayInputStream("<a xmlns='u'/>"
+								.getBytes("UTF-8"))));
+		assertNull(CompactPath.parse("/a").evaluate(ns));
+	}
+
+	/**
+	 * Serializes a compact document.
+	 *
+	 * @param doc
+	 *            document
+	 * @return serialized bytes
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private static byte[] serialize(final CompactDocument doc)
+			throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final DOMSerializer ser = new DOMSerializer(out);
+		doc.serialize(0, ser);
+		ser.finish();
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,107 @@
+package org.jaxrx.dom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * This class tests publishing several documents together.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public class DOMsTest {
+	/**
+	 * Names of the test documents.
+	 */
+	private static final List<String> NAMES = Arrays.asList("doms-a",
+			"doms-b");
+
+	/**
+	 * Deletes the test documents.
+	 */
+	@After
+	public void tearDown() {
+		for (final String name : NAMES)
+			DOMs.deleteDOM(name);
+	}
+
+	/**
+	 * Publishes two documents and checks that both are pinned.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@Test
+	public void testPutDOMs() throws Exception {
+		final List<Revision> revs = DOMs.putDOMs(NAMES, Arrays.asList(
+				doc("<a/>"), doc("<b/>")), Arrays.asList(
+				(CompactDocument) null, null));
+		assertSame(revs.get(0), DOMs.getRevision(NAMES.get(0)));
+		assertSame(revs.get(1), DOMs.getRevision(NAMES.get(1)));
+		final List<Revision> pinned = DOMs.pin();
+		assertEquals(pinned.indexOf(revs.get(0)) + 1, pinned.indexOf(revs
+				.get(1)));
+	}
+
+	/**
+	 * Checks that no document is changed if one of the documents cannot be
+	 * stored.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@Test
+	public void testPutDOMsFailure() throws Exception {
+		final Revision old = DOMs.putDOM(doc("<a>0</a>"), NAMES.get(0));
+		try {
+			// the second document is missing and cannot be stored
+			DOMs.putDOMs(NAMES, Arrays.asList(doc("<a>1</a>"), null), Arrays
+					.asList((CompactDocument) null, null));
+			fail("Missing document was stored.");
+		} catch (final RuntimeException ex) {
+			// expected
+		}
+		assertSame(old, DOMs.getRevision(NAMES.get(0)));
+		assertEquals(1, DOMs.getRevisions(NAMES.get(0)).length);
+		assertNull(DOMs.getRevision(NAMES.get(1)));
+	}
+
+	/**
+	 * Checks that each reader gets its own DOM of a revision, which can be
+	 * modified without changing the revision.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@Test
+	public void testPrivateDOM() throws Exception {
+		final Revision rev = DOMs.putDOM(doc("<a>0</a>"), NAMES.get(0));
+		final Document dom = rev.dom();
+		assertNotSame(dom, rev.dom());
+		dom.getDocumentElement().setTextContent("1");
+		assertEquals("0", rev.dom().getDocumentElement().getTextContent());
+	}
+
+	/**
+	 * Parses a document.
+	 *
+	 * @param xml
+	 *            XML string
+	 * @return document
+	 * @throws Exception
+	 *             exception
+	 */
+	private static Document doc(final String xml) throws Exception {
+		return DOMJaxRx.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+	}
+}
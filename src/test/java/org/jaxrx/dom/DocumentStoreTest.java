@@ -0,0 +1,114 @@
+package org.jaxrx.dom;
+
+import static org.junit.Assert.assertEquals;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class tests the persistent document store.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public class DocumentStoreTest {
+	/**
+	 * Store directory.
+	 */
+	private File dir;
+
+	/**
+	 * Creates an empty store directory.
+	 *
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("jaxrx", "store");
+		dir.delete();
+	}
+
+	/**
+	 * Deletes the store directory.
+	 */
+	@After
+	public void tearDown() {
+		for (final File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * Stores documents, reopens the store and checks its contents.
+	 *
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	@Test
+	public void testReopen() throws IOException {
+		DocumentStore store = new DocumentStore(dir);
+		assertEquals("<a/>", string(store.put("a", 0, 1, 10, bytes("<a/>"))));
+		store.put("b", 0, 3, 20, bytes("<b/>"));
+		store.delete("a", 5, 30);
+		store.put("b", 1, 7, 40, bytes("<c/>"));
+
+		store = new DocumentStore(dir);
+		List<DocumentStore.Entry> entries = store.entries();
+		assertEquals(4, entries.size());
+		assertEquals(DocumentStore.DELETE, entries.get(2).type);
+		assertEquals("<c/>", string(store.data(entries.get(3))));
+		assertEquals(7, entries.get(3).version);
+
+		// appended data must not overwrite existing documents
+		store.put("d", 0, 9, 50, bytes("<d/>"));
+		store = new DocumentStore(dir);
+		assertEquals("<c/>", string(store.data(store.entries().get(3))));
+		assertEquals("<d/>", string(store.data(store.entries().get(4))));
+
+		// incomplete index entries are discarded
+		final FileOutputStream out = new FileOutputStream(new File(dir,
+				"index"), true);
+		out.write(new byte[] { 0, 0, 0, 40, 1, 2 });
+		out.close();
+		store = new DocumentStore(dir);
+		entries = store.entries();
+		assertEquals(5, entries.size());
+		store.put("e", 0, 11, 60, bytes("<e/>"));
+		assertEquals(6, new DocumentStore(dir).entries().size());
+	}
+
+	/**
+	 * Returns the UTF-8 bytes of a string.
+	 *
+	 * @param string
+	 *            string
+	 * @return bytes
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private static byte[] bytes(final String string) throws IOException {
+		return string.getBytes("UTF-8");
+	}
+
+	/**
+	 * Returns the string of a buffer.
+	 *
+	 * @param bb
+	 *            buffer
+	 * @return string
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private static String string(final ByteBuffer bb) throws IOException {
+		final byte[] b = new byte[bb.remaining()];
+		bb.duplicate().get(b);
+		return new String(b, "UTF-8");
+	}
+}
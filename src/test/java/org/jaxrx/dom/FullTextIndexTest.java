@@ -0,0 +1,136 @@
+package org.jaxrx.dom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * This class tests the full-text index by comparing its results with a scan
+ * of all nodes.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public class FullTextIndexTest {
+	/**
+	 * Compact test document.
+	 */
+	private static CompactDocument compact;
+
+	/**
+	 * DOM test document.
+	 */
+	private static Document dom;
+
+	/**
+	 * Parses the test document.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@BeforeClass
+	public static void setUp() throws Exception {
+		final InputStream in = FullTextIndexTest.class.getClassLoader()
+				.getResourceAsStream("factbook.xml");
+		dom = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+				.parse(in);
+		compact = CompactDocument.of(dom);
+		in.close();
+	}
+
+	/**
+	 * Splits strings into terms.
+	 */
+	@Test
+	public void testTerms() {
+		assertEquals(Arrays.asList("a", "b2", "\u00fc"), Arrays.asList(FullTextIndex
+				.terms(" A,b2; a-\u00dc ").toArray()));
+		assertTrue(FullTextIndex.terms(" .,; ").isEmpty());
+	}
+
+	/**
+	 * Splits strings into terms independently of the default locale.
+	 */
+	@Test
+	public void testTermsLocale() {
+		final Locale locale = Locale.getDefault();
+		Locale.setDefault(new Locale("tr"));
+		try {
+			assertEquals(Arrays.asList("india"), Arrays.asList(FullTextIndex
+					.terms("INDIA").toArray()));
+		} finally {
+			Locale.setDefault(locale);
+		}
+	}
+
+	/**
+	 * Compares search results with a scan.
+	 */
+	@Test
+	public void testSearch() {
+		final FullTextIndex fi = new FullTextIndex(compact);
+		for (final String search : new String[] { "Vienna", "vienna austria",
+				"Muslim", "Roman Catholic", "f0_119", "Europe 100", "unknown",
+				"Vienna unknown", "" }) {
+			assertArrayEquals(search, scan(search), fi.search(search));
+		}
+	}
+
+	/**
+	 * Compares the results of scans without index with a scan.
+	 */
+	@Test
+	public void testScan() {
+		for (final String search : new String[] { "Vienna", "vienna austria",
+				"Muslim", "Roman Catholic", "f0_119", "Europe 100", "unknown",
+				"Vienna unknown", "" }) {
+			final int[] pres = scan(search);
+			assertArrayEquals(search, pres, FullTextIndex.scan(compact, search));
+			final List<Node> nodes = FullTextIndex.scan(dom, search);
+			assertEquals(search, pres.length, nodes.size());
+			for (int i = 0; i < pres.length; i++)
+				assertEquals(search, compact.name(pres[i]), nodes.get(i)
+						.getNodeName());
+		}
+	}
+
+	/**
+	 * Returns all elements whose text children or attributes contain all
+	 * terms of the search string.
+	 *
+	 * @param search
+	 *            search string
+	 * @return pre values
+	 */
+	private static int[] scan(final String search) {
+		final Set<String> terms = FullTextIndex.terms(search);
+		final int[] result = new int[compact.count()];
+		int n = 0;
+		for (int p = 0; p < compact.count() && !terms.isEmpty(); p++) {
+			if (compact.kind(p) != CompactDocument.ELEM)
+				continue;
+			final Set<String> found = new HashSet<String>();
+			for (int c = p + 1; c < p + compact.size(p); c += compact.size(c)) {
+				final byte k = compact.kind(c);
+				if (k == CompactDocument.ATTR || k == CompactDocument.TEXT
+						|| k == CompactDocument.CDATA)
+					found.addAll(FullTextIndex.terms(compact.value(c)));
+			}
+			if (found.containsAll(terms))
+				result[n++] = p;
+		}
+		return Arrays.copyOf(result, n);
+	}
+}
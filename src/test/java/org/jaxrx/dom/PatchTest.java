@@ -0,0 +1,159 @@
+package org.jaxrx.dom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.jaxrx.core.DOMSerializer;
+import org.jaxrx.core.JaxRxException;
+import org.jaxrx.core.SchemaChecker;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * This class tests partial updates by applying update envelopes to the DOM
+ * and to the compact representation of a document and comparing the results.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public class PatchTest {
+	/**
+	 * Update envelope with paths that can be evaluated on compact documents.
+	 */
+	private static final String SIMPLE = "<update>"
+			+ "<value select=\"//country[@car_code='A']/@name\">A!</value>"
+			+ "<rename select=\"//country[@car_code='AL']/city\" name='town'/>"
+			+ "<delete select=\"//country[@car_code='AND']\"/>"
+			+ "<insert select=\"//country[@car_code='A']\" position='first'>"
+			+ "<note a='1'>n</note>text</insert>"
+			+ "<insert select=\"//country[@car_code='BY']/name\" "
+			+ "position='before'><!--c--></insert>"
+			+ "<insert select=\"//country[@car_code='BY']/name\" "
+			+ "position='after'><after/></insert>"
+			+ "<replace select=\"//country[@car_code='B']/name\">"
+			+ "<name>B!</name></replace>"
+			+ "<value select=\"//country[@car_code='BG']/name\">BG!</value>"
+			+ "<delete select='//city/@longitude'/>"
+			+ "<rename select=\"//country[@car_code='CZ']/@name\" name='n'/>"
+			+ "<insert select='/mondial'><last/></insert>" + "</update>";
+
+	/**
+	 * Update envelope with a path that requires the XPath processor.
+	 */
+	private static final String COMPLEX = "<update>"
+			+ "<rename select=\"//country[@car_code='A']\" name='land'/>"
+			+ "<delete select='//country[count(city) > 3]/city'/>"
+			+ "<value select='//land/name'>x</value>" + "</update>";
+
+	/**
+	 * Test document.
+	 */
+	private static Document dom;
+
+	/**
+	 * Parses the test document.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@BeforeClass
+	public static void setUp() throws Exception {
+		final InputStream in = PatchTest.class.getClassLoader()
+				.getResourceAsStream("factbook.xml");
+		dom = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+				in);
+		in.close();
+	}
+
+	/**
+	 * Applies envelopes to both representations and compares the results.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@Test
+	public void testPatch() throws Exception {
+		final CompactDocument cmp = CompactDocument.of(dom);
+		final String original = string(cmp);
+
+		Patch res = new Patch(envelope(SIMPLE)).apply(cmp, null);
+		assertNull(res.dom());
+		final String exp = string(CompactDocument.of(new Patch(
+				envelope(SIMPLE)).apply(null, dom).dom()));
+		assertEquals(exp, string(CompactDocument.of(res.compact().toDOM())));
+
+		// operations on compact documents fall back to the DOM
+		res = new Patch(envelope(COMPLEX)).apply(cmp, null);
+		assertNotNull(res.dom());
+		assertEquals(string(CompactDocument.of(new Patch(envelope(COMPLEX))
+				.apply(null, dom).dom())), string(CompactDocument.of(res
+				.dom())));
+
+		// the original documents are unchanged
+		assertEquals(original, string(cmp));
+		assertEquals(original, string(CompactDocument.of(dom)));
+	}
+
+	/**
+	 * Checks that invalid operations are rejected.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@Test
+	public void testInvalid() throws Exception {
+		final CompactDocument cmp = CompactDocument.of(dom);
+		for (final String op : new String[] {
+				"<rename select='//unknown' name='x'/>",
+				"<insert select='//@name'><x/></insert>",
+				"<replace select='/'><x/></replace>" }) {
+			try {
+				new Patch(envelope("<update>" + op + "</update>")).apply(cmp,
+						null);
+				fail("Operation was accepted: " + op);
+			} catch (final JaxRxException ex) {
+				assertEquals(400, ex.getResponse().getStatus());
+			}
+		}
+	}
+
+	/**
+	 * Parses and validates an update envelope.
+	 *
+	 * @param update
+	 *            envelope
+	 * @return document
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private static Document envelope(final String update) throws IOException {
+		return new SchemaChecker("post").check(new ByteArrayInputStream(update
+				.getBytes("UTF-8")));
+	}
+
+	/**
+	 * Returns the serialization of a compact document.
+	 *
+	 * @param doc
+	 *            document
+	 * @return serialization
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private static String string(final CompactDocument doc)
+			throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final DOMSerializer ser = new DOMSerializer(out);
+		doc.serialize(0, ser);
+		ser.finish();
+		return out.toString("UTF-8");
+	}
+}
@@ -0,0 +1,139 @@
+package org.jaxrx.dom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class tests writing and restoring snapshots.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public class SnapshotsTest {
+	/**
+	 * Number of test documents.
+	 */
+	private static final int DOCS = 20;
+
+	/**
+	 * Snapshot directory.
+	 */
+	private File dir;
+
+	/**
+	 * Creates test documents and an empty snapshot directory.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("jaxrx", "snapshots");
+		dir.delete();
+		for (int d = 0; d < DOCS; d++) {
+			for (int r = 0; r <= d % 3; r++) {
+				DOMs.putDOM(DOMJaxRx.parse(new ByteArrayInputStream(("<doc n='"
+						+ d + "'>" + r + "</doc>").getBytes("UTF-8"))), name(d));
+			}
+		}
+	}
+
+	/**
+	 * Deletes the test documents and the snapshot directory.
+	 */
+	@After
+	public void tearDown() {
+		for (int d = 0; d < DOCS; d++)
+			DOMs.deleteDOM(name(d));
+		delete(dir);
+	}
+
+	/**
+	 * Writes a snapshot and restores it.
+	 *
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	@Test
+	public void testRestore() throws IOException {
+		final Snapshots snapshots = new Snapshots(dir, 3);
+		snapshots.write();
+		assertEquals(1, snapshots.count());
+		assertTrue(snapshots.size() > 0);
+		// unchanged documents are not written again
+		snapshots.write();
+		assertEquals(1, snapshots.count());
+
+		DOMs.deleteDOM(name(0));
+		snapshots.write();
+		assertEquals(2, snapshots.count());
+		assertEquals(1, dir.listFiles().length);
+
+		final Map<String, Revision[]> docs = new Snapshots(dir, 2).read();
+		for (int d = 1; d < DOCS; d++) {
+			final Revision[] exp = DOMs.getRevisions(name(d));
+			final Revision[] res = docs.get(name(d));
+			assertEquals(exp.length, res.length);
+			for (int r = 0; r < exp.length; r++) {
+				assertEquals(exp[r].number, res[r].number);
+				assertEquals(exp[r].version, res[r].version);
+				assertEquals(exp[r].modified, res[r].modified);
+				assertEquals(string(exp[r]), string(res[r]));
+			}
+			assertEquals(d % 3 + "", res[res.length - 1].dom()
+					.getDocumentElement().getTextContent());
+		}
+		assertNull(docs.get(name(0)));
+	}
+
+	/**
+	 * Returns the name of a test document.
+	 *
+	 * @param d
+	 *            document number
+	 * @return name
+	 */
+	private static String name(final int d) {
+		return "snapshot-test-" + d;
+	}
+
+	/**
+	 * Returns the serialization of a revision.
+	 *
+	 * @param rev
+	 *            revision
+	 * @return serialized document
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private static String string(final Revision rev) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		rev.write(out);
+		return out.toString("UTF-8");
+	}
+
+	/**
+	 * Deletes a directory and its contents.
+	 *
+	 * @param file
+	 *            file or directory
+	 */
+	private static void delete(final File file) {
+		final File[] files = file.listFiles();
+		if (files != null) {
+			for (final File f : files)
+				delete(f);
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,100 @@
+package org.jaxrx.dom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.jaxrx.core.DOMSerializer;
+import org.jaxrx.core.JaxRxException;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * This class tests the streaming parser by comparing its results with the
+ * DOM parser, and checks the size and depth limits.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public class StreamParserTest {
+	/**
+	 * Test document with all node kinds.
+	 */
+	private static final String DOC = "<!DOCTYPE a [<!ENTITY e 'entity'>"
+			+ "<!-- dtd -->]><?pi data?><!--c--><a x='1' y='&lt;'>t&amp;&e;"
+			+ "<b><![CDATA[<cdata>]]>u</b><?pi2?></a>";
+
+	/**
+	 * Compares the serialization of the parsed documents with the DOM parser.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@Test
+	public void testDocuments() throws Exception {
+		final InputStream in = StreamParserTest.class.getClassLoader()
+				.getResourceAsStream("factbook.xml");
+		final ByteArrayOutputStream factbook = new ByteArrayOutputStream();
+		final byte[] buf = new byte[8192];
+		for (int r; (r = in.read(buf)) != -1;)
+			factbook.write(buf, 0, r);
+		in.close();
+
+		for (final byte[] data : new byte[][] { DOC.getBytes("UTF-8"),
+				factbook.toByteArray() }) {
+			final Document dom = DocumentBuilderFactory.newInstance()
+					.newDocumentBuilder().parse(new ByteArrayInputStream(data));
+			final String exp = string(CompactDocument.of(dom));
+			assertEquals(exp, string(CompactDocument.of(new StreamParser(false,
+					0, 0).parse(new ByteArrayInputStream(data)).dom())));
+			// attributes of compact documents keep their original order
+			assertEquals(exp, string(CompactDocument.of(new StreamParser(true,
+					0, 0).parse(new ByteArrayInputStream(data)).compact().toDOM())));
+		}
+	}
+
+	/**
+	 * Checks that documents exceeding the limits are rejected.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@Test
+	public void testLimits() throws Exception {
+		final byte[] data = "<a><b><c/></b></a>".getBytes("UTF-8");
+		new StreamParser(true, data.length, 3).parse(new ByteArrayInputStream(
+				data));
+		for (final StreamParser parser : new StreamParser[] {
+				new StreamParser(true, data.length - 1, 0),
+				new StreamParser(false, 0, 2) }) {
+			try {
+				parser.parse(new ByteArrayInputStream(data));
+				fail("Limit was not checked.");
+			} catch (final JaxRxException ex) {
+				assertEquals(413, ex.getResponse().getStatus());
+			}
+		}
+	}
+
+	/**
+	 * Returns the serialization of a compact document.
+	 *
+	 * @param doc
+	 *            document
+	 * @return serialization
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	private static String string(final CompactDocument doc)
+			throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final DOMSerializer ser = new DOMSerializer(out);
+		doc.serialize(0, ser);
+		ser.finish();
+		return out.toString("UTF-8");
+	}
+}
@@ -0,0 +1,71 @@
+package org.jaxrx.dom;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * This class measures the number of commits per second of the write-ahead
+ * log for an increasing number of concurrent writers. Each writer appends a
+ * record and waits until it is durable. It is no unit test and is not run by
+ * the build; the optional arguments are the synchronization policy and the
+ * flush interval.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public final class WriteAheadLogBenchmark {
+	/**
+	 * Duration of a single measurement in milliseconds.
+	 */
+	private static final long DURATION = 3000;
+
+	/**
+	 * Private constructor.
+	 */
+	private WriteAheadLogBenchmark() {
+	}
+
+	/**
+	 * Main method.
+	 *
+	 * @param args
+	 *            synchronization policy and flush interval (optional)
+	 * @throws Exception
+	 *             exception
+	 */
+	public static void main(final String[] args) throws Exception {
+		final String sync = args.length > 0 ? args[0] : "force";
+		final long interval = args.length > 1 ? Long.parseLong(args[1]) : 0;
+		final byte[] data = new byte[1024];
+		System.out.println("writers\tcommits/s\trecords/batch");
+		for (int writers = 1; writers <= 64; writers <<= 1) {
+			final File file = File.createTempFile("jaxrx", "wal");
+			final WriteAheadLog log = new WriteAheadLog(file, sync, interval);
+			final long end = System.currentTimeMillis() + DURATION;
+			final Thread[] threads = new Thread[writers];
+			for (int w = 0; w < writers; w++) {
+				final String name = "doc" + w;
+				threads[w] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							for (int r = 0; System.currentTimeMillis() < end; r++) {
+								log.put(name, r, r, r, data);
+								log.sync();
+							}
+						} catch (final IOException ex) {
+							ex.printStackTrace();
+						}
+					}
+				};
+				threads[w].start();
+			}
+			for (final Thread t : threads)
+				t.join();
+			System.out.printf("%d\t%.0f\t%.1f%n", writers, log.count() * 1000d
+					/ DURATION, (double) log.count() / Math.max(1, log.batches()));
+			file.delete();
+		}
+	}
+}
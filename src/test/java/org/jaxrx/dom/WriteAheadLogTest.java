@@ -0,0 +1,134 @@
+package org.jaxrx.dom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class tests the write-ahead log.
+ *
+ * @author Sebastian Graf, Christian Gruen, Lukas Lewandowski, University of
+ *         Konstanz
+ *
+ */
+public class WriteAheadLogTest {
+	/**
+	 * Log file.
+	 */
+	private File file;
+
+	/**
+	 * Creates a temporary log file name.
+	 *
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("jaxrx", "wal");
+		file.delete();
+	}
+
+	/**
+	 * Deletes the log file.
+	 */
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	/**
+	 * Writes records from concurrent threads, reopens the log and checks its
+	 * contents.
+	 *
+	 * @throws Exception
+	 *             exception
+	 */
+	@Test
+	public void testGroupCommit() throws Exception {
+		final WriteAheadLog log = new WriteAheadLog(file, "force", 0);
+		final int threads = 8;
+		final int records = 50;
+		final Thread[] th = new Thread[threads];
+		final Exception[] error = new Exception[1];
+		for (int t = 0; t < threads; t++) {
+			final String name = "doc" + t;
+			th[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int r = 0; r < records; r++) {
+							log.put(name, r, r, r, ("<" + name + "/>")
+									.getBytes("UTF-8"));
+							log.sync();
+						}
+					} catch (final IOException ex) {
+						error[0] = ex;
+					}
+				}
+			};
+			th[t].start();
+		}
+		for (final Thread t : th)
+			t.join();
+		assertNull(error[0]);
+		assertEquals(threads * records, log.count());
+		assertTrue(log.batches() <= log.count());
+
+		log.delete("doc0", 1000, 1000);
+		log.sync();
+		final List<WriteAheadLog.Record> recs = new WriteAheadLog(file,
+				"none", 0).records();
+		assertEquals(threads * records + 1, recs.size());
+		assertArrayEquals("<doc3/>".getBytes("UTF-8"), find(recs, "doc3").data);
+		assertEquals(WriteAheadLog.DELETE, recs.get(recs.size() - 1).type);
+	}
+
+	/**
+	 * Checks that incomplete records are discarded.
+	 *
+	 * @throws IOException
+	 *             I/O exception
+	 */
+	@Test
+	public void testTornRecord() throws IOException {
+		WriteAheadLog log = new WriteAheadLog(file, "none", 0);
+		log.put("a", 0, 1, 1, new byte[] { 1, 2, 3 });
+		log.sync();
+		final FileOutputStream out = new FileOutputStream(file, true);
+		out.write(new byte[] { 0, 0, 0, 100, 0, 1 });
+		out.close();
+
+		log = new WriteAheadLog(file, "none", 0);
+		assertEquals(1, log.records().size());
+		log.put("b", 0, 2, 2, new byte[] { 4 });
+		log.sync();
+		assertEquals(2, new WriteAheadLog(file, "none", 0).records().size());
+	}
+
+	/**
+	 * Returns the first record of the specified document.
+	 *
+	 * @param recs
+	 *            records
+	 * @param name
+	 *            document name
+	 * @return record
+	 */
+	private static WriteAheadLog.Record find(
+			final List<WriteAheadLog.Record> recs, final String name) {
+		for (final WriteAheadLog.Record r : recs) {
+			if (r.name.equals(name))
+				return r;
+		}
+		return null;
+	}
+}